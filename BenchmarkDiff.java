@@ -0,0 +1,145 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class compares two sets of benchmark results, e.g. those of the last release and of a release candidate, as
+ * written by JMH with {@code -rf csv -rff <file>}. For every benchmark and set of parameters in either file, it prints
+ * both scores, the change between them, and whether the change is larger than the two scores' errors together, so it
+ * is not just noise.
+ *
+ */
+public final class BenchmarkDiff {
+
+    private static final int BENCHMARK = 0;
+    private static final int MODE = 1;
+    private static final int THREADS = 2;
+    private static final int SCORE = 4;
+    private static final int ERROR = 5;
+    private static final int UNIT = 6;
+    private static final int PARAMS = 7;
+
+    private BenchmarkDiff() {
+    }
+
+    /**
+     * Prints the comparison of two result files.
+     * @param args the baseline result file and the result file to compare with it
+     * @throws IOException if either file cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length != 2) {
+            System.err.println("usage: BenchmarkDiff <baseline.csv> <candidate.csv>");
+            System.exit(2);
+        }
+
+        Map<String, String[]> baseline = read(args[0]);
+        Map<String, String[]> candidate = read(args[1]);
+        Map<String, String[]> all = new LinkedHashMap<>(baseline);
+
+        candidate.forEach(all::putIfAbsent);
+
+        System.out.printf("%-70s %16s %16s %9s  %s%n", "benchmark", "baseline", "candidate", "change", "unit");
+
+        for (Map.Entry<String, String[]> result : all.entrySet()) {
+
+            String[] before = baseline.get(result.getKey());
+            String[] after = candidate.get(result.getKey());
+
+            if (before == null || after == null) {
+                System.out.printf("%-70s %16s %16s %9s  %s%n", result.getKey(), score(before), score(after), "",
+                        result.getValue()[UNIT]);
+                continue;
+            }
+
+            double was = Double.parseDouble(before[SCORE]);
+            double now = Double.parseDouble(after[SCORE]);
+            boolean significant = Math.abs(now - was) > error(before) + error(after);
+
+            System.out.printf("%-70s %16s %16s %+8.1f%%  %s%s%n", result.getKey(), score(before), score(after),
+                    (now - was) / was * 100, before[UNIT], significant ? "" : "  (within error)");
+        }
+    }
+
+    /**
+     * Reads a result file.
+     * @param file the result file
+     * @return the results, keyed by benchmark, mode, number of threads and parameters, in the order of the file
+     * @throws IOException if the file cannot be read
+     */
+    private static Map<String, String[]> read(String file) throws IOException {
+
+        Map<String, String[]> results = new LinkedHashMap<>();
+        List<String> lines = Files.readAllLines(Paths.get(file));
+        String[] header = fields(lines.get(0));
+
+        for (String line : lines.subList(1, lines.size())) {
+
+            String[] fields = fields(line);
+            StringBuilder key = new StringBuilder(fields[BENCHMARK]).append(' ').append(fields[MODE])
+                    .append(" t=").append(fields[THREADS]);
+
+            for (int i = PARAMS; i < fields.length; i++) {
+                if (!fields[i].isEmpty()) {
+                    key.append(' ').append(header[i].replace("Param: ", "")).append('=').append(fields[i]);
+                }
+            }
+            results.put(key.toString(), fields);
+        }
+        return results;
+    }
+
+    /**
+     * Splits a line of a result file into its fields, taking the quotes off quoted ones.
+     * @param line the line
+     * @return the fields
+     */
+    private static String[] fields(String line) {
+
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+
+            char c = line.charAt(i);
+
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    /**
+     * Formats the score of a result.
+     * @param result the result, or null if there is none
+     * @return the score, or a dash if there is no result
+     */
+    private static String score(String[] result) {
+        return result == null ? "-" : String.format("%.3f", Double.parseDouble(result[SCORE]));
+    }
+
+    /**
+     * Returns the error of the score of a result, which JMH leaves out when there were too few samples to tell.
+     * @param result the result
+     * @return the error, or 0 if there is none
+     */
+    private static double error(String[] result) {
+        return result.length <= ERROR || result[ERROR].isEmpty() || result[ERROR].equals("NaN")
+                ? 0 : Double.parseDouble(result[ERROR]);
+    }
+}
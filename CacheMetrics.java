@@ -0,0 +1,112 @@
+package impl;
+
+/**
+ * This class represents the metrics of the cache of a {@link TieredLoyaltyCardOperator} at one point in time: how many
+ * lookups found their card in the cache and how many had to load it from the ledger, how many cards were evicted to
+ * make room for others, and how long loads took. Latencies are in nanoseconds.
+ *
+ */
+public final class CacheMetrics {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int size;
+    private final int capacity;
+    private final LatencyHistogram loads;
+
+    /**
+     * Constructor for the metrics read from a cache.
+     * @param hits the number of lookups which found their card in the cache
+     * @param misses the number of lookups which did not
+     * @param evictions the number of cards evicted
+     * @param size the number of cards in the cache
+     * @param capacity the most cards the cache holds
+     * @param loads the latencies of the loads made on misses
+     */
+    CacheMetrics(long hits, long misses, long evictions, int size, int capacity, LatencyHistogram loads) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+        this.capacity = capacity;
+        this.loads = loads;
+    }
+
+    /**
+     * Returns the number of lookups which found their card in the cache.
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups which did not find their card in the cache, including lookups of emails which are
+     * not registered.
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the share of lookups which found their card in the cache.
+     * @return the hit rate, from 0 to 1, or 0 if there have been no lookups
+     */
+    public double getHitRate() {
+
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Returns the number of cards evicted from the cache to make room for others. Cards removed because their owner
+     * unregistered are not counted.
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of cards in the cache.
+     * @return the number of cards
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the most cards the cache holds.
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of loads from the ledger, one for each miss.
+     * @return the number of loads
+     */
+    public long getLoads() {
+        return loads.getCount();
+    }
+
+    /**
+     * Returns the latency of loads at a percentile.
+     * @param percentile the percentile, from 0 to 100
+     * @return the latency, accurate to about 3%, or 0 if there have been no loads
+     */
+    public long getLoadLatencyAtPercentile(double percentile) {
+        return loads.getValueAtPercentile(percentile);
+    }
+
+    /**
+     * Returns the highest latency of loads.
+     * @return the latency, or 0 if there have been no loads
+     */
+    public long getMaxLoadLatency() {
+        return loads.getMax();
+    }
+}
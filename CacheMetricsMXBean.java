@@ -0,0 +1,63 @@
+package impl;
+
+/**
+ * Interface for the JMX view of the metrics of the cache of a {@link TieredLoyaltyCardOperator}. Latencies are in
+ * microseconds.
+ *
+ */
+public interface CacheMetricsMXBean {
+
+    /**
+     * Returns the number of lookups which found their card in the cache.
+     * @return the number of hits
+     */
+    long getHits();
+
+    /**
+     * Returns the number of lookups which did not find their card in the cache.
+     * @return the number of misses
+     */
+    long getMisses();
+
+    /**
+     * Returns the share of lookups which found their card in the cache.
+     * @return the hit rate, from 0 to 1
+     */
+    double getHitRate();
+
+    /**
+     * Returns the number of cards evicted from the cache to make room for others.
+     * @return the number of evictions
+     */
+    long getEvictions();
+
+    /**
+     * Returns the number of cards in the cache.
+     * @return the number of cards
+     */
+    int getSize();
+
+    /**
+     * Returns the most cards the cache holds.
+     * @return the capacity
+     */
+    int getCapacity();
+
+    /**
+     * Returns the median latency of loads from the ledger.
+     * @return the latency
+     */
+    double getLoadP50Micros();
+
+    /**
+     * Returns the 99th percentile latency of loads from the ledger.
+     * @return the latency
+     */
+    double getLoadP99Micros();
+
+    /**
+     * Returns the highest latency of loads from the ledger.
+     * @return the latency
+     */
+    double getLoadMaxMicros();
+}
@@ -0,0 +1,364 @@
+package impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * This class is a cache of a bounded number of values, which evicts by W-TinyLFU: when it is full it keeps the values
+ * used most often lately rather than those used last, so that a scan over many values used once, such as a day's
+ * purchases by members who rarely shop, does not push out the members who shop every day.
+ *
+ * New values go into a window of about 1% of the capacity, kept in order of use. The value leaving the window joins
+ * the probation part of the rest of the cache, and if the cache is then over capacity, it competes with the value
+ * least recently used in probation: whichever of the two has been used less often is evicted, the newcomer on a tie.
+ * A value used again while in probation moves to the protected part, which holds up to 80% of the rest and hands its
+ * least recently used values back to probation. How often each key has been used is estimated by a count-min sketch
+ * of 4-bit counters, about 4 bytes per value of capacity, which are all halved after every 10 uses per value of
+ * capacity, so that the sketch forgets old popularity.
+ *
+ * Values are found by a lookup in a concurrent hash map without locking. The orders of use and the sketch are only
+ * updated on a hit if their lock is free, so a hit never waits; under contention some hits are not counted, which
+ * makes eviction a little less exact but not wrong. Values are loaded without holding the lock, and added, evicted and
+ * removed while holding it.
+ *
+ * The cache counts its hits, misses and evictions and measures how long loads take, which can be read with
+ * {@link #getMetrics()}.
+ *
+ */
+final class CardCache<K, V> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int EVICTED = -1;
+
+    private final int capacity;
+    private final int windowCapacity;
+    private final int protectedCapacity;
+
+    private final ConcurrentHashMap<K, Node<K, V>> nodes = new ConcurrentHashMap<>();
+    private final ReentrantLock policy = new ReentrantLock();
+    private final FrequencySketch sketch;
+
+    // The head of each part's list, in order of use from the least recently used after the head, by part.
+    private final Node<K, V>[] heads;
+    private final int[] sizes = new int[3];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LatencyRecorder loads = new LatencyRecorder();
+
+    /**
+     * Constructor for an empty cache.
+     * @param capacity the most values the cache holds
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    CardCache(int capacity) throws IllegalArgumentException {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        this.capacity = capacity;
+        this.windowCapacity = capacity / 100;
+        this.protectedCapacity = (int) ((capacity - windowCapacity) * 4L / 5);
+        this.sketch = new FrequencySketch(capacity);
+        this.heads = new Node[3];
+
+        for (int part = 0; part < heads.length; part++) {
+            heads[part] = new Node<>(null, null);
+            heads[part].previous = heads[part];
+            heads[part].next = heads[part];
+        }
+    }
+
+    /**
+     * Returns the value of a key, loading it and adding it to the cache if the cache does not hold it.
+     * @param key the key
+     * @param loader loads the value of a key, or returns null if the key has none, in which case nothing is added
+     * @return the value, or null if the key has none
+     */
+    V get(K key, Function<? super K, ? extends V> loader) {
+
+        Node<K, V> node = nodes.get(key);
+
+        if (node != null) {
+            hits.increment();
+
+            if (policy.tryLock()) {
+                try {
+                    onHit(node);
+                } finally {
+                    policy.unlock();
+                }
+            }
+            return node.value;
+        }
+
+        misses.increment();
+
+        long start = System.nanoTime();
+        V value = loader.apply(key);
+
+        loads.record(System.nanoTime() - start);
+        return value == null ? null : put(key, value);
+    }
+
+    /**
+     * Adds a value to the cache, evicting another if the cache is full, unless the cache already holds a value for its
+     * key.
+     * @param key the key
+     * @param value the value
+     * @return the value the cache holds for the key
+     */
+    V put(K key, V value) {
+
+        policy.lock();
+        try {
+            Node<K, V> node = nodes.get(key);
+
+            if (node != null) {
+                return node.value;
+            }
+
+            node = new Node<>(key, value);
+            nodes.put(key, node);
+            link(node, WINDOW);
+            sketch.increment(key);
+
+            while (sizes[WINDOW] > windowCapacity) {
+
+                Node<K, V> oldest = heads[WINDOW].next;
+
+                unlink(oldest);
+                link(oldest, PROBATION);
+            }
+            while (sizes[WINDOW] + sizes[PROBATION] + sizes[PROTECTED] > capacity) {
+                evict();
+            }
+            return value;
+
+        } finally {
+            policy.unlock();
+        }
+    }
+
+    /**
+     * Removes the value of a key from the cache, if it holds one. Removing it does not count as an eviction.
+     * @param key the key
+     */
+    void remove(K key) {
+
+        policy.lock();
+        try {
+            Node<K, V> node = nodes.remove(key);
+
+            if (node != null) {
+                unlink(node);
+                node.part = EVICTED;
+            }
+        } finally {
+            policy.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of values the cache holds.
+     * @return the number of values
+     */
+    int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Reads the cache's metrics.
+     * @return the metrics as they are now
+     */
+    CacheMetrics getMetrics() {
+        return new CacheMetrics(hits.sum(), misses.sum(), evictions.sum(), size(), capacity, loads.getHistogram());
+    }
+
+    /**
+     * Records a hit in the orders of use and the sketch. Must be called while holding the lock.
+     * @param node the value's node, which may have been evicted since it was found
+     */
+    private void onHit(Node<K, V> node) {
+
+        if (node.part == EVICTED) {
+            return;
+        }
+
+        sketch.increment(node.key);
+
+        int part = node.part == WINDOW ? WINDOW : PROTECTED;
+
+        unlink(node);
+        link(node, part);
+
+        while (sizes[PROTECTED] > protectedCapacity) {
+
+            Node<K, V> demoted = heads[PROTECTED].next;
+
+            unlink(demoted);
+            link(demoted, PROBATION);
+        }
+    }
+
+    /**
+     * Evicts either the value which has just joined probation or the least recently used one in probation, whichever
+     * has been used less often. Must be called while holding the lock, with at least one value in probation.
+     */
+    private void evict() {
+
+        Node<K, V> victim = heads[PROBATION].next;
+        Node<K, V> candidate = heads[PROBATION].previous;
+        Node<K, V> evicted = candidate != victim
+                && sketch.frequency(candidate.key) > sketch.frequency(victim.key) ? victim : candidate;
+
+        unlink(evicted);
+        nodes.remove(evicted.key, evicted);
+        evicted.part = EVICTED;
+        evictions.increment();
+    }
+
+    /**
+     * Links a node in as the most recently used of a part.
+     * @param node the node
+     * @param part the part
+     */
+    private void link(Node<K, V> node, int part) {
+
+        Node<K, V> head = heads[part];
+
+        node.previous = head.previous;
+        node.next = head;
+        head.previous.next = node;
+        head.previous = node;
+        node.part = part;
+        sizes[part]++;
+    }
+
+    /**
+     * Unlinks a node from its part.
+     * @param node the node
+     */
+    private void unlink(Node<K, V> node) {
+
+        node.previous.next = node.next;
+        node.next.previous = node.previous;
+        node.previous = null;
+        node.next = null;
+        sizes[node.part]--;
+    }
+
+    /**
+     * A value in the cache, linked into the list of its part.
+     */
+    private static final class Node<K, V> {
+
+        private final K key;
+        private final V value;
+        private int part;
+        private Node<K, V> previous;
+        private Node<K, V> next;
+
+        private Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A count-min sketch estimating how often each key has been used, with four 4-bit counters for each key, picked by
+     * four hashes of it out of a table of longs of 16 counters each. A key's estimate is the least of its counters,
+     * which can only be too high, when other keys share all four of them. Not safe to share between threads on its
+     * own.
+     */
+    private static final class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+                0xcbf29ce484222325L};
+        private static final long HALVE = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        /**
+         * Constructor for a sketch with room for the keys of a cache.
+         * @param capacity the capacity of the cache
+         */
+        private FrequencySketch(int capacity) {
+
+            int rounded = 1 << -Integer.numberOfLeadingZeros(Math.min(capacity, 1 << 30) - 1);
+
+            this.table = new long[Math.max(1, rounded >> 1)];
+            this.sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Counts a use of a key, halving every counter once enough uses have been counted.
+         * @param key the key
+         */
+        private void increment(Object key) {
+
+            int hash = spread(key.hashCode());
+            boolean added = false;
+
+            for (long seed : SEEDS) {
+
+                long h = (hash + seed) * seed;
+                int index = (int) (h >>> 36) & table.length - 1;
+                int shift = (int) (h >>> 32 & 15) << 2;
+
+                if ((table[index] >>> shift & 15) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = table[i] >>> 1 & HALVE;
+                }
+                additions /= 2;
+            }
+        }
+
+        /**
+         * Estimates how often a key has been used lately.
+         * @param key the key
+         * @return the estimate, from 0 to 15
+         */
+        private int frequency(Object key) {
+
+            int hash = spread(key.hashCode());
+            int frequency = 15;
+
+            for (long seed : SEEDS) {
+
+                long h = (hash + seed) * seed;
+                int index = (int) (h >>> 36) & table.length - 1;
+                int shift = (int) (h >>> 32 & 15) << 2;
+
+                frequency = Math.min(frequency, (int) (table[index] >>> shift & 15));
+            }
+            return frequency;
+        }
+
+        /**
+         * Mixes the bits of a hash code, so that keys whose hash codes differ only a little get unrelated counters.
+         * @param hash the hash code
+         * @return the mixed hash
+         */
+        private static int spread(int hash) {
+
+            hash = (hash ^ hash >>> 16) * 0x45d9f3b;
+            return hash ^ hash >>> 16;
+        }
+    }
+}
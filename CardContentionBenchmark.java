@@ -0,0 +1,136 @@
+package bench;
+
+import common.InsufficientPointsException;
+import impl.Factory;
+import interfaces.IFactory;
+import interfaces.ILoyaltyCard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class benchmarks adding points to and using points from a loyalty card. The contended benchmarks share one
+ * card between four threads adding points and four threads using them, and the uncontended ones give every thread a
+ * card of its own to do the same on, so the two can be compared to see what sharing a card costs.
+ *
+ * Every card is given enough points at the start of each iteration that using one point at a time cannot run out of
+ * them within an iteration.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CardContentionBenchmark {
+
+    /**
+     * The number of points each card starts an iteration with.
+     */
+    private static final int POINTS = 1 << 30;
+
+    /**
+     * Makes a card with its starting points.
+     * @return the card
+     */
+    private static ILoyaltyCard makeCard() {
+
+        IFactory factory = Factory.getInstance();
+        ILoyaltyCard card = factory.makeLoyaltyCard(factory.makeLoyaltyCardOwner("member@example.com", "Member"));
+
+        card.addPoints(POINTS);
+        return card;
+    }
+
+    /**
+     * A card shared by every thread.
+     */
+    @State(Scope.Group)
+    public static class SharedCard {
+
+        private ILoyaltyCard card;
+
+        /**
+         * Replaces the card with one that has its starting points.
+         */
+        @Setup(Level.Iteration)
+        public void setUp() {
+            card = makeCard();
+        }
+    }
+
+    /**
+     * A card for one thread only.
+     */
+    @State(Scope.Thread)
+    public static class OwnCard {
+
+        private ILoyaltyCard card;
+
+        /**
+         * Replaces the card with one that has its starting points.
+         */
+        @Setup(Level.Iteration)
+        public void setUp() {
+            card = makeCard();
+        }
+    }
+
+    /**
+     * Adds a point to the shared card.
+     * @param shared the shared card
+     */
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public void addPoints(SharedCard shared) {
+        shared.card.addPoints(1);
+    }
+
+    /**
+     * Uses a point from the shared card.
+     * @param shared the shared card
+     * @throws InsufficientPointsException never, as the card has more points than can be used in an iteration
+     */
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public void usePoints(SharedCard shared) throws InsufficientPointsException {
+        shared.card.usePoints(1);
+    }
+
+    /**
+     * Adds a point to the thread's own card.
+     * @param own the thread's card
+     */
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(4)
+    public void addOwnPoints(OwnCard own) {
+        own.card.addPoints(1);
+    }
+
+    /**
+     * Uses a point from the thread's own card.
+     * @param own the thread's card
+     * @throws InsufficientPointsException never, as the card has more points than can be used in an iteration
+     */
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(4)
+    public void useOwnPoints(OwnCard own) throws InsufficientPointsException {
+        own.card.usePoints(1);
+    }
+}
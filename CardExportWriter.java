@@ -0,0 +1,228 @@
+package impl;
+
+import interfaces.ILoyaltyCardOwner;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class writes the registered cards in a snapshot to a channel in an {@link ExportFormat}, encoding each card straight into a
+ * buffer which is reused for the whole export, so that no objects are made for any card.
+ *
+ * A card is always written to the buffer whole: if it does not fit in what is left, the buffer is written to the
+ * channel first, and a card too big for an empty buffer is written to a bigger one.
+ *
+ */
+final class CardExportWriter implements CardIndex.CardVisitor {
+
+    private static final int BUFFER_BYTES = 1 << 16;
+    private static final byte[] CSV_HEADER = "email,name,points,uses\n".getBytes(StandardCharsets.UTF_8);
+
+    private final WritableByteChannel channel;
+    private final ExportFormat format;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private long cards;
+
+    /**
+     * Constructor for a writer, which starts with the header of the format, if it has one.
+     * @param channel the channel to write to
+     * @param format the format to write in
+     */
+    CardExportWriter(WritableByteChannel channel, ExportFormat format) {
+
+        this.channel = channel;
+        this.format = format;
+
+        if (format == ExportFormat.CSV) {
+            buffer.put(CSV_HEADER);
+        }
+    }
+
+    /**
+     * Returns the number of cards written.
+     * @return the number of cards
+     */
+    long getCards() {
+        return cards;
+    }
+
+    /**
+     * Writes a card, if its owner was registered.
+     * @param owner the card's owner
+     * @param registration the position at which the card was registered
+     * @param state the card's state in the snapshot being exported
+     * @throws IOException if the channel cannot be written to
+     */
+    @Override
+    public void visit(ILoyaltyCardOwner owner, long registration, long state) throws IOException {
+
+        if (!CardIndex.isRegistered(state)) {
+            return;
+        }
+
+        int points = CardIndex.getPoints(state);
+        int uses = CardIndex.getUses(state);
+
+        while (true) {
+
+            int start = buffer.position();
+
+            try {
+                if (format == ExportFormat.CSV) {
+                    putCsvField(owner.getEmail());
+                    buffer.put((byte) ',');
+                    putCsvField(owner.getName());
+                    buffer.put((byte) ',');
+                    putDecimal(points);
+                    buffer.put((byte) ',');
+                    putDecimal(uses);
+                    buffer.put((byte) '\n');
+                } else {
+                    putSizedUtf8(owner.getEmail());
+                    putSizedUtf8(owner.getName());
+                    buffer.putInt(points);
+                    buffer.putInt(uses);
+                }
+                cards++;
+                return;
+
+            } catch (BufferOverflowException e) {
+
+                buffer.position(start);
+
+                if (start == 0) {
+                    buffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                } else {
+                    flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes whatever is left in the buffer to the channel.
+     * @throws IOException if the channel cannot be written to
+     */
+    void flush() throws IOException {
+
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Puts a CSV field, in double quotes if it needs them.
+     * @param field the field
+     */
+    private void putCsvField(String field) {
+
+        boolean quoted = false;
+
+        for (int i = 0; i < field.length() && !quoted; i++) {
+            char c = field.charAt(i);
+            quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+
+        if (!quoted) {
+            putUtf8(field);
+            return;
+        }
+
+        buffer.put((byte) '"');
+
+        for (int i = 0; i < field.length(); i++) {
+            if (field.charAt(i) == '"') {
+                buffer.put((byte) '"');
+            }
+            i = putUtf8(field, i);
+        }
+        buffer.put((byte) '"');
+    }
+
+    /**
+     * Puts a string as its length in UTF-8 bytes, as an int, followed by those bytes.
+     * @param string the string
+     */
+    private void putSizedUtf8(String string) {
+
+        int lengthAt = buffer.position();
+
+        buffer.putInt(0);
+        putUtf8(string);
+        buffer.putInt(lengthAt, buffer.position() - lengthAt - 4);
+    }
+
+    /**
+     * Puts a string as UTF-8.
+     * @param string the string
+     */
+    private void putUtf8(String string) {
+
+        for (int i = 0; i < string.length(); i++) {
+            i = putUtf8(string, i);
+        }
+    }
+
+    /**
+     * Puts one character of a string as UTF-8, or two if they are a surrogate pair. An unpaired surrogate is put as a
+     * question mark, as {@link String#getBytes} does.
+     * @param string the string
+     * @param i the position of the character
+     * @return the position of the last character put
+     */
+    private int putUtf8(String string, int i) {
+
+        char c = string.charAt(i);
+
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else if (c < 0x800) {
+            buffer.put((byte) (0xC0 | c >> 6));
+            buffer.put((byte) (0x80 | c & 0x3F));
+        } else if (!Character.isSurrogate(c)) {
+            buffer.put((byte) (0xE0 | c >> 12));
+            buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+            buffer.put((byte) (0x80 | c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+                && Character.isLowSurrogate(string.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(c, string.charAt(++i));
+            buffer.put((byte) (0xF0 | codePoint >> 18));
+            buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+            buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+            buffer.put((byte) (0x80 | codePoint & 0x3F));
+        } else {
+            buffer.put((byte) '?');
+        }
+        return i;
+    }
+
+    /**
+     * Puts a number which is not negative in decimal.
+     * @param value the number
+     */
+    private void putDecimal(int value) {
+
+        int digits = 1;
+
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+
+        int end = buffer.position() + digits;
+
+        if (end > buffer.limit()) {
+            throw new BufferOverflowException();
+        }
+        for (int at = end - 1; at >= buffer.position(); at--) {
+            buffer.put(at, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+}
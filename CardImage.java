@@ -0,0 +1,186 @@
+package impl;
+
+import interfaces.ILoyaltyCardOwner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * This class reads and writes snapshot images: compact binary files holding every registered owner's card, together
+ * with the journal generation the image is up to date with.
+ *
+ * An image is a header (a magic number, the generation and the number of cards) followed by each card's owner's email
+ * and name, each as its length and its UTF-8 bytes so that neither is limited in length, the position at which the
+ * card was registered, the card's points and uses, and the lots its points are kept in (see {@link PointLots}), so the
+ * day each point expires on survives a restart. The cards are written in whatever order they are visited in, and the
+ * number of cards is filled in once they all have been, so an image can be written straight from a snapshot in one
+ * pass. Images are written to a temporary file, synced, and then moved over the previous image, so there is always
+ * one complete image.
+ *
+ */
+final class CardImage {
+
+    private static final int MAGIC = 0x4C434934;
+    private static final int CARDS_OFFSET = 12;
+
+    private CardImage() {
+    }
+
+    /**
+     * Writes an image, replacing any previous image in the same file.
+     * @param file the image file
+     * @param generation the journal generation the image is up to date with
+     * @param source something which visits every card
+     * @throws IOException if the image cannot be written
+     */
+    static void write(Path file, long generation, Source source) throws IOException {
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (FileOutputStream stream = new FileOutputStream(temporary.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+
+            out.writeInt(MAGIC);
+            out.writeLong(generation);
+            out.writeInt(0);
+
+            int[] written = new int[1];
+
+            source.visit((owner, registration, points, uses, lots, lotCount) -> {
+                writeString(out, owner.getEmail());
+                writeString(out, owner.getName());
+                out.writeLong(registration);
+                out.writeInt(points);
+                out.writeInt(uses);
+                out.writeInt(lotCount);
+                for (int i = 0; i < lotCount; i++) {
+                    out.writeLong(lots[i]);
+                }
+                written[0]++;
+            });
+
+            out.flush();
+            stream.getChannel().write(ByteBuffer.allocate(4).putInt(0, written[0]), CARDS_OFFSET);
+            stream.getFD().sync();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads an image, if there is one.
+     * @param file the image file
+     * @param visitor what to visit every card in the image with
+     * @return the journal generation the image is up to date with, or 0 if there is no image
+     * @throws IOException if the image cannot be read
+     */
+    static long read(Path file, Visitor visitor) throws IOException {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot image");
+            }
+
+            long generation = in.readLong();
+            int cards = in.readInt();
+            long[] lots = new long[16];
+
+            for (int i = 0; i < cards; i++) {
+
+                ILoyaltyCardOwner owner = Factory.getInstance().makeLoyaltyCardOwner(readString(in), readString(in));
+                long registration = in.readLong();
+                int points = in.readInt();
+                int uses = in.readInt();
+                int lotCount = in.readInt();
+
+                if (lots.length < lotCount) {
+                    lots = new long[Math.max(lotCount, 2 * lots.length)];
+                }
+                for (int j = 0; j < lotCount; j++) {
+                    lots[j] = in.readLong();
+                }
+                visitor.visit(owner, registration, points, uses, lots, lotCount);
+            }
+            return generation;
+
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes a string as its length and its UTF-8 bytes.
+     * @param out the stream to write to
+     * @param string the string
+     * @throws IOException if the string cannot be written
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+     * @param in the stream to read from
+     * @return the string
+     * @throws IOException if the string cannot be read
+     */
+    private static String readString(DataInputStream in) throws IOException {
+
+        int length = in.readInt();
+
+        if (length < 0) {
+            throw new IOException("Corrupt snapshot image");
+        }
+
+        byte[] bytes = new byte[length];
+
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Something which visits cards.
+     */
+    interface Visitor {
+
+        /**
+         * Visits a card.
+         * @param owner the owner of the card
+         * @param registration the position at which the card was registered
+         * @param points the number of points on the card
+         * @param uses the number of times the card has been used
+         * @param lots the card's packed lots, oldest first, in a buffer which is reused for the next card
+         * @param lotCount the number of lots
+         * @throws IOException if the visitor cannot use the card
+         */
+        void visit(ILoyaltyCardOwner owner, long registration, int points, int uses, long[] lots, int lotCount)
+                throws IOException;
+    }
+
+    /**
+     * Something which has cards to visit.
+     */
+    interface Source {
+
+        /**
+         * Visits every card.
+         * @param visitor the visitor
+         * @throws IOException if the visitor throws it, which ends the visit
+         */
+        void visit(Visitor visitor) throws IOException;
+    }
+}
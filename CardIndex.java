@@ -0,0 +1,1576 @@
+package impl;
+
+import common.InsufficientPointsException;
+import common.OwnerNotRegisteredException;
+import common.PurchaseRecord;
+import common.PurchaseResult;
+import interfaces.ILoyaltyCard;
+import interfaces.ILoyaltyCardOwner;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * This class is an index over the registered owners and their loyalty cards, keyed by each owner's email, so that
+ * looking up a card or checking a registration takes constant time instead of a scan over every card. Only registered
+ * owners are indexed: unregistering an owner removes their card, so the index, and every pass over it, only ever grows
+ * with the number of owners registered now, and an owner who registers again is issued a new card.
+ *
+ * The index is safe to share between threads. Every card is stamped with the order in which it was registered, which
+ * is what getMostUsed() relies on to break ties.
+ *
+ * Points are added to and used from cards through their {@link Entry}, which works out the points a purchase earns by
+ * the index's {@link EarningRules}, and keeps a running total of all points and rankings of the cards by number of uses
+ * and by number of points up to date, so none of them needs a scan over every card. A card only appears in a ranking
+ * while its value there is above zero.
+ *
+ * Snapshots of every card as it was at one point in time can be read while the cards go on being updated, without
+ * copying them or making the updates wait. Each snapshot has a version, one more than the one before. While a
+ * snapshot is open, the first update to each card after it was taken saves the card's state beforehand in the card's
+ * history, tagged with the newest open version, and a snapshot reads the oldest state in the history tagged with its
+ * version or a newer one, or the card itself if there is none. States which no open snapshot can read any more are
+ * dropped from a card's history the next time the card is updated. A card removed while a snapshot is open stays
+ * indexed, behind any card issued for the same email since, until every snapshot which could still read it is closed.
+ *
+ * Each card's uses, and the points it earned, are also counted over every {@link UsageWindow} by {@link UsageCounters}
+ * made for it at its first use. To rank cards within a window without a pass over every card, the index keeps, for
+ * each of the last 31 days, a list of the cards whose last use was on that day. A card moves from one list to the next
+ * at its first use of a day, and a removed card leaves its list, and drops its counters, straight away, so the lists
+ * only ever hold registered cards.
+ *
+ * Points expire {@link PointLots#VALID_FOR} after the day they were earned on, at the end of that day in UTC. Each
+ * card keeps its points in {@link PointLots}, by the day they expire on, and uses the oldest first: on the heap, or in
+ * the records of a card kept in a {@link MappedCardLedger}. Every update to a card, and every read of its points,
+ * first expires the card's points which are due by then, so a card never shows points which have expired, and points
+ * added or used at a given time, e.g. when a journal is replayed, always find the same points left. To take expired
+ * points out of the total and the rankings too, without a pass over every card, a card with points has a timer in an
+ * {@link ExpirySchedule}, due when its oldest lot expires, and every call through the index expires the points of a
+ * small batch of the cards which have fallen due, without waiting for any other call to, until there are none left.
+ *
+ */
+final class CardIndex {
+
+    /**
+     * The state of a card which had not been issued yet, or had been removed. The state of a card which had been
+     * issued packs its number of uses into bits 32 to 62, its number of points into the low 32 bits, and sets the top
+     * bit if its owner was registered.
+     */
+    static final long ABSENT = -1;
+
+    /**
+     * Orders ranked cards by highest value first, and then by the order in which they were registered.
+     */
+    private static final Comparator<Rank> BY_VALUE = (a, b) -> {
+        int byValue = Integer.compare(b.value, a.value);
+        return byValue != 0 ? byValue : Long.compare(a.entry.registration, b.entry.registration);
+    };
+
+    private static final long DAY_MILLIS = UsageWindow.LAST_30_DAYS.getBucketMillis();
+    private static final long[] NO_LOTS = new long[0];
+
+    private final ConcurrentHashMap<String, Entry> cards;
+    private final Clock clock;
+    private final AtomicLong registrations = new AtomicLong();
+    private final AtomicInteger registered = new AtomicInteger();
+
+    private final LongAdder totalPoints = new LongAdder();
+    private final ConcurrentSkipListSet<Rank> usesRanking = new ConcurrentSkipListSet<>(BY_VALUE);
+    private final ConcurrentSkipListSet<Rank> pointsRanking = new ConcurrentSkipListSet<>(BY_VALUE);
+
+    private final ConcurrentLinkedQueue<Entry> removed = new ConcurrentLinkedQueue<>();
+    private final AtomicReferenceArray<ActiveDay> activeDays =
+            new AtomicReferenceArray<>(UsageWindow.LAST_30_DAYS.getBuckets() + 1);
+    private final TreeSet<Long> openVersions = new TreeSet<>();
+    private long versions;
+    private volatile long newestOpenVersion;
+    private volatile long oldestOpenVersion;
+
+    private volatile EarningRules earningRules = EarningRules.STANDARD;
+    private final ExpirySchedule<Entry> expirySchedule;
+
+    /**
+     * Constructor for an empty index.
+     * @param clock the clock which the times of the cards' uses are read from
+     */
+    CardIndex(Clock clock) {
+        this(new ConcurrentHashMap<>(), clock);
+    }
+
+    /**
+     * Constructor for an empty index sized to hold a number of cards without growing.
+     * @param expectedCards the number of cards expected
+     * @param clock the clock which the times of the cards' uses are read from
+     */
+    CardIndex(int expectedCards, Clock clock) {
+        this(new ConcurrentHashMap<>(expectedCards), clock);
+    }
+
+    /**
+     * Constructor for an empty index over a map.
+     * @param cards the map to index the cards in
+     * @param clock the clock which the times of the cards' uses are read from
+     */
+    private CardIndex(ConcurrentHashMap<String, Entry> cards, Clock clock) {
+
+        this.cards = cards;
+        this.clock = clock;
+        this.expirySchedule = new ExpirySchedule<>(EarningRules.day(clock.millis()));
+    }
+
+    /**
+     * Checks whether the given email is currently registered.
+     * @param email the owner's email
+     * @return true if the email is registered
+     */
+    boolean isRegistered(String email) {
+
+        Entry entry = cards.get(email);
+        return entry != null && !entry.removed;
+    }
+
+    /**
+     * Registers the owner of the given card, and indexes the card.
+     * @param card the card for the owner being registered
+     * @return false if the owner's email was already registered
+     */
+    boolean register(ILoyaltyCard card) {
+        return add(card.getOwner().getEmail(), card, -1) != null;
+    }
+
+    /**
+     * Indexes a card for an owner who is not registered, in place of the card removed when they last unregistered, if
+     * there was one.
+     * @param email the owner's email
+     * @param card the card
+     * @param registration the position at which the card is registered, or -1 to register it after every card so far
+     * @return the entry for the card, or null if the owner's email was already registered
+     */
+    private Entry add(String email, ILoyaltyCard card, long registration) {
+
+        while (true) {
+
+            Entry existing = cards.get(email);
+
+            if (existing != null && !existing.removed) {
+                return null;
+            }
+
+            // A removed card is only kept behind the new one while a snapshot may still read it.
+            Entry entry = new Entry(card, registration >= 0 ? registration : registrations.getAndIncrement(),
+                    existing != null && existing.removedAt != 0 ? existing : null);
+
+            if (existing == null ? cards.putIfAbsent(email, entry) == null : cards.replace(email, existing, entry)) {
+                registered.incrementAndGet();
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Registers the owners of a batch of cards, as register() would one after the other, from several threads at once.
+     * The batch is split by the owners' emails, so all the cards for one email are registered by the same thread, in
+     * order, and the cards are stamped with their positions in the batch, so ties in getMostUsed() are broken as if
+     * they had been registered one after the other.
+     * @param batch the cards, with null for any to skip
+     * @param count the number of cards in the batch
+     * @return whether the owner of each card was already registered, at the same position as the card in the batch
+     */
+    boolean[] registerAll(ILoyaltyCard[] batch, int count) {
+
+        String[] emails = new String[count];
+        boolean[] duplicates = new boolean[count];
+        long first = registrations.getAndAdd(count);
+        int parts = 4 * ForkJoinPool.getCommonPoolParallelism();
+
+        // Sort the positions by part, keeping them in order within each part.
+        int[] starts = new int[parts + 1];
+        int[] positions = new int[count];
+
+        IntStream.range(0, count).parallel().forEach(i -> {
+            if (batch[i] != null) {
+                emails[i] = batch[i].getOwner().getEmail();
+            }
+        });
+        for (int i = 0; i < count; i++) {
+            if (emails[i] != null) {
+                starts[part(emails[i], parts) + 1]++;
+            }
+        }
+        for (int p = 0; p < parts; p++) {
+            starts[p + 1] += starts[p];
+        }
+
+        int[] ends = starts.clone();
+
+        for (int i = 0; i < count; i++) {
+            if (emails[i] != null) {
+                positions[ends[part(emails[i], parts)]++] = i;
+            }
+        }
+
+        IntStream.range(0, parts).parallel().forEach(p -> {
+            for (int j = starts[p]; j < starts[p + 1]; j++) {
+
+                int i = positions[j];
+                duplicates[i] = add(emails[i], batch[i], first + i) == null;
+            }
+        });
+        return duplicates;
+    }
+
+    /**
+     * Returns the part of a batch an owner's email falls in, picked by the high bits of its hash code once they have
+     * been mixed, so that the part does not follow the bits the map picks its bins by.
+     * @param email the email
+     * @param parts the number of parts
+     * @return the part
+     */
+    private static int part(String email, int parts) {
+        return Math.floorMod((email.hashCode() * 0x9e3779b9) >> 16, parts);
+    }
+
+    /**
+     * Takes a snapshot of every card, which stays readable until it is closed.
+     * @return the version of the snapshot
+     */
+    synchronized long openSnapshot() {
+
+        expirePoints();
+
+        long version = ++versions;
+
+        openVersions.add(version);
+        oldestOpenVersion = openVersions.first();
+        newestOpenVersion = version;
+        return version;
+    }
+
+    /**
+     * Closes a snapshot, so that the states and the removed cards only it could read can be dropped.
+     * @param version the version of the snapshot
+     */
+    synchronized void closeSnapshot(long version) {
+
+        if (openVersions.remove(version)) {
+            oldestOpenVersion = openVersions.isEmpty() ? 0 : openVersions.first();
+            newestOpenVersion = openVersions.isEmpty() ? 0 : openVersions.last();
+            dropRemoved();
+        }
+    }
+
+    /**
+     * Drops the removed cards which no open snapshot can read any more, from the index or from behind the card issued
+     * for the same email since.
+     */
+    private synchronized void dropRemoved() {
+
+        long oldest = oldestOpenVersion;
+
+        for (Iterator<Entry> entries = removed.iterator(); entries.hasNext(); ) {
+
+            Entry entry = entries.next();
+
+            // A card removed while the newest open snapshot was v can only be read by the snapshots up to v.
+            if (oldest != 0 && entry.removedAt >= oldest) {
+                continue;
+            }
+            entries.remove();
+
+            String email = entry.card.getOwner().getEmail();
+
+            if (!cards.remove(email, entry)) {
+                for (Entry newer = cards.get(email); newer != null; newer = newer.previous) {
+                    if (newer.previous == entry) {
+                        newer.previous = null;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the state of the card issued for an email in a snapshot.
+     * @param email the owner's email
+     * @param version the version of the snapshot
+     * @return the state of the card, or {@link #ABSENT} if the email was not registered
+     */
+    long getState(String email, long version) {
+
+        for (Entry entry = cards.get(email); entry != null; entry = entry.previous) {
+
+            long state = entry.getState(version, null);
+
+            if (state != ABSENT) {
+                return state;
+            }
+        }
+        return ABSENT;
+    }
+
+    /**
+     * Hands every card in a snapshot to a visitor, with its state in the snapshot.
+     * @param version the version of the snapshot
+     * @param visitor the visitor
+     * @throws IOException if the visitor throws it, which ends the visit
+     */
+    void forEach(long version, CardVisitor visitor) throws IOException {
+
+        for (Entry latest : cards.values()) {
+
+            // At most one of the cards issued for an email was indexed when the snapshot was taken.
+            for (Entry entry = latest; entry != null; entry = entry.previous) {
+
+                long state = entry.getState(version, null);
+
+                if (state != ABSENT) {
+                    visitor.visit(entry.card.getOwner(), entry.registration, state);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands every card in a snapshot to a visitor, with its state and its lots in the snapshot.
+     * @param version the version of the snapshot
+     * @param visitor the visitor
+     * @throws IOException if the visitor throws it, which ends the visit
+     */
+    void forEach(long version, LotsVisitor visitor) throws IOException {
+
+        // The lots of every card are copied into the same buffer, which only grows for a card with more lots.
+        Lots lots = new Lots();
+
+        for (Entry latest : cards.values()) {
+            for (Entry entry = latest; entry != null; entry = entry.previous) {
+
+                long state = entry.getState(version, lots);
+
+                if (state != ABSENT) {
+                    visitor.visit(entry.card.getOwner(), entry.registration, state, lots.values, lots.count);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether the owner of a card was registered in a state.
+     * @param state the state
+     * @return true if the owner was registered
+     */
+    static boolean isRegistered(long state) {
+        return state < 0;
+    }
+
+    /**
+     * Returns the number of points a card had in a state.
+     * @param state the state
+     * @return the number of points
+     */
+    static int getPoints(long state) {
+        return (int) state;
+    }
+
+    /**
+     * Returns the number of times a card had been used in a state.
+     * @param state the state
+     * @return the number of uses
+     */
+    static int getUses(long state) {
+        return (int) (state >>> 32) & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Indexes a card that already exists, e.g. one read back from a ledger or a snapshot image, together with the
+     * points and uses it already has, at the position at which it was registered. Cards registered from then on are
+     * registered after it. The card is only indexed if its owner is not registered already. A card kept in a ledger
+     * already has its lots there; any other card is given copies of the lots it had.
+     * @param card the card to index
+     * @param registration the position at which the card was registered
+     * @param lots the card's packed lots, oldest first, unless it is kept in a ledger
+     * @param lotCount the number of lots
+     */
+    void restore(ILoyaltyCard card, long registration, long[] lots, int lotCount) {
+
+        registrations.accumulateAndGet(registration + 1, Math::max);
+
+        Entry entry = add(card.getOwner().getEmail(), card, registration);
+
+        if (entry != null) {
+            entry.restore(lots, lotCount);
+        }
+    }
+
+    /**
+     * Unregisters the given email and removes the card issued for it, in constant time. While a snapshot which can
+     * read the card is open, the card stays indexed, as removed, until the snapshot is closed.
+     * @param email the owner's email
+     * @return the entry for the removed card, or null if the email was not registered
+     */
+    Entry unregister(String email) {
+
+        Entry entry = cards.get(email);
+
+        if (entry == null || !entry.remove()) {
+            return null;
+        }
+
+        if (entry.removedAt == 0) {
+            cards.remove(email, entry);
+        } else {
+            removed.add(entry);
+
+            // The snapshots may all have been closed before the card was queued to be dropped.
+            long oldest = oldestOpenVersion;
+
+            if (oldest == 0 || entry.removedAt < oldest) {
+                dropRemoved();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the entry for the card of the given email.
+     * @param email the owner's email
+     * @return the entry, or null if the email is not registered
+     */
+    Entry getEntry(String email) {
+
+        expirePoints();
+
+        Entry entry = cards.get(email);
+        return entry != null && !entry.removed ? entry : null;
+    }
+
+    /**
+     * Returns the number of registered owners.
+     * @return the number of registered owners
+     */
+    int size() {
+        return registered.get();
+    }
+
+    /**
+     * Returns the sum of the points on every indexed card.
+     * @return the total number of points
+     */
+    long getTotalNumberOfPoints() {
+
+        expirePoints();
+        return totalPoints.sum();
+    }
+
+    /**
+     * Returns the owner of the card with the most uses. If two cards have been used the same amount, the one that was
+     * registered first wins.
+     * @return the owner of the most used card, or null if no card has been used
+     */
+    ILoyaltyCardOwner getMostUsed() {
+
+        Iterator<Rank> ranks = usesRanking.iterator();
+        return ranks.hasNext() ? ranks.next().entry.card.getOwner() : null;
+    }
+
+    /**
+     * Returns the owners of the cards with the most uses, most used first, with ties broken as in getMostUsed().
+     * @param count the maximum number of owners to return
+     * @return up to count owners
+     */
+    List<ILoyaltyCardOwner> getMostUsed(int count) {
+        return top(usesRanking, count);
+    }
+
+    /**
+     * Returns the owners of the cards with the most points, highest balance first, with ties broken as in
+     * getMostUsed().
+     * @param count the maximum number of owners to return
+     * @return up to count owners
+     */
+    List<ILoyaltyCardOwner> getMostPoints(int count) {
+
+        expirePoints();
+        return top(pointsRanking, count);
+    }
+
+    /**
+     * Returns the rules by which purchases paid for with money earn points.
+     * @return the rules
+     */
+    EarningRules getEarningRules() {
+        return earningRules;
+    }
+
+    /**
+     * Replaces the rules by which purchases paid for with money earn points, for the purchases made from now on.
+     * @param rules the rules
+     */
+    void setEarningRules(EarningRules rules) {
+        earningRules = rules;
+    }
+
+    /**
+     * Expires the points on the next batch of the cards whose points have fallen due by now, if there are any and no
+     * other thread is taking a batch, so the total and the rankings catch up. Must not be called while holding the
+     * lock on an entry.
+     */
+    void expirePoints() {
+
+        long today = EarningRules.day(clock.millis());
+
+        for (Entry entry : expirySchedule.takeDue(today)) {
+            entry.expireLots(today);
+        }
+    }
+
+    /**
+     * Returns the owners of the cards used the most in a window, most used first, with ties broken as in
+     * getMostUsed().
+     * @param window the window
+     * @param count the maximum number of owners to return
+     * @return up to count owners
+     */
+    List<ILoyaltyCardOwner> getMostUsed(UsageWindow window, int count) {
+        return top(window, count, false);
+    }
+
+    /**
+     * Returns the owners of the cards which earned the most points in a window, highest first, with ties broken as in
+     * getMostUsed().
+     * @param window the window
+     * @param count the maximum number of owners to return
+     * @return up to count owners
+     */
+    List<ILoyaltyCardOwner> getMostPointsEarned(UsageWindow window, int count) {
+        return top(window, count, true);
+    }
+
+    /**
+     * Ranks the cards used in a window by their uses or points earned in it, visiting only the cards used on the days
+     * the window covers. A card used for the first time in a day while the ranking is made may be visited twice, so
+     * it is ranked by the later of the two counts.
+     * @param window the window
+     * @param count the maximum number of owners to return
+     * @param byPoints true to rank by points earned, or false to rank by uses
+     * @return up to count owners
+     */
+    private List<ILoyaltyCardOwner> top(UsageWindow window, int count, boolean byPoints) {
+
+        long now = clock.millis();
+        List<Entry> ranked = new ArrayList<>();
+        List<Integer> values = new ArrayList<>();
+
+        // The lists are visited oldest first, up to the current day, so a card moved to a newer list is not missed.
+        for (long day = Math.floorDiv(window.getStart(now), DAY_MILLIS);
+             day <= Math.floorDiv(clock.millis(), DAY_MILLIS); day++) {
+
+            ActiveDay active = activeDays.get(slot(day));
+
+            if (active == null || active.day != day) {
+                continue;
+            }
+
+            for (Entry entry : active.toArray()) {
+
+                UsageCounters usage = entry.usage;
+
+                if (usage == null || usage.getLastDay() != day) {
+                    continue;
+                }
+
+                int value = entry.count(window, now, byPoints);
+
+                if (value > 0) {
+                    rank(ranked, values, count, entry, value);
+                }
+            }
+        }
+
+        List<ILoyaltyCardOwner> owners = new ArrayList<>(ranked.size());
+
+        for (Entry entry : ranked) {
+            owners.add(entry.card.getOwner());
+        }
+        return owners;
+    }
+
+    /**
+     * Puts a card in its place among the best cards found so far, if it is one of them, replacing the place it was
+     * given if it has been ranked already.
+     * @param ranked the best cards so far, best first
+     * @param values the values of the best cards so far
+     * @param count the number of cards to keep
+     * @param entry the card
+     * @param value the card's value
+     */
+    private static void rank(List<Entry> ranked, List<Integer> values, int count, Entry entry, int value) {
+
+        int size = ranked.size();
+
+        if (size == count && !beats(value, entry, values.get(size - 1), ranked.get(size - 1))) {
+            return;
+        }
+
+        int previous = ranked.indexOf(entry);
+
+        if (previous >= 0) {
+            ranked.remove(previous);
+            values.remove(previous);
+        }
+
+        int at = ranked.size();
+
+        while (at > 0 && beats(value, entry, values.get(at - 1), ranked.get(at - 1))) {
+            at--;
+        }
+        ranked.add(at, entry);
+        values.add(at, value);
+
+        if (ranked.size() > count) {
+            ranked.remove(count);
+            values.remove(count);
+        }
+    }
+
+    /**
+     * Checks whether a card ranks above another, by having a higher value or the same value and an earlier
+     * registration.
+     * @param value the card's value
+     * @param entry the card
+     * @param otherValue the other card's value
+     * @param other the other card
+     * @return true if the card ranks above the other
+     */
+    private static boolean beats(int value, Entry entry, int otherValue, Entry other) {
+        return value > otherValue || value == otherValue && entry.registration < other.registration;
+    }
+
+    /**
+     * Returns the list of the cards used on a day, making a new one if the day's slot holds an older day's list.
+     * @param day the day, counted from the epoch
+     * @return the list, or null if the day is too old to have one
+     */
+    private ActiveDay activeDay(long day) {
+
+        int slot = slot(day);
+
+        while (true) {
+
+            ActiveDay active = activeDays.get(slot);
+
+            if (active != null && active.day >= day) {
+                return active.day == day ? active : null;
+            }
+
+            ActiveDay fresh = new ActiveDay(day);
+
+            if (activeDays.compareAndSet(slot, active, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    /**
+     * Returns the slot of a day's list of the cards used on it.
+     * @param day the day, counted from the epoch
+     * @return the slot
+     */
+    private int slot(long day) {
+        return (int) Math.floorMod(day, (long) activeDays.length());
+    }
+
+    /**
+     * Returns the owners of the first cards in a ranking.
+     * @param ranking the ranking to read
+     * @param count the maximum number of owners to return
+     * @return up to count owners
+     */
+    private static List<ILoyaltyCardOwner> top(ConcurrentSkipListSet<Rank> ranking, int count) {
+
+        List<ILoyaltyCardOwner> owners = new ArrayList<>();
+        Set<Entry> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Iterator<Rank> ranks = ranking.iterator();
+
+        while (owners.size() < count && ranks.hasNext()) {
+
+            Entry entry = ranks.next().entry;
+
+            // A card that is being moved can be seen at both its old and its new rank.
+            if (seen.add(entry)) {
+                owners.add(entry.card.getOwner());
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * An indexed card together with the position at which it was registered. Updates to a card made through its entry
+     * are serialised per card, so that the card and the aggregates kept by the index always agree, and fail once the
+     * card has been removed.
+     */
+    final class Entry {
+
+        private final ILoyaltyCard card;
+        private final long registration;
+        private volatile boolean removed;
+        private long removedAt;
+        private volatile Entry previous;
+        private volatile UsageCounters usage;
+        private ActiveDay activeDay;
+
+        // The card's position in its list of the cards last used on a day, only used holding the list's lock.
+        private int activeIndex;
+        private PointLots lots;
+        private ExpiryWheel.Timer<Entry> expiry;
+        private boolean expiryScheduled;
+
+        // The day the card's oldest lot expires on, which lets a read of its points skip the lock when none are due.
+        private volatile long firstExpiry = Long.MAX_VALUE;
+        private Rank usesRank;
+        private Rank pointsRank;
+        private Version history;
+
+        private Entry(ILoyaltyCard card, long registration, Entry previous) {
+
+            this.card = card;
+            this.registration = registration;
+            this.previous = previous;
+
+            // A card issued while snapshots are open was not there when they were taken.
+            long newest = newestOpenVersion;
+
+            if (newest != 0) {
+                history = new Version(newest, ABSENT, NO_LOTS);
+            }
+        }
+
+        /**
+         * Returns the indexed card.
+         * @return the card
+         */
+        ILoyaltyCard getCard() {
+            return card;
+        }
+
+        /**
+         * Returns the number of points on the card.
+         * @return the number of points
+         * @throws OwnerNotRegisteredException if the card has been removed
+         */
+        int getNumberOfPoints() throws OwnerNotRegisteredException {
+
+            if (firstExpiry <= EarningRules.day(clock.millis())) {
+                expireDueLots();
+            }
+
+            // A removed card's record may already have been reused, so it is checked for after it has been read.
+            int points = card.getNumberOfPoints();
+
+            if (removed) {
+                throw new OwnerNotRegisteredException();
+            }
+            return points;
+        }
+
+        /**
+         * Returns the number of times the card has been used.
+         * @return the number of uses
+         * @throws OwnerNotRegisteredException if the card has been removed
+         */
+        int getNumberOfUses() throws OwnerNotRegisteredException {
+
+            int uses = card.getNumberOfUses();
+
+            if (removed) {
+                throw new OwnerNotRegisteredException();
+            }
+            return uses;
+        }
+
+        /**
+         * Returns the number of times the card was used in a window.
+         * @param window the window
+         * @return the number of uses
+         * @throws OwnerNotRegisteredException if the card has been removed
+         */
+        synchronized int getNumberOfUses(UsageWindow window) throws OwnerNotRegisteredException {
+
+            if (removed) {
+                throw new OwnerNotRegisteredException();
+            }
+            return count(window, clock.millis(), false);
+        }
+
+        /**
+         * Returns the number of points the card earned in a window.
+         * @param window the window
+         * @return the number of points earned
+         * @throws OwnerNotRegisteredException if the card has been removed
+         */
+        synchronized int getPointsEarned(UsageWindow window) throws OwnerNotRegisteredException {
+
+            if (removed) {
+                throw new OwnerNotRegisteredException();
+            }
+            return count(window, clock.millis(), true);
+        }
+
+        /**
+         * Returns the number of uses of the card, or the number of points it earned, in a window.
+         * @param window the window
+         * @param now the time the window ends at
+         * @param points true for the points earned, or false for the uses
+         * @return the count, which is 0 if the card has been removed
+         */
+        private synchronized int count(UsageWindow window, long now, boolean points) {
+
+            if (usage == null) {
+                return 0;
+            }
+            return points ? usage.getPointsEarned(window, now) : usage.getUses(window, now);
+        }
+
+        /**
+         * Counts a use of the card in its usage counters, and adds the card to the list of the cards used today if it
+         * is its first use of the day. Must only be called while holding the lock on this entry.
+         * @param now the time of the use
+         * @param points the number of points earned by the use, or 0 if points were used
+         */
+        private void recordUse(long now, int points) {
+
+            if (usage == null) {
+                usage = new UsageCounters();
+            }
+
+            long day = Math.floorDiv(now, DAY_MILLIS);
+
+            // The card is moved to the day's list before it is recorded as used on that day, so it is always found.
+            if (day > usage.getLastDay()) {
+
+                ActiveDay active = activeDay(day);
+
+                if (active != null) {
+                    active.add(this, activeDay);
+                    activeDay = active;
+                }
+            }
+            usage.record(now, points);
+        }
+
+        /**
+         * Takes the card out of the list of the cards last used on a day, if it is in one. Must only be called while
+         * holding the lock on this entry.
+         */
+        private void leaveActiveDay() {
+
+            if (activeDay != null) {
+                activeDay.remove(this);
+                activeDay = null;
+            }
+        }
+
+        /**
+         * Returns the lots of the card's points, which a card kept in a ledger keeps in its records and any other card
+         * keeps on the heap. Must only be called while holding the lock on this entry.
+         * @return the lots
+         */
+        private PointLots lots() {
+
+            if (lots == null) {
+                lots = card instanceof MappedCardLedger.Card ? ((MappedCardLedger.Card) card).getLots()
+                        : PointLots.onHeap();
+                expiry = new ExpiryWheel.Timer<>(this);
+            }
+            return lots;
+        }
+
+        /**
+         * Adds points to the card's lots, scheduling the card's expiry timer if it is not already scheduled. A timer
+         * which is already scheduled is due no later than the points added. Must only be called while holding the lock
+         * on this entry.
+         * @param now the time the points were earned
+         * @param points the number of points earned
+         */
+        private void addLot(long now, int points) {
+
+            lots().add(PointLots.expiryDay(now), points);
+            firstExpiry = lots.getFirstExpiry();
+
+            if (!expiryScheduled) {
+                scheduleExpiry();
+            }
+        }
+
+        /**
+         * Uses points from the card's lots, oldest first. The expiry timer is left as it is, and finds nothing to expire
+         * if it falls due before the oldest lot left. Must only be called while holding the lock on this entry.
+         * @param points the number of points used
+         */
+        private void useLots(int points) {
+
+            lots().use(points);
+            firstExpiry = lots.getFirstExpiry();
+        }
+
+        /**
+         * Schedules the card's expiry timer for the day its oldest lot expires on. Must only be called while holding the
+         * lock on this entry.
+         */
+        private void scheduleExpiry() {
+
+            expirySchedule.schedule(expiry, lots.getFirstExpiry());
+            expiryScheduled = true;
+        }
+
+        /**
+         * Takes the points which have expired by now off the card, if the card has not been removed.
+         */
+        private synchronized void expireDueLots() {
+
+            if (!removed) {
+                expireDueLots(EarningRules.day(clock.millis()));
+            }
+        }
+
+        /**
+         * Takes the points which have expired by a day off the card, without counting it as a use, and updates the
+         * aggregates. Must only be called while holding the lock on this entry, before the card is updated at a time on
+         * that day.
+         * @param today the day, counted from the epoch
+         */
+        private void expireDueLots(long today) {
+
+            if (firstExpiry > today) {
+                return;
+            }
+
+            int expired = lots.expire(today);
+
+            firstExpiry = lots.getFirstExpiry();
+
+            if (expired > 0) {
+                saveForSnapshots();
+                expireCardPoints(expired);
+                totalPoints.add(-expired);
+                updateRankings();
+            }
+        }
+
+        /**
+         * Takes the points which have expired by a day off the card, once its expiry timer has fallen due, and
+         * schedules the timer again for the oldest lot left, if there is one.
+         * @param today the day, counted from the epoch
+         */
+        private synchronized void expireLots(long today) {
+
+            expiryScheduled = false;
+
+            if (removed || lots == null) {
+                return;
+            }
+            expireDueLots(today);
+
+            if (lots.size() > 0) {
+                scheduleExpiry();
+            }
+        }
+
+        /**
+         * Takes points which have expired off the card, without counting it as a use. Must only be called while
+         * holding the lock on this entry.
+         * @param points the number of points which have expired
+         */
+        private void expireCardPoints(int points) {
+
+            if (card instanceof MappedCardLedger.Card) {
+                ((MappedCardLedger.Card) card).expirePoints(points);
+            } else {
+                ((LoyaltyCard) card).expirePoints(points);
+            }
+        }
+
+        /**
+         * Removes the card, taking its points out of the total and the card out of the rankings.
+         * @return false if the card had already been removed
+         */
+        private synchronized boolean remove() {
+
+            if (removed) {
+                return false;
+            }
+            removedAt = saveForSnapshots();
+            removed = true;
+            registered.decrementAndGet();
+            totalPoints.add(-card.getNumberOfPoints());
+            usesRank = rerank(usesRanking, usesRank, 0);
+            pointsRank = rerank(pointsRanking, pointsRank, 0);
+            leaveActiveDay();
+            usage = null;
+            lots = null;
+            firstExpiry = Long.MAX_VALUE;
+
+            if (expiryScheduled) {
+                expirySchedule.cancel(expiry);
+            }
+            return true;
+        }
+
+        /**
+         * Adds the points and uses the card already has to the aggregates, and schedules its lots to expire. Lots which
+         * have expired already are expired straight away.
+         * @param restored the card's packed lots, oldest first, unless it is kept in a ledger
+         * @param count the number of lots
+         */
+        private synchronized void restore(long[] restored, int count) {
+
+            totalPoints.add(card.getNumberOfPoints());
+            updateRankings();
+
+            PointLots kept = card instanceof MappedCardLedger.Card ? ((MappedCardLedger.Card) card).getLots()
+                    : count > 0 ? PointLots.onHeap(restored, count) : null;
+
+            if (kept != null && kept.size() > 0) {
+                lots = kept;
+                expiry = new ExpiryWheel.Timer<>(this);
+                firstExpiry = lots.getFirstExpiry();
+                expireDueLots(EarningRules.day(clock.millis()));
+
+                if (lots.size() > 0) {
+                    scheduleExpiry();
+                }
+            }
+        }
+
+        /**
+         * Adds the points a purchase paid for with money earns by the index's earning rules to the card and updates the
+         * aggregates.
+         * @param pence the price of the purchase in pence
+         * @param category the purchase's category, or null if it has none
+         * @param log what to log the points earned to before they are added, or null
+         * @return false if the card has been removed
+         */
+        synchronized boolean earnPoints(int pence, String category, Log log) {
+
+            if (removed) {
+                return false;
+            }
+
+            long now = clock.millis();
+
+            addPoints(now, earningRules.getPoints(card.getOwner().getEmail(), pence, category,
+                    EarningRules.day(now)), log);
+            return true;
+        }
+
+        /**
+         * Adds points which have already been worked out, e.g. ones read back from a journal, to the card as earned at
+         * a time, and updates the aggregates.
+         * @param now the time the points were earned
+         * @param points the number of points earned
+         * @return false if the card has been removed
+         */
+        synchronized boolean addEarnedPoints(long now, int points) {
+
+            if (removed) {
+                return false;
+            }
+            addPoints(now, points, null);
+            return true;
+        }
+
+        /**
+         * Adds points earned at a time to the card, counting a use, and updates the aggregates, unless there are none,
+         * once the points which have expired by then have been taken off. Must only be called while holding the lock
+         * on this entry.
+         * @param now the time the points were earned
+         * @param points the number of points earned
+         * @param log what to log the points earned to before they are added, or null
+         */
+        private void addPoints(long now, int points, Log log) {
+
+            expireDueLots(EarningRules.day(now));
+
+            if (points > 0) {
+                if (log != null) {
+                    log.append(now, points);
+                }
+                saveForSnapshots();
+                card.addPoints(points);
+                totalPoints.add(points);
+                updateRankings();
+                recordUse(now, points);
+                addLot(now, points);
+            }
+        }
+
+        /**
+         * Uses a number of points from the card and updates the aggregates, without throwing an exception if there are
+         * not enough points on the card.
+         * @param points the number of points to use
+         * @param log what to log the points used to before they are taken off, or null
+         * @return OWNER_NOT_REGISTERED if the card has been removed, INSUFFICIENT_POINTS if there are not enough points
+         * on the card, otherwise OK
+         */
+        synchronized PurchaseResult tryUsePoints(int points, Log log) {
+            return tryUsePoints(clock.millis(), points, log);
+        }
+
+        /**
+         * Uses a number of points from the card at a time, e.g. one read back from a journal, and updates the
+         * aggregates, without throwing an exception if there are not enough points on the card.
+         * @param now the time the points are used at
+         * @param points the number of points to use
+         * @param log what to log the points used to before they are taken off, or null
+         * @return OWNER_NOT_REGISTERED if the card has been removed, INSUFFICIENT_POINTS if there are not enough points
+         * on the card, otherwise OK
+         */
+        synchronized PurchaseResult tryUsePoints(long now, int points, Log log) {
+
+            if (removed) {
+                return PurchaseResult.OWNER_NOT_REGISTERED;
+            }
+            if (points < 0) {
+                return PurchaseResult.OK;
+            }
+            expireDueLots(EarningRules.day(now));
+
+            if (card.getNumberOfPoints() < points) {
+                return PurchaseResult.INSUFFICIENT_POINTS;
+            }
+
+            if (log != null) {
+                log.append(now, points);
+            }
+            saveForSnapshots();
+
+            if (!useCardPoints(points)) {
+                return PurchaseResult.INSUFFICIENT_POINTS;
+            }
+            useLots(points);
+            totalPoints.add(-points);
+            updateRankings();
+            recordUse(now, 0);
+            return PurchaseResult.OK;
+        }
+
+        /**
+         * Processes a chain of purchases made by this card's owner, in order, and records the result of each one.
+         * The aggregates are only updated once, after the whole chain has been applied.
+         * @param purchases the batch the purchases belong to
+         * @param first the position in the batch of the first purchase in the chain
+         * @param next the position of the next purchase in the chain for every position in the batch, or -1 at the end
+         * @param results the results for every position in the batch
+         */
+        synchronized void processPurchases(List<PurchaseRecord> purchases, int first, int[] next,
+                                           PurchaseResult[] results) {
+
+            long change = 0;
+
+            if (removed) {
+                for (int i = first; i >= 0; i = next[i]) {
+                    results[i] = PurchaseResult.OWNER_NOT_REGISTERED;
+                }
+                return;
+            }
+            saveForSnapshots();
+
+            long now = clock.millis();
+            EarningRules rules = earningRules;
+
+            expireDueLots(EarningRules.day(now));
+
+            for (int i = first; i >= 0; i = next[i]) {
+
+                PurchaseRecord purchase = purchases.get(i);
+                int pence = purchase.getPence();
+
+                if (!purchase.isPointsPurchase()) {
+
+                    int points = rules.getPoints(card.getOwner().getEmail(), pence, purchase.getCategory(),
+                            EarningRules.day(now));
+
+                    if (points > 0) {
+                        card.addPoints(points);
+                        change += points;
+                        recordUse(now, points);
+                        addLot(now, points);
+                    }
+                    results[i] = PurchaseResult.OK;
+
+                } else if (pence <= 0) {
+                    results[i] = PurchaseResult.OK;
+
+                } else if (useCardPoints(pence)) {
+                    useLots(pence);
+                    change -= pence;
+                    recordUse(now, 0);
+                    results[i] = PurchaseResult.OK;
+
+                } else {
+                    results[i] = PurchaseResult.INSUFFICIENT_POINTS;
+                }
+            }
+            totalPoints.add(change);
+            updateRankings();
+        }
+
+        /**
+         * Returns the state of the card in a snapshot, and copies its lots in the snapshot if asked to.
+         * @param version the version of the snapshot
+         * @param lots the buffer to copy the card's lots to, or null
+         * @return the state of the card
+         */
+        private synchronized long getState(long version, Lots lots) {
+
+            Version found = null;
+
+            for (Version saved = history; saved != null && saved.version >= version; saved = saved.older) {
+                found = saved;
+            }
+            if (lots != null) {
+                if (found != null) {
+                    lots.copy(found.lots, found.lots.length);
+                } else {
+                    lots.copy(this.lots);
+                }
+            }
+            return found != null ? found.state : state();
+        }
+
+        /**
+         * Copies the card's current lots. Must only be called while holding the lock on this entry.
+         * @return the packed lots, oldest first
+         */
+        private long[] copyLots() {
+
+            if (lots == null || lots.size() == 0) {
+                return NO_LOTS;
+            }
+
+            long[] copy = new long[lots.size()];
+
+            lots.copyTo(copy);
+            return copy;
+        }
+
+        /**
+         * Saves the card's state in its history before it is updated, if a snapshot has been taken since it was last
+         * saved, and drops the states no open snapshot can read. Must only be called while holding the lock on this
+         * entry.
+         * @return the version of the newest open snapshot, or 0 if there is none
+         */
+        private long saveForSnapshots() {
+
+            long newest = newestOpenVersion;
+
+            if (newest == 0) {
+                history = null;
+                return 0;
+            }
+            if (history == null || history.version < newest) {
+                Version saved = new Version(newest, state(), copyLots());
+                saved.older = history;
+                history = saved;
+            }
+
+            // A state tagged with a version older than every open snapshot can only have been read by closed ones.
+            long oldest = oldestOpenVersion;
+
+            for (Version saved = history; saved.older != null; saved = saved.older) {
+                if (saved.older.version < oldest) {
+                    saved.older = null;
+                    break;
+                }
+            }
+            return newest;
+        }
+
+        /**
+         * Returns the card's current state. Must only be called while holding the lock on this entry.
+         * @return the card's state
+         */
+        private long state() {
+            return removed ? ABSENT : (long) card.getNumberOfUses() << 32 | card.getNumberOfPoints() | Long.MIN_VALUE;
+        }
+
+        /**
+         * Uses a number of points from the card if it has enough of them, without throwing an exception if it does not.
+         * Must only be called while holding the lock on this entry.
+         * @param points the number of points to use
+         * @return true if the points were used
+         */
+        private boolean useCardPoints(int points) {
+
+            if (card.getNumberOfPoints() < points) {
+                return false;
+            }
+            try {
+                card.usePoints(points);
+                return true;
+            } catch (InsufficientPointsException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Moves this card to its new places in the rankings by number of uses and by number of points.
+         */
+        private void updateRankings() {
+            usesRank = rerank(usesRanking, usesRank, card.getNumberOfUses());
+            pointsRank = rerank(pointsRanking, pointsRank, card.getNumberOfPoints());
+        }
+
+        /**
+         * Moves this card to its new place in a ranking.
+         * @param ranking the ranking to update
+         * @param previous the card's current rank, or null if it is not ranked
+         * @param value the card's new value
+         * @return the card's new rank, or null if it is no longer ranked
+         */
+        private Rank rerank(ConcurrentSkipListSet<Rank> ranking, Rank previous, int value) {
+
+            if (previous != null && previous.value == value) {
+                return previous;
+            }
+
+            // The new rank is added before the old one is removed, so concurrent readers always find this card.
+            Rank rank = value > 0 ? new Rank(this, value) : null;
+
+            if (rank != null) {
+                ranking.add(rank);
+            }
+            if (previous != null) {
+                ranking.remove(previous);
+            }
+            return rank;
+        }
+    }
+
+    /**
+     * Something which logs each change to a card's points, e.g. to a journal, while the card's entry is locked and
+     * before the change is made, so a change which cannot be logged is never made, and the changes to each card are
+     * logged in the order they are made in.
+     */
+    interface Log {
+
+        /**
+         * Logs a change about to be made. An unchecked exception stops the change being made, and is passed on to the
+         * caller.
+         * @param now the time of the change
+         * @param points the number of points being added or used
+         */
+        void append(long now, int points);
+    }
+
+    /**
+     * Something which is handed the cards in a snapshot one at a time, with their lots.
+     */
+    interface LotsVisitor {
+
+        /**
+         * Visits a card.
+         * @param owner the card's owner
+         * @param registration the position at which the card was registered
+         * @param state the card's state in the snapshot
+         * @param lots the card's packed lots in the snapshot, oldest first, in a buffer reused for the next card
+         * @param lotCount the number of lots
+         * @throws IOException if the visitor cannot use the card
+         */
+        void visit(ILoyaltyCardOwner owner, long registration, long state, long[] lots, int lotCount)
+                throws IOException;
+    }
+
+    /**
+     * Something which is handed the cards in a snapshot one at a time.
+     */
+    interface CardVisitor {
+
+        /**
+         * Visits a card.
+         * @param owner the card's owner
+         * @param registration the position at which the card was registered
+         * @param state the card's state in the snapshot
+         * @throws IOException if the visitor cannot use the card
+         */
+        void visit(ILoyaltyCardOwner owner, long registration, long state) throws IOException;
+    }
+
+    /**
+     * The cards last used on one day. Each card keeps its position in the list, so it is taken out in constant time by
+     * moving the last card into its place, and the list is dropped whole when its slot is taken by a later day.
+     */
+    private static final class ActiveDay {
+
+        private final long day;
+        private Entry[] entries = new Entry[16];
+        private int size;
+
+        private ActiveDay(long day) {
+            this.day = day;
+        }
+
+        /**
+         * Adds a card to the list, taking it out of the list of an earlier day at the same time, so that a ranking
+         * which copies one list and then the other finds it in one of them. Lists are always locked earliest day
+         * first.
+         * @param entry the card
+         * @param from the list the card is in, or null if it is in none
+         */
+        private void add(Entry entry, ActiveDay from) {
+
+            if (from == null) {
+                synchronized (this) {
+                    append(entry);
+                }
+                return;
+            }
+            synchronized (from) {
+                synchronized (this) {
+                    from.take(entry);
+                    append(entry);
+                }
+            }
+        }
+
+        /**
+         * Takes a card out of the list, moving the last card into its place.
+         * @param entry the card, which is in the list
+         */
+        private synchronized void remove(Entry entry) {
+            take(entry);
+        }
+
+        /**
+         * Adds a card at the end of the list. Must only be called while holding the lock on the list.
+         * @param entry the card
+         */
+        private void append(Entry entry) {
+
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entry.activeIndex = size;
+            entries[size++] = entry;
+        }
+
+        /**
+         * Takes a card out of the list, moving the last card into its place. Must only be called while holding the
+         * lock on the list.
+         * @param entry the card, which is in the list
+         */
+        private void take(Entry entry) {
+
+            Entry last = entries[--size];
+
+            entries[entry.activeIndex] = last;
+            last.activeIndex = entry.activeIndex;
+            entries[size] = null;
+        }
+
+        /**
+         * Copies the cards in the list, so they can be visited while cards go on being moved in it.
+         * @return the cards
+         */
+        private synchronized Entry[] toArray() {
+            return Arrays.copyOf(entries, size);
+        }
+    }
+
+    /**
+     * A card's state and lots saved in its history, tagged with the newest snapshot that was open when they were saved.
+     * They are what every snapshot taken after the one before they were saved, up to that snapshot, reads.
+     */
+    private static final class Version {
+
+        private final long version;
+        private final long state;
+        private final long[] lots;
+        private Version older;
+
+        private Version(long version, long state, long[] lots) {
+            this.version = version;
+            this.state = state;
+            this.lots = lots;
+        }
+    }
+
+    /**
+     * A buffer which the lots of one card after another are copied into.
+     */
+    private static final class Lots {
+
+        private long[] values = new long[16];
+        private int count;
+
+        /**
+         * Copies some packed lots into the buffer, growing it if they do not fit.
+         * @param lots the lots
+         * @param count the number of lots
+         */
+        private void copy(long[] lots, int count) {
+
+            fit(count);
+            System.arraycopy(lots, 0, values, 0, count);
+        }
+
+        /**
+         * Copies a card's lots into the buffer, growing it if they do not fit.
+         * @param lots the lots, or null if the card has none
+         */
+        private void copy(PointLots lots) {
+
+            if (lots == null) {
+                fit(0);
+            } else {
+                fit(lots.size());
+                lots.copyTo(values);
+            }
+        }
+
+        /**
+         * Makes room in the buffer for a number of lots.
+         * @param count the number of lots
+         */
+        private void fit(int count) {
+
+            if (values.length < count) {
+                values = new long[Math.max(count, 2 * values.length)];
+            }
+            this.count = count;
+        }
+    }
+
+    /**
+     * An immutable position of a card in a ranking.
+     */
+    private static final class Rank {
+
+        private final Entry entry;
+        private final int value;
+
+        private Rank(Entry entry, int value) {
+            this.entry = entry;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package impl;
+
+import common.OwnerNotRegisteredException;
+import interfaces.ILoyaltyCardOwner;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * This class represents a snapshot of every card of a {@link LoyaltyCardOperator} as they all were at the moment it
+ * was taken, which stays the same however long it is read for, while purchases go on being made without waiting for
+ * it. Its queries answer as the operator's would have at that moment.
+ *
+ * A snapshot is cheap to take, as nothing is copied then: each card saves the state a snapshot needs the first time
+ * it is updated after the snapshot was taken, so a snapshot costs memory in proportion to the cards updated while it is
+ * open. It should be closed once it has been read, so that those states can be dropped. The number of customers, the
+ * total number of points and the most used card are all worked out together, by one pass over the cards, the first
+ * time one of them is asked for.
+ *
+ */
+public final class CardSnapshot implements AutoCloseable {
+
+    private final CardIndex index;
+    private final long version;
+    private volatile boolean closed;
+
+    private boolean summarised;
+    private int customers;
+    private long totalPoints;
+    private ILoyaltyCardOwner mostUsed;
+
+    /**
+     * Constructor for a snapshot which has been taken of an index.
+     * @param index the index
+     * @param version the version of the snapshot
+     */
+    CardSnapshot(CardIndex index, long version) {
+        this.index = index;
+        this.version = version;
+    }
+
+    /**
+     * Returns the version of the snapshot, which is greater than that of every snapshot of the operator taken before.
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the number of loyalty card customers.
+     * @return the number of loyalty card customers
+     * @throws IllegalStateException if the snapshot has been closed
+     */
+    public int getNumberOfCustomers() throws IllegalStateException {
+
+        summarise();
+        return customers;
+    }
+
+    /**
+     * Gets the total count of all points on all loyalty cards.
+     * @return the total count of all points on all loyalty cards
+     * @throws IllegalStateException if the snapshot has been closed
+     */
+    public long getTotalNumberOfPoints() throws IllegalStateException {
+
+        summarise();
+        return totalPoints;
+    }
+
+    /**
+     * Gets the number of points on the loyalty card for the specified owner.
+     * @param ownerEmail the loyalty card owner's email
+     * @return the number of points on the specified owner's loyalty card
+     * @throws OwnerNotRegisteredException if the given owner's email was not registered
+     * @throws IllegalStateException if the snapshot has been closed
+     */
+    public int getNumberOfPoints(String ownerEmail) throws OwnerNotRegisteredException, IllegalStateException {
+        return CardIndex.getPoints(getState(ownerEmail));
+    }
+
+    /**
+     * Gets the total number of times that the owner's loyalty card had been used.
+     * @param ownerEmail the loyalty card owner's email
+     * @return the total number of times that the owner's loyalty card had been used
+     * @throws OwnerNotRegisteredException if the given owner's email was not registered
+     * @throws IllegalStateException if the snapshot has been closed
+     */
+    public int getNumberOfUses(String ownerEmail) throws OwnerNotRegisteredException, IllegalStateException {
+        return CardIndex.getUses(getState(ownerEmail));
+    }
+
+    /**
+     * Gets the owner who had used their loyalty card the most. If two cards had been used the same amount, the one that
+     * was registered first wins.
+     * @return the owner who had used their loyalty card the most, or null if no card had been used
+     * @throws OwnerNotRegisteredException if no owners were registered
+     * @throws IllegalStateException if the snapshot has been closed
+     */
+    public ILoyaltyCardOwner getMostUsed() throws OwnerNotRegisteredException, IllegalStateException {
+
+        summarise();
+
+        if (customers < 1) {
+            throw new OwnerNotRegisteredException();
+        }
+        return mostUsed;
+    }
+
+    /**
+     * Writes every registered owner's email and name, and the points and uses on their card, to a channel.
+     * @param channel the channel to write to, which is left open
+     * @param format the format to write in
+     * @return the number of cards written
+     * @throws IOException if the channel cannot be written to
+     * @throws IllegalStateException if the snapshot has been closed
+     */
+    public long exportCards(WritableByteChannel channel, ExportFormat format) throws IOException, IllegalStateException {
+
+        checkOpen();
+
+        CardExportWriter writer = new CardExportWriter(channel, format);
+
+        index.forEach(version, writer);
+        writer.flush();
+        return writer.getCards();
+    }
+
+    /**
+     * Hands every registered owner's card to a visitor, with the position at which it was registered, its points and
+     * uses, and the lots its points are kept in, e.g. to write a snapshot image straight from the snapshot.
+     * @param visitor the visitor
+     * @throws IOException if the visitor throws it, which ends the visit
+     * @throws IllegalStateException if the snapshot has been closed
+     */
+    void forEachCard(CardImage.Visitor visitor) throws IOException, IllegalStateException {
+
+        checkOpen();
+        index.forEach(version, (CardIndex.LotsVisitor) (owner, registration, state, lots, lotCount) ->
+                visitor.visit(owner, registration, CardIndex.getPoints(state), CardIndex.getUses(state), lots,
+                        lotCount));
+    }
+
+    /**
+     * Closes the snapshot, so that the states kept for it can be dropped. Closing it again does nothing.
+     */
+    @Override
+    public void close() {
+
+        if (!closed) {
+            closed = true;
+            index.closeSnapshot(version);
+        }
+    }
+
+    /**
+     * Looks up the state of the card issued for an email.
+     * @param ownerEmail the loyalty card owner's email
+     * @return the state of the card
+     * @throws OwnerNotRegisteredException if the given owner's email was not registered
+     */
+    private long getState(String ownerEmail) throws OwnerNotRegisteredException {
+
+        checkOpen();
+
+        long state = index.getState(ownerEmail, version);
+
+        if (state == CardIndex.ABSENT) {
+            throw new OwnerNotRegisteredException();
+        }
+        return state;
+    }
+
+    /**
+     * Works out the number of customers, the total number of points and the most used card, unless they already have
+     * been.
+     */
+    private synchronized void summarise() {
+
+        checkOpen();
+
+        if (summarised) {
+            return;
+        }
+
+        long[] best = {0, Long.MAX_VALUE};
+
+        try {
+            index.forEach(version, (owner, registration, state) -> {
+
+                int uses = CardIndex.getUses(state);
+
+                if (CardIndex.isRegistered(state)) {
+                    customers++;
+                }
+                totalPoints += CardIndex.getPoints(state);
+
+                if (uses > best[0] || uses == best[0] && uses > 0 && registration < best[1]) {
+                    best[0] = uses;
+                    best[1] = registration;
+                    mostUsed = owner;
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        summarised = true;
+    }
+
+    /**
+     * Checks that the snapshot has not been closed.
+     * @throws IllegalStateException if it has
+     */
+    private void checkOpen() throws IllegalStateException {
+
+        if (closed) {
+            throw new IllegalStateException("Snapshot closed");
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package impl;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class represents the rules for how many points a purchase paid for with money earns, read from a small text
+ * format and compiled, when they are read, into flat tables, so that working out the points for a purchase does no
+ * parsing and no allocation: a scan of the tiers, an array read and at most two hash lookups, for the purchase's
+ * category and the owner's promotions. Rules with no multipliers at all skip straight to the tiers.
+ *
+ * Each line of the text is one rule, with its words separated by spaces, and a # starts a comment. Rates and
+ * multipliers are decimals with up to two places.
+ *
+ * <pre>
+ * tier 0 1                     # from 0 pence, 1 point for every 100 pence
+ * tier 5000 1.5                # from 5000 pence, 1.5 points for every 100 pence
+ * category fresh 2             # purchases in the category fresh earn double
+ * weekend 1.25                 # purchases on Saturdays and Sundays earn a quarter more
+ * day MONDAY 2                 # and on Mondays, double
+ * promotion a@b.com 3 2026-06-01 2026-06-30
+ *                              # a@b.com earns triple in June, or always without the dates
+ * </pre>
+ *
+ * A purchase earns the rate of the highest tier it reaches, rounded down, and then each multiplier which applies to it
+ * in turn, rounding down each time: its category's, its day's and those of the owner's promotions running that day,
+ * which all apply if they overlap. Without a tier from 0, purchases below the lowest tier earn nothing, and without any
+ * tiers, 1 point is earned for every 100 pence. A later rule for the same category or day replaces an earlier one.
+ * Days are days in UTC, as elsewhere in {@link LoyaltyCardOperator}.
+ *
+ * The rules are immutable, so they can be swapped for new ones while purchases are being made.
+ *
+ */
+public final class EarningRules {
+
+    /**
+     * The rules purchases earn points by unless others are given: 1 point for every 100 pence.
+     */
+    public static final EarningRules STANDARD = parse("tier 0 1");
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final int ONE = 100;
+    private static final int MAX_FACTOR = 1000 * ONE;
+    private static final long[] NO_PROMOTIONS = new long[0];
+
+    // The lowest price of each tier, in increasing order, and the points earned for every 100 pence in hundredths.
+    private final int[] tierPence;
+    private final int[] tierRates;
+
+    private final Map<String, Integer> categoryMultipliers;
+
+    // The multiplier of each day of the week, Monday first.
+    private final int[] dayMultipliers;
+
+    // The promotions of each owner, as a first day, last day and multiplier after another.
+    private final Map<String, long[]> promotions;
+
+    private final boolean flat;
+    private final String text;
+
+    /**
+     * Constructor for compiled rules.
+     * @param tiers the rate of each tier by its lowest price
+     * @param categoryMultipliers the multiplier of each category by its name
+     * @param dayMultipliers the multiplier of each day of the week, Monday first
+     * @param promotions the promotions of each owner
+     * @param text the text the rules were read from
+     */
+    private EarningRules(Map<Integer, Integer> tiers, Map<String, Integer> categoryMultipliers, int[] dayMultipliers,
+                         Map<String, long[]> promotions, String text) {
+
+        this.tierPence = tiers.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        this.tierRates = Arrays.stream(tierPence).map(tiers::get).toArray();
+        this.categoryMultipliers = categoryMultipliers;
+        this.dayMultipliers = dayMultipliers;
+        this.promotions = promotions;
+        this.text = text;
+
+        boolean flat = promotions.isEmpty();
+
+        for (int multiplier : categoryMultipliers.values()) {
+            flat &= multiplier == ONE;
+        }
+        for (int multiplier : dayMultipliers) {
+            flat &= multiplier == ONE;
+        }
+        this.flat = flat;
+    }
+
+    /**
+     * Reads rules from text.
+     * @param text the rules, one to a line
+     * @return the rules
+     * @throws IllegalArgumentException if a line is not a rule, naming the line
+     */
+    public static EarningRules parse(String text) throws IllegalArgumentException {
+
+        Map<Integer, Integer> tiers = new HashMap<>();
+        Map<String, Integer> categoryMultipliers = new HashMap<>();
+        int[] dayMultipliers = new int[DayOfWeek.values().length];
+        Map<String, long[]> promotions = new HashMap<>();
+        String[] lines = text.split("\r?\n");
+
+        Arrays.fill(dayMultipliers, ONE);
+
+        for (int i = 0; i < lines.length; i++) {
+
+            int comment = lines[i].indexOf('#');
+            String line = (comment >= 0 ? lines[i].substring(0, comment) : lines[i]).trim();
+
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            String[] words = line.split("\\s+");
+
+            try {
+                switch (words[0]) {
+                    case "tier":
+                        expect(words, 3);
+                        int pence = Integer.parseInt(words[1]);
+
+                        if (pence < 0) {
+                            throw new IllegalArgumentException("Out of range: " + words[1]);
+                        }
+                        tiers.put(pence, hundredths(words[2]));
+                        break;
+
+                    case "category":
+                        expect(words, 3);
+                        categoryMultipliers.put(words[1], hundredths(words[2]));
+                        break;
+
+                    case "weekend":
+                        expect(words, 2);
+                        dayMultipliers[DayOfWeek.SATURDAY.ordinal()] = hundredths(words[1]);
+                        dayMultipliers[DayOfWeek.SUNDAY.ordinal()] = hundredths(words[1]);
+                        break;
+
+                    case "day":
+                        expect(words, 3);
+                        dayMultipliers[DayOfWeek.valueOf(words[1]).ordinal()] = hundredths(words[2]);
+                        break;
+
+                    case "promotion":
+                        if (words.length != 3) {
+                            expect(words, 5);
+                        }
+                        long first = words.length > 3 ? LocalDate.parse(words[3]).toEpochDay() : Long.MIN_VALUE;
+                        long last = words.length > 3 ? LocalDate.parse(words[4]).toEpochDay() : Long.MAX_VALUE;
+                        long[] promotion = {first, last, hundredths(words[2])};
+
+                        promotions.merge(words[1], promotion, (earlier, later) -> {
+                            long[] both = Arrays.copyOf(earlier, earlier.length + later.length);
+                            System.arraycopy(later, 0, both, earlier.length, later.length);
+                            return both;
+                        });
+                        break;
+
+                    default:
+                        throw new IllegalArgumentException("Unknown rule " + words[0]);
+                }
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+
+        if (tiers.isEmpty()) {
+            tiers.put(0, ONE);
+        }
+        return new EarningRules(tiers, Map.copyOf(categoryMultipliers), dayMultipliers, Map.copyOf(promotions), text);
+    }
+
+    /**
+     * Reads rules from a UTF-8 file.
+     * @param file the file
+     * @return the rules
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if a line is not a rule, naming the line
+     */
+    public static EarningRules read(Path file) throws IOException, IllegalArgumentException {
+        return parse(Files.readString(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the number of points a purchase earns.
+     * @param ownerEmail the email of the owner who made the purchase
+     * @param pence the price of the purchase in pence
+     * @param category the purchase's category, or null if it has none
+     * @param day the day the purchase was made on, counted from the epoch
+     * @return the number of points earned
+     */
+    public int getPoints(String ownerEmail, int pence, String category, long day) {
+
+        int tier = tierPence.length - 1;
+
+        while (tier >= 0 && tierPence[tier] > pence) {
+            tier--;
+        }
+        if (tier < 0 || pence <= 0) {
+            return 0;
+        }
+
+        long points = (long) pence * tierRates[tier] / (100 * ONE);
+
+        if (flat || points == 0) {
+            return (int) Math.min(points, Integer.MAX_VALUE);
+        }
+
+        if (category != null) {
+            points = multiply(points, categoryMultipliers.getOrDefault(category, ONE));
+        }
+
+        // The epoch fell on a Thursday.
+        points = multiply(points, dayMultipliers[(int) Math.floorMod(day + 3, 7L)]);
+
+        long[] owned = promotions.isEmpty() ? NO_PROMOTIONS : promotions.getOrDefault(ownerEmail, NO_PROMOTIONS);
+
+        for (int i = 0; i < owned.length; i += 3) {
+            if (owned[i] <= day && day <= owned[i + 1]) {
+                points = multiply(points, owned[i + 2]);
+            }
+        }
+        return (int) Math.min(points, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the day a time falls on, in UTC, counted from the epoch, which is how the rules count days.
+     * @param millis the time, in milliseconds from the epoch
+     * @return the day
+     */
+    static long day(long millis) {
+        return Math.floorDiv(millis, DAY_MILLIS);
+    }
+
+    /**
+     * Returns the text the rules were read from.
+     * @return the text
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * Multiplies a number of points, rounding down and keeping it within the range of an int.
+     * @param points the number of points
+     * @param multiplier the multiplier, in hundredths
+     * @return the number of points
+     */
+    private static long multiply(long points, long multiplier) {
+        return Math.min(points * multiplier / ONE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a rate or a multiplier, which is not negative and has at most two decimal places.
+     * @param word the number
+     * @return the number in hundredths
+     * @throws IllegalArgumentException if the word is not such a number, or is more than 1000
+     */
+    private static int hundredths(String word) throws IllegalArgumentException {
+
+        try {
+            int value = new BigDecimal(word).movePointRight(2).intValueExact();
+
+            if (value < 0 || value > MAX_FACTOR) {
+                throw new IllegalArgumentException("Out of range: " + word);
+            }
+            return value;
+
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Not a number with at most two decimal places: " + word);
+        }
+    }
+
+    /**
+     * Checks that a rule has the number of words it should.
+     * @param words the words of the rule
+     * @param count the number of words
+     * @throws IllegalArgumentException if it does not
+     */
+    private static void expect(String[] words, int count) throws IllegalArgumentException {
+
+        if (words.length != count) {
+            throw new IllegalArgumentException("Expected " + count + " words in a " + words[0] + " rule");
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package bench;
+
+import common.OwnerAlreadyRegisteredException;
+import common.PurchaseResult;
+import impl.EarningRules;
+import impl.Factory;
+import impl.LoyaltyCardOperator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class benchmarks working out the points a money purchase earns: by the pence/100 the operator used to be hard
+ * coded with, by {@link EarningRules#STANDARD}, by tiered rules without multipliers, and by a full set of rules with
+ * tiers, categories, a weekend multiplier and 1000 owners' promotions, on their own and as part of a purchase.
+ *
+ * The purchases are made up in advance, with prices spread over every tier, a third of them in a category with a
+ * multiplier and a tenth by an owner with a promotion, over every day of the week, and are cycled through in order.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EarningRulesBenchmark {
+
+    /**
+     * The number of purchases made up, which is a power of two.
+     */
+    private static final int PURCHASES = 1 << 12;
+
+    /**
+     * The number of owners, of whom the first tenth have a promotion.
+     */
+    private static final int OWNERS = 10_000;
+
+    private static final String[] CATEGORIES = {null, null, "fresh", "bakery", "fuel", "clothing"};
+
+    private final EarningRules tiered = EarningRules.parse("tier 0 1\ntier 2000 1.5\ntier 10000 2");
+    private EarningRules full;
+
+    private final int[] pence = new int[PURCHASES];
+    private final String[] emails = new String[PURCHASES];
+    private final String[] categories = new String[PURCHASES];
+    private final long[] days = new long[PURCHASES];
+    private int next;
+
+    private LoyaltyCardOperator standardOperator;
+    private LoyaltyCardOperator fullOperator;
+
+    /**
+     * Makes up the purchases and the full rules, and registers the owners with two operators, one with the standard
+     * rules and one with the full rules.
+     * @throws OwnerAlreadyRegisteredException never, as every generated email is unique
+     */
+    @Setup
+    public void setUp() throws OwnerAlreadyRegisteredException {
+
+        SplittableRandom random = new SplittableRandom(1);
+        StringBuilder rules = new StringBuilder("tier 0 1\ntier 2000 1.5\ntier 10000 2\n");
+        long today = LocalDate.now().toEpochDay();
+
+        rules.append("category fresh 2\ncategory bakery 1.5\ncategory fuel 0.5\nweekend 1.25\n");
+
+        for (int i = 0; i < OWNERS / 10; i++) {
+            rules.append("promotion member").append(i).append("@example.com 3 ")
+                    .append(LocalDate.ofEpochDay(today - 30)).append(' ').append(LocalDate.ofEpochDay(today + 30))
+                    .append('\n');
+        }
+        full = EarningRules.parse(rules.toString());
+
+        for (int i = 0; i < PURCHASES; i++) {
+            pence[i] = random.nextInt(20_000);
+            emails[i] = "member" + random.nextInt(OWNERS) + "@example.com";
+            categories[i] = CATEGORIES[random.nextInt(CATEGORIES.length)];
+            days[i] = today - random.nextInt(7);
+        }
+
+        standardOperator = new LoyaltyCardOperator();
+        fullOperator = new LoyaltyCardOperator();
+        fullOperator.setEarningRules(full);
+
+        for (int i = 0; i < OWNERS; i++) {
+            String email = "member" + i + "@example.com";
+            standardOperator.registerOwner(Factory.getInstance().makeLoyaltyCardOwner(email, "Member " + i));
+            fullOperator.registerOwner(Factory.getInstance().makeLoyaltyCardOwner(email, "Member " + i));
+        }
+    }
+
+    /**
+     * Works out the points of the next purchase as pence/100.
+     * @return the points
+     */
+    @Benchmark
+    public int division() {
+        return pence[advance()] / 100;
+    }
+
+    /**
+     * Works out the points of the next purchase by the standard rules.
+     * @return the points
+     */
+    @Benchmark
+    public int standardRules() {
+
+        int i = advance();
+        return EarningRules.STANDARD.getPoints(emails[i], pence[i], categories[i], days[i]);
+    }
+
+    /**
+     * Works out the points of the next purchase by tiered rules without any multipliers.
+     * @return the points
+     */
+    @Benchmark
+    public int tieredRules() {
+
+        int i = advance();
+        return tiered.getPoints(emails[i], pence[i], categories[i], days[i]);
+    }
+
+    /**
+     * Works out the points of the next purchase by the full rules.
+     * @return the points
+     */
+    @Benchmark
+    public int fullRules() {
+
+        int i = advance();
+        return full.getPoints(emails[i], pence[i], categories[i], days[i]);
+    }
+
+    /**
+     * Makes the next purchase with an operator using the standard rules.
+     * @return the result
+     */
+    @Benchmark
+    public PurchaseResult purchaseWithStandardRules() {
+
+        int i = advance();
+        return standardOperator.tryProcessMoneyPurchase(emails[i], pence[i], categories[i]);
+    }
+
+    /**
+     * Makes the next purchase with an operator using the full rules.
+     * @return the result
+     */
+    @Benchmark
+    public PurchaseResult purchaseWithFullRules() {
+
+        int i = advance();
+        return fullOperator.tryProcessMoneyPurchase(emails[i], pence[i], categories[i]);
+    }
+
+    /**
+     * Moves on to the next purchase.
+     * @return the position of the purchase
+     */
+    private int advance() {
+        return next = next + 1 & PURCHASES - 1;
+    }
+}
@@ -0,0 +1,112 @@
+package impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class schedules when the points on many cards expire, and hands out the cards whose points have fallen due in
+ * small batches, so that expiring a whole day's points is spread over the calls made after the day changes instead of
+ * being done by one of them while the others wait for it.
+ *
+ * Each card with points has a timer in an {@link ExpiryWheel}, due on the day its oldest lot expires on. The first
+ * call to ask for a batch after the day changes moves the wheel forward, which only visits the timers due by then, and
+ * each call takes up to {@value #BATCH} of the cards which fell due, until there are none left. No call ever waits for
+ * another to hand out a batch: while one thread is moving the wheel or taking a batch, the others go without. Only the
+ * aggregates lag behind while cards wait for their batch, as every card also expires its own points when it is read or
+ * updated.
+ *
+ * The schedule is safe to share between threads.
+ *
+ */
+final class ExpirySchedule<T> {
+
+    /**
+     * The most cards handed out in one batch.
+     */
+    static final int BATCH = 64;
+
+    private final ExpiryWheel<T> wheel;
+    private final ArrayDeque<T> due = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long advancedTo;
+    private volatile boolean pending;
+
+    /**
+     * Constructor for an empty schedule.
+     * @param day the day the schedule starts at, counted from the epoch
+     */
+    ExpirySchedule(long day) {
+
+        this.wheel = new ExpiryWheel<>(day);
+        this.advancedTo = day;
+    }
+
+    /**
+     * Schedules a timer which is not scheduled already. A timer due on or before the day the schedule has been moved
+     * to, e.g. for points restored long after they were earned, is handed out in the next batch.
+     * @param timer the timer
+     * @param day the day the timer is due on, counted from the epoch
+     */
+    void schedule(ExpiryWheel.Timer<T> timer, long day) {
+
+        lock.lock();
+        try {
+            if (day <= advancedTo) {
+                due.add(timer.getItem());
+                pending = true;
+            } else {
+                wheel.schedule(timer, day);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels a timer, if it is scheduled. A timer which has fallen due may still be handed out, so whoever handles
+     * the batch must check the card is still there.
+     * @param timer the timer
+     */
+    void cancel(ExpiryWheel.Timer<T> timer) {
+
+        lock.lock();
+        try {
+            wheel.cancel(timer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next batch of the cards whose timers have fallen due by a day, moving the schedule forward to the day
+     * first if it has not been already. The timers taken are no longer scheduled. Nothing is taken, straight away, if
+     * nothing has fallen due or another thread is taking a batch.
+     * @param day the day, counted from the epoch
+     * @return the cards, which may be none
+     */
+    List<T> takeDue(long day) {
+
+        if (day <= advancedTo && !pending || !lock.tryLock()) {
+            return Collections.emptyList();
+        }
+        try {
+            if (day > advancedTo) {
+                wheel.advance(day, due);
+                advancedTo = day;
+            }
+
+            List<T> batch = new ArrayList<>(Math.min(due.size(), BATCH));
+
+            while (batch.size() < BATCH && !due.isEmpty()) {
+                batch.add(due.poll());
+            }
+            pending = !due.isEmpty();
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
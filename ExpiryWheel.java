@@ -0,0 +1,204 @@
+package impl;
+
+import java.util.Collection;
+
+/**
+ * This class is a hierarchical timing wheel of timers due on whole days, which hands back the timers that fall due as
+ * it is moved forward, so that scheduling, cancelling and firing a timer costs the same however many timers there are
+ * and however far off they are due, and moving forward a day only looks at the timers due around then.
+ *
+ * The wheel has four levels of 64 slots. Each slot of the lowest level holds the timers due on one day, and each slot
+ * of a level above spans the whole of the level below it, so the levels cover 64, 4096, 262144 and 16777216 days from
+ * the day the wheel was made. A timer is kept in the highest level in whose digit, in base 64, its day differs from the
+ * wheel's, and is moved down, in one go with the rest of its slot, when the wheel reaches the start of that slot.
+ *
+ * The wheel is not safe to share between threads on its own; {@link ExpirySchedule} only uses it while holding its
+ * lock.
+ *
+ */
+final class ExpiryWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long LAST_TICK = (1L << SLOT_BITS * LEVELS) - 1;
+
+    private final long origin;
+    private final Timer<T>[][] slots;
+    private long now;
+
+    /**
+     * Constructor for an empty wheel.
+     * @param day the day the wheel starts at, counted from the epoch
+     */
+    ExpiryWheel(long day) {
+
+        // An array of a generic type cannot be made directly, but only Timer<T>s are ever put in this one.
+        @SuppressWarnings("unchecked")
+        Timer<T>[][] levels = (Timer<T>[][]) new Timer<?>[LEVELS][SLOTS];
+
+        this.origin = day;
+        this.slots = levels;
+
+        for (Timer<T>[] level : slots) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                level[slot] = new Timer<>(null);
+                level[slot].previous = level[slot];
+                level[slot].next = level[slot];
+            }
+        }
+    }
+
+    /**
+     * Schedules a timer which is not scheduled already. A timer due on or before the wheel's day falls due the next
+     * time the wheel is moved forward.
+     * @param timer the timer
+     * @param day the day the timer is due on, counted from the epoch
+     */
+    void schedule(Timer<T> timer, long day) {
+
+        timer.due = Math.min(Math.max(day - origin, now + 1), LAST_TICK);
+        link(timer);
+    }
+
+    /**
+     * Cancels a timer, if it is scheduled.
+     * @param timer the timer
+     */
+    void cancel(Timer<T> timer) {
+
+        if (timer.next != null) {
+            unlink(timer);
+        }
+    }
+
+    /**
+     * Moves the wheel forward to a day, one day at a time, handing back the items of the timers which fall due on the
+     * way, in the order of the days they were due on. The timers handed back are no longer scheduled.
+     * @param day the day to move to, counted from the epoch, which does nothing if it is not after the wheel's day
+     * @param due the collection to add the items of the timers which fall due to
+     */
+    void advance(long day, Collection<T> due) {
+
+        long target = Math.min(day - origin, LAST_TICK);
+
+        while (now < target) {
+
+            now++;
+
+            // Every level whose lower levels have all just wrapped around has reached the start of its next slot.
+            int top = 0;
+
+            while (top < LEVELS - 1 && (now & (1L << SLOT_BITS * (top + 1)) - 1) == 0) {
+                top++;
+            }
+            for (int level = top; level > 0; level--) {
+                for (Timer<T> timer = detach(slots[level][digit(now, level)]); timer != null; ) {
+
+                    Timer<T> next = timer.next;
+
+                    link(timer);
+                    timer = next;
+                }
+            }
+            for (Timer<T> timer = detach(slots[0][digit(now, 0)]); timer != null; ) {
+
+                Timer<T> next = timer.next;
+
+                timer.previous = null;
+                timer.next = null;
+                due.add(timer.item);
+                timer = next;
+            }
+        }
+    }
+
+    /**
+     * Links a timer into the slot for the tick it is due on.
+     * @param timer the timer
+     */
+    private void link(Timer<T> timer) {
+
+        long differ = timer.due ^ now;
+        int level = 0;
+
+        while (level < LEVELS - 1 && differ >>> SLOT_BITS * (level + 1) != 0) {
+            level++;
+        }
+
+        Timer<T> head = slots[level][digit(timer.due, level)];
+
+        timer.previous = head.previous;
+        timer.next = head;
+        head.previous.next = timer;
+        head.previous = timer;
+    }
+
+    /**
+     * Unlinks a timer from its slot.
+     * @param timer the timer
+     */
+    private static <T> void unlink(Timer<T> timer) {
+
+        timer.previous.next = timer.next;
+        timer.next.previous = timer.previous;
+        timer.previous = null;
+        timer.next = null;
+    }
+
+    /**
+     * Empties a slot, returning its timers as a list linked by their next timers and ending with null.
+     * @param head the slot's head
+     * @return the first timer, or null if the slot was empty
+     */
+    private static <T> Timer<T> detach(Timer<T> head) {
+
+        if (head.next == head) {
+            return null;
+        }
+
+        Timer<T> first = head.next;
+
+        head.previous.next = null;
+        head.previous = head;
+        head.next = head;
+        return first;
+    }
+
+    /**
+     * Returns the digit of a tick which picks its slot in a level.
+     * @param tick the tick, counted from the wheel's first day
+     * @param level the level
+     * @return the slot
+     */
+    private static int digit(long tick, int level) {
+        return (int) (tick >>> SLOT_BITS * level) & SLOTS - 1;
+    }
+
+    /**
+     * A timer for an item, which can be scheduled again once it has fallen due or been cancelled.
+     */
+    static final class Timer<T> {
+
+        private final T item;
+        private long due;
+        private Timer<T> previous;
+        private Timer<T> next;
+
+        /**
+         * Constructor for a timer which is not scheduled.
+         * @param item the item handed back when the timer falls due
+         */
+        Timer(T item) {
+            this.item = item;
+        }
+
+        /**
+         * Returns the item handed back when the timer falls due.
+         * @return the item
+         */
+        T getItem() {
+            return item;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package impl;
+
+/**
+ * This enum represents the formats the cards can be exported in by {@link LoyaltyCardOperator#exportCards}.
+ *
+ */
+public enum ExportFormat {
+
+    /**
+     * UTF-8 text, starting with the line "email,name,points,uses" and followed by a line with those fields for each
+     * card. Lines end with a line feed, and a field containing a comma, a double quote or a line break is put in
+     * double quotes, with any double quotes in it doubled, as in RFC 4180.
+     */
+    CSV,
+
+    /**
+     * A record for each card of its email and name, each as a big-endian int giving its length in bytes followed by
+     * its UTF-8 bytes, and then its points and uses, each as a big-endian int. Records follow each other
+     * until the end of the export.
+     */
+    BINARY
+}
@@ -5,12 +5,66 @@ import interfaces.ILoyaltyCard;
 import interfaces.ILoyaltyCardOperator;
 import interfaces.ILoyaltyCardOwner;
 
+import javax.management.JMException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+
 /**
  * This class implements a singleton factory.
  *
  */
 public final class Factory implements IFactory {
 
+    /**
+     * The system property naming a ledger file for operators to keep their cards in. When it is not set, operators
+     * keep their cards on the heap.
+     */
+    public static final String LEDGER_PROPERTY = "loyalty.ledger";
+
+    /**
+     * The system property setting the most cards an operator keeping its cards in a ledger holds in memory. When it is
+     * set, the operator is a {@link TieredLoyaltyCardOperator}, which loads the other cards from the ledger when they
+     * are used; otherwise every card in the ledger is held in memory.
+     */
+    public static final String LEDGER_CACHE_PROPERTY = "loyalty.ledger.cache";
+
+    /**
+     * The system property naming a journal file for operators to make their transactions durable in, and the system
+     * properties setting the most transactions synced together, the longest a transaction waits for others and the
+     * time between snapshots of the journaled cards.
+     */
+    public static final String JOURNAL_PROPERTY = "loyalty.journal";
+    public static final String JOURNAL_BATCH_PROPERTY = "loyalty.journal.batch";
+    public static final String JOURNAL_DELAY_PROPERTY = "loyalty.journal.delay";
+    public static final String JOURNAL_SNAPSHOT_PROPERTY = "loyalty.journal.snapshot";
+
+    /**
+     * The system property naming a UTF-8 file of {@link EarningRules} for operators to work out the points money
+     * purchases earn by. When it is not set, money purchases earn pence/100 points.
+     */
+    public static final String RULES_PROPERTY = "loyalty.rules";
+
+    /**
+     * The system property which, when set to true, makes operators measure the calls made to them and publish the
+     * measurements through JMX.
+     */
+    public static final String METRICS_PROPERTY = "loyalty.metrics";
+
+    /**
+     * The system property naming the host:port of a {@link LoyaltyCardServer} for operators to be clients of, instead
+     * of keeping cards themselves.
+     */
+    public static final String SERVER_PROPERTY = "loyalty.server";
+
+    /**
+     * The system property setting the number of shards for operators to partition their owners between, each with a
+     * thread of its own, and the system property setting the most calls queued for each shard. When the first is not
+     * set, operators keep their owners together.
+     */
+    public static final String SHARDS_PROPERTY = "loyalty.shards";
+    public static final String SHARDS_QUEUE_PROPERTY = "loyalty.shards.queue";
+
     private static IFactory factoryInstance = null;
 
     /**
@@ -46,12 +100,133 @@ public final class Factory implements IFactory {
     }
 
     /**
-     * Creates an instance of {@link ILoyaltyCardOperator}.
+     * Creates an instance of {@link ILoyaltyCardOperator}. If the {@value #SERVER_PROPERTY} system property names a
+     * server, the operator is a client of that server, and the other properties below are up to the server. Otherwise,
+     * if the {@value #JOURNAL_PROPERTY} system property names a file, the operator journals its transactions to that
+     * file (syncing up to {@value #JOURNAL_BATCH_PROPERTY} transactions, 512 by default, together after waiting at most
+     * {@value #JOURNAL_DELAY_PROPERTY} milliseconds, 2 by default), and starts from its latest snapshot and the journal
+     * written since. A snapshot is taken every {@value #JOURNAL_SNAPSHOT_PROPERTY} milliseconds, 60000 by default, or
+     * never if it is 0. Otherwise, if the {@value #LEDGER_PROPERTY} system property names a file, the operator keeps
+     * its cards in a memory-mapped ledger in that file, and starts with the cards already in it, holding at most
+     * {@value #LEDGER_CACHE_PROPERTY} of them in memory if that is set. Otherwise, if the
+     * {@value #SHARDS_PROPERTY} system property is set, the operator is a {@link ShardedLoyaltyCardOperator} with that
+     * many shards, each queueing up to {@value #SHARDS_QUEUE_PROPERTY} calls, 1024 by default. Whichever operator it
+     * is, its money purchases earn points by the rules in the file the {@value #RULES_PROPERTY} system property names,
+     * if it is set. If the {@value #METRICS_PROPERTY} system property is true, the operator is wrapped in an
+     * {@link InstrumentedLoyaltyCardOperator} whose MBeans are registered.
      *
      * @return the LoyaltyCardOperator
+     * @throws UncheckedIOException if the server cannot be connected to, or the journal, ledger or rules file cannot be
+     * opened
+     * @throws IllegalStateException if the MBeans cannot be registered
+     * @throws IllegalArgumentException if the {@value #SERVER_PROPERTY} system property is not of the form host:port,
+     * or the rules file holds a line which is not a rule
      */
     @Override
     public ILoyaltyCardOperator makeLoyaltyCardOperator() {
-        return new LoyaltyCardOperator();
+
+        ILoyaltyCardOperator operator = makeUninstrumentedOperator();
+
+        if (!Boolean.getBoolean(METRICS_PROPERTY)) {
+            return operator;
+        }
+
+        InstrumentedLoyaltyCardOperator instrumented = new InstrumentedLoyaltyCardOperator(operator);
+
+        try {
+            instrumented.registerMBeans();
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the operator's MBeans", e);
+        }
+        return instrumented;
+    }
+
+    /**
+     * Creates the operator chosen by the server, journal, ledger and shards system properties, earning points by the
+     * rules the rules system property names.
+     * @return the operator
+     * @throws UncheckedIOException if the server cannot be connected to, or the journal, ledger or rules file cannot be
+     * opened
+     * @throws IllegalArgumentException if the {@value #SERVER_PROPERTY} system property is not of the form host:port,
+     * or the rules file holds a line which is not a rule
+     */
+    private ILoyaltyCardOperator makeUninstrumentedOperator() {
+
+        String server = System.getProperty(SERVER_PROPERTY);
+        String journal = System.getProperty(JOURNAL_PROPERTY);
+        String ledger = System.getProperty(LEDGER_PROPERTY);
+        Integer cache = Integer.getInteger(LEDGER_CACHE_PROPERTY);
+        Integer shards = Integer.getInteger(SHARDS_PROPERTY);
+        String rulesFile = System.getProperty(RULES_PROPERTY);
+
+        try {
+            if (server != null) {
+                int colon = server.lastIndexOf(':');
+                int port = parsePort(server, colon);
+
+                return new RemoteLoyaltyCardOperator(server.substring(0, colon), port);
+            }
+
+            EarningRules rules = rulesFile != null ? EarningRules.read(Paths.get(rulesFile)) : EarningRules.STANDARD;
+
+            if (journal != null) {
+                JournaledLoyaltyCardOperator operator = new JournaledLoyaltyCardOperator(Paths.get(journal),
+                        Integer.getInteger(JOURNAL_BATCH_PROPERTY, 512), Long.getLong(JOURNAL_DELAY_PROPERTY, 2),
+                        Long.getLong(JOURNAL_SNAPSHOT_PROPERTY, 60_000));
+
+                operator.setEarningRules(rules);
+                return operator;
+            } else if (ledger != null && cache != null) {
+                TieredLoyaltyCardOperator operator =
+                        new TieredLoyaltyCardOperator(MappedCardLedger.open(Paths.get(ledger)), cache);
+
+                operator.setEarningRules(rules);
+                return operator;
+            } else if (ledger != null) {
+                LoyaltyCardOperator operator = new LoyaltyCardOperator(MappedCardLedger.open(Paths.get(ledger)));
+
+                operator.setEarningRules(rules);
+                return operator;
+            } else if (shards != null) {
+                ShardedLoyaltyCardOperator operator =
+                        new ShardedLoyaltyCardOperator(shards, Integer.getInteger(SHARDS_QUEUE_PROPERTY, 1024));
+
+                operator.setEarningRules(rules);
+                return operator;
+            } else {
+                LoyaltyCardOperator operator = new LoyaltyCardOperator();
+
+                operator.setEarningRules(rules);
+                return operator;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads the port from the value of the {@value #SERVER_PROPERTY} system property.
+     * @param server the value, of the form host:port
+     * @param colon the position of the last colon in the value, or -1 if there is none
+     * @return the port
+     * @throws IllegalArgumentException if the value has no host, or its port is not a number from 0 to 65535
+     */
+    private static int parsePort(String server, int colon) throws IllegalArgumentException {
+
+        if (colon < 1) {
+            throw new IllegalArgumentException(SERVER_PROPERTY + " must be of the form host:port, not " + server);
+        }
+
+        int port;
+
+        try {
+            port = Integer.parseInt(server.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(SERVER_PROPERTY + " has an invalid port: " + server, e);
+        }
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException(SERVER_PROPERTY + " has an invalid port: " + server);
+        }
+        return port;
     }
 }
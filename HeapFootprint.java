@@ -0,0 +1,84 @@
+package impl;
+
+import common.OwnerAlreadyRegisteredException;
+import common.OwnerNotRegisteredException;
+import interfaces.ILoyaltyCardOperator;
+import interfaces.ILoyaltyCardOwner;
+
+/**
+ * This class compares how much heap {@link LoyaltyCardOperator} and {@link PrimitiveLoyaltyCardOperator} retain for
+ * the same members. The owners are created up front and kept alive, so only what the operators add on top of them is
+ * measured. The number of members can be given as the first argument, and defaults to one million.
+ *
+ */
+public final class HeapFootprint {
+
+    private HeapFootprint() {
+    }
+
+    /**
+     * Registers the same members with both operators and prints the heap each of them retains.
+     * @param args the number of members, optionally
+     * @throws OwnerAlreadyRegisteredException never, as every generated email is unique
+     * @throws OwnerNotRegisteredException never, as every owner is registered before their purchase
+     */
+    public static void main(String[] args) throws OwnerAlreadyRegisteredException, OwnerNotRegisteredException {
+
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        ILoyaltyCardOwner[] owners = new ILoyaltyCardOwner[members];
+
+        for (int i = 0; i < members; i++) {
+            owners[i] = Factory.getInstance().makeLoyaltyCardOwner("member" + i + "@example.com", "Member " + i);
+        }
+
+        long objects = measure(new LoyaltyCardOperator(), owners);
+        long primitives = measure(new PrimitiveLoyaltyCardOperator(), owners);
+
+        System.out.printf("members: %,d%n", members);
+        System.out.printf("LoyaltyCardOperator:          %,d bytes (%.1f per member)%n",
+                objects, (double) objects / members);
+        System.out.printf("PrimitiveLoyaltyCardOperator: %,d bytes (%.1f per member)%n",
+                primitives, (double) primitives / members);
+    }
+
+    /**
+     * Registers every owner with an operator and gives each card one purchase, then measures how much the heap grew.
+     * @param operator the operator to measure
+     * @param owners the owners to register
+     * @return the number of bytes the operator retains
+     * @throws OwnerAlreadyRegisteredException never, as every generated email is unique
+     * @throws OwnerNotRegisteredException never, as every owner is registered before their purchase
+     */
+    private static long measure(ILoyaltyCardOperator operator, ILoyaltyCardOwner[] owners)
+            throws OwnerAlreadyRegisteredException, OwnerNotRegisteredException {
+
+        long before = usedHeap();
+
+        for (ILoyaltyCardOwner owner : owners) {
+            operator.registerOwner(owner);
+            operator.processMoneyPurchase(owner.getEmail(), 100);
+        }
+
+        long after = usedHeap();
+
+        // Keeps the operator reachable until after it has been measured.
+        if (operator.getNumberOfCustomers() != owners.length) {
+            throw new IllegalStateException();
+        }
+        return after - before;
+    }
+
+    /**
+     * Returns the heap in use after asking for a few garbage collections.
+     * @return the number of bytes in use
+     */
+    private static long usedHeap() {
+
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,63 @@
+package impl;
+
+/**
+ * This class represents the outcome of registering many owners at once: how many rows there were, how many owners were
+ * registered, and which rows were not, either because their owner was already registered or because the row could not
+ * be read or its owner's card issued. Rows are numbered by their position in the import, counting from 0.
+ *
+ */
+public final class ImportReport {
+
+    private final long rows;
+    private final long registered;
+    private final long[] duplicateRows;
+    private final long[] invalidRows;
+
+    /**
+     * Constructor for an import report.
+     * @param rows the number of rows imported
+     * @param duplicateRows the positions of the rows whose owner was already registered, in order
+     * @param invalidRows the positions of the rows which could not be read, in order
+     */
+    ImportReport(long rows, long[] duplicateRows, long[] invalidRows) {
+
+        this.rows = rows;
+        this.registered = rows - duplicateRows.length - invalidRows.length;
+        this.duplicateRows = duplicateRows;
+        this.invalidRows = invalidRows;
+    }
+
+    /**
+     * Returns the number of rows imported.
+     * @return the number of rows
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the number of owners registered by the import.
+     * @return the number of owners registered
+     */
+    public long getRegistered() {
+        return registered;
+    }
+
+    /**
+     * Returns the positions of the rows whose owner was already registered, either before the import or by an earlier
+     * row.
+     * @return the positions of the duplicate rows, in order
+     */
+    public long[] getDuplicateRows() {
+        return duplicateRows.clone();
+    }
+
+    /**
+     * Returns the positions of the rows which could not be read, e.g. a line of a file without a name, or a null
+     * owner, or whose owner's card could not be issued, e.g. in a ledger for an owner without a name.
+     * @return the positions of the invalid rows, in order
+     */
+    public long[] getInvalidRows() {
+        return invalidRows.clone();
+    }
+}
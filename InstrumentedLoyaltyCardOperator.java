@@ -0,0 +1,445 @@
+package impl;
+
+import common.InsufficientPointsException;
+import common.OwnerAlreadyRegisteredException;
+import common.OwnerNotRegisteredException;
+import interfaces.ILoyaltyCardOperator;
+import interfaces.ILoyaltyCardOwner;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class represents a loyalty card operator which measures the calls made to another operator. For each kind of
+ * call it keeps a histogram of their latencies, which also counts them, and counts the ones that failed by the type of
+ * exception they threw.
+ *
+ * Recording a call allocates nothing and takes two reads of the clock and a couple of atomic updates, so it is cheap
+ * enough to leave on. The metrics can be read with {@link #getMetrics()}, or through JMX once
+ * {@link #registerMBeans()} has been called, with one MBean per kind of call.
+ *
+ */
+public class InstrumentedLoyaltyCardOperator implements ILoyaltyCardOperator, Closeable {
+
+    /**
+     * The types of exception failures are counted by. Failures with any other exception are counted as
+     * RuntimeExceptions.
+     */
+    private static final Class<?>[] FAILURES = {OwnerAlreadyRegisteredException.class,
+            OwnerNotRegisteredException.class, InsufficientPointsException.class, RuntimeException.class};
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final ILoyaltyCardOperator operator;
+    private final LatencyRecorder[] latencies = new LatencyRecorder[Operation.values().length];
+    private final LongAdder[][] failures = new LongAdder[Operation.values().length][FAILURES.length];
+    private final List<ObjectName> mbeans = new ArrayList<>();
+
+    /**
+     * Constructor for an operator which measures the calls made to another one.
+     * @param operator the operator to measure
+     */
+    public InstrumentedLoyaltyCardOperator(ILoyaltyCardOperator operator) {
+
+        this.operator = operator;
+
+        for (Operation operation : Operation.values()) {
+
+            latencies[operation.ordinal()] = new LatencyRecorder();
+
+            for (int i = 0; i < FAILURES.length; i++) {
+                failures[operation.ordinal()][i] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * Returns the operator whose calls are measured.
+     * @return the operator
+     */
+    public ILoyaltyCardOperator getOperator() {
+        return operator;
+    }
+
+    /**
+     * Registers an owner.
+     * @param loyaltyCardOwner the owner of the loyalty card
+     * @throws OwnerAlreadyRegisteredException if the given owner's email is already registered
+     */
+    @Override
+    public void registerOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerAlreadyRegisteredException {
+
+        long start = System.nanoTime();
+        try {
+            operator.registerOwner(loyaltyCardOwner);
+        } catch (OwnerAlreadyRegisteredException | RuntimeException e) {
+            failed(Operation.REGISTER, e);
+            throw e;
+        } finally {
+            record(Operation.REGISTER, start);
+        }
+    }
+
+    /**
+     * Unregisters an owner.
+     * @param loyaltyCardOwner the owner of the loyalty card
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void unregisterOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerNotRegisteredException {
+
+        long start = System.nanoTime();
+        try {
+            operator.unregisterOwner(loyaltyCardOwner);
+        } catch (OwnerNotRegisteredException | RuntimeException e) {
+            failed(Operation.UNREGISTER, e);
+            throw e;
+        } finally {
+            record(Operation.UNREGISTER, start);
+        }
+    }
+
+    /**
+     * Processes a money purchase.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the amount of money spent in pence
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void processMoneyPurchase(String ownerEmail, int pence) throws OwnerNotRegisteredException {
+
+        long start = System.nanoTime();
+        try {
+            operator.processMoneyPurchase(ownerEmail, pence);
+        } catch (OwnerNotRegisteredException | RuntimeException e) {
+            failed(Operation.MONEY_PURCHASE, e);
+            throw e;
+        } finally {
+            record(Operation.MONEY_PURCHASE, start);
+        }
+    }
+
+    /**
+     * Processes a points purchase.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the amount of money spent in pence
+     * @throws InsufficientPointsException if there are not enough points on the owner's card
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void processPointsPurchase(String ownerEmail, int pence)
+            throws InsufficientPointsException, OwnerNotRegisteredException {
+
+        long start = System.nanoTime();
+        try {
+            operator.processPointsPurchase(ownerEmail, pence);
+        } catch (InsufficientPointsException | OwnerNotRegisteredException | RuntimeException e) {
+            failed(Operation.POINTS_PURCHASE, e);
+            throw e;
+        } finally {
+            record(Operation.POINTS_PURCHASE, start);
+        }
+    }
+
+    /**
+     * Returns the number of registered owners.
+     * @return the number of customers
+     */
+    @Override
+    public int getNumberOfCustomers() {
+
+        long start = System.nanoTime();
+        try {
+            return operator.getNumberOfCustomers();
+        } catch (RuntimeException e) {
+            failed(Operation.NUMBER_OF_CUSTOMERS, e);
+            throw e;
+        } finally {
+            record(Operation.NUMBER_OF_CUSTOMERS, start);
+        }
+    }
+
+    /**
+     * Returns the total number of points on every card.
+     * @return the total number of points
+     */
+    @Override
+    public int getTotalNumberOfPoints() {
+
+        long start = System.nanoTime();
+        try {
+            return operator.getTotalNumberOfPoints();
+        } catch (RuntimeException e) {
+            failed(Operation.TOTAL_NUMBER_OF_POINTS, e);
+            throw e;
+        } finally {
+            record(Operation.TOTAL_NUMBER_OF_POINTS, start);
+        }
+    }
+
+    /**
+     * Returns the number of points on an owner's card.
+     * @param ownerEmail the loyalty card owner's email
+     * @return the number of points
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public int getNumberOfPoints(String ownerEmail) throws OwnerNotRegisteredException {
+
+        long start = System.nanoTime();
+        try {
+            return operator.getNumberOfPoints(ownerEmail);
+        } catch (OwnerNotRegisteredException | RuntimeException e) {
+            failed(Operation.NUMBER_OF_POINTS, e);
+            throw e;
+        } finally {
+            record(Operation.NUMBER_OF_POINTS, start);
+        }
+    }
+
+    /**
+     * Returns the number of times an owner's card has been used.
+     * @param ownerEmail the loyalty card owner's email
+     * @return the number of uses
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public int getNumberOfUses(String ownerEmail) throws OwnerNotRegisteredException {
+
+        long start = System.nanoTime();
+        try {
+            return operator.getNumberOfUses(ownerEmail);
+        } catch (OwnerNotRegisteredException | RuntimeException e) {
+            failed(Operation.NUMBER_OF_USES, e);
+            throw e;
+        } finally {
+            record(Operation.NUMBER_OF_USES, start);
+        }
+    }
+
+    /**
+     * Returns the owner of the most used card.
+     * @return the owner of the most used card
+     * @throws OwnerNotRegisteredException if the operator throws it
+     */
+    @Override
+    public ILoyaltyCardOwner getMostUsed() throws OwnerNotRegisteredException {
+
+        long start = System.nanoTime();
+        try {
+            return operator.getMostUsed();
+        } catch (OwnerNotRegisteredException | RuntimeException e) {
+            failed(Operation.MOST_USED, e);
+            throw e;
+        } finally {
+            record(Operation.MOST_USED, start);
+        }
+    }
+
+    /**
+     * Reads the metrics recorded so far.
+     * @return the metrics
+     */
+    public OperatorMetrics getMetrics() {
+
+        EnumMap<Operation, LatencyHistogram> histograms = new EnumMap<>(Operation.class);
+        EnumMap<Operation, Map<String, Long>> failureCounts = new EnumMap<>(Operation.class);
+
+        for (Operation operation : Operation.values()) {
+            histograms.put(operation, latencies[operation.ordinal()].getHistogram());
+            failureCounts.put(operation, getFailures(operation));
+        }
+        return new OperatorMetrics(histograms, failureCounts);
+    }
+
+    /**
+     * Registers an MBean for each kind of call with the platform MBean server, named
+     * impl:type=LoyaltyCardOperator,id=(a number for this operator),operation=(the kind of call). They are unregistered
+     * when the operator is closed.
+     * @throws JMException if the MBeans cannot be registered
+     */
+    public synchronized void registerMBeans() throws JMException {
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        int id = INSTANCES.incrementAndGet();
+
+        for (Operation operation : Operation.values()) {
+
+            ObjectName name = new ObjectName("impl:type=LoyaltyCardOperator,id=" + id + ",operation="
+                    + operation.getName());
+
+            server.registerMBean(new OperationMetrics(operation), name);
+            mbeans.add(name);
+        }
+    }
+
+    /**
+     * Unregisters the MBeans, if they were registered, and closes the operator whose calls are measured, if it can be
+     * closed. The operator is closed even if an MBean cannot be unregistered.
+     * @throws IOException if the operator cannot be closed, or an MBean cannot be unregistered
+     */
+    @Override
+    public void close() throws IOException {
+
+        IOException failure = null;
+
+        synchronized (this) {
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+            for (ObjectName name : mbeans) {
+                try {
+                    server.unregisterMBean(name);
+                } catch (JMException e) {
+                    if (failure == null) {
+                        failure = new IOException("Cannot unregister " + name, e);
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            mbeans.clear();
+        }
+
+        if (operator instanceof Closeable) {
+            try {
+                ((Closeable) operator).close();
+            } catch (IOException e) {
+                if (failure != null) {
+                    e.addSuppressed(failure);
+                }
+                throw e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Records the latency of a call.
+     * @param operation the kind of call
+     * @param start the time at which the call started
+     */
+    private void record(Operation operation, long start) {
+        latencies[operation.ordinal()].record(System.nanoTime() - start);
+    }
+
+    /**
+     * Counts a failed call by the type of exception it threw.
+     * @param operation the kind of call
+     * @param e the exception
+     */
+    private void failed(Operation operation, Exception e) {
+
+        for (int i = 0; i < FAILURES.length; i++) {
+            if (FAILURES[i].isInstance(e) || i == FAILURES.length - 1) {
+                failures[operation.ordinal()][i].increment();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the number of failed calls of a kind.
+     * @param operation the kind of call
+     * @return the number of failures, by the simple name of the type of exception
+     */
+    private Map<String, Long> getFailures(Operation operation) {
+
+        Map<String, Long> counts = new LinkedHashMap<>();
+
+        for (int i = 0; i < FAILURES.length; i++) {
+            counts.put(FAILURES[i].getSimpleName(), failures[operation.ordinal()][i].sum());
+        }
+        return counts;
+    }
+
+    /**
+     * The kinds of call which are measured.
+     */
+    public enum Operation {
+
+        REGISTER("register"),
+        UNREGISTER("unregister"),
+        MONEY_PURCHASE("moneyPurchase"),
+        POINTS_PURCHASE("pointsPurchase"),
+        NUMBER_OF_CUSTOMERS("numberOfCustomers"),
+        TOTAL_NUMBER_OF_POINTS("totalNumberOfPoints"),
+        NUMBER_OF_POINTS("numberOfPoints"),
+        NUMBER_OF_USES("numberOfUses"),
+        MOST_USED("mostUsed");
+
+        private final String name;
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the name of this kind of call in JMX.
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * The MBean for one kind of call.
+     */
+    private final class OperationMetrics implements OperationMetricsMXBean {
+
+        private final Operation operation;
+
+        private OperationMetrics(Operation operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        public long getCount() {
+            return latencies[operation.ordinal()].getHistogram().getCount();
+        }
+
+        @Override
+        public Map<String, Long> getFailures() {
+            return InstrumentedLoyaltyCardOperator.this.getFailures(operation);
+        }
+
+        @Override
+        public double getP50Micros() {
+            return latencies[operation.ordinal()].getHistogram().getValueAtPercentile(50) / 1000.0;
+        }
+
+        @Override
+        public double getP90Micros() {
+            return latencies[operation.ordinal()].getHistogram().getValueAtPercentile(90) / 1000.0;
+        }
+
+        @Override
+        public double getP99Micros() {
+            return latencies[operation.ordinal()].getHistogram().getValueAtPercentile(99) / 1000.0;
+        }
+
+        @Override
+        public double getP999Micros() {
+            return latencies[operation.ordinal()].getHistogram().getValueAtPercentile(99.9) / 1000.0;
+        }
+
+        @Override
+        public double getMaxMicros() {
+            return latencies[operation.ordinal()].getHistogram().getMax() / 1000.0;
+        }
+    }
+}
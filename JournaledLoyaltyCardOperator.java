@@ -0,0 +1,584 @@
+package impl;
+
+import common.AbstractFactoryClient;
+import common.InsufficientPointsException;
+import common.OwnerAlreadyRegisteredException;
+import common.OwnerNotRegisteredException;
+import common.PurchaseResult;
+import interfaces.ILoyaltyCardOperator;
+import interfaces.ILoyaltyCardOwner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class represents a loyalty card operator whose transactions are durable. It applies every transaction to a
+ * {@link LoyaltyCardOperator} and records it in a {@link TransactionJournal}, and when it is created it rebuilds the
+ * operator by replaying the journal.
+ *
+ * The journal is written ahead: a transaction is checked, then its record is appended, and only then is it applied, so
+ * the operator never holds a change the journal does not. A call which changes the operator only returns once its
+ * journal record has been synced to the storage device, so every transaction that has been acknowledged survives a
+ * crash. Failed transactions are not journaled. A transaction is checked, journaled and applied while holding a lock
+ * striped by the owner's email (and, for registrations, a lock shared by all of them), and a purchase also while
+ * holding the lock on the owner's card, so nothing can change what the check found before the transaction is applied,
+ * and the journal replays each owner's transactions, and all registrations, in the order they were applied in.
+ *
+ * If the journal cannot be written, the transaction that failed to be journaled, which is left unapplied, and every
+ * transaction after it throws an {@link UncheckedIOException}.
+ *
+ * So that restarting does not mean replaying every transaction ever made, the operator can take snapshots, either when
+ * {@link #snapshot()} is called or periodically in the background. Taking a snapshot holds every lock just long enough
+ * to mark the point the journal is rotated at and to take a {@link CardSnapshot} of the operator at the same point,
+ * which copies nothing. The snapshot image is then written straight from that snapshot while transactions carry on,
+ * after which the rotated journal files are deleted. Starting up loads the latest image and only replays the journal
+ * written since.
+ *
+ */
+public class JournaledLoyaltyCardOperator extends AbstractFactoryClient implements ILoyaltyCardOperator, Closeable {
+
+    private static final int STRIPES = 256;
+
+    private final LoyaltyCardOperator operator;
+    private final TransactionJournal journal;
+    private final Object registrations = new Object();
+    private final Object[] stripes = new Object[STRIPES];
+
+    private final Path file;
+    private final Path image;
+    private final Object snapshots = new Object();
+    private final ScheduledExecutorService snapshotter;
+    private volatile Exception snapshotFailure;
+    private long generation;
+
+    /**
+     * Constructor for an operator journaled to a file, which is replayed if it already exists.
+     * @param file the journal file
+     * @param maxBatchRecords the most transactions to sync together
+     * @param maxDelayMillis the longest a transaction waits for others to be synced with
+     * @throws IOException if the journal cannot be opened or read
+     */
+    public JournaledLoyaltyCardOperator(Path file, int maxBatchRecords, long maxDelayMillis) throws IOException {
+        this(file, maxBatchRecords, maxDelayMillis, 0);
+    }
+
+    /**
+     * Constructor for an operator journaled to a file, which is replayed if it already exists, and which takes a
+     * snapshot periodically.
+     * @param file the journal file, next to which the rotated journal files and the snapshot image are kept
+     * @param maxBatchRecords the most transactions to sync together
+     * @param maxDelayMillis the longest a transaction waits for others to be synced with
+     * @param snapshotIntervalMillis the time between the end of one snapshot and the start of the next, or 0 to only
+     * take snapshots when asked to
+     * @throws IOException if the journal or the snapshot image cannot be opened or read
+     */
+    public JournaledLoyaltyCardOperator(Path file, int maxBatchRecords, long maxDelayMillis,
+                                        long snapshotIntervalMillis) throws IOException {
+        this(file, maxBatchRecords, maxDelayMillis, snapshotIntervalMillis, Clock.systemUTC());
+    }
+
+    /**
+     * Constructor for an operator journaled to a file, as by the constructor without a clock, which reads the times of
+     * its transactions, by which points earn and expire, from a given clock.
+     * @param file the journal file, next to which the rotated journal files and the snapshot image are kept
+     * @param maxBatchRecords the most transactions to sync together
+     * @param maxDelayMillis the longest a transaction waits for others to be synced with
+     * @param snapshotIntervalMillis the time between the end of one snapshot and the start of the next, or 0 to only
+     * take snapshots when asked to
+     * @param clock the clock
+     * @throws IOException if the journal or the snapshot image cannot be opened or read
+     */
+    public JournaledLoyaltyCardOperator(Path file, int maxBatchRecords, long maxDelayMillis,
+                                        long snapshotIntervalMillis, Clock clock) throws IOException {
+
+        this.operator = new LoyaltyCardOperator(clock);
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+
+        this.file = file;
+        this.image = file.resolveSibling(file.getFileName() + ".snapshot");
+
+        generation = CardImage.read(image, operator::restore);
+
+        OperatorReplayer replayer = new OperatorReplayer(operator);
+
+        for (long rotated : rotatedGenerations()) {
+
+            if (rotated <= generation) {
+                Files.delete(rotated(rotated));
+            } else {
+                TransactionJournal.replay(rotated(rotated), replayer);
+                generation = rotated;
+            }
+        }
+
+        journal = TransactionJournal.open(file, maxBatchRecords, maxDelayMillis, replayer);
+
+        if (snapshotIntervalMillis > 0) {
+            snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "journal-snapshotter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotter.scheduleWithFixedDelay(this::snapshotInBackground, snapshotIntervalMillis,
+                    snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            snapshotter = null;
+        }
+    }
+
+    /**
+     * Registers the specified card owner.
+     * @param loyaltyCardOwner the owner to register
+     * @throws OwnerAlreadyRegisteredException if the owner's email is already registered
+     */
+    @Override
+    public void registerOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerAlreadyRegisteredException {
+
+        long sequence;
+
+        synchronized (registrations) {
+            synchronized (stripe(loyaltyCardOwner.getEmail())) {
+
+                if (operator.isRegistered(loyaltyCardOwner.getEmail())) {
+                    throw new OwnerAlreadyRegisteredException();
+                }
+                sequence = append(() -> journal.appendRegister(loyaltyCardOwner.getEmail(), loyaltyCardOwner.getName()));
+                operator.registerOwner(loyaltyCardOwner);
+            }
+        }
+        awaitDurable(sequence);
+    }
+
+    /**
+     * Unregisters the specified loyalty card owner.
+     * @param loyaltyCardOwner the owner to unregister
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void unregisterOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerNotRegisteredException {
+
+        long sequence;
+
+        synchronized (registrations) {
+            synchronized (stripe(loyaltyCardOwner.getEmail())) {
+
+                if (!operator.isRegistered(loyaltyCardOwner.getEmail())) {
+                    throw new OwnerNotRegisteredException();
+                }
+                sequence = append(() -> journal.appendUnregister(loyaltyCardOwner.getEmail()));
+                operator.unregisterOwner(loyaltyCardOwner);
+            }
+        }
+        awaitDurable(sequence);
+    }
+
+    /**
+     * Processes a monetary purchase for the specified owner and price and adds the points it earns by the earning
+     * rules, pence/100 by default, to the owners loyalty card. The points earned are journaled, rather than the price,
+     * so the purchase is replayed as it was made whatever rules are in force by then.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the purchase in pence
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void processMoneyPurchase(String ownerEmail, int pence) throws OwnerNotRegisteredException {
+
+        long[] sequence = new long[1];
+
+        synchronized (stripe(ownerEmail)) {
+
+            PurchaseResult result = operator.tryProcessMoneyPurchase(ownerEmail, pence, null, (now, points) ->
+                    sequence[0] = append(() -> journal.appendPoints(TransactionJournal.POINTS_EARNED, ownerEmail, now,
+                            points)));
+
+            if (result == PurchaseResult.OWNER_NOT_REGISTERED) {
+                throw new OwnerNotRegisteredException();
+            }
+        }
+        awaitDurable(sequence[0]);
+    }
+
+    /**
+     * Processes a purchase of an item for the specified price in pence using points on the owner's loyalty card, once earned, each point on the card is worth 1 pence.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the item in pence
+     * @throws InsufficientPointsException if the card does not contain at least the same number of points as the price
+     * @throws OwnerNotRegisteredException if the given owner's email has not been registered
+     */
+    @Override
+    public void processPointsPurchase(String ownerEmail, int pence)
+            throws InsufficientPointsException, OwnerNotRegisteredException {
+
+        if (pence <= 0) {
+            return;
+        }
+
+        long[] sequence = new long[1];
+
+        synchronized (stripe(ownerEmail)) {
+
+            PurchaseResult result = operator.tryProcessPointsPurchase(ownerEmail, pence, (now, points) ->
+                    sequence[0] = append(() -> journal.appendPoints(TransactionJournal.POINTS_USED, ownerEmail, now,
+                            points)));
+
+            if (result == PurchaseResult.OWNER_NOT_REGISTERED) {
+                throw new OwnerNotRegisteredException();
+            } else if (result == PurchaseResult.INSUFFICIENT_POINTS) {
+                throw new InsufficientPointsException();
+            }
+        }
+        awaitDurable(sequence[0]);
+    }
+
+    /**
+     * Returns the rules by which purchases paid for with money earn points.
+     * @return the rules, which are {@link EarningRules#STANDARD} unless others have been set
+     */
+    public EarningRules getEarningRules() {
+        return operator.getEarningRules();
+    }
+
+    /**
+     * Replaces the rules by which purchases paid for with money earn points, for the purchases made from now on.
+     * @param rules the rules
+     */
+    public void setEarningRules(EarningRules rules) throws NullPointerException {
+        operator.setEarningRules(rules);
+    }
+
+    /**
+     * Gets the number of loyalty card customers.
+     *
+     * @return the number of loyalty card customers
+     */
+    @Override
+    public int getNumberOfCustomers() {
+        return operator.getNumberOfCustomers();
+    }
+
+    /**
+     * Gets the total count of all points on all loyalty cards in the system.
+     *
+     * @return the total count of all points on all loyalty cards in the system
+     */
+    @Override
+    public int getTotalNumberOfPoints() {
+        return operator.getTotalNumberOfPoints();
+    }
+
+    /**
+     * Gets the number of points on the loyalty card for the specified owner.
+     *
+     * @param ownerEmail the loyalty card owner's email
+     * @return the number of points on the specified owner's loyalty card
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public int getNumberOfPoints(String ownerEmail) throws OwnerNotRegisteredException {
+        return operator.getNumberOfPoints(ownerEmail);
+    }
+
+    /**
+     * Gets the total number of times that the owner's loyalty card has been used (for money and points purchases).
+     *
+     * @param ownerEmail the loyalty card owner's email
+     * @return the total number of times that the owner's loyalty card has been used
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public int getNumberOfUses(String ownerEmail) throws OwnerNotRegisteredException {
+        return operator.getNumberOfUses(ownerEmail);
+    }
+
+    /**
+     * Gets the owner who has used their loyalty card the most. If there are two cards that have been used the same
+     * amount, the one that was registered first will be returned.
+     *
+     * @return the owner who has used their loyalty card the most
+     * @throws OwnerNotRegisteredException if no owners have been registered
+     */
+    @Override
+    public ILoyaltyCardOwner getMostUsed() throws OwnerNotRegisteredException {
+        return operator.getMostUsed();
+    }
+
+    /**
+     * Takes a snapshot: rotates the journal, writes a new snapshot image from a snapshot of the operator taken at the
+     * point the journal was rotated at, and deletes the rotated journal files the image covers.
+     * @throws IOException if the journal cannot be rotated, or the image cannot be written
+     */
+    public void snapshot() throws IOException {
+
+        synchronized (snapshots) {
+
+            long next = generation + 1;
+            CardSnapshot[] taken = new CardSnapshot[1];
+
+            // No transaction is between being journaled and being applied while every lock is held.
+            whileLocked(0, () -> {
+                journal.startRotation(rotated(next));
+                taken[0] = operator.snapshot();
+            });
+
+            try (CardSnapshot cards = taken[0]) {
+
+                journal.awaitRotation();
+                generation = next;
+                CardImage.write(image, next, cards::forEachCard);
+            }
+
+            for (long rotated : rotatedGenerations()) {
+                if (rotated <= next) {
+                    Files.delete(rotated(rotated));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns why the last periodic snapshot failed, so that a failure in the background can be noticed and reported.
+     * @return the exception the last periodic snapshot failed with, or null if it succeeded or none has been taken
+     */
+    public Exception getSnapshotFailure() {
+        return snapshotFailure;
+    }
+
+    /**
+     * Stops taking snapshots, syncs any transactions which have not been synced yet and closes the journal.
+     * @throws IOException if the journal cannot be written or closed
+     */
+    @Override
+    public void close() throws IOException {
+
+        if (snapshotter != null) {
+            snapshotter.shutdown();
+
+            try {
+                snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        journal.close();
+    }
+
+    /**
+     * Takes a periodic snapshot. A failed snapshot leaves the journal files it would have replaced in place, so its
+     * failure is kept for {@link #getSnapshotFailure()} and the next snapshot tries again.
+     */
+    private void snapshotInBackground() {
+
+        try {
+            snapshot();
+            snapshotFailure = null;
+        } catch (IOException | RuntimeException e) {
+            snapshotFailure = e;
+        }
+    }
+
+    /**
+     * Returns the name of a rotated journal file.
+     * @param rotated the generation of the rotated journal file
+     * @return the file
+     */
+    private Path rotated(long rotated) {
+        return file.resolveSibling(file.getFileName() + "." + rotated);
+    }
+
+    /**
+     * Finds the generations of the rotated journal files which exist.
+     * @return the generations, in ascending order
+     * @throws IOException if the directory holding the journal cannot be listed
+     */
+    private List<Long> rotatedGenerations() throws IOException {
+
+        String prefix = file.getFileName() + ".";
+        List<Long> generations = new ArrayList<>();
+        Path directory = file.toAbsolutePath().getParent();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+
+            for (Path rotated : files) {
+
+                String suffix = rotated.getFileName().toString().substring(prefix.length());
+
+                if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) {
+                    generations.add(Long.parseLong(suffix));
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * Returns the lock for the transactions of an owner.
+     * @param email the owner's email
+     * @return the lock
+     */
+    private Object stripe(String email) {
+
+        int hash = email.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Holds the registration lock and every stripe lock, from a stripe onwards, while doing something.
+     * @param stripe the first stripe to lock
+     * @param action what to do
+     * @throws IOException if the action throws it
+     */
+    private void whileLocked(int stripe, LockedAction action) throws IOException {
+
+        if (stripe == STRIPES) {
+            action.run();
+            return;
+        }
+        if (stripe == 0) {
+            synchronized (registrations) {
+                synchronized (stripes[0]) {
+                    whileLocked(1, action);
+                }
+            }
+            return;
+        }
+        synchronized (stripes[stripe]) {
+            whileLocked(stripe + 1, action);
+        }
+    }
+
+    /**
+     * Appends a record to the journal, turning a failure into an unchecked exception.
+     * @param append the append to make
+     * @return the sequence number of the record
+     */
+    private static long append(Append append) {
+
+        try {
+            return append.append();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Waits for a record to be synced, turning a failure into an unchecked exception.
+     * @param sequence the sequence number of the record
+     */
+    private void awaitDurable(long sequence) {
+
+        try {
+            journal.awaitDurable(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * An append to the journal.
+     */
+    private interface Append {
+
+        /**
+         * Makes the append.
+         * @return the sequence number of the record
+         * @throws IOException if the journal has failed or been closed
+         */
+        long append() throws IOException;
+    }
+
+    /**
+     * Something done while holding every lock.
+     */
+    private interface LockedAction {
+
+        /**
+         * Does it.
+         * @throws IOException if it fails
+         */
+        void run() throws IOException;
+    }
+
+    /**
+     * Replays journal records into an operator. Every record was checked to succeed before it was journaled, and was
+     * applied straight after, so replaying it cannot fail either.
+     */
+    private static final class OperatorReplayer implements TransactionJournal.Replayer {
+
+        private final LoyaltyCardOperator operator;
+
+        private OperatorReplayer(LoyaltyCardOperator operator) {
+            this.operator = operator;
+        }
+
+        @Override
+        public void register(String email, String name) {
+
+            try {
+                operator.registerOwner(Factory.getInstance().makeLoyaltyCardOwner(email, name));
+            } catch (OwnerAlreadyRegisteredException e) {
+                throw new IllegalStateException("Journal does not match the operator", e);
+            }
+        }
+
+        @Override
+        public void unregister(String email) {
+
+            try {
+                operator.unregisterOwner(Factory.getInstance().makeLoyaltyCardOwner(email, ""));
+            } catch (OwnerNotRegisteredException e) {
+                throw new IllegalStateException("Journal does not match the operator", e);
+            }
+        }
+
+        @Override
+        public void moneyPurchase(String email, int pence) {
+
+            try {
+                operator.processMoneyPurchase(email, pence);
+            } catch (OwnerNotRegisteredException e) {
+                throw new IllegalStateException("Journal does not match the operator", e);
+            }
+        }
+
+        @Override
+        public void pointsPurchase(String email, int pence) {
+
+            try {
+                operator.processPointsPurchase(email, pence);
+            } catch (InsufficientPointsException | OwnerNotRegisteredException e) {
+                throw new IllegalStateException("Journal does not match the operator", e);
+            }
+        }
+
+        @Override
+        public void pointsEarned(String email, long time, int points) {
+
+            if (operator.addEarnedPoints(email, time, points) != PurchaseResult.OK) {
+                throw new IllegalStateException("Journal does not match the operator");
+            }
+        }
+
+        @Override
+        public void pointsUsed(String email, long time, int points) {
+
+            if (operator.usePoints(email, time, points) != PurchaseResult.OK) {
+                throw new IllegalStateException("Journal does not match the operator");
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package impl;
+
+/**
+ * This class represents a histogram of latencies in nanoseconds, from which percentiles can be read.
+ *
+ * Values are counted in buckets whose width grows with the values in them, so that every value is within about 3% of
+ * the bucket it is counted in, whatever its magnitude, while the histogram itself stays a small fixed-size array.
+ * Values below 64 have a bucket each. Above that, every power of two is split into 32 buckets of equal width.
+ *
+ * A histogram is not safe to record into from more than one thread; each thread records into its own, and the
+ * histograms are added together to be read. {@link LatencyRecorder} records from many threads into the same buckets,
+ * and reads them back as a histogram.
+ *
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = SUB_BUCKETS * 2;
+    static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long max;
+
+    /**
+     * Constructor for an empty histogram.
+     */
+    LatencyHistogram() {
+    }
+
+    /**
+     * Constructor for a histogram of values which have already been counted in buckets.
+     * @param counts the number of values counted in each bucket
+     * @param max the largest value counted
+     */
+    LatencyHistogram(long[] counts, long max) {
+
+        if (counts.length != BUCKETS) {
+            throw new IllegalArgumentException();
+        }
+        System.arraycopy(counts, 0, this.counts, 0, BUCKETS);
+
+        for (long bucket : counts) {
+            count += bucket;
+        }
+        this.max = max;
+    }
+
+    /**
+     * Records a value.
+     * @param nanos the value, which is treated as 0 if it is negative
+     */
+    void record(long nanos) {
+
+        long value = Math.max(nanos, 0);
+
+        counts[bucket(value)]++;
+        count++;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds every value recorded in another histogram to this one.
+     * @param other the other histogram
+     */
+    void add(LatencyHistogram other) {
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Returns the number of values recorded.
+     * @return the number of values
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the largest value recorded.
+     * @return the largest value, or 0 if none has been recorded
+     */
+    long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the value at a percentile, i.e. the highest value in the bucket that the value at that percentile was
+     * counted in, or the largest value recorded if that is lower.
+     * @param percentile the percentile, from 0 to 100
+     * @return the value, or 0 if none has been recorded
+     */
+    long getValueAtPercentile(double percentile) {
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+
+            seen += counts[i];
+
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the bucket a value is counted in.
+     * @param value the value, which is not negative
+     * @return the bucket
+     */
+    static int bucket(long value) {
+
+        if (value < LINEAR) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Returns the highest value counted in a bucket.
+     * @param bucket the bucket
+     * @return the highest value
+     */
+    private static long highestValue(int bucket) {
+
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+
+        int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
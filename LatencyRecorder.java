@@ -0,0 +1,64 @@
+package impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records latencies from many threads at once into the buckets of a {@link LatencyHistogram}, and reads
+ * them back as one.
+ *
+ * Recording allocates nothing: it increments one bucket of a preallocated array, and only writes the largest value
+ * when it has grown. So that threads recording at the same time do not all contend for the same buckets, the buckets
+ * are kept in a few stripes, and each thread records into the stripe picked by its id. Reading adds the stripes
+ * together, and is not atomic with recording, so a value being recorded while reading may be left out.
+ *
+ */
+final class LatencyRecorder {
+
+    private static final int STRIPES = Integer.highestOneBit(Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Constructor for a recorder with nothing recorded.
+     */
+    LatencyRecorder() {
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(LatencyHistogram.BUCKETS);
+        }
+    }
+
+    /**
+     * Records a value.
+     * @param nanos the value, which is treated as 0 if it is negative
+     */
+    void record(long nanos) {
+
+        long value = Math.max(nanos, 0);
+
+        stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].getAndIncrement(LatencyHistogram.bucket(value));
+
+        long current;
+        do {
+            current = max.get();
+        } while (value > current && !max.compareAndSet(current, value));
+    }
+
+    /**
+     * Reads back everything recorded so far.
+     * @return a histogram of the values
+     */
+    LatencyHistogram getHistogram() {
+
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return new LatencyHistogram(counts, max.get());
+    }
+}
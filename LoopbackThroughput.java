@@ -0,0 +1,115 @@
+package impl;
+
+import common.OwnerAlreadyRegisteredException;
+import common.OwnerNotRegisteredException;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class measures how many requests a {@link LoyaltyCardServer} answers per second over the loopback interface.
+ * Threads make money purchases through {@link RemoteLoyaltyCardOperator} clients, first with one thread per
+ * connection, where every request waits for the one before, and then with several threads sharing each connection, so
+ * that their requests are pipelined. The number of seconds to measure each run for can be given as the first argument,
+ * and defaults to five.
+ *
+ */
+public final class LoopbackThroughput {
+
+    private static final int OWNERS = 10_000;
+
+    /**
+     * The connections and the threads per connection of each run.
+     */
+    private static final int[][] RUNS = {{1, 1}, {4, 1}, {16, 1}, {1, 4}, {1, 16}, {4, 16}};
+
+    private LoopbackThroughput() {
+    }
+
+    /**
+     * Starts a server, runs the clients against it, and prints the requests answered per second by each run.
+     * @param args the number of seconds to measure each run for, optionally
+     * @throws IOException if the server cannot be started or connected to
+     * @throws InterruptedException if interrupted while waiting for the threads
+     * @throws OwnerAlreadyRegisteredException never, as every generated email is unique
+     */
+    public static void main(String[] args)
+            throws IOException, InterruptedException, OwnerAlreadyRegisteredException {
+
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+        LoyaltyCardOperator operator = new LoyaltyCardOperator();
+        String[] emails = new String[OWNERS];
+
+        for (int i = 0; i < OWNERS; i++) {
+            emails[i] = "member" + i + "@example.com";
+            operator.registerOwner(Factory.getInstance().makeLoyaltyCardOwner(emails[i], "Member " + i));
+        }
+
+        try (LoyaltyCardServer server = new LoyaltyCardServer(operator, 0)) {
+
+            // Warms up the server and the clients before measuring.
+            run(server.getPort(), emails, 4, 4, 2);
+
+            System.out.printf("%12s %12s %14s%n", "connections", "threads", "requests/s");
+
+            for (int[] run : RUNS) {
+                long requests = run(server.getPort(), emails, run[0], run[1], seconds);
+                System.out.printf("%12d %12d %,14d%n", run[0], run[0] * run[1], requests / seconds);
+            }
+        }
+    }
+
+    /**
+     * Makes money purchases from a number of threads over a number of connections for a while.
+     * @param port the port of the server
+     * @param emails the emails of the registered owners
+     * @param connections the number of connections
+     * @param threadsPerConnection the number of threads sharing each connection
+     * @param seconds how long to run for
+     * @return the number of requests answered
+     * @throws IOException if the server cannot be connected to
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static long run(int port, String[] emails, int connections, int threadsPerConnection, long seconds)
+            throws IOException, InterruptedException {
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        LongAdder requests = new LongAdder();
+        RemoteLoyaltyCardOperator[] clients = new RemoteLoyaltyCardOperator[connections];
+        Thread[] threads = new Thread[connections * threadsPerConnection];
+
+        for (int c = 0; c < connections; c++) {
+            clients[c] = new RemoteLoyaltyCardOperator("localhost", port);
+        }
+
+        for (int t = 0; t < threads.length; t++) {
+
+            RemoteLoyaltyCardOperator client = clients[t % connections];
+
+            threads[t] = new Thread(() -> {
+
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+
+                try {
+                    while (System.nanoTime() < deadline) {
+                        client.processMoneyPurchase(emails[random.nextInt(emails.length)], 250);
+                        requests.increment();
+                    }
+                } catch (OwnerNotRegisteredException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (RemoteLoyaltyCardOperator client : clients) {
+            client.close();
+        }
+        return requests.sum();
+    }
+}
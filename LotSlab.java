@@ -0,0 +1,304 @@
+package impl;
+
+import java.util.Arrays;
+
+/**
+ * This class keeps the lots of the points on many cards (see {@link PointLots}) in one slab of longs, by dense card
+ * id, rather than in an object for each card, so that lots cost an operator which keeps its cards in columns of
+ * primitives no more than the lots themselves and one long per card.
+ *
+ * Each card with points has a segment of the slab, of a power of two lots, which it uses as a ring, oldest lot first.
+ * The card's segment, its size class, and where its ring starts and how many lots are in it are packed into a long in
+ * a column indexed by card id, which is 0 for a card without lots. A segment which fills up is swapped for one twice
+ * its size, and a segment which empties is given back, so a card only holds room for the lots it has. Segments given
+ * back are kept on a free list for their size, from which they are handed out again before the slab grows.
+ *
+ * The slab is made of pages of {@value #PAGE_LOTS} lots, which are never moved once allocated, and a segment never
+ * spans two pages. Handing out and giving back segments is safe to share between threads, but the lots of each card
+ * must only be used while holding the lock which serialises the card's updates, and the column only grown while no
+ * lots are being used, as every other column of the operator.
+ *
+ */
+final class LotSlab {
+
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_LOTS = 1 << PAGE_BITS;
+    private static final int PAGES = 1 << (31 - PAGE_BITS);
+    private static final int MAX_CLASS = 13;
+
+    // How a card's state is packed: its ring's size, where its ring starts, the size class of its segment and the
+    // segment's position in the slab.
+    private static final int FIRST_SHIFT = 14;
+    private static final int CLASS_SHIFT = 28;
+    private static final int OFFSET_SHIFT = 32;
+    private static final long FIELD_MASK = (1L << FIRST_SHIFT) - 1;
+
+    private final long[][] pages = new long[PAGES][];
+    private int top;
+
+    // The positions of the segments given back, by size class.
+    private final int[][] free = new int[MAX_CLASS + 1][];
+    private final int[] freeCounts = new int[MAX_CLASS + 1];
+
+    // The packed state of each card's lots, indexed by card id.
+    private long[] states;
+
+    /**
+     * Constructor for an empty slab.
+     * @param capacity the number of card ids to make room for
+     */
+    LotSlab(int capacity) {
+
+        this.states = new long[capacity];
+
+        for (int i = 0; i <= MAX_CLASS; i++) {
+            free[i] = new int[4];
+        }
+    }
+
+    /**
+     * Makes room for more card ids, if there is not already room for them.
+     * @param capacity the number of card ids to make room for
+     */
+    void grow(int capacity) {
+
+        if (capacity > states.length) {
+            states = Arrays.copyOf(states, capacity);
+        }
+    }
+
+    /**
+     * Returns the lots of a card.
+     * @param id the card id
+     * @return the lots, which read and write the slab directly
+     */
+    PointLots getLots(int id) {
+        return new SlabLots(id);
+    }
+
+    /**
+     * Gives back a card's segment, if it has one, e.g. when the card is removed, leaving it without lots.
+     * @param id the card id
+     */
+    void clear(int id) {
+
+        long state = states[id];
+
+        if (state != 0) {
+            release(offset(state), sizeClass(state));
+            states[id] = 0;
+        }
+    }
+
+    /**
+     * Hands out a segment, from the free list for its size if there is one on it, and otherwise from the end of the
+     * slab, starting a new page if the segment would not fit in the last one.
+     * @param sizeClass the size class of the segment, which holds 1 &lt;&lt; sizeClass lots
+     * @return the position of the segment in the slab
+     */
+    private synchronized int allocate(int sizeClass) {
+
+        if (freeCounts[sizeClass] > 0) {
+            return free[sizeClass][--freeCounts[sizeClass]];
+        }
+
+        int length = 1 << sizeClass;
+
+        if ((top & (PAGE_LOTS - 1)) + length > PAGE_LOTS) {
+            top = (top | (PAGE_LOTS - 1)) + 1;
+        }
+
+        int page = top >>> PAGE_BITS;
+
+        if (page == PAGES) {
+            throw new IllegalStateException("Lot slab full");
+        }
+        if (pages[page] == null) {
+            pages[page] = new long[PAGE_LOTS];
+        }
+
+        int offset = top;
+
+        top += length;
+        return offset;
+    }
+
+    /**
+     * Puts a segment on the free list for its size.
+     * @param offset the position of the segment in the slab
+     * @param sizeClass the size class of the segment
+     */
+    private synchronized void release(int offset, int sizeClass) {
+
+        if (freeCounts[sizeClass] == free[sizeClass].length) {
+            free[sizeClass] = Arrays.copyOf(free[sizeClass], 2 * freeCounts[sizeClass]);
+        }
+        free[sizeClass][freeCounts[sizeClass]++] = offset;
+    }
+
+    /**
+     * Packs the state of a card's lots.
+     * @param offset the position of the card's segment in the slab
+     * @param sizeClass the size class of the segment
+     * @param first the position of the oldest lot in the segment
+     * @param size the number of lots
+     * @return the packed state
+     */
+    private static long state(int offset, int sizeClass, int first, int size) {
+        return (long) offset << OFFSET_SHIFT | (long) sizeClass << CLASS_SHIFT | (long) first << FIRST_SHIFT | size;
+    }
+
+    /**
+     * Unpacks the position of a card's segment in the slab.
+     * @param state the card's packed state
+     * @return the position of a card's segment in the slab
+     */
+    private static int offset(long state) {
+        return (int) (state >>> OFFSET_SHIFT);
+    }
+
+    /**
+     * Unpacks the size class of a card's segment.
+     * @param state the card's packed state
+     * @return the size class of a card's segment
+     */
+    private static int sizeClass(long state) {
+        return (int) (state >>> CLASS_SHIFT) & 0xF;
+    }
+
+    /**
+     * Unpacks the position of a card's oldest lot in its segment.
+     * @param state the card's packed state
+     * @return the position of a card's oldest lot in its segment
+     */
+    private static int ringStart(long state) {
+        return (int) (state >>> FIRST_SHIFT & FIELD_MASK);
+    }
+
+    /**
+     * Unpacks the number of a card's lots.
+     * @param state the card's packed state
+     * @return the number of a card's lots
+     */
+    private static int ringSize(long state) {
+        return (int) (state & FIELD_MASK);
+    }
+
+    /**
+     * Returns the index of a lot in a card's ring within its page.
+     * @param state the card's packed state
+     * @param i the position of the lot in the ring, counted from the oldest lot
+     * @return the index within the page
+     */
+    private static int index(long state, int i) {
+        return (offset(state) & (PAGE_LOTS - 1)) + ((ringStart(state) + i) & ((1 << sizeClass(state)) - 1));
+    }
+
+    /**
+     * Returns the page holding a card's segment.
+     * @param state the card's packed state
+     * @return the page
+     */
+    private long[] page(long state) {
+        return pages[offset(state) >>> PAGE_BITS];
+    }
+
+    /**
+     * The lots of one card in the slab.
+     */
+    private final class SlabLots extends PointLots {
+
+        private final int id;
+
+        private SlabLots(int id) {
+            this.id = id;
+        }
+
+        @Override
+        int size() {
+            return ringSize(states[id]);
+        }
+
+        @Override
+        void copyTo(long[] into) {
+
+            long state = states[id];
+            long[] page = page(state);
+
+            for (int i = 0; i < ringSize(state); i++) {
+                into[i] = page[index(state, i)];
+            }
+        }
+
+        @Override
+        long first() {
+
+            long state = states[id];
+            return page(state)[index(state, 0)];
+        }
+
+        @Override
+        void setFirst(long lot) {
+
+            long state = states[id];
+            page(state)[index(state, 0)] = lot;
+        }
+
+        @Override
+        void dropFirst() {
+
+            long state = states[id];
+            int size = ringSize(state) - 1;
+
+            if (size == 0) {
+                clear(id);
+            } else {
+                int first = (ringStart(state) + 1) & ((1 << sizeClass(state)) - 1);
+                states[id] = state(offset(state), sizeClass(state), first, size);
+            }
+        }
+
+        @Override
+        long last() {
+
+            long state = states[id];
+            return page(state)[index(state, ringSize(state) - 1)];
+        }
+
+        @Override
+        void setLast(long lot) {
+
+            long state = states[id];
+            page(state)[index(state, ringSize(state) - 1)] = lot;
+        }
+
+        @Override
+        void append(long lot) {
+
+            long state = states[id];
+            int size = ringSize(state);
+
+            if (state == 0) {
+                state = state(allocate(0), 0, 0, 0);
+            } else if (size == 1 << sizeClass(state)) {
+                int sizeClass = sizeClass(state) + 1;
+
+                if (sizeClass > MAX_CLASS) {
+                    throw new IllegalStateException("Too many lots on one card");
+                }
+
+                int offset = allocate(sizeClass);
+                long[] from = page(state);
+                long[] to = pages[offset >>> PAGE_BITS];
+
+                for (int i = 0; i < size; i++) {
+                    to[(offset & (PAGE_LOTS - 1)) + i] = from[index(state, i)];
+                }
+                release(offset(state), sizeClass(state));
+                state = state(offset, sizeClass, 0, size);
+            }
+            states[id] = state(offset(state), sizeClass(state), ringStart(state), size + 1);
+            page(state)[index(state, size)] = lot;
+        }
+    }
+}
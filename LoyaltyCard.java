@@ -4,14 +4,19 @@ import common.InsufficientPointsException;
 import interfaces.ILoyaltyCard;
 import interfaces.ILoyaltyCardOwner;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * This class represents a Loyalty Card, recording information relating to an owners use of the card.
  *
+ * The card is safe to share between threads. The number of uses and the number of points are packed into a single
+ * atomic value (uses in the high 32 bits, points in the low 32 bits), so both are always updated together and
+ * usePoints() can check and deduct the points in one compare-and-set without taking a lock.
+ *
  */
 public class LoyaltyCard implements ILoyaltyCard {
 
-    private int numberOfUses;
-    private int numberOfPoints;
+    private final AtomicLong state = new AtomicLong();
     private ILoyaltyCardOwner owner;
 
     /**
@@ -27,6 +32,18 @@ public class LoyaltyCard implements ILoyaltyCard {
         this.owner = owner;
     }
 
+    /**
+     * Constructor for recreating a loyaltyCard which has already been used, e.g. from a snapshot.
+     * @param owner of the card
+     * @param uses the number of times the card has been used
+     * @param points the number of points on the card
+     */
+    LoyaltyCard(ILoyaltyCardOwner owner, int uses, int points) throws NullPointerException {
+
+        this(owner);
+        state.set(pack(uses, points));
+    }
+
     /**
      * Returns the owner of this loyalty card.
      * @return the owner of this loyalty card
@@ -42,7 +59,7 @@ public class LoyaltyCard implements ILoyaltyCard {
      */
     @Override
     public int getNumberOfUses() {
-        return numberOfUses;
+        return uses(state.get());
     }
 
     /**
@@ -51,7 +68,7 @@ public class LoyaltyCard implements ILoyaltyCard {
      */
     @Override
     public int getNumberOfPoints() {
-        return numberOfPoints;
+        return points(state.get());
     }
 
     /**
@@ -62,8 +79,10 @@ public class LoyaltyCard implements ILoyaltyCard {
     public void addPoints(int points) {
 
         if (points > 0) {
-            numberOfUses++;
-            numberOfPoints += points;
+            long current;
+            do {
+                current = state.get();
+            } while (!state.compareAndSet(current, pack(uses(current) + 1, points(current) + points)));
         }
     }
 
@@ -75,16 +94,73 @@ public class LoyaltyCard implements ILoyaltyCard {
     @Override
     public void usePoints(int points) throws InsufficientPointsException {
 
-        if (points < 0) {
-            return;
+        if (!tryUsePoints(points)) {
+            throw new InsufficientPointsException();
         }
+    }
 
-        if (points > numberOfPoints) {
-            throw new InsufficientPointsException();
-        } else {
-            numberOfUses++;
-            numberOfPoints -= points;
+    /**
+     * Use (deduct) a number of points from the loyalty card, without throwing an exception (or allocating anything) when
+     * there are not enough points on the card.
+     * @param points the number of points to use (deduct) from this card
+     * @return false if there are not enough points on the card, in which case nothing is deducted
+     */
+    public boolean tryUsePoints(int points) {
+
+        if (points < 0) {
+            return true;
         }
+
+        long current;
+        do {
+            current = state.get();
+
+            if (points > points(current)) {
+                return false;
+            }
+        } while (!state.compareAndSet(current, pack(uses(current) + 1, points(current) - points)));
+        return true;
+    }
+
+    /**
+     * Takes points which have expired off the card, without counting it as a use.
+     * @param points the number of points which have expired, of which no more than are on the card are taken off
+     */
+    void expirePoints(int points) {
+
+        long current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current,
+                pack(uses(current), points(current) - Math.min(points, points(current)))));
+    }
+
+    /**
+     * Packs a number of uses and a number of points into a single state value.
+     * @param uses the number of uses
+     * @param points the number of points
+     * @return the packed state
+     */
+    static long pack(int uses, int points) {
+        return ((long) uses << 32) | (points & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Extracts the number of uses from a packed state value.
+     * @param state the packed state
+     * @return the number of uses
+     */
+    static int uses(long state) {
+        return (int) (state >>> 32);
+    }
+
+    /**
+     * Extracts the number of points from a packed state value.
+     * @param state the packed state
+     * @return the number of points
+     */
+    static int points(long state) {
+        return (int) state;
     }
 
 }
@@ -4,20 +4,128 @@ import common.AbstractFactoryClient;
 import common.InsufficientPointsException;
 import common.OwnerAlreadyRegisteredException;
 import common.OwnerNotRegisteredException;
+import common.PurchaseRecord;
+import common.PurchaseResult;
 import interfaces.ILoyaltyCard;
 import interfaces.ILoyaltyCardOperator;
 import interfaces.ILoyaltyCardOwner;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 /**
  * This class represents a simple loyalty card operator.
  *
+ * The operator is safe to share between threads, e.g. between many tills. Owners are looked up through a concurrent
+ * index and every card serialises its own updates, so purchases for different owners never contend with each other.
+ * Unregistering an owner removes their card, and its points, in constant time; an owner who registers again starts
+ * again with a new card.
+ *
+ * By default the cards are kept on the heap. An operator can instead be given a {@link MappedCardLedger}, in which case
+ * every card's points and uses live in the ledger's memory-mapped file and are picked up again when it is reopened.
+ * The record of a removed card is reused for the next card issued.
+ *
+ * Besides its lifetime uses and points, every card's uses and the points it earned are counted over rolling windows
+ * of the last hour, day and 30 days (see {@link UsageWindow}), in a fixed number of buckets for each card, so cards
+ * can be ranked by their recent use without keeping every purchase. The windows are kept on the heap, so they start
+ * empty again when a ledger is reopened.
+ *
+ * How many points a purchase paid for with money earns is decided by the operator's {@link EarningRules}, which give
+ * pence/100 points unless others are set.
+ *
+ * Points expire 12 months after the day they were earned on, oldest first, and using points uses the oldest first.
+ * Each card takes off its own expired points whenever it is read or updated, and the total and rankings catch up a
+ * small batch of cards at a time as calls come in after the day changes (see {@link ExpirySchedule}), so no call waits
+ * for a whole day's points to expire. When the points were earned is kept with them, in the ledger's file or in
+ * a snapshot image, so points expire on the same day after a ledger is reopened or a card is restored.
+ *
  */
-public class LoyaltyCardOperator extends AbstractFactoryClient implements ILoyaltyCardOperator {
+public class LoyaltyCardOperator extends AbstractFactoryClient implements ILoyaltyCardOperator, Closeable {
+
+    /**
+     * The number of rows registerOwners() reads before registering them together.
+     */
+    private static final int IMPORT_CHUNK = 1 << 16;
+
+    private final CardIndex index;
+    private final MappedCardLedger ledger;
+
+    /**
+     * Constructor for an operator which keeps its cards on the heap.
+     */
+    public LoyaltyCardOperator() {
+        this(Clock.systemUTC());
+    }
+
+    /**
+     * Constructor for an operator which keeps its cards on the heap, and reads the times of the cards' uses from a
+     * given clock, e.g. to replay purchases made at other times.
+     * @param clock the clock
+     */
+    public LoyaltyCardOperator(Clock clock) throws NullPointerException {
+
+        if (clock == null) {
+            throw new NullPointerException();
+        }
+        this.index = new CardIndex(clock);
+        this.ledger = null;
+    }
 
-    private ArrayList<String> registeredOwners = new ArrayList<>();
-    private ArrayList<ILoyaltyCard> cards = new ArrayList<>();
+    /**
+     * Constructor for an operator which keeps its cards on the heap, and is sized to hold a number of owners without
+     * growing, e.g. before importing them with registerOwners().
+     * @param expectedOwners the number of owners expected
+     */
+    public LoyaltyCardOperator(int expectedOwners) {
+        this.index = new CardIndex(expectedOwners, Clock.systemUTC());
+        this.ledger = null;
+    }
+
+    /**
+     * Constructor for an operator which keeps its cards in a memory-mapped ledger. Every card already in the ledger is
+     * indexed straight away, with the points and uses it had, in the order the cards were registered in.
+     * @param ledger the ledger to keep the cards in
+     */
+    public LoyaltyCardOperator(MappedCardLedger ledger) throws NullPointerException {
+        this(ledger, Clock.systemUTC());
+    }
+
+    /**
+     * Constructor for an operator which keeps its cards in a memory-mapped ledger, and reads the times of the cards'
+     * uses from a given clock. Every card already in the ledger is indexed straight away, as by the constructor
+     * without a clock.
+     * @param ledger the ledger to keep the cards in
+     * @param clock the clock
+     */
+    public LoyaltyCardOperator(MappedCardLedger ledger, Clock clock) throws NullPointerException {
+
+        if (ledger == null || clock == null) {
+            throw new NullPointerException();
+        }
+        List<MappedCardLedger.Card> cards = ledger.getCards();
+
+        this.index = new CardIndex(cards.size(), clock);
+        this.ledger = ledger;
+
+        for (MappedCardLedger.Card card : cards) {
+            index.restore(card, card.getRegistration(), null, 0);
+        }
+    }
 
     /**
      * Registers the specified card owner.
@@ -27,11 +135,51 @@ public class LoyaltyCardOperator extends AbstractFactoryClient implements ILoyal
     @Override
     public void registerOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerAlreadyRegisteredException {
 
-        if (registeredOwners.contains(loyaltyCardOwner.getEmail())) {
+        if (index.isRegistered(loyaltyCardOwner.getEmail())) {
             throw new OwnerAlreadyRegisteredException();
-        } else {
-            registeredOwners.add(loyaltyCardOwner.getEmail());
-            cards.add(Factory.getInstance().makeLoyaltyCard(loyaltyCardOwner));
+        }
+
+        if (ledger == null) {
+            if (!index.register(Factory.getInstance().makeLoyaltyCard(loyaltyCardOwner))) {
+                throw new OwnerAlreadyRegisteredException();
+            }
+            return;
+        }
+
+        if (!registerInLedger(loyaltyCardOwner)) {
+            throw new OwnerAlreadyRegisteredException();
+        }
+    }
+
+    /**
+     * Registers many owners at once, e.g. when a partner's members join together, without throwing an exception for
+     * the owners who are already registered. The owners are read in chunks, and the owners in each chunk are given
+     * their cards and registered from several threads at once, in the same order as if they had been registered one
+     * at a time.
+     * @param owners the owners to register, in order
+     * @return a report of the owners registered, and of the positions of those already registered, or null, or whose
+     * card could not be issued in the ledger
+     */
+    public ImportReport registerOwners(Iterator<? extends ILoyaltyCardOwner> owners) {
+        return importRows(owners, owner -> owner);
+    }
+
+    /**
+     * Registers many owners at once from a UTF-8 file with one owner on each line, as their email and name separated
+     * by the first comma, without throwing an exception for the owners who are already registered. Lines are parsed
+     * and registered from several threads at once, in the same order as if the owners had been registered one at a
+     * time.
+     * @param csv the file to read the owners from
+     * @return a report of the owners registered, and of the lines whose owner was already registered or which have
+     * no email or no comma
+     * @throws IOException if the file cannot be read
+     */
+    public ImportReport registerOwners(Path csv) throws IOException {
+
+        try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+            return importRows(reader.lines().iterator(), LoyaltyCardOperator::parseOwner);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
     }
 
@@ -43,15 +191,27 @@ public class LoyaltyCardOperator extends AbstractFactoryClient implements ILoyal
     @Override
     public void unregisterOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerNotRegisteredException {
 
-        if (!registeredOwners.contains(loyaltyCardOwner.getEmail())) {
-            throw new OwnerNotRegisteredException();
-        } else {
-            registeredOwners.remove(loyaltyCardOwner.getEmail());
+        if (ledger == null) {
+            if (index.unregister(loyaltyCardOwner.getEmail()) == null) {
+                throw new OwnerNotRegisteredException();
+            }
+            return;
+        }
+
+        synchronized (ledger) {
+
+            CardIndex.Entry entry = index.unregister(loyaltyCardOwner.getEmail());
+
+            if (entry == null) {
+                throw new OwnerNotRegisteredException();
+            }
+            ledger.free((MappedCardLedger.Card) entry.getCard());
         }
     }
 
     /**
-     * Processes a monetary purchase for the specified owner and price and adds pence/100 points to the owners loyalty card.
+     * Processes a monetary purchase for the specified owner and price and adds the points it earns by the earning
+     * rules, pence/100 by default, to the owners loyalty card.
      * @param ownerEmail the loyalty card owner's email
      * @param pence the price of the purchase in pence
      * @throws OwnerNotRegisteredException if the given owner's email is not registered
@@ -59,13 +219,73 @@ public class LoyaltyCardOperator extends AbstractFactoryClient implements ILoyal
     @Override
     public void processMoneyPurchase(String ownerEmail, int pence) throws OwnerNotRegisteredException {
 
-        for (ILoyaltyCard card: cards) {
-            if (card.getOwner().getEmail().equals(ownerEmail)) {
-                card.addPoints(pence/100);
-                return;
-            }
+        if (tryProcessMoneyPurchase(ownerEmail, pence, null) != PurchaseResult.OK) {
+            throw new OwnerNotRegisteredException();
+        }
+    }
+
+    /**
+     * Processes a monetary purchase for the specified owner and price and adds the points it earns by the earning
+     * rules, pence/100 by default, to the owners loyalty card, reporting a failure as a result instead of throwing an
+     * exception.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the purchase in pence
+     * @return OWNER_NOT_REGISTERED if the given owner's email is not registered, otherwise OK
+     */
+    public PurchaseResult tryProcessMoneyPurchase(String ownerEmail, int pence) {
+        return tryProcessMoneyPurchase(ownerEmail, pence, null);
+    }
+
+    /**
+     * Processes a monetary purchase in a category for the specified owner and price and adds the points it earns by the
+     * earning rules to the owners loyalty card, reporting a failure as a result instead of throwing an exception.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the purchase in pence
+     * @param category the purchase's category, or null if it has none
+     * @return OWNER_NOT_REGISTERED if the given owner's email is not registered, otherwise OK
+     */
+    public PurchaseResult tryProcessMoneyPurchase(String ownerEmail, int pence, String category) {
+        return tryProcessMoneyPurchase(ownerEmail, pence, category, null);
+    }
+
+    /**
+     * Processes a monetary purchase as tryProcessMoneyPurchase() does, logging the points it earns before they are
+     * added to the card, so that they are not added if they cannot be logged.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the purchase in pence
+     * @param category the purchase's category, or null if it has none
+     * @param log what to log the points earned to, or null
+     * @return OWNER_NOT_REGISTERED if the given owner's email is not registered, otherwise OK
+     */
+    PurchaseResult tryProcessMoneyPurchase(String ownerEmail, int pence, String category, CardIndex.Log log) {
+
+        CardIndex.Entry entry = index.getEntry(ownerEmail);
+
+        if (entry == null || !entry.earnPoints(pence, category, log)) {
+            return PurchaseResult.OWNER_NOT_REGISTERED;
+        }
+        return PurchaseResult.OK;
+    }
+
+    /**
+     * Returns the rules by which purchases paid for with money earn points.
+     * @return the rules, which are {@link EarningRules#STANDARD} unless others have been set
+     */
+    public EarningRules getEarningRules() {
+        return index.getEarningRules();
+    }
+
+    /**
+     * Replaces the rules by which purchases paid for with money earn points, e.g. with rules just read again from their
+     * file. Purchases being made at the same time earn points by either the old rules or the new ones.
+     * @param rules the rules
+     */
+    public void setEarningRules(EarningRules rules) throws NullPointerException {
+
+        if (rules == null) {
+            throw new NullPointerException();
         }
-        throw new OwnerNotRegisteredException();
+        index.setEarningRules(rules);
     }
 
     /**
@@ -79,20 +299,94 @@ public class LoyaltyCardOperator extends AbstractFactoryClient implements ILoyal
     public void processPointsPurchase(String ownerEmail, int pence)
             throws InsufficientPointsException, OwnerNotRegisteredException {
 
-        if (pence > 0) {
-            for (ILoyaltyCard card : cards) {
-                if (card.getOwner().getEmail().equals(ownerEmail)) {
+        PurchaseResult result = tryProcessPointsPurchase(ownerEmail, pence);
 
-                    if (card.getNumberOfPoints() < pence) {
-                        throw new InsufficientPointsException();
-                    } else {
-                        card.usePoints(pence);
-                        return;
-                    }
+        if (result == PurchaseResult.OWNER_NOT_REGISTERED) {
+            throw new OwnerNotRegisteredException();
+        } else if (result == PurchaseResult.INSUFFICIENT_POINTS) {
+            throw new InsufficientPointsException();
+        }
+    }
+
+    /**
+     * Processes a purchase of an item for the specified price in pence using points on the owner's loyalty card,
+     * reporting a failure as a result instead of throwing an exception.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the item in pence
+     * @return OWNER_NOT_REGISTERED if the given owner's email has not been registered, INSUFFICIENT_POINTS if the card
+     * does not contain at least the same number of points as the price, otherwise OK
+     */
+    public PurchaseResult tryProcessPointsPurchase(String ownerEmail, int pence) {
+        return tryProcessPointsPurchase(ownerEmail, pence, null);
+    }
+
+    /**
+     * Processes a purchase using points as tryProcessPointsPurchase() does, logging the points used before they are
+     * taken off the card, so that they are not taken off if they cannot be logged.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the item in pence
+     * @param log what to log the points used to, or null
+     * @return OWNER_NOT_REGISTERED if the given owner's email has not been registered, INSUFFICIENT_POINTS if the card
+     * does not contain at least the same number of points as the price, otherwise OK
+     */
+    PurchaseResult tryProcessPointsPurchase(String ownerEmail, int pence, CardIndex.Log log) {
+
+        if (pence <= 0) {
+            return PurchaseResult.OK;
+        }
+
+        CardIndex.Entry entry = index.getEntry(ownerEmail);
+
+        if (entry == null) {
+            return PurchaseResult.OWNER_NOT_REGISTERED;
+        }
+        return entry.tryUsePoints(pence, log);
+    }
+
+    /**
+     * Processes a batch of money and points purchases without throwing an exception for the ones that fail. The
+     * purchases are grouped by owner, so each owner's card is only looked up once, and each owner's purchases are
+     * applied in the order in which they appear in the batch.
+     *
+     * @param purchases the purchases to process
+     * @return the result of each purchase, at the same position as the purchase in the batch
+     */
+    @Override
+    public PurchaseResult[] processPurchases(List<PurchaseRecord> purchases) {
+
+        int size = purchases.size();
+        PurchaseResult[] results = new PurchaseResult[size];
+
+        // Chain together the positions of each owner's purchases, keeping the first and last position of every chain.
+        int[] next = new int[size];
+        HashMap<String, int[]> chains = new HashMap<>();
+
+        for (int i = 0; i < size; i++) {
+
+            next[i] = -1;
+            int[] chain = chains.get(purchases.get(i).getOwnerEmail());
+
+            if (chain == null) {
+                chains.put(purchases.get(i).getOwnerEmail(), new int[] {i, i});
+            } else {
+                next[chain[1]] = i;
+                chain[1] = i;
+            }
+        }
+
+        for (Map.Entry<String, int[]> chain : chains.entrySet()) {
+
+            CardIndex.Entry entry = index.getEntry(chain.getKey());
+
+            if (entry != null) {
+                entry.processPurchases(purchases, chain.getValue()[0], next, results);
+            } else {
+                for (int i = chain.getValue()[0]; i >= 0; i = next[i]) {
+                    results[i] = PurchaseResult.OWNER_NOT_REGISTERED;
                 }
             }
-            throw new OwnerNotRegisteredException();
         }
+        return results;
     }
 
     /**
@@ -103,7 +397,7 @@ public class LoyaltyCardOperator extends AbstractFactoryClient implements ILoyal
     @Override
     public int getNumberOfCustomers() {
 
-        return registeredOwners.size();
+        return index.size();
     }
 
     /**
@@ -114,12 +408,17 @@ public class LoyaltyCardOperator extends AbstractFactoryClient implements ILoyal
     @Override
     public int getTotalNumberOfPoints() {
 
-        int points = 0;
+        return (int) index.getTotalNumberOfPoints();
+    }
 
-        for (ILoyaltyCard card: cards) {
-            points += card.getNumberOfPoints();
-        }
-        return points;
+    /**
+     * Gets the total count of all points on all loyalty cards in the system, without the risk of overflowing an int.
+     *
+     * @return the total count of all points on all loyalty cards in the system
+     */
+    public long getTotalNumberOfPointsAsLong() {
+
+        return index.getTotalNumberOfPoints();
     }
 
     /**
@@ -132,13 +431,7 @@ public class LoyaltyCardOperator extends AbstractFactoryClient implements ILoyal
     @Override
     public int getNumberOfPoints(String ownerEmail) throws OwnerNotRegisteredException {
 
-        for (ILoyaltyCard card: cards) {
-
-            if (card.getOwner().getEmail().equals(ownerEmail)) {
-                return card.getNumberOfPoints();
-            }
-        }
-        throw new OwnerNotRegisteredException();
+        return getEntry(ownerEmail).getNumberOfPoints();
     }
 
     /**
@@ -151,13 +444,7 @@ public class LoyaltyCardOperator extends AbstractFactoryClient implements ILoyal
     @Override
     public int getNumberOfUses(String ownerEmail) throws OwnerNotRegisteredException {
 
-        for (ILoyaltyCard card: cards) {
-
-            if (card.getOwner().getEmail().equals(ownerEmail)) {
-                return card.getNumberOfUses();
-            }
-        }
-        throw new OwnerNotRegisteredException();
+        return getEntry(ownerEmail).getNumberOfUses();
     }
 
     /**
@@ -170,21 +457,300 @@ public class LoyaltyCardOperator extends AbstractFactoryClient implements ILoyal
     @Override
     public ILoyaltyCardOwner getMostUsed() throws OwnerNotRegisteredException {
 
-        if (registeredOwners.size() < 1) {
+        if (index.size() < 1) {
             throw new OwnerNotRegisteredException();
         }
+        return index.getMostUsed();
+    }
+
+    /**
+     * Gets the owners who have used their loyalty cards the most, most used first. Ties are broken in the same way as
+     * in getMostUsed(), and cards which have never been used are not included.
+     *
+     * @param count the maximum number of owners to return
+     * @return up to count owners, most used first
+     */
+    public List<ILoyaltyCardOwner> getMostUsed(int count) {
+
+        return index.getMostUsed(count);
+    }
+
+    /**
+     * Gets the owners who have the most points on their loyalty cards, highest balance first. Ties are broken in the
+     * same way as in getMostUsed(), and cards without any points are not included.
+     *
+     * @param count the maximum number of owners to return
+     * @return up to count owners, highest balance first
+     */
+    public List<ILoyaltyCardOwner> getMostPoints(int count) {
+
+        return index.getMostPoints(count);
+    }
+
+    /**
+     * Gets the number of times that the owner's loyalty card has been used in a window of time.
+     *
+     * @param ownerEmail the loyalty card owner's email
+     * @param window the window
+     * @return the number of times that the owner's loyalty card has been used in the window
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    public int getNumberOfUses(String ownerEmail, UsageWindow window) throws OwnerNotRegisteredException {
+
+        return getEntry(ownerEmail).getNumberOfUses(window);
+    }
+
+    /**
+     * Gets the number of points that the owner's loyalty card has earned in a window of time. Points used are not
+     * taken off.
+     *
+     * @param ownerEmail the loyalty card owner's email
+     * @param window the window
+     * @return the number of points earned by the owner's loyalty card in the window
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    public int getPointsEarned(String ownerEmail, UsageWindow window) throws OwnerNotRegisteredException {
+
+        return getEntry(ownerEmail).getPointsEarned(window);
+    }
+
+    /**
+     * Gets the owners who have used their loyalty cards the most in a window of time, e.g. in the last 24 hours, most
+     * used first. Ties are broken in the same way as in getMostUsed(), and cards which have not been used in the
+     * window are not included. Only the cards used in the window are looked at.
+     *
+     * @param window the window
+     * @param count the maximum number of owners to return
+     * @return up to count owners, most used first
+     */
+    public List<ILoyaltyCardOwner> getMostUsed(UsageWindow window, int count) {
+
+        return index.getMostUsed(window, count);
+    }
+
+    /**
+     * Gets the owners whose loyalty cards have earned the most points in a window of time, highest first. Ties are
+     * broken in the same way as in getMostUsed(), and cards which have not earned any points in the window are not
+     * included. Only the cards used in the window are looked at.
+     *
+     * @param window the window
+     * @param count the maximum number of owners to return
+     * @return up to count owners, highest first
+     */
+    public List<ILoyaltyCardOwner> getMostPointsEarned(UsageWindow window, int count) {
+
+        return index.getMostPointsEarned(window, count);
+    }
+
+    /**
+     * Adds points which have already been worked out, e.g. ones read back from a journal, to an owner's card as earned
+     * at a time, without working them out again by the earning rules.
+     * @param ownerEmail the loyalty card owner's email
+     * @param now the time the points were earned
+     * @param points the number of points earned
+     * @return OWNER_NOT_REGISTERED if the given owner's email is not registered, otherwise OK
+     */
+    PurchaseResult addEarnedPoints(String ownerEmail, long now, int points) {
+
+        CardIndex.Entry entry = index.getEntry(ownerEmail);
+
+        if (entry == null || !entry.addEarnedPoints(now, points)) {
+            return PurchaseResult.OWNER_NOT_REGISTERED;
+        }
+        return PurchaseResult.OK;
+    }
+
+    /**
+     * Uses points from an owner's card at a time, e.g. one read back from a journal.
+     * @param ownerEmail the loyalty card owner's email
+     * @param now the time the points are used at
+     * @param points the number of points to use
+     * @return OWNER_NOT_REGISTERED if the given owner's email has not been registered, INSUFFICIENT_POINTS if the card
+     * does not contain at least that many points, otherwise OK
+     */
+    PurchaseResult usePoints(String ownerEmail, long now, int points) {
+
+        CardIndex.Entry entry = index.getEntry(ownerEmail);
+
+        if (entry == null) {
+            return PurchaseResult.OWNER_NOT_REGISTERED;
+        }
+        return entry.tryUsePoints(now, points, null);
+    }
+
+    /**
+     * Checks whether the given email is currently registered.
+     * @param ownerEmail the owner's email
+     * @return true if the email is registered
+     */
+    boolean isRegistered(String ownerEmail) {
+        return index.isRegistered(ownerEmail);
+    }
+
+    /**
+     * Recreates a card which has already been used, e.g. from a snapshot image, and indexes it at the position at which
+     * it was registered.
+     * @param owner the owner of the card
+     * @param registration the position at which the card was registered
+     * @param points the number of points on the card
+     * @param uses the number of times the card has been used
+     * @param lots the packed lots the card's points are kept in, oldest first
+     * @param lotCount the number of lots
+     */
+    void restore(ILoyaltyCardOwner owner, long registration, int points, int uses, long[] lots, int lotCount) {
+
+        index.restore(new LoyaltyCard(owner, uses, points), registration, lots, lotCount);
+    }
+
+    /**
+     * Writes every registered owner's email and name, and the points and uses on their card, to a channel, as they all
+     * were at the moment the export started, while purchases go on being made. The cards are read through a
+     * {@link #snapshot()} and written through one buffer, without copying them first.
+     * @param channel the channel to write to, which is left open
+     * @param format the format to write in
+     * @return the number of cards written
+     * @throws IOException if the channel cannot be written to
+     */
+    public long exportCards(WritableByteChannel channel, ExportFormat format) throws IOException {
+
+        try (CardSnapshot snapshot = snapshot()) {
+            return snapshot.exportCards(channel, format);
+        }
+    }
+
+    /**
+     * Takes a snapshot of every card as they all are now, which can be read for as long as needed while purchases go
+     * on being made without waiting for it, and should then be closed.
+     * @return the snapshot
+     */
+    public CardSnapshot snapshot() {
+        return new CardSnapshot(index, index.openSnapshot());
+    }
+
+    /**
+     * Registers the owners read from some rows in chunks, for registerOwners().
+     * @param rows the rows to read
+     * @param reader reads the owner from a row, returning null if the row is invalid
+     * @param <T> the type of the rows
+     * @return a report of the owners registered and the rows which were not
+     */
+    private <T> ImportReport importRows(Iterator<T> rows, Function<T, ILoyaltyCardOwner> reader) {
+
+        List<T> chunk = new ArrayList<>(IMPORT_CHUNK);
+        ILoyaltyCardOwner[] owners = new ILoyaltyCardOwner[IMPORT_CHUNK];
+        ILoyaltyCard[] cards = new ILoyaltyCard[IMPORT_CHUNK];
+        LongStream.Builder duplicates = LongStream.builder();
+        LongStream.Builder invalid = LongStream.builder();
+        long position = 0;
 
-        int max = 0;
-        ILoyaltyCardOwner mostUsed = null;
+        while (rows.hasNext()) {
 
-        for (ILoyaltyCard card: cards) {
+            chunk.clear();
 
-            if (card.getNumberOfUses() > max) {
-                max = card.getNumberOfUses();
-                mostUsed = card.getOwner();
+            while (chunk.size() < IMPORT_CHUNK && rows.hasNext()) {
+                chunk.add(rows.next());
             }
+
+            int count = chunk.size();
+
+            IntStream.range(0, count).parallel().forEach(i -> {
+                owners[i] = reader.apply(chunk.get(i));
+                cards[i] = owners[i] != null && ledger == null ? new LoyaltyCard(owners[i]) : null;
+            });
+
+            boolean[] duplicate;
+
+            if (ledger == null) {
+                duplicate = index.registerAll(cards, count);
+            } else {
+                duplicate = new boolean[count];
+
+                for (int i = 0; i < count; i++) {
+                    try {
+                        duplicate[i] = owners[i] != null && !registerInLedger(owners[i]);
+                    } catch (RuntimeException e) {
+                        // The owner's card could not be issued, so their row is reported rather than ending the import.
+                        owners[i] = null;
+                    }
+                }
+            }
+
+            for (int i = 0; i < count; i++) {
+                if (owners[i] == null) {
+                    invalid.add(position + i);
+                } else if (duplicate[i]) {
+                    duplicates.add(position + i);
+                }
+            }
+            position += count;
+        }
+        return new ImportReport(position, duplicates.build().toArray(), invalid.build().toArray());
+    }
+
+    /**
+     * Reads an owner from a line of an import file.
+     * @param line the line, which is the owner's email and name separated by a comma
+     * @return the owner, or null if the line has no email or no comma
+     */
+    private static ILoyaltyCardOwner parseOwner(String line) {
+
+        int comma = line.indexOf(',');
+
+        if (comma < 1) {
+            return null;
+        }
+        return Factory.getInstance().makeLoyaltyCardOwner(line.substring(0, comma), line.substring(comma + 1));
+    }
+
+    /**
+     * Registers an owner of an operator which keeps its cards in a ledger, issuing their card in the ledger.
+     * @param loyaltyCardOwner the owner to register
+     * @return false if the owner's email is already registered
+     */
+    private boolean registerInLedger(ILoyaltyCardOwner loyaltyCardOwner) {
+
+        synchronized (ledger) {
+
+            if (index.isRegistered(loyaltyCardOwner.getEmail())) {
+                return false;
+            }
+
+            MappedCardLedger.Card card = ledger.issue(loyaltyCardOwner);
+
+            if (!index.register(card)) {
+                ledger.free(card);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Flushes the ledger to the storage device and closes it, if the operator keeps its cards in one.
+     * @throws IOException if the ledger cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+
+        if (ledger != null) {
+            ledger.close();
+        }
+    }
+
+    /**
+     * Looks up the index entry for the loyalty card issued for the specified owner.
+     * @param ownerEmail the loyalty card owner's email
+     * @return the entry for the owner's loyalty card
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    private CardIndex.Entry getEntry(String ownerEmail) throws OwnerNotRegisteredException {
+
+        CardIndex.Entry entry = index.getEntry(ownerEmail);
+
+        if (entry == null) {
+            throw new OwnerNotRegisteredException();
         }
-        return mostUsed;
+        return entry;
     }
 
 }
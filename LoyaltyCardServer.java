@@ -0,0 +1,342 @@
+package impl;
+
+import common.InsufficientPointsException;
+import common.OwnerAlreadyRegisteredException;
+import common.OwnerNotRegisteredException;
+import interfaces.ILoyaltyCardOperator;
+import interfaces.ILoyaltyCardOwner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class represents a server which lets many clients share one loyalty card operator over sockets, using a
+ * {@link RemoteLoyaltyCardOperator} each.
+ *
+ * Every connection is served by a thread of its own: a virtual thread where the JVM has them, and a platform thread
+ * otherwise. Requests on a connection are handled in the order they arrive, and their responses are sent back in the
+ * same order, so a client can send requests without waiting for the responses to the ones before. Responses are only
+ * flushed once no more requests are waiting to be read, so a burst of requests gets its responses in one write.
+ *
+ * A request is a byte naming the call, followed by its arguments. A response is a byte giving its status, followed by
+ * the call's result if it succeeded, or a message if it failed with an unexpected exception. Strings are written as
+ * their length in bytes followed by their UTF-8 bytes, so emails and names of any length can be sent, and numbers
+ * big-endian, as by {@link DataOutputStream}.
+ *
+ * A connection which fails, or a failure to accept one, does not stop the other connections; the last such failure is
+ * kept for {@link #getLastFailure()}.
+ *
+ */
+public final class LoyaltyCardServer implements Closeable {
+
+    /**
+     * The calls which can be requested.
+     */
+    static final int REGISTER = 1;
+    static final int UNREGISTER = 2;
+    static final int MONEY_PURCHASE = 3;
+    static final int POINTS_PURCHASE = 4;
+    static final int NUMBER_OF_CUSTOMERS = 5;
+    static final int TOTAL_NUMBER_OF_POINTS = 6;
+    static final int NUMBER_OF_POINTS = 7;
+    static final int NUMBER_OF_USES = 8;
+    static final int MOST_USED = 9;
+
+    /**
+     * The statuses of a response.
+     */
+    static final int OK = 0;
+    static final int OWNER_ALREADY_REGISTERED = 1;
+    static final int OWNER_NOT_REGISTERED = 2;
+    static final int INSUFFICIENT_POINTS = 3;
+    static final int FAILED = 4;
+
+    private static final int BUFFER_BYTES = 1 << 13;
+
+    // The longest string read, well beyond any email or name, so that a corrupt length cannot exhaust the heap.
+    private static final int MAX_STRING_BYTES = 1 << 24;
+
+    private final ILoyaltyCardOperator operator;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = makeConnectionExecutor();
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+    private volatile IOException lastFailure;
+
+    /**
+     * Constructor for a server listening on the loopback address.
+     * @param operator the operator to share
+     * @param port the port to listen on, or 0 for any free port
+     * @throws IOException if the port cannot be listened on
+     */
+    public LoyaltyCardServer(ILoyaltyCardOperator operator, int port) throws IOException {
+
+        this.operator = operator;
+        this.serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        this.acceptor = new Thread(this::acceptConnections, "loyalty-server-acceptor");
+        acceptor.start();
+    }
+
+    /**
+     * Runs a server for the operator made by the {@link Factory} until the JVM is stopped.
+     * @param args the port to listen on, optionally, which is 7070 by default
+     * @throws IOException if the port cannot be listened on
+     * @throws InterruptedException if interrupted while serving
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        // The operator being served must not itself be a client of a server.
+        System.clearProperty(Factory.SERVER_PROPERTY);
+
+        LoyaltyCardServer server = new LoyaltyCardServer(Factory.getInstance().makeLoyaltyCardOperator(),
+                args.length > 0 ? Integer.parseInt(args[0]) : 7070);
+
+        System.out.println("Listening on port " + server.getPort());
+        server.acceptor.join();
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     * @return the port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the last failure of a connection, or of accepting one, so that failures on the server's own threads can
+     * be noticed and reported.
+     * @return the exception the last connection failed with, or null if none has failed
+     */
+    public IOException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Stops listening and closes every connection. The operator is left open.
+     * @throws IOException if the server socket cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+
+        serverSocket.close();
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        connections.shutdown();
+
+        try {
+            acceptor.join();
+            connections.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Makes the executor connections are served on, with a virtual thread per connection if the JVM has them, and a
+     * platform thread per connection otherwise.
+     * @return the executor
+     */
+    private static ExecutorService makeConnectionExecutor() {
+
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "loyalty-server-connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * The body of the acceptor thread, which accepts connections until the server socket is closed.
+     */
+    private void acceptConnections() {
+
+        while (true) {
+
+            Socket socket;
+
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    lastFailure = e;
+                }
+                return;
+            }
+
+            sockets.add(socket);
+            connections.execute(() -> serve(socket));
+        }
+    }
+
+    /**
+     * Serves the requests on a connection until the client closes it.
+     * @param socket the connection
+     */
+    private void serve(Socket socket) {
+
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES));
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES))) {
+
+            int call;
+
+            while ((call = in.read()) >= 0) {
+
+                handle(call, in, out);
+
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+
+        } catch (SocketException e) {
+            // The connection was reset or closed along with the server, so there is nobody left to answer.
+        } catch (IOException e) {
+            lastFailure = e;
+        } finally {
+            sockets.remove(socket);
+        }
+    }
+
+    /**
+     * Handles one request, reading its arguments and writing its response.
+     * @param call the call requested
+     * @param in the stream to read the arguments from
+     * @param out the stream to write the response to
+     * @throws IOException if the connection fails, or the request is not one the server knows
+     */
+    private void handle(int call, DataInputStream in, DataOutputStream out) throws IOException {
+
+        try {
+            switch (call) {
+                case REGISTER:
+                    operator.registerOwner(readOwner(in));
+                    out.writeByte(OK);
+                    break;
+                case UNREGISTER:
+                    operator.unregisterOwner(readOwner(in));
+                    out.writeByte(OK);
+                    break;
+                case MONEY_PURCHASE:
+                    operator.processMoneyPurchase(readString(in), in.readInt());
+                    out.writeByte(OK);
+                    break;
+                case POINTS_PURCHASE:
+                    operator.processPointsPurchase(readString(in), in.readInt());
+                    out.writeByte(OK);
+                    break;
+                case NUMBER_OF_CUSTOMERS:
+                    writeInt(out, operator.getNumberOfCustomers());
+                    break;
+                case TOTAL_NUMBER_OF_POINTS:
+                    writeInt(out, operator.getTotalNumberOfPoints());
+                    break;
+                case NUMBER_OF_POINTS:
+                    writeInt(out, operator.getNumberOfPoints(readString(in)));
+                    break;
+                case NUMBER_OF_USES:
+                    writeInt(out, operator.getNumberOfUses(readString(in)));
+                    break;
+                case MOST_USED:
+                    ILoyaltyCardOwner owner = operator.getMostUsed();
+                    out.writeByte(OK);
+                    out.writeBoolean(owner != null);
+
+                    if (owner != null) {
+                        writeString(out, owner.getEmail());
+                        writeString(out, owner.getName());
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown request " + call);
+            }
+        } catch (OwnerAlreadyRegisteredException e) {
+            out.writeByte(OWNER_ALREADY_REGISTERED);
+        } catch (OwnerNotRegisteredException e) {
+            out.writeByte(OWNER_NOT_REGISTERED);
+        } catch (InsufficientPointsException e) {
+            out.writeByte(INSUFFICIENT_POINTS);
+        } catch (RuntimeException e) {
+            out.writeByte(FAILED);
+            writeString(out, String.valueOf(e));
+        }
+    }
+
+    /**
+     * Reads an owner's email and name.
+     * @param in the stream to read from
+     * @return the owner
+     * @throws IOException if the connection fails
+     */
+    private static ILoyaltyCardOwner readOwner(DataInputStream in) throws IOException {
+        return Factory.getInstance().makeLoyaltyCardOwner(readString(in), readString(in));
+    }
+
+    /**
+     * Writes a string as its length in bytes and its UTF-8 bytes.
+     * @param out the stream to write to
+     * @param string the string
+     * @throws IOException if the stream cannot be written
+     */
+    static void writeString(DataOutputStream out, String string) throws IOException {
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+     * @param in the stream to read from
+     * @return the string
+     * @throws IOException if the connection fails, or the length read is not that of a string
+     */
+    static String readString(DataInputStream in) throws IOException {
+
+        int length = in.readInt();
+
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Bad string length " + length);
+        }
+
+        byte[] bytes = new byte[length];
+
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a successful response with a number as its result.
+     * @param out the stream to write to
+     * @param value the result
+     * @throws IOException if the connection fails
+     */
+    private static void writeInt(DataOutputStream out, int value) throws IOException {
+        out.writeByte(OK);
+        out.writeInt(value);
+    }
+}
@@ -0,0 +1,809 @@
+package impl;
+
+import common.InsufficientPointsException;
+import interfaces.ILoyaltyCard;
+import interfaces.ILoyaltyCardOwner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class represents a ledger of loyalty cards kept in a memory-mapped file, so that the cards of a
+ * {@link LoyaltyCardOperator} survive a restart and can be picked up again just by mapping the file.
+ *
+ * The file starts with a header page, followed by one fixed-width record per card. Each record holds the card's number
+ * of uses and number of points packed into one long (in the same way as {@link LoyaltyCard}), whether it is in use,
+ * the number it was issued as, one more than the card issued before it, and its owner's email and name. Cards read
+ * and update their counters in the mapping directly with compare-and-set, so every addPoints() and usePoints() goes
+ * straight to the file.
+ *
+ * An email and name which together take more than the {@value #FIELD_BYTES} bytes a record has room for go on in a
+ * chain of continuation records, each linked from the one before, so there is no limit on either. Continuation records
+ * belong to their card's record, and are never read as cards themselves.
+ *
+ * The card's points are also kept by the day they expire on, as {@link PointLots}, in a chain of lot records of their
+ * own: a queue of {@value #LOTS_PER_RECORD} lots a record, which the card's record holds the two ends of. A lot record
+ * is taken from the free list when the newest one is full, and pushed back on it once every lot in it has been used or
+ * has expired, so when the points on a card were earned survives the ledger being reopened.
+ *
+ * Freeing a card marks its record, and then its continuation records, as no longer in use and pushes them on a free
+ * list, from which the next card issued takes its records, so the file only grows with the most cards there have been
+ * at once rather than with every card ever issued. The free list is rebuilt when the ledger is opened from the records
+ * which are neither in use nor chained from a record in use, so continuation and lot records left behind by a card
+ * which was being issued or freed when the file was last closed are freed as well.
+ *
+ * The ledger keeps no object for each card on the heap, only the free list: a card is read from its record whenever it
+ * is asked for, so an operator can keep only the cards it uses often in memory, as {@link TieredLoyaltyCardOperator}
+ * does.
+ *
+ * Only one operator may have a ledger file open at a time.
+ *
+ */
+public final class MappedCardLedger implements Closeable {
+
+    private static final int MAGIC = 0x4C434C34;
+    private static final int HEADER_BYTES = 4096;
+
+    /**
+     * The size of a record.
+     */
+    static final int RECORD_BYTES = 256;
+
+    private static final int STATE = 0;
+
+    // Whether a record is free, holds a card, holds the rest of the email and name of the record before it, or lots.
+    private static final int KIND = 8;
+    private static final byte FREE = 0;
+    private static final byte CARD = 1;
+    private static final byte CONTINUATION = 2;
+    private static final byte LOTS = 3;
+
+    // The slot of the next record in a chain, or -1 at its end. A card's email and name follow each other in FIELDS.
+    private static final int NEXT = 12;
+    private static final int EMAIL_LENGTH = 16;
+    private static final int NAME_LENGTH = 20;
+    private static final int REGISTRATION = 24;
+
+    // The slots of a card's oldest and newest lot records, the position of its oldest lot and its number of lots.
+    private static final int LOTS_HEAD = 32;
+    private static final int LOTS_TAIL = 36;
+    private static final int LOTS_FIRST = 40;
+    private static final int LOTS_SIZE = 44;
+    private static final int FIELDS = 48;
+    private static final int LOT_VALUES = 16;
+
+    /**
+     * The number of bytes of a card's encoded email and name each record in its chain has room for.
+     */
+    static final int FIELD_BYTES = RECORD_BYTES - FIELDS;
+
+    /**
+     * The number of lots each lot record has room for.
+     */
+    static final int LOTS_PER_RECORD = (RECORD_BYTES - LOT_VALUES) / Long.BYTES;
+
+    private static final int RECORDS_PER_SEGMENT = 1 << 14;
+    private static final long SEGMENT_BYTES = (long) RECORDS_PER_SEGMENT * RECORD_BYTES;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private int slots;
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private long registrations;
+
+    /**
+     * Constructor for a ledger over an open file channel.
+     * @param channel the channel of the ledger file
+     * @throws IOException if the file cannot be mapped or is not a ledger
+     */
+    private MappedCardLedger(FileChannel channel) throws IOException {
+
+        this.channel = channel;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+
+        if (header.getInt(0) == 0) {
+            header.putInt(0, MAGIC);
+        } else if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a loyalty card ledger");
+        }
+
+        slots = header.getInt(4);
+
+        BitSet continuing = new BitSet(slots);
+
+        for (int slot = 0; slot < slots; slot++) {
+            if (isInUse(slot)) {
+                registrations = Math.max(registrations, getRegistration(slot) + 1);
+
+                for (int next = next(slot); next >= 0; next = next(next)) {
+                    continuing.set(next);
+                }
+                for (int lot = getInt(slot, LOTS_HEAD); lot >= 0; lot = next(lot)) {
+                    continuing.set(lot);
+                }
+            }
+        }
+
+        for (int slot = 0; slot < slots; slot++) {
+            if (!isInUse(slot) && !continuing.get(slot)) {
+                segment(slot).put(offset(slot) + KIND, FREE);
+                pushFreeSlot(slot);
+            }
+        }
+    }
+
+    /**
+     * Opens a ledger file, creating it if it does not exist yet.
+     * @param file the ledger file
+     * @return the ledger
+     * @throws IOException if the file cannot be opened or mapped, or is not a ledger
+     */
+    public static MappedCardLedger open(Path file) throws IOException {
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new MappedCardLedger(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns every card in the ledger, in the order they were issued in.
+     * @return the cards
+     */
+    synchronized List<Card> getCards() {
+
+        List<Card> issued = new ArrayList<>(slots - freeCount);
+
+        for (int slot = 0; slot < slots; slot++) {
+
+            Card card = load(slot);
+
+            if (card != null) {
+                issued.add(card);
+            }
+        }
+        issued.sort(Comparator.comparingLong(Card::getRegistration));
+        return issued;
+    }
+
+    /**
+     * Returns the number of records in the ledger, in use or not.
+     * @return the number of records
+     */
+    synchronized int getSlotCount() {
+        return slots;
+    }
+
+    /**
+     * Returns whether a record holds a card.
+     * @param slot the slot of the record, which is less than the number of records
+     * @return true if the record is in use
+     */
+    synchronized boolean isInUse(int slot) {
+        return segment(slot).get(offset(slot) + KIND) == CARD;
+    }
+
+    /**
+     * Reads the packed number of uses and number of points of the card in a record, in the same way as
+     * {@link LoyaltyCard}.
+     * @param slot the slot of the record, which is less than the number of records
+     * @return the packed state
+     */
+    synchronized long getState(int slot) {
+        return (long) LONGS.getVolatile(segment(slot), offset(slot) + STATE);
+    }
+
+    /**
+     * Reads the number the card in a record was issued as, which is higher than those of every card issued before it.
+     * @param slot the slot of the record, which is less than the number of records and in use
+     * @return the number
+     */
+    synchronized long getRegistration(int slot) {
+        return segment(slot).getLong(offset(slot) + REGISTRATION);
+    }
+
+    /**
+     * Returns whether the card in a record is issued for an email, without decoding the record's email.
+     * @param slot the slot of the record, which is less than the number of records
+     * @param email the email
+     * @return true if the record is in use and holds the email
+     */
+    synchronized boolean hasEmail(int slot, String email) {
+
+        MappedByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        int length = segment.getInt(offset + EMAIL_LENGTH);
+
+        if (segment.get(offset + KIND) != CARD || length < email.length()) {
+            return false;
+        }
+
+        // Emails are almost always ASCII, whose characters are each encoded as one byte of the same value.
+        for (int i = 0; i < email.length(); i++) {
+
+            char c = email.charAt(i);
+
+            if (c >= 0x80 || i == FIELD_BYTES) {
+                return Arrays.equals(email.getBytes(StandardCharsets.UTF_8), readFields(slot, length));
+            }
+            if (segment.get(offset + FIELDS + i) != c) {
+                return false;
+            }
+        }
+        return length == email.length();
+    }
+
+    /**
+     * Reads the card in a record.
+     * @param slot the slot of the record, which is less than the number of records
+     * @return the card, or null if the record is not in use
+     */
+    synchronized Card load(int slot) {
+
+        MappedByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+
+        if (segment.get(offset + KIND) != CARD) {
+            return null;
+        }
+
+        int emailLength = segment.getInt(offset + EMAIL_LENGTH);
+        int nameLength = segment.getInt(offset + NAME_LENGTH);
+        byte[] fields = readFields(slot, emailLength + nameLength);
+
+        ILoyaltyCardOwner owner = Factory.getInstance().makeLoyaltyCardOwner(
+                new String(fields, 0, emailLength, StandardCharsets.UTF_8),
+                new String(fields, emailLength, nameLength, StandardCharsets.UTF_8));
+
+        return new Card(owner, segment, offset, slot, segment.getLong(offset + REGISTRATION), new RecordLots(slot));
+    }
+
+    /**
+     * Issues a new card for an owner, numbered after every card issued so far, in free records if there are any and
+     * otherwise in new records at the end. The card's continuation records, if its email and name need any, are
+     * written first, from the last back, and its own record is written before it is marked as in use, and before the
+     * record count is, so a card is either in the ledger completely or not at all. A new card has no lots.
+     * @param owner the owner of the card
+     * @return the new card
+     */
+    synchronized Card issue(ILoyaltyCardOwner owner) {
+
+        byte[] email = owner.getEmail().getBytes(StandardCharsets.UTF_8);
+        byte[] name = owner.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] fields = Arrays.copyOf(email, email.length + name.length);
+
+        System.arraycopy(name, 0, fields, email.length, name.length);
+
+        int end = slots;
+        int slot = freeCount > 0 ? freeSlots[--freeCount] : end++;
+        int next = -1;
+
+        for (int from = (Math.max(fields.length - 1, 0) / FIELD_BYTES) * FIELD_BYTES; from > 0; from -= FIELD_BYTES) {
+
+            int continuation = freeCount > 0 ? freeSlots[--freeCount] : end++;
+            MappedByteBuffer segment = segment(continuation);
+            int offset = offset(continuation);
+
+            segment.putInt(offset + NEXT, next);
+            segment.put(offset + FIELDS, fields, from, Math.min(FIELD_BYTES, fields.length - from));
+            segment.put(offset + KIND, CONTINUATION);
+            next = continuation;
+        }
+
+        MappedByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+
+        LONGS.setVolatile(segment, offset + STATE, 0L);
+        segment.putInt(offset + NEXT, next);
+        segment.putInt(offset + EMAIL_LENGTH, email.length);
+        segment.putInt(offset + NAME_LENGTH, name.length);
+        segment.putLong(offset + REGISTRATION, registrations);
+        segment.putInt(offset + LOTS_HEAD, -1);
+        segment.putInt(offset + LOTS_TAIL, -1);
+        segment.putInt(offset + LOTS_FIRST, 0);
+        segment.putInt(offset + LOTS_SIZE, 0);
+        segment.put(offset + FIELDS, fields, 0, Math.min(FIELD_BYTES, fields.length));
+        segment.put(offset + KIND, CARD);
+
+        if (end > slots) {
+            slots = end;
+            header.putInt(4, slots);
+        }
+        return new Card(owner, segment, offset, slot, registrations++, new RecordLots(slot));
+    }
+
+    /**
+     * Frees a card's record, in constant time, so that it is reused by the next card issued. The card must not be used
+     * again, as its record may by then hold another card.
+     * @param card the card
+     */
+    void free(Card card) {
+        free(card.slot);
+    }
+
+    /**
+     * Frees a card's record, and its continuation and lot records, so that they are reused by the next cards issued.
+     * Freeing a record which is not in use does nothing.
+     * @param slot the slot of the record, which is less than the number of records
+     */
+    synchronized void free(int slot) {
+
+        if (!isInUse(slot)) {
+            return;
+        }
+
+        int next = next(slot);
+        int lots = getInt(slot, LOTS_HEAD);
+
+        segment(slot).put(offset(slot) + KIND, FREE);
+        pushFreeSlot(slot);
+        freeChain(next);
+        freeChain(lots);
+    }
+
+    /**
+     * Takes points which have expired off the card in a record, without counting it as a use, as
+     * {@link Card#expirePoints(int)} does, without reading the card.
+     * @param slot the slot of the record, which is less than the number of records and in use
+     * @param points the number of points which have expired, of which no more than are on the card are taken off
+     */
+    void expirePoints(int slot, int points) {
+        expirePoints(segment(slot), offset(slot), points);
+    }
+
+    /**
+     * Returns the lots of the card in a record.
+     * @param slot the slot of the record, which is less than the number of records and in use
+     * @return the lots, which read and write the records directly
+     */
+    PointLots getLots(int slot) {
+        return new RecordLots(slot);
+    }
+
+    /**
+     * Flushes the mapped records to the storage device.
+     */
+    public synchronized void force() {
+
+        header.force();
+
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Flushes the mapped records to the storage device and closes the ledger file. The mappings themselves stay valid
+     * until they are garbage collected.
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+
+        force();
+        channel.close();
+    }
+
+    /**
+     * Reads the encoded email and name of the card in a record, following its chain of continuation records.
+     * @param slot the slot of the card's record
+     * @param length the number of bytes to read
+     * @return the bytes of the email followed by those of the name, or as many of them as were asked for
+     */
+    private byte[] readFields(int slot, int length) {
+
+        byte[] fields = new byte[length];
+
+        for (int from = 0; from < length; from += FIELD_BYTES) {
+            segment(slot).get(offset(slot) + FIELDS, fields, from, Math.min(FIELD_BYTES, length - from));
+            slot = next(slot);
+        }
+        return fields;
+    }
+
+    /**
+     * Takes a record off the free list, or adds one at the end, for a chain.
+     * @param kind the kind of record
+     * @return the slot of the record, whose next record is none
+     */
+    private synchronized int allocate(byte kind) {
+
+        int slot = freeCount > 0 ? freeSlots[--freeCount] : slots;
+        MappedByteBuffer segment = segment(slot);
+
+        segment.putInt(offset(slot) + NEXT, -1);
+        segment.put(offset(slot) + KIND, kind);
+
+        if (slot == slots) {
+            slots++;
+            header.putInt(4, slots);
+        }
+        return slot;
+    }
+
+    /**
+     * Frees a chain of records.
+     * @param slot the slot of the first record, or -1 for none
+     */
+    private synchronized void freeChain(int slot) {
+
+        while (slot >= 0) {
+
+            int next = next(slot);
+
+            segment(slot).put(offset(slot) + KIND, FREE);
+            pushFreeSlot(slot);
+            slot = next;
+        }
+    }
+
+    /**
+     * Reads an int field of a record.
+     * @param slot the slot of the record
+     * @param field the offset of the field in the record
+     * @return the value
+     */
+    private int getInt(int slot, int field) {
+        return segment(slot).getInt(offset(slot) + field);
+    }
+
+    /**
+     * Writes an int field of a record.
+     * @param slot the slot of the record
+     * @param field the offset of the field in the record
+     * @param value the value
+     */
+    private void putInt(int slot, int field, int value) {
+        segment(slot).putInt(offset(slot) + field, value);
+    }
+
+    /**
+     * Returns the next record in a record's chain.
+     * @param slot the slot of the record
+     * @return the slot of the next record, or -1 if there is none
+     */
+    private int next(int slot) {
+        return segment(slot).getInt(offset(slot) + NEXT);
+    }
+
+    /**
+     * Pushes a slot on the free list.
+     * @param slot the slot
+     */
+    private void pushFreeSlot(int slot) {
+
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Returns the mapped segment holding a slot, mapping new segments (and so growing the file) as needed. A segment
+     * already mapped is found without taking the ledger's lock, so a card's lots can be read and written while holding
+     * only the lock on the card.
+     * @param slot the slot
+     * @return the segment
+     */
+    private MappedByteBuffer segment(int slot) {
+
+        int index = slot / RECORDS_PER_SEGMENT;
+        MappedByteBuffer[] mapped = segments;
+
+        return index < mapped.length ? mapped[index] : map(index);
+    }
+
+    /**
+     * Maps segments up to one holding a slot, growing the file.
+     * @param index the index of the segment
+     * @return the segment
+     */
+    private synchronized MappedByteBuffer map(int index) {
+
+        while (segments.length <= index) {
+
+            MappedByteBuffer[] mapped = Arrays.copyOf(segments, segments.length + 1);
+
+            try {
+                mapped[segments.length] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_BYTES + segments.length * SEGMENT_BYTES, SEGMENT_BYTES);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not grow the ledger file", e);
+            }
+            segments = mapped;
+        }
+        return segments[index];
+    }
+
+    /**
+     * Returns the offset of a slot within its segment.
+     * @param slot the slot
+     * @return the offset
+     */
+    private static int offset(int slot) {
+        return (slot % RECORDS_PER_SEGMENT) * RECORD_BYTES;
+    }
+
+    /**
+     * Takes points which have expired off the card in a record, without counting it as a use.
+     * @param segment the segment of the record
+     * @param offset the offset of the record within its segment
+     * @param points the number of points which have expired, of which no more than are on the card are taken off
+     */
+    private static void expirePoints(MappedByteBuffer segment, int offset, int points) {
+
+        long current;
+        do {
+            current = (long) LONGS.getVolatile(segment, offset + STATE);
+        } while (!LONGS.compareAndSet(segment, offset + STATE, current, LoyaltyCard.pack(LoyaltyCard.uses(current),
+                LoyaltyCard.points(current) - Math.min(points, LoyaltyCard.points(current)))));
+    }
+
+    /**
+     * A loyalty card whose number of uses and number of points live in its ledger record.
+     */
+    static final class Card implements ILoyaltyCard {
+
+        private final ILoyaltyCardOwner owner;
+        private final MappedByteBuffer segment;
+        private final int offset;
+        private final int slot;
+        private final long registration;
+        private final PointLots lots;
+
+        private Card(ILoyaltyCardOwner owner, MappedByteBuffer segment, int offset, int slot, long registration,
+                     PointLots lots) {
+            this.owner = owner;
+            this.segment = segment;
+            this.offset = offset;
+            this.slot = slot;
+            this.registration = registration;
+            this.lots = lots;
+        }
+
+        @Override
+        public ILoyaltyCardOwner getOwner() {
+            return owner;
+        }
+
+        /**
+         * Returns the slot of this card's record in the ledger.
+         * @return the slot
+         */
+        int getSlot() {
+            return slot;
+        }
+
+        /**
+         * Returns the number this card was issued as, which is higher than those of every card issued before it.
+         * @return the number
+         */
+        long getRegistration() {
+            return registration;
+        }
+
+        /**
+         * Returns the lots of this card's points, which live in its ledger records.
+         * @return the lots
+         */
+        PointLots getLots() {
+            return lots;
+        }
+
+        @Override
+        public int getNumberOfUses() {
+            return LoyaltyCard.uses(state());
+        }
+
+        @Override
+        public int getNumberOfPoints() {
+            return LoyaltyCard.points(state());
+        }
+
+        @Override
+        public void addPoints(int points) {
+
+            if (points > 0) {
+                long current;
+                do {
+                    current = state();
+                } while (!LONGS.compareAndSet(segment, offset + STATE, current,
+                        LoyaltyCard.pack(LoyaltyCard.uses(current) + 1, LoyaltyCard.points(current) + points)));
+            }
+        }
+
+        @Override
+        public void usePoints(int points) throws InsufficientPointsException {
+
+            if (points < 0) {
+                return;
+            }
+
+            long current;
+            do {
+                current = state();
+
+                if (points > LoyaltyCard.points(current)) {
+                    throw new InsufficientPointsException();
+                }
+            } while (!LONGS.compareAndSet(segment, offset + STATE, current,
+                    LoyaltyCard.pack(LoyaltyCard.uses(current) + 1, LoyaltyCard.points(current) - points)));
+        }
+
+        /**
+         * Takes points which have expired off the card, without counting it as a use.
+         * @param points the number of points which have expired, of which no more than are on the card are taken off
+         */
+        void expirePoints(int points) {
+            MappedCardLedger.expirePoints(segment, offset, points);
+        }
+
+        /**
+         * Reads the packed state of this card from the mapping.
+         * @return the packed state
+         */
+        private long state() {
+            return (long) LONGS.getVolatile(segment, offset + STATE);
+        }
+    }
+
+    /**
+     * The lots of a card's points, kept in a chain of lot records whose ends its record holds. The lots only ever
+     * fill the records after the first one from their start, so the position of the newest lot follows from that of
+     * the oldest and the number of lots.
+     */
+    private final class RecordLots extends PointLots {
+
+        private final int slot;
+
+        private RecordLots(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        int size() {
+            return getInt(slot, LOTS_SIZE);
+        }
+
+        @Override
+        void copyTo(long[] into) {
+
+            int record = getInt(slot, LOTS_HEAD);
+            int position = getInt(slot, LOTS_FIRST);
+            int size = size();
+
+            for (int i = 0; i < size; i++, position++) {
+                if (position == LOTS_PER_RECORD) {
+                    record = next(record);
+                    position = 0;
+                }
+                into[i] = segment(record).getLong(lotOffset(record, position));
+            }
+        }
+
+        @Override
+        long first() {
+
+            int head = getInt(slot, LOTS_HEAD);
+            return segment(head).getLong(lotOffset(head, getInt(slot, LOTS_FIRST)));
+        }
+
+        @Override
+        void setFirst(long lot) {
+
+            int head = getInt(slot, LOTS_HEAD);
+            segment(head).putLong(lotOffset(head, getInt(slot, LOTS_FIRST)), lot);
+        }
+
+        @Override
+        void dropFirst() {
+
+            int head = getInt(slot, LOTS_HEAD);
+            int first = getInt(slot, LOTS_FIRST) + 1;
+            int size = size() - 1;
+
+            // The card's record is updated before the records it no longer needs are freed.
+            if (size == 0) {
+                putInt(slot, LOTS_SIZE, 0);
+                putInt(slot, LOTS_FIRST, 0);
+                putInt(slot, LOTS_HEAD, -1);
+                putInt(slot, LOTS_TAIL, -1);
+                freeChain(head);
+            } else if (first == LOTS_PER_RECORD) {
+                putInt(slot, LOTS_SIZE, size);
+                putInt(slot, LOTS_FIRST, 0);
+                putInt(slot, LOTS_HEAD, next(head));
+                putInt(head, NEXT, -1);
+                freeChain(head);
+            } else {
+                putInt(slot, LOTS_SIZE, size);
+                putInt(slot, LOTS_FIRST, first);
+            }
+        }
+
+        @Override
+        long last() {
+
+            int tail = getInt(slot, LOTS_TAIL);
+            return segment(tail).getLong(lotOffset(tail, lastPosition()));
+        }
+
+        @Override
+        void setLast(long lot) {
+
+            int tail = getInt(slot, LOTS_TAIL);
+            segment(tail).putLong(lotOffset(tail, lastPosition()), lot);
+        }
+
+        @Override
+        void append(long lot) {
+
+            int size = size();
+            int end = getInt(slot, LOTS_FIRST) + size;
+
+            // The new lot is written before the card's record counts it.
+            if (size == 0) {
+
+                int record = allocate(LOTS);
+
+                segment(record).putLong(lotOffset(record, 0), lot);
+                putInt(slot, LOTS_FIRST, 0);
+                putInt(slot, LOTS_HEAD, record);
+                putInt(slot, LOTS_TAIL, record);
+
+            } else if (end % LOTS_PER_RECORD == 0) {
+
+                int record = allocate(LOTS);
+
+                segment(record).putLong(lotOffset(record, 0), lot);
+                putInt(getInt(slot, LOTS_TAIL), NEXT, record);
+                putInt(slot, LOTS_TAIL, record);
+
+            } else {
+
+                int tail = getInt(slot, LOTS_TAIL);
+                segment(tail).putLong(lotOffset(tail, end % LOTS_PER_RECORD), lot);
+            }
+            putInt(slot, LOTS_SIZE, size + 1);
+        }
+
+        /**
+         * Returns the position of the newest lot in the newest lot record.
+         * @return the position
+         */
+        private int lastPosition() {
+            return (getInt(slot, LOTS_FIRST) + size() - 1) % LOTS_PER_RECORD;
+        }
+
+        /**
+         * Returns the offset of a lot within its record's segment.
+         * @param record the slot of the lot record
+         * @param position the position of the lot in the record
+         * @return the offset
+         */
+        private int lotOffset(int record, int position) {
+            return offset(record) + LOT_VALUES + position * Long.BYTES;
+        }
+    }
+}
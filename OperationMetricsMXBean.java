@@ -0,0 +1,53 @@
+package impl;
+
+import java.util.Map;
+
+/**
+ * Interface for the JMX view of the metrics an {@link InstrumentedLoyaltyCardOperator} keeps for one kind of call.
+ * Latencies are in microseconds.
+ *
+ */
+public interface OperationMetricsMXBean {
+
+    /**
+     * Returns the number of calls made, including failed ones.
+     * @return the number of calls
+     */
+    long getCount();
+
+    /**
+     * Returns the number of calls which failed, by the simple name of the type of exception they threw.
+     * @return the number of failures of each type
+     */
+    Map<String, Long> getFailures();
+
+    /**
+     * Returns the median latency.
+     * @return the latency
+     */
+    double getP50Micros();
+
+    /**
+     * Returns the 90th percentile latency.
+     * @return the latency
+     */
+    double getP90Micros();
+
+    /**
+     * Returns the 99th percentile latency.
+     * @return the latency
+     */
+    double getP99Micros();
+
+    /**
+     * Returns the 99.9th percentile latency.
+     * @return the latency
+     */
+    double getP999Micros();
+
+    /**
+     * Returns the highest latency.
+     * @return the latency
+     */
+    double getMaxMicros();
+}
@@ -0,0 +1,162 @@
+package bench;
+
+import common.InsufficientPointsException;
+import common.OwnerAlreadyRegisteredException;
+import common.OwnerNotRegisteredException;
+import impl.Factory;
+import interfaces.IFactory;
+import interfaces.ILoyaltyCardOperator;
+import interfaces.ILoyaltyCardOwner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class benchmarks the main calls of the operator made by the {@link Factory}, with 1K, 100K and 10M owners
+ * registered. Every owner is given plenty of points up front, so points purchases never run out of them. The owner
+ * each call is made for is picked at random, so that the larger operators do not run out of the processor's caches.
+ *
+ * The operator is the one the factory makes, so the journal and ledger system properties can be passed to the forked
+ * JVM to benchmark those modes instead of the default one.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class OperatorBenchmark {
+
+    /**
+     * The number of points each owner is given up front.
+     */
+    private static final int POINTS = 10_000_000;
+
+    @Param({"1000", "100000", "10000000"})
+    public int owners;
+
+    private ILoyaltyCardOperator operator;
+    private String[] emails;
+
+    /**
+     * Registers the owners and gives each of them their points.
+     * @throws OwnerAlreadyRegisteredException never, as every generated email is unique
+     * @throws OwnerNotRegisteredException never, as every owner is registered before their purchase
+     */
+    @Setup
+    public void setUp() throws OwnerAlreadyRegisteredException, OwnerNotRegisteredException {
+
+        IFactory factory = Factory.getInstance();
+
+        operator = factory.makeLoyaltyCardOperator();
+        emails = new String[owners];
+
+        for (int i = 0; i < owners; i++) {
+            emails[i] = "member" + i + "@example.com";
+            operator.registerOwner(factory.makeLoyaltyCardOwner(emails[i], "Member " + i));
+            operator.processMoneyPurchase(emails[i], POINTS * 100);
+        }
+    }
+
+    /**
+     * Registers a new owner. The operator keeps growing while this runs, and the cost of making the owner is
+     * included.
+     * @param registrations the registering thread's own supply of new emails
+     * @throws OwnerAlreadyRegisteredException never, as every generated email is unique
+     */
+    @Benchmark
+    public void registerOwner(Registrations registrations) throws OwnerAlreadyRegisteredException {
+        operator.registerOwner(registrations.next());
+    }
+
+    /**
+     * Makes a money purchase for a random owner.
+     * @throws OwnerNotRegisteredException never, as every owner picked is registered
+     */
+    @Benchmark
+    public void processMoneyPurchase() throws OwnerNotRegisteredException {
+        operator.processMoneyPurchase(randomEmail(), 250);
+    }
+
+    /**
+     * Makes a points purchase for a random owner.
+     * @throws InsufficientPointsException never, as every owner has plenty of points
+     * @throws OwnerNotRegisteredException never, as every owner picked is registered
+     */
+    @Benchmark
+    public void processPointsPurchase() throws InsufficientPointsException, OwnerNotRegisteredException {
+        operator.processPointsPurchase(randomEmail(), 1);
+    }
+
+    /**
+     * Looks up the points of a random owner.
+     * @return the number of points
+     * @throws OwnerNotRegisteredException never, as every owner picked is registered
+     */
+    @Benchmark
+    public int getNumberOfPoints() throws OwnerNotRegisteredException {
+        return operator.getNumberOfPoints(randomEmail());
+    }
+
+    /**
+     * Reads the total number of points on every card.
+     * @return the total number of points
+     */
+    @Benchmark
+    public int getTotalNumberOfPoints() {
+        return operator.getTotalNumberOfPoints();
+    }
+
+    /**
+     * Finds the owner of the most used card.
+     * @return the owner
+     * @throws OwnerNotRegisteredException never, as every owner has used their card
+     */
+    @Benchmark
+    public ILoyaltyCardOwner getMostUsed() throws OwnerNotRegisteredException {
+        return operator.getMostUsed();
+    }
+
+    /**
+     * Picks the email of a random registered owner.
+     * @return the email
+     */
+    private String randomEmail() {
+        return emails[ThreadLocalRandom.current().nextInt(owners)];
+    }
+
+    /**
+     * A supply of new emails for one benchmark thread, which never clashes with another thread's or with an email
+     * registered during set up.
+     */
+    @State(Scope.Thread)
+    public static class Registrations {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        private final int thread = THREADS.getAndIncrement();
+        private long registered;
+
+        /**
+         * Makes a new owner with an email nobody has registered.
+         * @return the owner
+         */
+        ILoyaltyCardOwner next() {
+            String email = "new" + thread + "." + registered++ + "@example.com";
+            return Factory.getInstance().makeLoyaltyCardOwner(email, "New member");
+        }
+    }
+}
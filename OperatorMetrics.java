@@ -0,0 +1,65 @@
+package impl;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * This class represents the metrics of an {@link InstrumentedLoyaltyCardOperator} at one point in time: for each kind
+ * of call, the number of calls made, their latency percentiles and the number that failed with each type of exception.
+ * Latencies are in nanoseconds.
+ *
+ */
+public final class OperatorMetrics {
+
+    private final Map<InstrumentedLoyaltyCardOperator.Operation, LatencyHistogram> latencies;
+    private final Map<InstrumentedLoyaltyCardOperator.Operation, Map<String, Long>> failures;
+
+    /**
+     * Constructor for the metrics read from an operator.
+     * @param latencies the latencies of each kind of call
+     * @param failures the number of failures of each type for each kind of call
+     */
+    OperatorMetrics(EnumMap<InstrumentedLoyaltyCardOperator.Operation, LatencyHistogram> latencies,
+                    EnumMap<InstrumentedLoyaltyCardOperator.Operation, Map<String, Long>> failures) {
+        this.latencies = latencies;
+        this.failures = failures;
+    }
+
+    /**
+     * Returns the number of calls of a kind that were made, including failed ones.
+     * @param operation the kind of call
+     * @return the number of calls
+     */
+    public long getCount(InstrumentedLoyaltyCardOperator.Operation operation) {
+        return latencies.get(operation).getCount();
+    }
+
+    /**
+     * Returns the latency of calls of a kind at a percentile.
+     * @param operation the kind of call
+     * @param percentile the percentile, from 0 to 100
+     * @return the latency, accurate to about 3%, or 0 if no call has been made
+     */
+    public long getLatencyAtPercentile(InstrumentedLoyaltyCardOperator.Operation operation, double percentile) {
+        return latencies.get(operation).getValueAtPercentile(percentile);
+    }
+
+    /**
+     * Returns the highest latency of calls of a kind.
+     * @param operation the kind of call
+     * @return the latency, or 0 if no call has been made
+     */
+    public long getMaxLatency(InstrumentedLoyaltyCardOperator.Operation operation) {
+        return latencies.get(operation).getMax();
+    }
+
+    /**
+     * Returns the number of calls of a kind which failed, by the simple name of the type of exception they threw.
+     * @param operation the kind of call
+     * @return the number of failures of each type
+     */
+    public Map<String, Long> getFailures(InstrumentedLoyaltyCardOperator.Operation operation) {
+        return Collections.unmodifiableMap(failures.get(operation));
+    }
+}
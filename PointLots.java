@@ -0,0 +1,240 @@
+package impl;
+
+import java.time.LocalDate;
+import java.time.Period;
+import java.util.Arrays;
+
+/**
+ * This class keeps the points on one card in lots, by the day they expire on, so that points can be used oldest first
+ * and expired when their day comes. Points expiring on the same day share a lot, so a card has at most one lot for
+ * each day it earned points on in the time points are valid for. Each lot is packed into a long, with the day it
+ * expires on in the high 32 bits and its points in the low 32 bits.
+ *
+ * Every operator adds, uses and expires points through this class, so they all expire the same points on the same day.
+ * Where the lots are kept is up to the subclass: {@link #onHeap()} keeps them in a ring which only grows when it is
+ * full, 8 bytes a lot on top of about 40 bytes for the ring itself, and a {@link MappedCardLedger} keeps them in
+ * records of its file, so they survive the ledger being reopened.
+ *
+ * The lots are not safe to share between threads on their own; every operator only uses a card's lots while holding
+ * the lock which serialises the card's updates.
+ *
+ */
+abstract class PointLots {
+
+    /**
+     * How long points are valid for after the day they were earned on.
+     */
+    static final Period VALID_FOR = Period.ofMonths(12);
+
+    /**
+     * Returns the day that points earned at a time expire on, which is the day after the one {@link #VALID_FOR} after
+     * the day they were earned on, in UTC.
+     * @param earnedAt the time the points were earned
+     * @return the day, counted from the epoch
+     */
+    static long expiryDay(long earnedAt) {
+        return LocalDate.ofEpochDay(EarningRules.day(earnedAt)).plus(VALID_FOR).toEpochDay() + 1;
+    }
+
+    /**
+     * Makes empty lots kept on the heap.
+     * @return the lots
+     */
+    static PointLots onHeap() {
+        return new OnHeap(new long[2], 0);
+    }
+
+    /**
+     * Makes lots kept on the heap holding copies of some lots, e.g. ones read back from a snapshot image.
+     * @param lots the packed lots, oldest first
+     * @param count the number of lots
+     * @return the lots
+     */
+    static PointLots onHeap(long[] lots, int count) {
+        return new OnHeap(Arrays.copyOf(lots, Math.max(count, 2)), count);
+    }
+
+    /**
+     * Adds points which expire on a day. Points which would expire before the newest lot are added to it instead, so
+     * the lots stay in order and no points expire early.
+     * @param expiresOn the day the points expire on, counted from the epoch
+     * @param points the number of points
+     */
+    final void add(long expiresOn, int points) {
+
+        if (size() > 0 && day(last()) >= expiresOn) {
+            setLast(last() + points);
+        } else {
+            append(LoyaltyCard.pack((int) expiresOn, points));
+        }
+    }
+
+    /**
+     * Uses points from the oldest lots first.
+     * @param points the number of points to use, which is not more than there are in all the lots
+     */
+    final void use(int points) {
+
+        while (points > 0 && size() > 0) {
+
+            int inLot = LoyaltyCard.points(first());
+
+            if (inLot > points) {
+                setFirst(first() - points);
+                return;
+            }
+            points -= inLot;
+            dropFirst();
+        }
+    }
+
+    /**
+     * Takes out the lots which expire on or before a day.
+     * @param day the day, counted from the epoch
+     * @return the number of points taken out
+     */
+    final int expire(long day) {
+
+        int expired = 0;
+
+        while (size() > 0 && day(first()) <= day) {
+            expired += LoyaltyCard.points(first());
+            dropFirst();
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the day the oldest lot expires on.
+     * @return the day, counted from the epoch, or Long.MAX_VALUE if there are no lots
+     */
+    final long getFirstExpiry() {
+        return size() > 0 ? day(first()) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the number of lots.
+     * @return the number of lots
+     */
+    abstract int size();
+
+    /**
+     * Copies the lots, oldest first.
+     * @param into the array to copy them to, which has room for them all
+     */
+    abstract void copyTo(long[] into);
+
+    /**
+     * Returns the oldest lot. Only called when there is one.
+     * @return the packed lot
+     */
+    abstract long first();
+
+    /**
+     * Replaces the oldest lot. Only called when there is one.
+     * @param lot the packed lot
+     */
+    abstract void setFirst(long lot);
+
+    /**
+     * Drops the oldest lot. Only called when there is one.
+     */
+    abstract void dropFirst();
+
+    /**
+     * Returns the newest lot. Only called when there is one.
+     * @return the packed lot
+     */
+    abstract long last();
+
+    /**
+     * Replaces the newest lot. Only called when there is one.
+     * @param lot the packed lot
+     */
+    abstract void setLast(long lot);
+
+    /**
+     * Adds a lot after the newest one.
+     * @param lot the packed lot
+     */
+    abstract void append(long lot);
+
+    /**
+     * Returns the day a lot expires on.
+     * @param lot the lot
+     * @return the day, counted from the epoch
+     */
+    private static long day(long lot) {
+        return LoyaltyCard.uses(lot);
+    }
+
+    /**
+     * Lots kept on the heap in a ring, oldest first from the first lot.
+     */
+    private static final class OnHeap extends PointLots {
+
+        private long[] lots;
+        private int first;
+        private int size;
+
+        private OnHeap(long[] lots, int size) {
+            this.lots = lots;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        void copyTo(long[] into) {
+
+            for (int i = 0; i < size; i++) {
+                into[i] = lots[(first + i) % lots.length];
+            }
+        }
+
+        @Override
+        long first() {
+            return lots[first];
+        }
+
+        @Override
+        void setFirst(long lot) {
+            lots[first] = lot;
+        }
+
+        @Override
+        void dropFirst() {
+
+            first = (first + 1) % lots.length;
+            size--;
+        }
+
+        @Override
+        long last() {
+            return lots[(first + size - 1) % lots.length];
+        }
+
+        @Override
+        void setLast(long lot) {
+            lots[(first + size - 1) % lots.length] = lot;
+        }
+
+        @Override
+        void append(long lot) {
+
+            if (size == lots.length) {
+
+                long[] grown = new long[2 * size];
+
+                copyTo(grown);
+                lots = grown;
+                first = 0;
+            }
+            lots[(first + size) % lots.length] = lot;
+            size++;
+        }
+    }
+}
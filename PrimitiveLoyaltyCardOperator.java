@@ -0,0 +1,803 @@
+package impl;
+
+import common.AbstractFactoryClient;
+import common.InsufficientPointsException;
+import common.OwnerAlreadyRegisteredException;
+import common.OwnerNotRegisteredException;
+import interfaces.ILoyaltyCard;
+import interfaces.ILoyaltyCardOperator;
+import interfaces.ILoyaltyCardOwner;
+
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class represents a loyalty card operator which stores its cards as columns of primitives rather than as one
+ * object per card, to keep the heap small and cheap to garbage collect with millions of members.
+ *
+ * Every card is given a dense id when its owner registers, and the number of points and uses of a card are kept at
+ * that id in int arrays. Emails are mapped to ids with an open-addressing hash table of ints. No LoyaltyCard objects
+ * exist; {@link #getCard(String)} creates an {@link ILoyaltyCard} view over the columns on demand.
+ *
+ * Unregistering an owner removes their card in constant time: its id is taken out of the table by shifting back the
+ * ids probed after it, unlinked from the list of cards in registration order, and pushed on a free list, from which
+ * the next card issued takes its id. The columns therefore only grow with the most owners there have been at once.
+ *
+ * The operator behaves like {@link LoyaltyCardOperator}: money purchases earn points by the same
+ * {@link EarningRules}, getMostUsed() returns the first registered of the most used cards, and it is safe to share
+ * between threads. Purchases only share a read lock, which registrations and
+ * removals take exclusively, and a lock striped by card id.
+ *
+ * Points expire as they do for {@link LoyaltyCardOperator}, through the same {@link PointLots}, which are kept in a
+ * {@link LotSlab} by card id, and the cards are scheduled to expire their points in a {@link SlotExpirySchedule} by
+ * card id, so expiry adds no object for each card either. A card takes off its expired points whenever it is read or
+ * updated, and the total catches up a small batch of cards at a time on the calls made after the day changes, so no
+ * call waits for a whole day's points to expire.
+ *
+ */
+public class PrimitiveLoyaltyCardOperator extends AbstractFactoryClient implements ILoyaltyCardOperator {
+
+    private static final int STRIPES = 256;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final ReentrantReadWriteLock structure = new ReentrantReadWriteLock();
+    private final Object[] stripes = new Object[STRIPES];
+
+    // The columns, indexed by card id, where a removed card's owner is null.
+    private ILoyaltyCardOwner[] owners = new ILoyaltyCardOwner[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int[] points = new int[INITIAL_CAPACITY];
+    private int[] uses = new int[INITIAL_CAPACITY];
+    private long[] registrations = new long[INITIAL_CAPACITY];
+    private int cards;
+    private int customers;
+    private long registered;
+
+    // The cards in the order in which they were registered, as a list linked by id, where -1 marks either end.
+    private int[] newer = new int[INITIAL_CAPACITY];
+    private int[] older = new int[INITIAL_CAPACITY];
+    private int oldest = -1;
+    private int newest = -1;
+
+    // The ids of removed cards, to be issued again before any new id.
+    private int[] freeIds = new int[INITIAL_CAPACITY];
+    private int freeCount;
+
+    // The open-addressing table from email to card id + 1, where 0 marks an empty slot.
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+
+    private final Clock clock;
+    private final LotSlab lots = new LotSlab(INITIAL_CAPACITY);
+    private final SlotExpirySchedule expirySchedule;
+    private final LongAdder totalPoints = new LongAdder();
+    private final AtomicReference<Leader> mostUsed = new AtomicReference<>();
+    private volatile EarningRules earningRules = EarningRules.STANDARD;
+
+    // Set when the most used card has been removed, until getMostUsed() next finds the most used of the cards left.
+    private volatile boolean mostUsedRemoved;
+
+    /**
+     * Constructor for creating an empty operator.
+     */
+    public PrimitiveLoyaltyCardOperator() {
+        this(Clock.systemUTC());
+    }
+
+    /**
+     * Constructor for creating an empty operator which tells the time, by which points earn and expire, by a clock.
+     * @param clock the clock
+     */
+    public PrimitiveLoyaltyCardOperator(Clock clock) {
+
+        this.clock = clock;
+        this.expirySchedule = new SlotExpirySchedule(EarningRules.day(clock.millis()), INITIAL_CAPACITY);
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Registers the specified card owner.
+     * @param loyaltyCardOwner the owner to register
+     * @throws OwnerAlreadyRegisteredException if the owner's email is already registered
+     */
+    @Override
+    public void registerOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerAlreadyRegisteredException {
+
+        String email = loyaltyCardOwner.getEmail();
+        int hash = hash(email);
+
+        structure.writeLock().lock();
+        try {
+            if (find(email, hash) >= 0) {
+                throw new OwnerAlreadyRegisteredException();
+            }
+            add(loyaltyCardOwner, hash);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Unregisters the specified loyalty card owner.
+     * @param loyaltyCardOwner the owner to unregister
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void unregisterOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerNotRegisteredException {
+
+        String email = loyaltyCardOwner.getEmail();
+        int hash = hash(email);
+
+        structure.writeLock().lock();
+        try {
+            remove(getId(email, hash));
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Processes a monetary purchase for the specified owner and price and adds the points it earns by the earning
+     * rules, pence/100 by default, to the owners loyalty card.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the purchase in pence
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void processMoneyPurchase(String ownerEmail, int pence) throws OwnerNotRegisteredException {
+
+        int hash = hash(ownerEmail);
+        long now = clock.millis();
+        int earned = earningRules.getPoints(ownerEmail, pence, null, EarningRules.day(now));
+
+        structure.readLock().lock();
+        try {
+            expirePoints();
+            addPoints(getId(ownerEmail, hash), earned, now);
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the rules by which purchases paid for with money earn points.
+     * @return the rules, which are {@link EarningRules#STANDARD} unless others have been set
+     */
+    public EarningRules getEarningRules() {
+        return earningRules;
+    }
+
+    /**
+     * Replaces the rules by which purchases paid for with money earn points, e.g. with rules just read again from their
+     * file. Purchases being made at the same time earn points by either the old rules or the new ones.
+     * @param rules the rules
+     */
+    public void setEarningRules(EarningRules rules) throws NullPointerException {
+
+        if (rules == null) {
+            throw new NullPointerException();
+        }
+        earningRules = rules;
+    }
+
+    /**
+     * Processes a purchase of an item for the specified price in pence using points on the owner's loyalty card, once earned, each point on the card is worth 1 pence.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the item in pence
+     * @throws InsufficientPointsException if the card does not contain at least the same number of points as the price
+     * @throws OwnerNotRegisteredException if the given owner's email has not been registered
+     */
+    @Override
+    public void processPointsPurchase(String ownerEmail, int pence)
+            throws InsufficientPointsException, OwnerNotRegisteredException {
+
+        if (pence > 0) {
+            int hash = hash(ownerEmail);
+
+            structure.readLock().lock();
+            try {
+                expirePoints();
+
+                if (!usePoints(getId(ownerEmail, hash), pence)) {
+                    throw new InsufficientPointsException();
+                }
+            } finally {
+                structure.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of loyalty card customers.
+     *
+     * @return the number of loyalty card customers
+     */
+    @Override
+    public int getNumberOfCustomers() {
+
+        structure.readLock().lock();
+        try {
+            return customers;
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the total count of all points on all loyalty cards in the system.
+     *
+     * @return the total count of all points on all loyalty cards in the system
+     */
+    @Override
+    public int getTotalNumberOfPoints() {
+
+        return (int) getTotalNumberOfPointsAsLong();
+    }
+
+    /**
+     * Gets the total count of all points on all loyalty cards in the system, without the risk of overflowing an int.
+     *
+     * @return the total count of all points on all loyalty cards in the system
+     */
+    public long getTotalNumberOfPointsAsLong() {
+
+        structure.readLock().lock();
+        try {
+            expirePoints();
+        } finally {
+            structure.readLock().unlock();
+        }
+        return totalPoints.sum();
+    }
+
+    /**
+     * Gets the number of points on the loyalty card for the specified owner.
+     *
+     * @param ownerEmail the loyalty card owner's email
+     * @return the number of points on the specified owner's loyalty card
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public int getNumberOfPoints(String ownerEmail) throws OwnerNotRegisteredException {
+
+        int hash = hash(ownerEmail);
+
+        structure.readLock().lock();
+        try {
+            expirePoints();
+            return getNumberOfPoints(getId(ownerEmail, hash));
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the total number of times that the owner's loyalty card has been used (for money and points purchases).
+     *
+     * @param ownerEmail the loyalty card owner's email
+     * @return the total number of times that the owner's loyalty card has been used
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public int getNumberOfUses(String ownerEmail) throws OwnerNotRegisteredException {
+
+        int hash = hash(ownerEmail);
+
+        structure.readLock().lock();
+        try {
+            return getNumberOfUses(getId(ownerEmail, hash));
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the owner who has used their loyalty card the most. The behaviour is undefined if there is not a single most used card.
+     * If there are two cards that have been used the same amount, the first one in the list of registered cards will be returned.
+     *
+     * @return the owner who has used their loyalty card the most
+     * @throws OwnerNotRegisteredException if no owners have been registered
+     */
+    @Override
+    public ILoyaltyCardOwner getMostUsed() throws OwnerNotRegisteredException {
+
+        structure.readLock().lock();
+        try {
+            if (customers < 1) {
+                throw new OwnerNotRegisteredException();
+            }
+            if (!mostUsedRemoved) {
+                Leader leader = mostUsed.get();
+                return leader == null ? null : owners[leader.id];
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+
+        structure.writeLock().lock();
+        try {
+            if (customers < 1) {
+                throw new OwnerNotRegisteredException();
+            }
+            if (mostUsedRemoved) {
+                mostUsedRemoved = false;
+
+                for (int id = oldest; id >= 0; id = newer[id]) {
+                    if (uses[id] > 0) {
+                        recordUse(id, uses[id]);
+                    }
+                }
+            }
+            Leader leader = mostUsed.get();
+            return leader == null ? null : owners[leader.id];
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets a view of the loyalty card issued for the specified owner. The view reads and writes the operator's columns
+     * directly, so it is only created when it is asked for.
+     *
+     * @param ownerEmail the loyalty card owner's email
+     * @return a view of the owner's loyalty card
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    public ILoyaltyCard getCard(String ownerEmail) throws OwnerNotRegisteredException {
+
+        int hash = hash(ownerEmail);
+
+        structure.readLock().lock();
+        try {
+            int id = getId(ownerEmail, hash);
+            return new CardView(id, owners[id], registrations[id]);
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Looks up the id of the card issued for the specified owner. Must be called while holding the structure lock.
+     * @param email the loyalty card owner's email
+     * @param hash the hash of the email
+     * @return the card id
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    private int getId(String email, int hash) throws OwnerNotRegisteredException {
+
+        int id = find(email, hash);
+
+        if (id < 0) {
+            throw new OwnerNotRegisteredException();
+        }
+        return id;
+    }
+
+    /**
+     * Probes the table for the card issued for an email. Must be called while holding the structure lock.
+     * @param email the email to look for
+     * @param hash the hash of the email
+     * @return the card id, or -1 if the email is not registered
+     */
+    private int find(String email, int hash) {
+
+        int mask = table.length - 1;
+
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+
+            int id = table[slot] - 1;
+
+            if (hashes[id] == hash && owners[id].getEmail().equals(email)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Issues a new card for a registered owner, with a removed card's id if there is one, and otherwise with a new id,
+     * growing the columns and the table if they are full. Must be called while holding the structure lock exclusively.
+     * @param owner the owner of the new card
+     * @param hash the hash of the owner's email
+     * @return the id of the new card
+     */
+    private int add(ILoyaltyCardOwner owner, int hash) {
+
+        if (freeCount == 0 && cards == owners.length) {
+            int capacity = owners.length * 2;
+
+            owners = Arrays.copyOf(owners, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            points = Arrays.copyOf(points, capacity);
+            uses = Arrays.copyOf(uses, capacity);
+            registrations = Arrays.copyOf(registrations, capacity);
+            lots.grow(capacity);
+            expirySchedule.grow(capacity);
+            newer = Arrays.copyOf(newer, capacity);
+            older = Arrays.copyOf(older, capacity);
+            rehash(capacity * 2);
+        }
+
+        int id = freeCount > 0 ? freeIds[--freeCount] : cards++;
+
+        owners[id] = owner;
+        hashes[id] = hash;
+        registrations[id] = registered++;
+        insert(id);
+
+        older[id] = newest;
+        newer[id] = -1;
+
+        if (newest >= 0) {
+            newer[newest] = id;
+        } else {
+            oldest = id;
+        }
+        newest = id;
+        customers++;
+        return id;
+    }
+
+    /**
+     * Removes a card, taking its points out of the total, and frees its id. If it was the most used card, the most
+     * used of the cards left is only found, by a pass over them, when getMostUsed() is next called. Must be called
+     * while holding the structure lock exclusively.
+     * @param id the card id
+     */
+    private void remove(int id) {
+
+        int mask = table.length - 1;
+        int hole = hashes[id] & mask;
+
+        while (table[hole] != id + 1) {
+            hole = (hole + 1) & mask;
+        }
+
+        // Shift back every id after the hole in its run which would otherwise no longer be found from its home slot.
+        for (int slot = (hole + 1) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+
+            int home = hashes[table[slot] - 1] & mask;
+
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                table[hole] = table[slot];
+                hole = slot;
+            }
+        }
+        table[hole] = 0;
+
+        if (older[id] >= 0) {
+            newer[older[id]] = newer[id];
+        } else {
+            oldest = newer[id];
+        }
+        if (newer[id] >= 0) {
+            older[newer[id]] = older[id];
+        } else {
+            newest = older[id];
+        }
+
+        totalPoints.add(-points[id]);
+
+        expirySchedule.cancel(id);
+        lots.clear(id);
+        owners[id] = null;
+        points[id] = 0;
+        uses[id] = 0;
+        customers--;
+
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+
+        Leader leader = mostUsed.get();
+
+        if (leader != null && leader.id == id) {
+            mostUsed.set(null);
+            mostUsedRemoved = true;
+        }
+    }
+
+    /**
+     * Rebuilds the table with a new capacity.
+     * @param capacity the new capacity, which must be a power of two
+     */
+    private void rehash(int capacity) {
+
+        table = new int[capacity];
+
+        for (int id = 0; id < cards; id++) {
+            if (owners[id] != null) {
+                insert(id);
+            }
+        }
+    }
+
+    /**
+     * Inserts a card id into the table.
+     * @param id the card id
+     */
+    private void insert(int id) {
+
+        int mask = table.length - 1;
+        int slot = hashes[id] & mask;
+
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+    }
+
+    /**
+     * Adds a number of points earned at a time to a card, once the points which have expired by then have been taken
+     * off it. Must be called while holding the structure lock.
+     * @param id the card id
+     * @param amount the number of points to add
+     * @param now the time the points were earned
+     */
+    private void addPoints(int id, int amount, long now) {
+
+        if (amount > 0) {
+            int used;
+
+            synchronized (stripes[id & (STRIPES - 1)]) {
+                expireDueLots(id, EarningRules.day(now));
+
+                PointLots card = lots.getLots(id);
+
+                card.add(PointLots.expiryDay(now), amount);
+
+                if (!expirySchedule.isScheduled(id)) {
+                    expirySchedule.schedule(id, card.getFirstExpiry());
+                }
+                points[id] += amount;
+                used = ++uses[id];
+            }
+            totalPoints.add(amount);
+            recordUse(id, used);
+        }
+    }
+
+    /**
+     * Uses a number of points from a card if it has enough of them. Must be called while holding the structure lock.
+     * @param id the card id
+     * @param amount the number of points to use
+     * @return false if there are not enough points on the card
+     */
+    private boolean usePoints(int id, int amount) {
+
+        if (amount < 0) {
+            return true;
+        }
+
+        int used;
+
+        synchronized (stripes[id & (STRIPES - 1)]) {
+            expireDueLots(id, EarningRules.day(clock.millis()));
+
+            if (points[id] < amount) {
+                return false;
+            }
+            lots.getLots(id).use(amount);
+            points[id] -= amount;
+            used = ++uses[id];
+        }
+        totalPoints.add(-amount);
+        recordUse(id, used);
+        return true;
+    }
+
+    /**
+     * Returns the number of points on a card. Must be called while holding the structure lock.
+     * @param id the card id
+     * @return the number of points
+     */
+    private int getNumberOfPoints(int id) {
+
+        synchronized (stripes[id & (STRIPES - 1)]) {
+            expireDueLots(id, EarningRules.day(clock.millis()));
+            return points[id];
+        }
+    }
+
+    /**
+     * Takes the points which have expired by a day off a card, without counting it as a use. Must be called while
+     * holding the structure lock and the card's stripe lock.
+     * @param id the card id
+     * @param today the day, counted from the epoch
+     */
+    private void expireDueLots(int id, long today) {
+
+        PointLots card = lots.getLots(id);
+
+        if (card.getFirstExpiry() <= today) {
+
+            int expired = card.expire(today);
+
+            points[id] -= expired;
+            totalPoints.add(-expired);
+        }
+    }
+
+    /**
+     * Expires the points on the next batch of the cards whose points have fallen due by now, if there are any and no
+     * other thread is taking a batch, so the total catches up, and schedules them again for their oldest lots left.
+     * A card removed while scheduled is cancelled, so every card handed out is still issued. Must be called while
+     * holding the structure lock, and no stripe lock.
+     */
+    private void expirePoints() {
+
+        long today = EarningRules.day(clock.millis());
+
+        if (!expirySchedule.isDue(today)) {
+            return;
+        }
+
+        int[] batch = new int[SlotExpirySchedule.BATCH];
+        int count = expirySchedule.takeDue(today, batch);
+
+        for (int i = 0; i < count; i++) {
+
+            int id = batch[i];
+
+            synchronized (stripes[id & (STRIPES - 1)]) {
+                expireDueLots(id, today);
+
+                PointLots card = lots.getLots(id);
+
+                if (card.size() > 0) {
+                    expirySchedule.schedule(id, card.getFirstExpiry());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of uses of a card. Must be called while holding the structure lock.
+     * @param id the card id
+     * @return the number of uses
+     */
+    private int getNumberOfUses(int id) {
+
+        synchronized (stripes[id & (STRIPES - 1)]) {
+            return uses[id];
+        }
+    }
+
+    /**
+     * Updates the most used card after a card has been used. As uses never go down, the most used card only changes
+     * when the card that was just used overtakes it. Nothing is updated while the most used card is to be found again.
+     * @param id the card id
+     * @param used the card's new number of uses
+     */
+    private void recordUse(int id, int used) {
+
+        if (mostUsedRemoved) {
+            return;
+        }
+
+        long registration = registrations[id];
+        Leader leader = mostUsed.get();
+
+        while (leader == null || used > leader.uses || used == leader.uses && registration < leader.registration) {
+
+            if (mostUsed.compareAndSet(leader, new Leader(id, registration, used))) {
+                return;
+            }
+            leader = mostUsed.get();
+        }
+    }
+
+    /**
+     * Hashes an email, spreading the higher bits into the lower ones used to pick a slot.
+     * @param email the email to hash
+     * @return the hash
+     */
+    private static int hash(String email) {
+
+        int hash = email.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * The most used card, with the number of uses and the registration it had when it became the most used.
+     */
+    private static final class Leader {
+
+        private final int id;
+        private final long registration;
+        private final int uses;
+
+        private Leader(int id, long registration, int uses) {
+            this.id = id;
+            this.registration = registration;
+            this.uses = uses;
+        }
+    }
+
+    /**
+     * A view of one card in the columns of this operator. Once the card has been removed, and its id possibly issued
+     * again, reading or updating its points and uses through the view fails with an {@link IllegalStateException}.
+     */
+    private final class CardView implements ILoyaltyCard {
+
+        private final int id;
+        private final ILoyaltyCardOwner owner;
+        private final long registration;
+
+        private CardView(int id, ILoyaltyCardOwner owner, long registration) {
+            this.id = id;
+            this.owner = owner;
+            this.registration = registration;
+        }
+
+        @Override
+        public ILoyaltyCardOwner getOwner() {
+            return owner;
+        }
+
+        @Override
+        public int getNumberOfUses() {
+
+            structure.readLock().lock();
+            try {
+                return PrimitiveLoyaltyCardOperator.this.getNumberOfUses(checkIssued());
+            } finally {
+                structure.readLock().unlock();
+            }
+        }
+
+        @Override
+        public int getNumberOfPoints() {
+
+            structure.readLock().lock();
+            try {
+                return PrimitiveLoyaltyCardOperator.this.getNumberOfPoints(checkIssued());
+            } finally {
+                structure.readLock().unlock();
+            }
+        }
+
+        @Override
+        public void addPoints(int amount) {
+
+            structure.readLock().lock();
+            try {
+                PrimitiveLoyaltyCardOperator.this.addPoints(checkIssued(), amount, clock.millis());
+            } finally {
+                structure.readLock().unlock();
+            }
+        }
+
+        @Override
+        public void usePoints(int amount) throws InsufficientPointsException {
+
+            structure.readLock().lock();
+            try {
+                if (!PrimitiveLoyaltyCardOperator.this.usePoints(checkIssued(), amount)) {
+                    throw new InsufficientPointsException();
+                }
+            } finally {
+                structure.readLock().unlock();
+            }
+        }
+
+        /**
+         * Checks that the card has not been removed. Must be called while holding the structure lock.
+         * @return the card id
+         * @throws IllegalStateException if the card has been removed
+         */
+        private int checkIssued() throws IllegalStateException {
+
+            if (owners[id] == null || registrations[id] != registration) {
+                throw new IllegalStateException("Card removed");
+            }
+            return id;
+        }
+    }
+}
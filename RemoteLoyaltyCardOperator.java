@@ -0,0 +1,389 @@
+package impl;
+
+import common.InsufficientPointsException;
+import common.OwnerAlreadyRegisteredException;
+import common.OwnerNotRegisteredException;
+import interfaces.ILoyaltyCardOperator;
+import interfaces.ILoyaltyCardOwner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class represents a loyalty card operator which is a client of a {@link LoyaltyCardServer}, so that every call
+ * is made on the operator the server shares.
+ *
+ * A client keeps one connection open, which any number of threads can make calls over at the same time. Each call's
+ * request is sent as soon as it is made, without waiting for the responses to the requests before it, and a reader
+ * thread hands each response to the call waiting for it, in order.
+ *
+ * If the connection fails, the calls waiting for responses and every call after them throw an
+ * {@link UncheckedIOException}.
+ *
+ */
+public final class RemoteLoyaltyCardOperator implements ILoyaltyCardOperator, Closeable {
+
+    private static final int BUFFER_BYTES = 1 << 13;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream request = new ByteArrayOutputStream();
+    private final DataOutputStream requestData = new DataOutputStream(request);
+    private final ConcurrentLinkedQueue<Call> pending = new ConcurrentLinkedQueue<>();
+    private final Thread reader;
+    private IOException failure;
+
+    /**
+     * Constructor for a client connected to a server.
+     * @param host the host the server is on
+     * @param port the port the server is listening on
+     * @throws IOException if the server cannot be connected to
+     */
+    public RemoteLoyaltyCardOperator(String host, int port) throws IOException {
+
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES));
+
+        reader = new Thread(this::readResponses, "loyalty-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Registers an owner.
+     * @param loyaltyCardOwner the owner of the loyalty card
+     * @throws OwnerAlreadyRegisteredException if the given owner's email is already registered
+     */
+    @Override
+    public void registerOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerAlreadyRegisteredException {
+
+        Call call = call(LoyaltyCardServer.REGISTER, loyaltyCardOwner.getEmail(), loyaltyCardOwner.getName(), 0);
+
+        if (call.status == LoyaltyCardServer.OWNER_ALREADY_REGISTERED) {
+            throw new OwnerAlreadyRegisteredException();
+        }
+        call.checkOk();
+    }
+
+    /**
+     * Unregisters an owner.
+     * @param loyaltyCardOwner the owner of the loyalty card
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void unregisterOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerNotRegisteredException {
+
+        Call call = call(LoyaltyCardServer.UNREGISTER, loyaltyCardOwner.getEmail(), loyaltyCardOwner.getName(), 0);
+
+        call.checkRegistered();
+        call.checkOk();
+    }
+
+    /**
+     * Processes a money purchase.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the amount of money spent in pence
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void processMoneyPurchase(String ownerEmail, int pence) throws OwnerNotRegisteredException {
+
+        Call call = call(LoyaltyCardServer.MONEY_PURCHASE, ownerEmail, null, pence);
+
+        call.checkRegistered();
+        call.checkOk();
+    }
+
+    /**
+     * Processes a points purchase.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the amount of money spent in pence
+     * @throws InsufficientPointsException if there are not enough points on the owner's card
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void processPointsPurchase(String ownerEmail, int pence)
+            throws InsufficientPointsException, OwnerNotRegisteredException {
+
+        Call call = call(LoyaltyCardServer.POINTS_PURCHASE, ownerEmail, null, pence);
+
+        if (call.status == LoyaltyCardServer.INSUFFICIENT_POINTS) {
+            throw new InsufficientPointsException();
+        }
+        call.checkRegistered();
+        call.checkOk();
+    }
+
+    /**
+     * Returns the number of registered owners.
+     * @return the number of customers
+     */
+    @Override
+    public int getNumberOfCustomers() {
+
+        Call call = call(LoyaltyCardServer.NUMBER_OF_CUSTOMERS, null, null, 0);
+
+        call.checkOk();
+        return call.value;
+    }
+
+    /**
+     * Returns the total number of points on every card.
+     * @return the total number of points
+     */
+    @Override
+    public int getTotalNumberOfPoints() {
+
+        Call call = call(LoyaltyCardServer.TOTAL_NUMBER_OF_POINTS, null, null, 0);
+
+        call.checkOk();
+        return call.value;
+    }
+
+    /**
+     * Returns the number of points on an owner's card.
+     * @param ownerEmail the loyalty card owner's email
+     * @return the number of points
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public int getNumberOfPoints(String ownerEmail) throws OwnerNotRegisteredException {
+
+        Call call = call(LoyaltyCardServer.NUMBER_OF_POINTS, ownerEmail, null, 0);
+
+        call.checkRegistered();
+        call.checkOk();
+        return call.value;
+    }
+
+    /**
+     * Returns the number of times an owner's card has been used.
+     * @param ownerEmail the loyalty card owner's email
+     * @return the number of uses
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public int getNumberOfUses(String ownerEmail) throws OwnerNotRegisteredException {
+
+        Call call = call(LoyaltyCardServer.NUMBER_OF_USES, ownerEmail, null, 0);
+
+        call.checkRegistered();
+        call.checkOk();
+        return call.value;
+    }
+
+    /**
+     * Returns the owner of the most used card.
+     * @return the owner of the most used card, or null if no card has been used
+     * @throws OwnerNotRegisteredException if the server's operator throws it
+     */
+    @Override
+    public ILoyaltyCardOwner getMostUsed() throws OwnerNotRegisteredException {
+
+        Call call = call(LoyaltyCardServer.MOST_USED, null, null, 0);
+
+        call.checkRegistered();
+        call.checkOk();
+        return call.owner;
+    }
+
+    /**
+     * Closes the connection. Calls still waiting for their responses throw an {@link UncheckedIOException}.
+     * @throws IOException if the connection cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+
+        synchronized (this) {
+            if (failure == null) {
+                failure = new IOException("Client closed");
+            }
+        }
+        socket.close();
+
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     * @param request the call requested
+     * @param email the email to send, if the call takes one
+     * @param name the name to send, if the call takes one
+     * @param pence the amount to send, if the call takes one
+     * @return the call, with its response
+     * @throws UncheckedIOException if the connection has failed or been closed
+     */
+    private Call call(int request, String email, String name, int pence) {
+
+        Call call = new Call(request);
+
+        synchronized (this) {
+
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+
+            // The request is put together on its own first, so that one which cannot be written, e.g. because of a
+            // null email, fails before any of it is sent, and only fails this call rather than the connection.
+            try {
+                this.request.reset();
+                requestData.writeByte(request);
+
+                switch (request) {
+                    case LoyaltyCardServer.REGISTER:
+                    case LoyaltyCardServer.UNREGISTER:
+                        LoyaltyCardServer.writeString(requestData, email);
+                        LoyaltyCardServer.writeString(requestData, name);
+                        break;
+                    case LoyaltyCardServer.MONEY_PURCHASE:
+                    case LoyaltyCardServer.POINTS_PURCHASE:
+                        LoyaltyCardServer.writeString(requestData, email);
+                        requestData.writeInt(pence);
+                        break;
+                    case LoyaltyCardServer.NUMBER_OF_POINTS:
+                    case LoyaltyCardServer.NUMBER_OF_USES:
+                        LoyaltyCardServer.writeString(requestData, email);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            try {
+                pending.add(call);
+                this.request.writeTo(out);
+                out.flush();
+
+            } catch (IOException e) {
+                failure = e;
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        try {
+            return call.response.join();
+        } catch (CompletionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    /**
+     * The body of the reader thread, which hands responses to the calls waiting for them until the connection fails
+     * or is closed.
+     */
+    private void readResponses() {
+
+        try {
+            while (true) {
+
+                int status = in.read();
+
+                if (status < 0) {
+                    throw new EOFException("Server closed the connection");
+                }
+
+                Call call = pending.poll();
+
+                if (call == null) {
+                    throw new IOException("Response to no request");
+                }
+                call.status = status;
+
+                if (status == LoyaltyCardServer.FAILED) {
+                    call.message = LoyaltyCardServer.readString(in);
+                } else if (status == LoyaltyCardServer.OK) {
+                    switch (call.request) {
+                        case LoyaltyCardServer.NUMBER_OF_CUSTOMERS:
+                        case LoyaltyCardServer.TOTAL_NUMBER_OF_POINTS:
+                        case LoyaltyCardServer.NUMBER_OF_POINTS:
+                        case LoyaltyCardServer.NUMBER_OF_USES:
+                            call.value = in.readInt();
+                            break;
+                        case LoyaltyCardServer.MOST_USED:
+                            if (in.readBoolean()) {
+                                call.owner = Factory.getInstance().makeLoyaltyCardOwner(
+                                        LoyaltyCardServer.readString(in), LoyaltyCardServer.readString(in));
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                call.response.complete(call);
+            }
+
+        } catch (IOException e) {
+
+            synchronized (this) {
+                if (failure == null) {
+                    failure = e;
+                }
+                for (Call call; (call = pending.poll()) != null; ) {
+                    call.response.completeExceptionally(new UncheckedIOException(failure));
+                }
+            }
+        }
+    }
+
+    /**
+     * A call which has been sent, and its response once it has arrived.
+     */
+    private static final class Call {
+
+        private final int request;
+        private final CompletableFuture<Call> response = new CompletableFuture<>();
+        private int status;
+        private int value;
+        private ILoyaltyCardOwner owner;
+        private String message;
+
+        private Call(int request) {
+            this.request = request;
+        }
+
+        /**
+         * Throws the exception for an owner who is not registered, if that was the response.
+         * @throws OwnerNotRegisteredException if the owner is not registered
+         */
+        private void checkRegistered() throws OwnerNotRegisteredException {
+
+            if (status == LoyaltyCardServer.OWNER_NOT_REGISTERED) {
+                throw new OwnerNotRegisteredException();
+            }
+        }
+
+        /**
+         * Checks that the call succeeded, once every failure the call can throw has been checked for.
+         * @throws IllegalStateException if the call failed some other way
+         */
+        private void checkOk() {
+
+            if (status == LoyaltyCardServer.FAILED) {
+                throw new IllegalStateException("Server failed: " + message);
+            }
+            if (status != LoyaltyCardServer.OK) {
+                throw new IllegalStateException("Unexpected response " + status);
+            }
+        }
+    }
+}
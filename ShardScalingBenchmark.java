@@ -0,0 +1,88 @@
+package bench;
+
+import common.OwnerAlreadyRegisteredException;
+import common.OwnerNotRegisteredException;
+import impl.Factory;
+import impl.LoyaltyCardOperator;
+import impl.ShardedLoyaltyCardOperator;
+import interfaces.IFactory;
+import interfaces.ILoyaltyCardOperator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class benchmarks how the throughput of money purchases changes with the number of shards of a
+ * {@link ShardedLoyaltyCardOperator}, against the default {@link LoyaltyCardOperator}, which is given as 0 shards.
+ * Purchases are made from every processor at once, each for an owner picked at random out of 100K, so the result
+ * for n shards against 1 shard shows how far the operator scales with n processors, on a machine with at least n.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class ShardScalingBenchmark {
+
+    private static final int OWNERS = 100_000;
+
+    @Param({"0", "1", "2", "4", "8"})
+    public int shards;
+
+    private ILoyaltyCardOperator operator;
+    private String[] emails;
+
+    /**
+     * Makes the operator and registers the owners.
+     * @throws OwnerAlreadyRegisteredException never, as every generated email is unique
+     */
+    @Setup
+    public void setUp() throws OwnerAlreadyRegisteredException {
+
+        IFactory factory = Factory.getInstance();
+
+        operator = shards == 0 ? new LoyaltyCardOperator() : new ShardedLoyaltyCardOperator(shards);
+        emails = new String[OWNERS];
+
+        for (int i = 0; i < OWNERS; i++) {
+            emails[i] = "member" + i + "@example.com";
+            operator.registerOwner(factory.makeLoyaltyCardOwner(emails[i], "Member " + i));
+        }
+    }
+
+    /**
+     * Stops the shards' threads.
+     */
+    @TearDown
+    public void tearDown() {
+
+        if (operator instanceof ShardedLoyaltyCardOperator) {
+            ((ShardedLoyaltyCardOperator) operator).close();
+        }
+    }
+
+    /**
+     * Makes a money purchase for a random owner.
+     * @throws OwnerNotRegisteredException never, as every owner is registered
+     */
+    @Benchmark
+    public void moneyPurchase() throws OwnerNotRegisteredException {
+        operator.processMoneyPurchase(emails[ThreadLocalRandom.current().nextInt(OWNERS)], 100);
+    }
+}
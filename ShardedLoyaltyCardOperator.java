@@ -0,0 +1,895 @@
+package impl;
+
+import common.InsufficientPointsException;
+import common.OwnerAlreadyRegisteredException;
+import common.OwnerNotRegisteredException;
+import common.PurchaseResult;
+import interfaces.ILoyaltyCardOperator;
+import interfaces.ILoyaltyCardOwner;
+
+import java.io.Closeable;
+import java.time.Clock;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class represents a loyalty card operator which partitions the owners between a number of shards by the hash of
+ * their email, so that calls for owners in different shards never contend with each other.
+ *
+ * Every shard has a thread of its own, which is the only thread that ever reads or writes the shard's cards, so the
+ * cards need no locking: each call for an owner is queued for their shard's thread, and waits for it to finish there.
+ * Each shard also publishes its number of customers, its total number of points and its most used card whenever they
+ * change, so the aggregate queries merge those from every shard without handing anything over.
+ *
+ * Cards are stamped with the order in which they were registered across all the shards, so getMostUsed() breaks ties
+ * in the same way as {@link LoyaltyCardOperator}, as it does its other behaviour: money purchases earn points by the
+ * same {@link EarningRules}, unregistering an owner removes their card and its points, and an owner who registers
+ * again is issued a new card.
+ *
+ * Points expire as they do for {@link LoyaltyCardOperator}, through the same {@link PointLots}: a card takes off its
+ * expired points whenever its shard's thread reads or updates it, and each shard keeps its cards' timers in an
+ * {@link ExpirySchedule} of its own, which its thread takes a small batch of cards due from between calls, and as many
+ * batches as it can while its queue is empty. So the shard's total catches up without any call waiting for a whole
+ * day's points to expire.
+ *
+ * Every call also has an asynchronous version, which returns a {@link CompletableFuture} instead of waiting, and never
+ * blocks: calls for the same owner run in the order they were made, as they all go through the same shard's queue. The
+ * queues are bounded, so when a shard falls behind, an asynchronous call made to it fails straight away with a
+ * {@link RejectedExecutionException} rather than queueing without limit, while a call that waits also waits for room
+ * in the queue. A failed call's future holds the exception the call would have thrown. Futures are completed on the
+ * shard's thread, so anything chained to them which is not itself asynchronous should be quick.
+ *
+ */
+public class ShardedLoyaltyCardOperator implements ILoyaltyCardOperator, Closeable {
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    // How long an idle shard's thread waits for a call before it looks for points to expire again.
+    private static final long IDLE_MILLIS = 1000;
+
+    private final Clock clock;
+    private final Shard[] shards;
+    private final AtomicLong registrations = new AtomicLong();
+    private volatile EarningRules earningRules = EarningRules.STANDARD;
+    private volatile boolean closed;
+
+    /**
+     * Constructor for an operator with a number of shards, each queueing up to 1024 calls.
+     * @param shards the number of shards, which is usually the number of processors
+     */
+    public ShardedLoyaltyCardOperator(int shards) {
+        this(shards, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructor for an operator with a number of shards, each queueing up to a number of calls.
+     * @param shards the number of shards, which is usually the number of processors
+     * @param queueCapacity the most calls queued for each shard
+     */
+    public ShardedLoyaltyCardOperator(int shards, int queueCapacity) {
+        this(shards, queueCapacity, Clock.systemUTC());
+    }
+
+    /**
+     * Constructor for an operator with a number of shards, each queueing up to a number of calls, which tells the
+     * time, by which points earn and expire, by a clock.
+     * @param shards the number of shards, which is usually the number of processors
+     * @param queueCapacity the most calls queued for each shard
+     * @param clock the clock
+     */
+    public ShardedLoyaltyCardOperator(int shards, int queueCapacity, Clock clock) {
+
+        if (shards < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException();
+        }
+
+        this.clock = clock;
+        this.shards = new Shard[shards];
+
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard(i, queueCapacity);
+        }
+    }
+
+    /**
+     * Registers the specified owner and issues them a loyalty card, or gives them back the card they had before.
+     * @param loyaltyCardOwner the owner of the loyalty card
+     * @throws OwnerAlreadyRegisteredException if the given owner's email is already registered
+     */
+    @Override
+    public void registerOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerAlreadyRegisteredException {
+
+        String email = loyaltyCardOwner.getEmail();
+        Shard shard = shard(email);
+
+        if (!shard.call(() -> shard.register(email, loyaltyCardOwner))) {
+            throw new OwnerAlreadyRegisteredException();
+        }
+    }
+
+    /**
+     * Unregisters the specified loyalty card owner.
+     * @param loyaltyCardOwner the owner to unregister
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void unregisterOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerNotRegisteredException {
+
+        String email = loyaltyCardOwner.getEmail();
+        Shard shard = shard(email);
+
+        if (!shard.call(() -> shard.unregister(email))) {
+            throw new OwnerNotRegisteredException();
+        }
+    }
+
+    /**
+     * Processes a monetary purchase for the specified owner and price and adds the points it earns by the earning
+     * rules, pence/100 by default, to the owners loyalty card.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the purchase in pence
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void processMoneyPurchase(String ownerEmail, int pence) throws OwnerNotRegisteredException {
+
+        Shard shard = shard(ownerEmail);
+
+        if (shard.call(() -> shard.moneyPurchase(ownerEmail, pence)) != PurchaseResult.OK) {
+            throw new OwnerNotRegisteredException();
+        }
+    }
+
+    /**
+     * Processes a purchase of an item for the specified price in pence using points on the owner's loyalty card.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the item in pence
+     * @throws InsufficientPointsException if the card does not contain at least the same number of points as the price
+     * @throws OwnerNotRegisteredException if the given owner's email has not been registered
+     */
+    @Override
+    public void processPointsPurchase(String ownerEmail, int pence)
+            throws InsufficientPointsException, OwnerNotRegisteredException {
+
+        if (pence <= 0) {
+            return;
+        }
+
+        Shard shard = shard(ownerEmail);
+        PurchaseResult result = shard.call(() -> shard.pointsPurchase(ownerEmail, pence));
+
+        if (result == PurchaseResult.OWNER_NOT_REGISTERED) {
+            throw new OwnerNotRegisteredException();
+        } else if (result == PurchaseResult.INSUFFICIENT_POINTS) {
+            throw new InsufficientPointsException();
+        }
+    }
+
+    /**
+     * Returns the rules by which purchases paid for with money earn points.
+     * @return the rules, which are {@link EarningRules#STANDARD} unless others have been set
+     */
+    public EarningRules getEarningRules() {
+        return earningRules;
+    }
+
+    /**
+     * Replaces the rules by which purchases paid for with money earn points, e.g. with rules just read again from their
+     * file. Purchases being made at the same time earn points by either the old rules or the new ones.
+     * @param rules the rules
+     */
+    public void setEarningRules(EarningRules rules) throws NullPointerException {
+
+        if (rules == null) {
+            throw new NullPointerException();
+        }
+        earningRules = rules;
+    }
+
+    /**
+     * Gets the number of loyalty card customers.
+     * @return the number of loyalty card customers
+     */
+    @Override
+    public int getNumberOfCustomers() {
+
+        int customers = 0;
+
+        for (Shard shard : shards) {
+            customers += shard.customers;
+        }
+        return customers;
+    }
+
+    /**
+     * Gets the total count of all points on all loyalty cards in the system.
+     * @return the total count of all points on all loyalty cards in the system
+     */
+    @Override
+    public int getTotalNumberOfPoints() {
+        return (int) getTotalNumberOfPointsAsLong();
+    }
+
+    /**
+     * Gets the total count of all points on all loyalty cards in the system, without the risk of overflowing an int.
+     * @return the total count of all points on all loyalty cards in the system
+     */
+    public long getTotalNumberOfPointsAsLong() {
+
+        long points = 0;
+
+        for (Shard shard : shards) {
+            points += shard.totalPoints;
+        }
+        return points;
+    }
+
+    /**
+     * Gets the number of points on the loyalty card for the specified owner.
+     * @param ownerEmail the loyalty card owner's email
+     * @return the number of points on the specified owner's loyalty card
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public int getNumberOfPoints(String ownerEmail) throws OwnerNotRegisteredException {
+
+        Shard shard = shard(ownerEmail);
+        int points = shard.call(() -> {
+            Card card = shard.cards.get(ownerEmail);
+            return card != null ? shard.getNumberOfPoints(card) : -1;
+        });
+
+        if (points < 0) {
+            throw new OwnerNotRegisteredException();
+        }
+        return points;
+    }
+
+    /**
+     * Gets the total number of times that the owner's loyalty card has been used.
+     * @param ownerEmail the loyalty card owner's email
+     * @return the total number of times that the owner's loyalty card has been used
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public int getNumberOfUses(String ownerEmail) throws OwnerNotRegisteredException {
+
+        Shard shard = shard(ownerEmail);
+        int uses = shard.call(() -> {
+            Card card = shard.cards.get(ownerEmail);
+            return card != null ? card.uses : -1;
+        });
+
+        if (uses < 0) {
+            throw new OwnerNotRegisteredException();
+        }
+        return uses;
+    }
+
+    /**
+     * Gets the owner who has used their loyalty card the most. If two cards have been used the same amount, the one
+     * that was registered first wins.
+     * @return the owner who has used their loyalty card the most, or null if no card has been used
+     * @throws OwnerNotRegisteredException if no owners have been registered
+     */
+    @Override
+    public ILoyaltyCardOwner getMostUsed() throws OwnerNotRegisteredException {
+
+        if (getNumberOfCustomers() < 1) {
+            throw new OwnerNotRegisteredException();
+        }
+
+        Leader leader = null;
+
+        for (Shard shard : shards) {
+
+            Leader candidate = shard.mostUsed;
+
+            if (candidate != null && (leader == null || candidate.beats(leader))) {
+                leader = candidate;
+            }
+        }
+        return leader != null ? leader.owner : null;
+    }
+
+    /**
+     * Registers the specified owner without waiting, as registerOwner() does.
+     * @param loyaltyCardOwner the owner of the loyalty card
+     * @return a future which fails with an {@link OwnerAlreadyRegisteredException} if the given owner's email is
+     * already registered
+     */
+    public CompletableFuture<Void> registerOwnerAsync(ILoyaltyCardOwner loyaltyCardOwner) {
+
+        String email = loyaltyCardOwner.getEmail();
+        Shard shard = shard(email);
+
+        return shard.submit(() -> {
+            if (!shard.register(email, loyaltyCardOwner)) {
+                throw new OwnerAlreadyRegisteredException();
+            }
+            return null;
+        }, false);
+    }
+
+    /**
+     * Unregisters the specified owner without waiting, as unregisterOwner() does.
+     * @param loyaltyCardOwner the owner to unregister
+     * @return a future which fails with an {@link OwnerNotRegisteredException} if the given owner's email is not
+     * registered
+     */
+    public CompletableFuture<Void> unregisterOwnerAsync(ILoyaltyCardOwner loyaltyCardOwner) {
+
+        String email = loyaltyCardOwner.getEmail();
+        Shard shard = shard(email);
+
+        return shard.submit(() -> {
+            if (!shard.unregister(email)) {
+                throw new OwnerNotRegisteredException();
+            }
+            return null;
+        }, false);
+    }
+
+    /**
+     * Processes a monetary purchase without waiting, as processMoneyPurchase() does.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the purchase in pence
+     * @return a future which fails with an {@link OwnerNotRegisteredException} if the given owner's email is not
+     * registered
+     */
+    public CompletableFuture<Void> processMoneyPurchaseAsync(String ownerEmail, int pence) {
+
+        Shard shard = shard(ownerEmail);
+
+        return shard.submit(() -> {
+            if (shard.moneyPurchase(ownerEmail, pence) != PurchaseResult.OK) {
+                throw new OwnerNotRegisteredException();
+            }
+            return null;
+        }, false);
+    }
+
+    /**
+     * Processes a points purchase without waiting, as processPointsPurchase() does.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the item in pence
+     * @return a future which fails with an {@link InsufficientPointsException} if the card does not contain at least
+     * the same number of points as the price, or an {@link OwnerNotRegisteredException} if the given owner's email has
+     * not been registered
+     */
+    public CompletableFuture<Void> processPointsPurchaseAsync(String ownerEmail, int pence) {
+
+        Shard shard = shard(ownerEmail);
+
+        // Even a purchase which changes nothing is queued, so that it completes in order with the owner's others.
+        return shard.submit(() -> {
+
+            PurchaseResult result = pence > 0 ? shard.pointsPurchase(ownerEmail, pence) : PurchaseResult.OK;
+
+            if (result == PurchaseResult.OWNER_NOT_REGISTERED) {
+                throw new OwnerNotRegisteredException();
+            } else if (result == PurchaseResult.INSUFFICIENT_POINTS) {
+                throw new InsufficientPointsException();
+            }
+            return null;
+        }, false);
+    }
+
+    /**
+     * Gets the number of loyalty card customers. As the shards publish their counts, this never waits.
+     * @return a future holding the number of loyalty card customers
+     */
+    public CompletableFuture<Integer> getNumberOfCustomersAsync() {
+        return CompletableFuture.completedFuture(getNumberOfCustomers());
+    }
+
+    /**
+     * Gets the total count of all points on all loyalty cards in the system. As the shards publish their totals, this
+     * never waits.
+     * @return a future holding the total count of all points on all loyalty cards in the system
+     */
+    public CompletableFuture<Integer> getTotalNumberOfPointsAsync() {
+        return CompletableFuture.completedFuture(getTotalNumberOfPoints());
+    }
+
+    /**
+     * Gets the number of points on the loyalty card for the specified owner without waiting.
+     * @param ownerEmail the loyalty card owner's email
+     * @return a future holding the number of points, which fails with an {@link OwnerNotRegisteredException} if the
+     * given owner's email is not registered
+     */
+    public CompletableFuture<Integer> getNumberOfPointsAsync(String ownerEmail) {
+
+        Shard shard = shard(ownerEmail);
+
+        return shard.submit(() -> shard.getNumberOfPoints(shard.getCard(ownerEmail)), false);
+    }
+
+    /**
+     * Gets the total number of times that the owner's loyalty card has been used without waiting.
+     * @param ownerEmail the loyalty card owner's email
+     * @return a future holding the number of uses, which fails with an {@link OwnerNotRegisteredException} if the
+     * given owner's email is not registered
+     */
+    public CompletableFuture<Integer> getNumberOfUsesAsync(String ownerEmail) {
+
+        Shard shard = shard(ownerEmail);
+
+        return shard.submit(() -> shard.getCard(ownerEmail).uses, false);
+    }
+
+    /**
+     * Gets the owner who has used their loyalty card the most. As the shards publish their most used cards, this never
+     * waits.
+     * @return a future holding the owner who has used their loyalty card the most, or null if no card has been used,
+     * which fails with an {@link OwnerNotRegisteredException} if no owners have been registered
+     */
+    public CompletableFuture<ILoyaltyCardOwner> getMostUsedAsync() {
+
+        try {
+            return CompletableFuture.completedFuture(getMostUsed());
+        } catch (OwnerNotRegisteredException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Returns the number of calls queued for the shards' threads, which a caller can use to hold back before its
+     * asynchronous calls start to be rejected.
+     * @return the number of queued calls
+     */
+    public int getQueuedCalls() {
+
+        int queued = 0;
+
+        for (Shard shard : shards) {
+            queued += shard.queue.size();
+        }
+        return queued;
+    }
+
+    /**
+     * Stops the shards' threads once the calls already queued for them have finished. Calls made after that fail with
+     * a {@link RejectedExecutionException}.
+     */
+    @Override
+    public void close() {
+
+        closed = true;
+
+        for (Shard shard : shards) {
+            shard.submit(Shard.STOP, true);
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the shard an owner belongs to, picked by the high bits of their email's hash code once they have been
+     * mixed, so that the shard does not follow the bits the shard's map picks its bins by.
+     * @param email the owner's email
+     * @return the shard
+     */
+    private Shard shard(String email) {
+        return shards[Math.floorMod((email.hashCode() * 0x9e3779b9) >> 16, shards.length)];
+    }
+
+    /**
+     * A shard of the owners, with the thread that owns their cards.
+     */
+    private final class Shard {
+
+        /**
+         * The work which tells a shard's thread to stop.
+         */
+        private static final Callable<Object> STOP = () -> null;
+
+        private final BlockingQueue<Call<?>> queue;
+        private final Thread thread;
+        private final HashMap<String, Card> cards = new HashMap<>();
+        private final ExpirySchedule<Card> expirySchedule = new ExpirySchedule<>(EarningRules.day(clock.millis()));
+
+        private volatile int customers;
+        private volatile long totalPoints;
+        private volatile Leader mostUsed;
+
+        private Shard(int index, int queueCapacity) {
+
+            queue = new ArrayBlockingQueue<>(queueCapacity);
+            thread = new Thread(this::run, "loyalty-shard-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Runs some work on this shard's thread and waits for its result, waiting for room in the queue if it is full.
+         * @param work the work, which must not throw a checked exception
+         * @param <T> the type of the result
+         * @return the result
+         * @throws RejectedExecutionException if the operator has been closed
+         */
+        private <T> T call(Callable<T> work) throws RejectedExecutionException {
+
+            try {
+                return submit(work, true).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        /**
+         * Queues some work for this shard's thread.
+         * @param work the work
+         * @param wait true to wait for room in the queue if it is full, and false to fail straight away
+         * @param <T> the type of the result
+         * @return a future for the result, which fails with a {@link RejectedExecutionException} if the queue is full
+         * and the caller would not wait, or the operator has been closed
+         */
+        private <T> CompletableFuture<T> submit(Callable<T> work, boolean wait) {
+
+            Call<T> call = new Call<>(work);
+
+            if (closed && work != STOP) {
+                call.future.completeExceptionally(new RejectedExecutionException("Operator closed"));
+                return call.future;
+            }
+
+            if (wait) {
+                boolean interrupted = false;
+
+                while (true) {
+                    try {
+                        queue.put(call);
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if (!queue.offer(call)) {
+                call.future.completeExceptionally(new RejectedExecutionException("Shard queue full"));
+                return call.future;
+            }
+
+            // A call queued behind the stop would never run, unless the thread is yet to see the stop.
+            if (closed && work != STOP && queue.remove(call)) {
+                call.future.completeExceptionally(new RejectedExecutionException("Operator closed"));
+            }
+            return call.future;
+        }
+
+        /**
+         * The body of this shard's thread, which runs the queued calls in order until it is told to stop, and then
+         * rejects any calls queued after that. Between calls it expires the points on a batch of the cards due, and
+         * while there are no calls, on as many batches as there are.
+         */
+        private void run() {
+
+            while (true) {
+
+                Call<?> call;
+
+                try {
+                    call = queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (call != null) {
+                    if (call.work == STOP) {
+                        break;
+                    }
+                    call.run();
+                }
+
+                boolean expired = expirePoints();
+
+                while (expired && queue.isEmpty()) {
+                    expired = expirePoints();
+                }
+            }
+
+            for (Call<?> call; (call = queue.poll()) != null; ) {
+                call.future.completeExceptionally(new RejectedExecutionException("Operator closed"));
+            }
+        }
+
+        /**
+         * Looks up the card issued for an owner. Must only be called on this shard's thread.
+         * @param email the owner's email
+         * @return the card
+         * @throws OwnerNotRegisteredException if the owner is not registered
+         */
+        private Card getCard(String email) throws OwnerNotRegisteredException {
+
+            Card card = cards.get(email);
+
+            if (card == null) {
+                throw new OwnerNotRegisteredException();
+            }
+            return card;
+        }
+
+        /**
+         * Registers an owner. Must only be called on this shard's thread.
+         * @param email the owner's email
+         * @param owner the owner
+         * @return false if the owner's email is already registered
+         */
+        private boolean register(String email, ILoyaltyCardOwner owner) {
+
+            if (cards.containsKey(email)) {
+                return false;
+            }
+            cards.put(email, new Card(owner, registrations.getAndIncrement()));
+            customers++;
+            return true;
+        }
+
+        /**
+         * Unregisters an owner, removing their card. If it was this shard's most used card, the most used of the cards
+         * left is found by a pass over them. Must only be called on this shard's thread.
+         * @param email the owner's email
+         * @return false if the owner's email is not registered
+         */
+        private boolean unregister(String email) {
+
+            Card card = cards.remove(email);
+
+            if (card == null) {
+                return false;
+            }
+            customers--;
+            totalPoints -= card.points;
+
+            if (card.scheduled) {
+                expirySchedule.cancel(card.timer);
+                card.scheduled = false;
+            }
+
+            Leader leader = mostUsed;
+
+            if (leader != null && leader.card == card) {
+
+                Card best = null;
+
+                for (Card other : cards.values()) {
+                    if (other.uses > 0 && (best == null || other.uses > best.uses
+                            || other.uses == best.uses && other.registration < best.registration)) {
+                        best = other;
+                    }
+                }
+                mostUsed = best != null ? new Leader(best) : null;
+            }
+            return true;
+        }
+
+        /**
+         * Processes a money purchase. Must only be called on this shard's thread.
+         * @param email the owner's email
+         * @param pence the price of the purchase in pence
+         * @return OWNER_NOT_REGISTERED if the email is not registered, otherwise OK
+         */
+        private PurchaseResult moneyPurchase(String email, int pence) {
+
+            Card card = cards.get(email);
+
+            if (card == null) {
+                return PurchaseResult.OWNER_NOT_REGISTERED;
+            }
+
+            long now = clock.millis();
+            int earned = earningRules.getPoints(email, pence, null, EarningRules.day(now));
+
+            expireDueLots(card, EarningRules.day(now));
+
+            if (earned > 0) {
+                if (card.lots == null) {
+                    card.lots = PointLots.onHeap();
+                    card.timer = new ExpiryWheel.Timer<>(card);
+                }
+                card.lots.add(PointLots.expiryDay(now), earned);
+
+                if (!card.scheduled) {
+                    expirySchedule.schedule(card.timer, card.lots.getFirstExpiry());
+                    card.scheduled = true;
+                }
+                card.points += earned;
+                totalPoints += earned;
+                used(card);
+            }
+            return PurchaseResult.OK;
+        }
+
+        /**
+         * Processes a points purchase. Must only be called on this shard's thread.
+         * @param email the owner's email
+         * @param pence the price of the item in pence, which is positive
+         * @return OWNER_NOT_REGISTERED if the email is not registered, INSUFFICIENT_POINTS if the card does
+         * not have enough points, otherwise OK
+         */
+        private PurchaseResult pointsPurchase(String email, int pence) {
+
+            Card card = cards.get(email);
+
+            if (card == null) {
+                return PurchaseResult.OWNER_NOT_REGISTERED;
+            }
+            expireDueLots(card, EarningRules.day(clock.millis()));
+
+            if (card.points < pence) {
+                return PurchaseResult.INSUFFICIENT_POINTS;
+            }
+            card.lots.use(pence);
+            card.points -= pence;
+            totalPoints -= pence;
+            used(card);
+            return PurchaseResult.OK;
+        }
+
+        /**
+         * Returns the number of points on a card, once the points which have expired by now have been taken off it.
+         * Must only be called on this shard's thread.
+         * @param card the card
+         * @return the number of points
+         */
+        private int getNumberOfPoints(Card card) {
+
+            expireDueLots(card, EarningRules.day(clock.millis()));
+            return card.points;
+        }
+
+        /**
+         * Takes the points which have expired by a day off a card, without counting it as a use. Must only be called on
+         * this shard's thread.
+         * @param card the card
+         * @param today the day, counted from the epoch
+         */
+        private void expireDueLots(Card card, long today) {
+
+            if (card.lots != null && card.lots.getFirstExpiry() <= today) {
+
+                int expired = card.lots.expire(today);
+
+                card.points -= expired;
+                totalPoints -= expired;
+            }
+        }
+
+        /**
+         * Expires the points on the next batch of the cards whose points have fallen due by now, so the shard's total
+         * catches up, and schedules their timers again for their oldest lots left. Must only be called on this shard's
+         * thread.
+         * @return false if no cards were due
+         */
+        private boolean expirePoints() {
+
+            long today = EarningRules.day(clock.millis());
+            List<Card> due = expirySchedule.takeDue(today);
+
+            for (Card card : due) {
+
+                // The card may have been removed since its timer fell due.
+                if (card.scheduled) {
+                    card.scheduled = false;
+                    expireDueLots(card, today);
+
+                    if (card.lots.size() > 0) {
+                        expirySchedule.schedule(card.timer, card.lots.getFirstExpiry());
+                        card.scheduled = true;
+                    }
+                }
+            }
+            return !due.isEmpty();
+        }
+
+        /**
+         * Counts a use of a card, and publishes it as this shard's most used card if it now is. As uses only ever go
+         * up, the card that has just been used is the only one that can have overtaken the most used card.
+         * @param card the card
+         */
+        private void used(Card card) {
+
+            card.uses++;
+
+            Leader leader = mostUsed;
+
+            if (leader == null || leader.card == card || card.uses > leader.uses
+                    || card.uses == leader.uses && card.registration < leader.card.registration) {
+                mostUsed = new Leader(card);
+            }
+        }
+    }
+
+    /**
+     * Some work queued for a shard's thread, and the future for its result.
+     * @param <T> the type of the result
+     */
+    private static final class Call<T> {
+
+        private final Callable<T> work;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private Call(Callable<T> work) {
+            this.work = work;
+        }
+
+        /**
+         * Does the work and completes the future with its result, or with the exception it threw.
+         */
+        private void run() {
+
+            try {
+                future.complete(work.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * A card in a shard, which is only ever read and written on the shard's thread.
+     */
+    private static final class Card {
+
+        private final ILoyaltyCardOwner owner;
+        private final long registration;
+        private int points;
+        private int uses;
+
+        // The lots of the card's points and its expiry timer, once it has earned any.
+        private PointLots lots;
+        private ExpiryWheel.Timer<Card> timer;
+        private boolean scheduled;
+
+        private Card(ILoyaltyCardOwner owner, long registration) {
+            this.owner = owner;
+            this.registration = registration;
+        }
+    }
+
+    /**
+     * The most used card of a shard as it was when it was published, which any thread can read.
+     */
+    private static final class Leader {
+
+        private final Card card;
+        private final ILoyaltyCardOwner owner;
+        private final long registration;
+        private final int uses;
+
+        private Leader(Card card) {
+            this.card = card;
+            this.owner = card.owner;
+            this.registration = card.registration;
+            this.uses = card.uses;
+        }
+
+        /**
+         * Checks whether this card has been used more than another, or as much but was registered first.
+         * @param other the other card
+         * @return true if this card beats the other
+         */
+        private boolean beats(Leader other) {
+            return uses > other.uses || uses == other.uses && registration < other.registration;
+        }
+    }
+}
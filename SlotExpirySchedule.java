@@ -0,0 +1,204 @@
+package impl;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class schedules when the points on cards expire by dense int slots, such as the slots of their records in a
+ * {@link MappedCardLedger} or the ids of cards kept in columns, and hands out the slots whose points have fallen due in
+ * small batches, as {@link ExpirySchedule} does for cards kept as objects, but without an object for each card.
+ *
+ * Each slot scheduled is linked into a bucket for the day it is due on, in a ring of {@value #DAYS} buckets, which is
+ * longer than points are valid for. The links are kept in int arrays indexed by slot, 12 bytes for each slot, so
+ * linking and unlinking a slot take constant time. A slot due too far ahead for the ring is put in its last bucket
+ * instead, and one due on or before the day being handed out is put in that day's bucket; either way it is handed out
+ * no later than it is due, and whoever handles it finds nothing to expire if it is early. The first call to ask for a
+ * batch after the day changes walks the buckets up to the new day, and each call takes up to {@value #BATCH} slots,
+ * until there are none left. No call ever waits for another to hand out a batch.
+ *
+ * The schedule is safe to share between threads.
+ *
+ */
+final class SlotExpirySchedule {
+
+    /**
+     * The most slots handed out in one batch.
+     */
+    static final int BATCH = 64;
+
+    private static final int DAYS = 512;
+    private static final int UNSCHEDULED = Integer.MIN_VALUE;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int[] heads = new int[DAYS];
+
+    // The day each slot is due on, or UNSCHEDULED, and its neighbours in its bucket, where -1 marks either end.
+    private int[] days;
+    private int[] next;
+    private int[] previous;
+
+    // The day whose bucket is being handed out, and whether it may still hold slots.
+    private volatile long cursor;
+    private volatile boolean pending;
+
+    /**
+     * Constructor for an empty schedule.
+     * @param day the day the schedule starts at, counted from the epoch
+     * @param capacity the number of slots to make room for
+     */
+    SlotExpirySchedule(long day, int capacity) {
+
+        this.cursor = day;
+        this.days = new int[capacity];
+        this.next = new int[capacity];
+        this.previous = new int[capacity];
+        Arrays.fill(heads, -1);
+        Arrays.fill(days, UNSCHEDULED);
+    }
+
+    /**
+     * Makes room for more slots, if there is not already room for them.
+     * @param capacity the number of slots to make room for
+     */
+    void grow(int capacity) {
+
+        lock.lock();
+        try {
+            if (capacity > days.length) {
+
+                int old = days.length;
+
+                days = Arrays.copyOf(days, capacity);
+                next = Arrays.copyOf(next, capacity);
+                previous = Arrays.copyOf(previous, capacity);
+                Arrays.fill(days, old, capacity, UNSCHEDULED);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether a slot is scheduled. The answer may already be out of date when it is read, so a caller which
+     * finds the slot scheduled must leave it to whoever handles the slot's batch to schedule it again.
+     * @param slot the slot
+     * @return true if the slot is scheduled
+     */
+    boolean isScheduled(int slot) {
+        return days[slot] != UNSCHEDULED;
+    }
+
+    /**
+     * Schedules a slot, unless it is scheduled already.
+     * @param slot the slot
+     * @param day the day the slot is due on, counted from the epoch
+     */
+    void schedule(int slot, long day) {
+
+        lock.lock();
+        try {
+            if (days[slot] != UNSCHEDULED) {
+                return;
+            }
+
+            long from = cursor;
+            long bucket = Math.min(Math.max(day, from), from + DAYS - 1);
+            int index = Math.floorMod(bucket, DAYS);
+
+            days[slot] = (int) bucket;
+            previous[slot] = -1;
+            next[slot] = heads[index];
+
+            if (heads[index] >= 0) {
+                previous[heads[index]] = slot;
+            }
+            heads[index] = slot;
+
+            if (bucket == from) {
+                pending = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels a slot, if it is scheduled.
+     * @param slot the slot
+     */
+    void cancel(int slot) {
+
+        lock.lock();
+        try {
+            if (days[slot] != UNSCHEDULED) {
+                unlink(slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether there may be slots due by a day, so that a caller need only make room for a batch if there are.
+     * @param day the day, counted from the epoch
+     * @return false if no slot has fallen due
+     */
+    boolean isDue(long day) {
+        return day > cursor || pending;
+    }
+
+    /**
+     * Takes the next batch of the slots which have fallen due by a day, walking the buckets forward to the day first if
+     * they have not been already. The slots taken are no longer scheduled. Nothing is taken, straight away, if nothing
+     * has fallen due or another thread is taking a batch.
+     * @param day the day, counted from the epoch
+     * @param batch the array to put the slots in, which has room for {@value #BATCH}
+     * @return the number of slots taken
+     */
+    int takeDue(long day, int[] batch) {
+
+        if (!isDue(day) || !lock.tryLock()) {
+            return 0;
+        }
+        try {
+            int count = 0;
+            long at = cursor;
+
+            while (count < BATCH) {
+
+                int slot = heads[Math.floorMod(at, DAYS)];
+
+                if (slot >= 0) {
+                    unlink(slot);
+                    batch[count++] = slot;
+                } else if (at < day) {
+                    at++;
+                } else {
+                    break;
+                }
+            }
+            cursor = at;
+            pending = heads[Math.floorMod(at, DAYS)] >= 0;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unlinks a scheduled slot from its bucket. Must only be called while holding the lock.
+     * @param slot the slot
+     */
+    private void unlink(int slot) {
+
+        if (previous[slot] >= 0) {
+            next[previous[slot]] = next[slot];
+        } else {
+            heads[Math.floorMod((long) days[slot], DAYS)] = next[slot];
+        }
+        if (next[slot] >= 0) {
+            previous[next[slot]] = previous[slot];
+        }
+        days[slot] = UNSCHEDULED;
+    }
+}
@@ -0,0 +1,182 @@
+package impl;
+
+import java.util.Arrays;
+
+/**
+ * This class ranks the cards in the records of a {@link MappedCardLedger} by their number of uses, by the slots of
+ * their records, so that the most used card can be read at once however cards are used and removed, without an object
+ * for each card.
+ *
+ * The ranking is an indexed binary heap: an int array of slots in heap order, with the most used card first and, of
+ * cards used as much, the one registered first, and the position of each slot in the heap, its uses and its
+ * registration in arrays indexed by slot, 20 bytes for each card which has been used. As uses only ever go up, a use
+ * only moves its card towards the top, past the few cards it overtakes, and removing a card moves the last card into
+ * its place; either takes at most one step for each level of the heap.
+ *
+ * The ranking is safe to share between threads.
+ *
+ */
+final class SlotRanking {
+
+    private int[] heap;
+    private int size;
+
+    // The position of each slot in the heap, or -1 if it is not ranked, and the uses and registration it is ranked by.
+    private int[] positions;
+    private int[] uses;
+    private long[] registrations;
+
+    /**
+     * Constructor for an empty ranking.
+     * @param capacity the number of slots to make room for
+     */
+    SlotRanking(int capacity) {
+
+        this.heap = new int[capacity];
+        this.positions = new int[capacity];
+        this.uses = new int[capacity];
+        this.registrations = new long[capacity];
+        Arrays.fill(positions, -1);
+    }
+
+    /**
+     * Makes room for more slots, if there is not already room for them.
+     * @param capacity the number of slots to make room for
+     */
+    synchronized void grow(int capacity) {
+
+        if (capacity > positions.length) {
+
+            int old = positions.length;
+
+            heap = Arrays.copyOf(heap, capacity);
+            positions = Arrays.copyOf(positions, capacity);
+            uses = Arrays.copyOf(uses, capacity);
+            registrations = Arrays.copyOf(registrations, capacity);
+            Arrays.fill(positions, old, capacity, -1);
+        }
+    }
+
+    /**
+     * Ranks a card by a number of uses it has reached, unless it is already ranked by as many, e.g. because a later
+     * use of the card was recorded first.
+     * @param slot the slot of the card's record
+     * @param registration the number the ledger issued the card as
+     * @param used the card's number of uses
+     */
+    synchronized void record(int slot, long registration, int used) {
+
+        int position = positions[slot];
+
+        if (position < 0) {
+            position = size++;
+            heap[position] = slot;
+            positions[slot] = position;
+        } else if (used <= uses[slot]) {
+            return;
+        }
+        uses[slot] = used;
+        registrations[slot] = registration;
+        siftUp(position);
+    }
+
+    /**
+     * Takes a card out of the ranking, if it is ranked.
+     * @param slot the slot of the card's record
+     */
+    synchronized void remove(int slot) {
+
+        int position = positions[slot];
+
+        if (position < 0) {
+            return;
+        }
+        positions[slot] = -1;
+
+        int last = heap[--size];
+
+        if (position < size) {
+            place(last, position);
+            siftDown(siftUp(position));
+        }
+    }
+
+    /**
+     * Returns the slot of the most used card.
+     * @return the slot, or -1 if no card is ranked
+     */
+    synchronized int top() {
+        return size > 0 ? heap[0] : -1;
+    }
+
+    /**
+     * Moves the slot at a position towards the top while it beats its parent.
+     * @param position the position
+     * @return the position the slot ends up at
+     */
+    private int siftUp(int position) {
+
+        int slot = heap[position];
+
+        while (position > 0) {
+
+            int parent = (position - 1) >>> 1;
+
+            if (!beats(slot, heap[parent])) {
+                break;
+            }
+            place(heap[parent], position);
+            position = parent;
+        }
+        place(slot, position);
+        return position;
+    }
+
+    /**
+     * Moves the slot at a position towards the bottom while either of its children beats it.
+     * @param position the position
+     */
+    private void siftDown(int position) {
+
+        int slot = heap[position];
+
+        while (true) {
+
+            int child = 2 * position + 1;
+
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && beats(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!beats(heap[child], slot)) {
+                break;
+            }
+            place(heap[child], position);
+            position = child;
+        }
+        place(slot, position);
+    }
+
+    /**
+     * Puts a slot at a position in the heap.
+     * @param slot the slot
+     * @param position the position
+     */
+    private void place(int slot, int position) {
+
+        heap[position] = slot;
+        positions[slot] = position;
+    }
+
+    /**
+     * Checks whether one card has been used more than another, or as much but was registered first.
+     * @param slot the slot of the one card
+     * @param other the slot of the other card
+     * @return true if the one card beats the other
+     */
+    private boolean beats(int slot, int other) {
+        return uses[slot] > uses[other] || uses[slot] == uses[other] && registrations[slot] < registrations[other];
+    }
+}
@@ -0,0 +1,97 @@
+package impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * This class measures how long a {@link JournaledLoyaltyCardOperator} takes to start up, first by replaying its whole
+ * journal and then from a snapshot. It writes a journal in which every member registers and makes a few purchases,
+ * times opening an operator over it, takes a snapshot, and times opening the operator again. The number of members and
+ * the number of purchases per member can be given as the first and second arguments, and default to one million and
+ * three.
+ *
+ */
+public final class StartupTime {
+
+    private StartupTime() {
+    }
+
+    /**
+     * Writes the journal and prints the startup times and file sizes.
+     * @param args the number of members and the number of purchases per member, optionally
+     * @throws IOException if the journal or the snapshot cannot be written or read
+     */
+    public static void main(String[] args) throws IOException {
+
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int purchases = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Path directory = Files.createTempDirectory("startup");
+        Path file = directory.resolve("cards.journal");
+
+        try {
+            // Appending straight to the journal, without waiting for each batch to be synced, keeps this quick.
+            // The journal is new, so there is nothing for a replayer to be given.
+            TransactionJournal journal = TransactionJournal.open(file, 4096, 2, null);
+
+            for (int i = 0; i < members; i++) {
+                journal.appendRegister(email(i), "Member " + i);
+            }
+
+            long now = System.currentTimeMillis();
+
+            for (int p = 0; p < purchases; p++) {
+                for (int i = 0; i < members; i++) {
+                    journal.appendPoints(TransactionJournal.POINTS_EARNED, email(i), now, p + 1);
+                }
+            }
+            journal.close();
+
+            System.out.printf("members: %,d, purchases: %,d%n", members, (long) members * purchases);
+            System.out.printf("journal:            %,d bytes%n", Files.size(file));
+
+            long start = System.nanoTime();
+            JournaledLoyaltyCardOperator operator = new JournaledLoyaltyCardOperator(file, 512, 2);
+            System.out.printf("replaying journal:  %,d ms%n", (System.nanoTime() - start) / 1_000_000);
+
+            start = System.nanoTime();
+            operator.snapshot();
+            System.out.printf("taking snapshot:    %,d ms%n", (System.nanoTime() - start) / 1_000_000);
+            operator.close();
+
+            System.out.printf("snapshot:           %,d bytes%n",
+                    Files.size(directory.resolve("cards.journal.snapshot")));
+
+            operator = null;
+            System.gc();
+
+            start = System.nanoTime();
+            operator = new JournaledLoyaltyCardOperator(file, 512, 2);
+            System.out.printf("loading snapshot:   %,d ms%n", (System.nanoTime() - start) / 1_000_000);
+
+            if (operator.getNumberOfCustomers() != members) {
+                throw new IllegalStateException("Snapshot lost members");
+            }
+            operator.close();
+
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path path : files.toArray(Path[]::new)) {
+                    Files.delete(path);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Returns the email of a generated member.
+     * @param member the number of the member
+     * @return the email
+     */
+    private static String email(int member) {
+        return "member" + member + "@example.com";
+    }
+}
@@ -4,8 +4,27 @@ import common.InsufficientPointsException;
 import common.AbstractFactoryClient;
 import common.OwnerAlreadyRegisteredException;
 import common.OwnerNotRegisteredException;
+import common.PurchaseRecord;
+import common.PurchaseResult;
 
+import impl.CacheMetrics;
+import impl.CardSnapshot;
+import impl.EarningRules;
+import impl.ExportFormat;
 import impl.Factory;
+import impl.ImportReport;
+import impl.InstrumentedLoyaltyCardOperator;
+import impl.JournaledLoyaltyCardOperator;
+import impl.LoyaltyCard;
+import impl.LoyaltyCardOperator;
+import impl.LoyaltyCardServer;
+import impl.MappedCardLedger;
+import impl.OperatorMetrics;
+import impl.PrimitiveLoyaltyCardOperator;
+import impl.RemoteLoyaltyCardOperator;
+import impl.ShardedLoyaltyCardOperator;
+import impl.TieredLoyaltyCardOperator;
+import impl.UsageWindow;
 import interfaces.IFactory;
 import interfaces.ILoyaltyCard;
 import interfaces.ILoyaltyCardOwner;
@@ -14,6 +33,47 @@ import interfaces.ILoyaltyCardOperator;
 import org.junit.Test;
 import org.junit.Before;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -607,6 +667,35 @@ public class Tests extends AbstractFactoryClient {
         }
     }
 
+    /**
+     * This tests that the running total kept by the loyaltyCardOperator class does not overflow when the points on all
+     * cards add up to more than an int can hold.
+     */
+    @Test
+    public void getTotalNumberOfPointsBeyondIntRange() {
+
+        try {
+
+            LoyaltyCardOperator operator = new LoyaltyCardOperator();
+            ILoyaltyCardOwner owner1 = factory.makeLoyaltyCardOwner("owner1@owner.com", "owner1");
+
+            operator.registerOwner(loyaltyCardOwner);
+            operator.registerOwner(owner1);
+
+            for (int i = 0; i < 101; i++) {
+                operator.processMoneyPurchase(i % 2 == 0 ? loyaltyCardOwner.getEmail() : owner1.getEmail(), Integer.MAX_VALUE);
+            }
+
+            assertEquals(101L * (Integer.MAX_VALUE / 100), operator.getTotalNumberOfPointsAsLong());
+            assertEquals((int) (101L * (Integer.MAX_VALUE / 100)), operator.getTotalNumberOfPoints());
+
+        } catch (OwnerAlreadyRegisteredException e) {
+            e.printStackTrace();
+        } catch (OwnerNotRegisteredException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * This tests the getMostUsed() method in the loyaltyCardOperator class when three owners have been registered.
      */
@@ -640,6 +729,71 @@ public class Tests extends AbstractFactoryClient {
         }
     }
 
+    /**
+     * This tests that the getMostUsed() method in the loyaltyCardOperator class returns the owner who registered first
+     * when two cards have been used the same number of times.
+     */
+    @Test
+    public void getMostUsedCardWithTieReturnsFirstRegistered() {
+
+        try {
+
+            ILoyaltyCardOwner owner1 = factory.makeLoyaltyCardOwner("owner1@owner.com", "owner1");
+
+            loyaltyCardOperator.registerOwner(owner1);
+            loyaltyCardOperator.registerOwner(loyaltyCardOwner);
+
+            loyaltyCardOperator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 200);
+            loyaltyCardOperator.processMoneyPurchase(owner1.getEmail(), 200);
+
+            assertEquals(owner1, loyaltyCardOperator.getMostUsed());
+
+        } catch (OwnerAlreadyRegisteredException e) {
+            e.printStackTrace();
+        } catch (OwnerNotRegisteredException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This tests that the getMostUsed(int) and getMostPoints(int) methods in the loyaltyCardOperator class rank owners
+     * by number of uses and by number of points, break ties by registration order and leave out unused cards.
+     */
+    @Test
+    public void getTopOwnersByUsesAndPoints() {
+
+        try {
+
+            LoyaltyCardOperator operator = new LoyaltyCardOperator();
+            ILoyaltyCardOwner owner1 = factory.makeLoyaltyCardOwner("owner1@owner.com", "owner1");
+            ILoyaltyCardOwner owner2 = factory.makeLoyaltyCardOwner("owner2@owner.com", "owner2");
+            ILoyaltyCardOwner owner3 = factory.makeLoyaltyCardOwner("owner3@owner.com", "owner3");
+
+            operator.registerOwner(loyaltyCardOwner);
+            operator.registerOwner(owner1);
+            operator.registerOwner(owner2);
+            operator.registerOwner(owner3);
+
+            operator.processMoneyPurchase(owner1.getEmail(), 100);
+            operator.processMoneyPurchase(owner1.getEmail(), 100);
+            operator.processMoneyPurchase(owner2.getEmail(), 900);
+            operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 900);
+            operator.processPointsPurchase(loyaltyCardOwner.getEmail(), 9);
+
+            assertEquals(List.of(loyaltyCardOwner, owner1, owner2), operator.getMostUsed(10));
+            assertEquals(List.of(loyaltyCardOwner), operator.getMostUsed(1));
+            assertEquals(List.of(owner2, owner1), operator.getMostPoints(10));
+            assertEquals(List.of(), operator.getMostPoints(0));
+
+        } catch (OwnerAlreadyRegisteredException e) {
+            e.printStackTrace();
+        } catch (InsufficientPointsException e) {
+            e.printStackTrace();
+        } catch (OwnerNotRegisteredException e) {
+            e.printStackTrace();
+        }
+    }
+
     //!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
     /**
      * This ensures that the OwnerNotRegisteredException is thrown when using the getMostUsed() method in the
@@ -709,6 +863,519 @@ public class Tests extends AbstractFactoryClient {
         }
     }
 
+    /**
+     * This tests that the processPurchases() method applies each owner's purchases in order and reports a result for
+     * every purchase instead of throwing exceptions, both in the LoyaltyCardOperator class and in the interface's
+     * default, which the sharded operator uses.
+     */
+    @Test
+    public void processBatchOfPurchases() {
+
+        ShardedLoyaltyCardOperator sharded = new ShardedLoyaltyCardOperator(2);
+
+        try {
+
+            for (ILoyaltyCardOperator operator : new ILoyaltyCardOperator[] {new LoyaltyCardOperator(), sharded}) {
+
+                ILoyaltyCardOwner owner1 = factory.makeLoyaltyCardOwner("owner1@owner.com", "owner1");
+
+                operator.registerOwner(loyaltyCardOwner);
+                operator.registerOwner(owner1);
+
+                PurchaseResult[] results = operator.processPurchases(List.of(
+                        PurchaseRecord.pointsPurchase(loyaltyCardOwner.getEmail(), 5),
+                        PurchaseRecord.moneyPurchase(loyaltyCardOwner.getEmail(), 1000),
+                        PurchaseRecord.moneyPurchase("nobody@owner.com", 1000),
+                        PurchaseRecord.moneyPurchase(owner1.getEmail(), 300),
+                        PurchaseRecord.pointsPurchase(loyaltyCardOwner.getEmail(), 5),
+                        PurchaseRecord.pointsPurchase(owner1.getEmail(), 4)));
+
+                assertArrayEquals(new PurchaseResult[] {PurchaseResult.INSUFFICIENT_POINTS, PurchaseResult.OK,
+                        PurchaseResult.OWNER_NOT_REGISTERED, PurchaseResult.OK, PurchaseResult.OK,
+                        PurchaseResult.INSUFFICIENT_POINTS}, results);
+
+                assertEquals(5, operator.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+                assertEquals(2, operator.getNumberOfUses(loyaltyCardOwner.getEmail()));
+                assertEquals(3, operator.getNumberOfPoints(owner1.getEmail()));
+                assertEquals(8, operator.getTotalNumberOfPoints());
+                assertEquals(loyaltyCardOwner.getEmail(), operator.getMostUsed().getEmail());
+            }
+
+        } catch (OwnerAlreadyRegisteredException e) {
+            e.printStackTrace();
+            fail(e);
+        } catch (OwnerNotRegisteredException e) {
+            e.printStackTrace();
+            fail(e);
+        } finally {
+            sharded.close();
+        }
+    }
+
+    /**
+     * This tests that the status-returning purchase methods in the LoyaltyCardOperator and LoyaltyCard classes report
+     * failures as results, and leave the card unchanged when they fail.
+     */
+    @Test
+    public void tryPurchasesReportFailuresWithoutThrowing() {
+
+        try {
+
+            LoyaltyCardOperator operator = new LoyaltyCardOperator();
+
+            operator.registerOwner(loyaltyCardOwner);
+
+            assertEquals(PurchaseResult.OWNER_NOT_REGISTERED, operator.tryProcessMoneyPurchase("nobody@owner.com", 100));
+            assertEquals(PurchaseResult.OWNER_NOT_REGISTERED, operator.tryProcessPointsPurchase("nobody@owner.com", 1));
+            assertEquals(PurchaseResult.INSUFFICIENT_POINTS, operator.tryProcessPointsPurchase(loyaltyCardOwner.getEmail(), 1));
+            assertEquals(PurchaseResult.OK, operator.tryProcessMoneyPurchase(loyaltyCardOwner.getEmail(), 100));
+            assertEquals(PurchaseResult.OK, operator.tryProcessPointsPurchase(loyaltyCardOwner.getEmail(), 1));
+            assertEquals(2, operator.getNumberOfUses(loyaltyCardOwner.getEmail()));
+
+            LoyaltyCard card = new LoyaltyCard(loyaltyCardOwner);
+
+            card.addPoints(1);
+
+            assertFalse(card.tryUsePoints(2));
+            assertEquals(1, card.getNumberOfPoints());
+            assertEquals(1, card.getNumberOfUses());
+            assertTrue(card.tryUsePoints(1));
+            assertEquals(0, card.getNumberOfPoints());
+
+        } catch (OwnerAlreadyRegisteredException e) {
+            e.printStackTrace();
+        } catch (OwnerNotRegisteredException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This tests that the PrimitiveLoyaltyCardOperator class behaves like the LoyaltyCardOperator class, including after
+     * its columns have had to grow, and that the card views it creates write through to its columns.
+     */
+    @Test
+    public void primitiveOperatorMatchesOperator() {
+
+        try {
+
+            PrimitiveLoyaltyCardOperator operator = new PrimitiveLoyaltyCardOperator();
+
+            for (int i = 0; i < 1000; i++) {
+                operator.registerOwner(factory.makeLoyaltyCardOwner("owner" + i + "@owner.com", "owner" + i));
+            }
+            operator.registerOwner(loyaltyCardOwner);
+
+            assertEquals(1001, operator.getNumberOfCustomers());
+            assertNull(operator.getMostUsed());
+
+            operator.processMoneyPurchase("owner500@owner.com", 700);
+            operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 300);
+            operator.processPointsPurchase("owner500@owner.com", 2);
+
+            assertEquals(5, operator.getNumberOfPoints("owner500@owner.com"));
+            assertEquals(2, operator.getNumberOfUses("owner500@owner.com"));
+            assertEquals(8, operator.getTotalNumberOfPoints());
+            assertEquals("owner500@owner.com", operator.getMostUsed().getEmail());
+
+            operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 100);
+
+            assertEquals("owner500@owner.com", operator.getMostUsed().getEmail());
+
+            ILoyaltyCard card = operator.getCard(loyaltyCardOwner.getEmail());
+
+            card.usePoints(4);
+
+            assertEquals(0, operator.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+            assertEquals(loyaltyCardOwner, operator.getMostUsed());
+
+            operator.unregisterOwner(loyaltyCardOwner);
+
+            assertEquals(1000, operator.getNumberOfCustomers());
+
+        } catch (OwnerAlreadyRegisteredException e) {
+            e.printStackTrace();
+        } catch (InsufficientPointsException e) {
+            e.printStackTrace();
+        } catch (OwnerNotRegisteredException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This tests that an operator made by the factory with a ledger file keeps its cards in the file, and that a new
+     * operator over the same file starts with the same owners, points, uses and most used card, however long their
+     * emails and names are.
+     */
+    @Test
+    public void ledgerOperatorSurvivesRestart() {
+
+        try {
+
+            Path file = Files.createTempFile("cards", ".ledger");
+            Files.delete(file);
+            System.setProperty(Factory.LEDGER_PROPERTY, file.toString());
+
+            try {
+
+                ILoyaltyCardOwner owner1 = factory.makeLoyaltyCardOwner("owner1@owner.com", "owner1");
+                ILoyaltyCardOwner long1 = factory.makeLoyaltyCardOwner("x".repeat(600) + "@owner.com", "Ł".repeat(300));
+                ILoyaltyCardOperator operator = factory.makeLoyaltyCardOperator();
+
+                operator.registerOwner(loyaltyCardOwner);
+                operator.registerOwner(owner1);
+                operator.registerOwner(long1);
+                operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 1200);
+                operator.processPointsPurchase(loyaltyCardOwner.getEmail(), 2);
+                operator.processMoneyPurchase(owner1.getEmail(), 500);
+                operator.processMoneyPurchase(long1.getEmail(), 300);
+                operator.unregisterOwner(owner1);
+                ((LoyaltyCardOperator) operator).close();
+
+                operator = factory.makeLoyaltyCardOperator();
+
+                assertEquals(2, operator.getNumberOfCustomers());
+                assertEquals(10, operator.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+                assertEquals(2, operator.getNumberOfUses(loyaltyCardOwner.getEmail()));
+                assertEquals(3, operator.getNumberOfPoints(long1.getEmail()));
+                assertEquals(13, operator.getTotalNumberOfPoints());
+                assertEquals(loyaltyCardOwner.getEmail(), operator.getMostUsed().getEmail());
+                assertEquals(long1.getName(), ((LoyaltyCardOperator) operator).getMostPoints(2).get(1).getName());
+
+                // The records freed by the long owner's card are reused by the next cards issued.
+                operator.unregisterOwner(long1);
+                operator.registerOwner(owner1);
+                operator.registerOwner(long1);
+
+                assertEquals(0, operator.getNumberOfPoints(owner1.getEmail()));
+                assertEquals(0, operator.getNumberOfPoints(long1.getEmail()));
+
+                operator.processMoneyPurchase(long1.getEmail(), 100);
+
+                assertEquals(long1.getName(), ((LoyaltyCardOperator) operator).getMostPoints(2).get(1).getName());
+                ((LoyaltyCardOperator) operator).close();
+
+            } finally {
+                System.clearProperty(Factory.LEDGER_PROPERTY);
+                Files.deleteIfExists(file);
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail(e);
+        } catch (OwnerAlreadyRegisteredException e) {
+            e.printStackTrace();
+        } catch (InsufficientPointsException e) {
+            e.printStackTrace();
+        } catch (OwnerNotRegisteredException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This tests that a journaled operator rebuilds its owners, points and uses from its journal when it is reopened,
+     * and that a torn record at the end of the journal is ignored.
+     */
+    @Test
+    public void journaledOperatorReplaysJournal() {
+
+        try {
+
+            Path file = Files.createTempFile("cards", ".journal");
+
+            try {
+
+                ILoyaltyCardOwner owner1 = factory.makeLoyaltyCardOwner("owner1@owner.com", "owner1");
+                JournaledLoyaltyCardOperator operator = new JournaledLoyaltyCardOperator(file, 16, 1);
+
+                operator.registerOwner(loyaltyCardOwner);
+                operator.registerOwner(owner1);
+                operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 1200);
+                operator.processPointsPurchase(loyaltyCardOwner.getEmail(), 2);
+                operator.processMoneyPurchase(owner1.getEmail(), 500);
+                operator.unregisterOwner(owner1);
+                operator.close();
+
+                Files.write(file, new byte[] {0, 0, 0, 40, 3, 0}, StandardOpenOption.APPEND);
+
+                operator = new JournaledLoyaltyCardOperator(file, 16, 1);
+
+                assertEquals(1, operator.getNumberOfCustomers());
+                assertEquals(10, operator.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+                assertEquals(2, operator.getNumberOfUses(loyaltyCardOwner.getEmail()));
+                assertEquals(10, operator.getTotalNumberOfPoints());
+                assertEquals(loyaltyCardOwner.getEmail(), operator.getMostUsed().getEmail());
+
+                // A record too large to be read back is refused before it is journaled, so it cannot hide later ones.
+                ILoyaltyCardOwner huge = factory.makeLoyaltyCardOwner("huge@owner.com", "n".repeat(1 << 20));
+                JournaledLoyaltyCardOperator journaled = operator;
+
+                assertThrows(IllegalArgumentException.class, () -> journaled.registerOwner(huge));
+                assertEquals(1, operator.getNumberOfCustomers());
+
+                operator.registerOwner(owner1);
+                operator.close();
+
+                operator = new JournaledLoyaltyCardOperator(file, 16, 1);
+
+                assertEquals(2, operator.getNumberOfCustomers());
+                assertEquals(0, operator.getNumberOfPoints(owner1.getEmail()));
+                operator.close();
+
+            } finally {
+                Files.deleteIfExists(file);
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail(e);
+        } catch (OwnerAlreadyRegisteredException e) {
+            e.printStackTrace();
+            fail(e);
+        } catch (InsufficientPointsException e) {
+            e.printStackTrace();
+            fail(e);
+        } catch (OwnerNotRegisteredException e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that a snapshot compacts the journal, and that a journaled operator reopened from its snapshot and the
+     * journal written after it has the same owners, points and uses as before.
+     */
+    @Test
+    public void journaledOperatorRestartsFromSnapshot() {
+
+        try {
+
+            Path directory = Files.createTempDirectory("cards");
+            Path file = directory.resolve("cards.journal");
+
+            try {
+
+                ILoyaltyCardOwner owner1 = factory.makeLoyaltyCardOwner("owner1@owner.com", "owner1");
+                JournaledLoyaltyCardOperator operator = new JournaledLoyaltyCardOperator(file, 16, 1);
+
+                operator.registerOwner(loyaltyCardOwner);
+                operator.registerOwner(owner1);
+                operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 1200);
+                operator.processPointsPurchase(loyaltyCardOwner.getEmail(), 2);
+                operator.unregisterOwner(owner1);
+                operator.snapshot();
+
+                operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 300);
+                operator.snapshot();
+
+                operator.registerOwner(owner1);
+                operator.processMoneyPurchase(owner1.getEmail(), 700);
+                operator.processMoneyPurchase(owner1.getEmail(), 100);
+                operator.processMoneyPurchase(owner1.getEmail(), 100);
+
+                // Names and emails too long for writeUTF still go into the image.
+                operator.registerOwner(factory.makeLoyaltyCardOwner("owner2@owner.com", "n".repeat(70000)));
+                operator.snapshot();
+                operator.close();
+
+                try (Stream<Path> files = Files.list(directory)) {
+                    assertEquals(2, files.count());
+                }
+
+                operator = new JournaledLoyaltyCardOperator(file, 16, 1);
+
+                // Both cards have been used three times, and the image keeps the order they were registered in.
+                assertEquals(3, operator.getNumberOfCustomers());
+                assertEquals(13, operator.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+                assertEquals(3, operator.getNumberOfUses(loyaltyCardOwner.getEmail()));
+                assertEquals(9, operator.getNumberOfPoints(owner1.getEmail()));
+                assertEquals(22, operator.getTotalNumberOfPoints());
+                assertEquals(loyaltyCardOwner.getEmail(), operator.getMostUsed().getEmail());
+
+                operator.registerOwner(factory.makeLoyaltyCardOwner("owner3@owner.com", "owner3"));
+                operator.unregisterOwner(loyaltyCardOwner);
+                assertEquals(owner1.getEmail(), operator.getMostUsed().getEmail());
+                assertNull(operator.getSnapshotFailure());
+                operator.close();
+
+            } finally {
+                try (Stream<Path> files = Files.list(directory)) {
+                    for (Path path : files.toArray(Path[]::new)) {
+                        Files.delete(path);
+                    }
+                }
+                Files.delete(directory);
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail(e);
+        } catch (OwnerAlreadyRegisteredException e) {
+            e.printStackTrace();
+            fail(e);
+        } catch (InsufficientPointsException e) {
+            e.printStackTrace();
+            fail(e);
+        } catch (OwnerNotRegisteredException e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that a journaled operator only applies a transaction once it has been journaled, so a transaction
+     * which cannot be journaled, here because the journal has been closed, leaves the operator as it was.
+     */
+    @Test
+    public void journaledOperatorLeavesUnjournaledTransactionsUnapplied() {
+
+        try {
+
+            Path file = Files.createTempFile("cards", ".journal");
+
+            try {
+
+                ILoyaltyCardOwner owner1 = factory.makeLoyaltyCardOwner("owner1@owner.com", "owner1");
+                JournaledLoyaltyCardOperator operator = new JournaledLoyaltyCardOperator(file, 16, 1);
+
+                operator.registerOwner(loyaltyCardOwner);
+                operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 1200);
+                operator.close();
+
+                assertThrows(UncheckedIOException.class, () -> operator.registerOwner(owner1));
+                assertThrows(UncheckedIOException.class, () -> operator.unregisterOwner(loyaltyCardOwner));
+                assertThrows(UncheckedIOException.class,
+                        () -> operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 500));
+                assertThrows(UncheckedIOException.class,
+                        () -> operator.processPointsPurchase(loyaltyCardOwner.getEmail(), 2));
+                assertThrows(InsufficientPointsException.class,
+                        () -> operator.processPointsPurchase(loyaltyCardOwner.getEmail(), 13));
+
+                assertEquals(1, operator.getNumberOfCustomers());
+                assertEquals(12, operator.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+                assertEquals(1, operator.getNumberOfUses(loyaltyCardOwner.getEmail()));
+                assertEquals(12, operator.getTotalNumberOfPoints());
+
+                JournaledLoyaltyCardOperator reopened = new JournaledLoyaltyCardOperator(file, 16, 1);
+
+                assertEquals(1, reopened.getNumberOfCustomers());
+                assertEquals(12, reopened.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+                reopened.close();
+
+            } finally {
+                Files.deleteIfExists(file);
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail(e);
+        } catch (OwnerAlreadyRegisteredException e) {
+            e.printStackTrace();
+            fail(e);
+        } catch (OwnerNotRegisteredException e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This is a recovery test which runs a journaled operator in another JVM, has several threads make purchases in it,
+     * and kills the JVM in the middle of a batch. It then checks that every purchase the killed JVM acknowledged is in
+     * the operator rebuilt from the journal.
+     */
+    @Test
+    public void journaledOperatorKeepsAcknowledgedPurchasesAfterKill() {
+
+        try {
+
+            Path file = Files.createTempFile("cards", ".journal");
+
+            try {
+
+                Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                        "-cp", System.getProperty("java.class.path"), JournalWriter.class.getName(), file.toString())
+                        .redirectErrorStream(true).start();
+
+                int[] acknowledged = new int[JournalWriter.THREADS];
+                int total = 0;
+                BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                String line;
+
+                while ((line = output.readLine()) != null) {
+
+                    String[] fields = line.split(" ");
+                    acknowledged[Integer.parseInt(fields[0])] = Integer.parseInt(fields[1]);
+
+                    if (++total == 5000) {
+                        // Killing through the handle leaves the pipe open, so acknowledgements already printed can be read.
+                        process.toHandle().destroyForcibly();
+                    }
+                }
+                process.waitFor();
+
+                JournaledLoyaltyCardOperator operator = new JournaledLoyaltyCardOperator(file, 16, 1);
+
+                for (int t = 0; t < JournalWriter.THREADS; t++) {
+                    assertTrue(operator.getNumberOfUses(JournalWriter.email(t)) >= acknowledged[t]);
+                    assertEquals(operator.getNumberOfUses(JournalWriter.email(t)),
+                            operator.getNumberOfPoints(JournalWriter.email(t)));
+                }
+                assertTrue(total >= 5000);
+                operator.close();
+
+            } finally {
+                Files.deleteIfExists(file);
+            }
+
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            fail(e);
+        } catch (OwnerNotRegisteredException e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This is the program run by journaledOperatorKeepsAcknowledgedPurchasesAfterKill(). It registers one owner per
+     * thread, and then each thread makes money purchases for its owner until the program is killed, printing the thread
+     * and the number of purchases it has had acknowledged after every purchase.
+     */
+    public static final class JournalWriter {
+
+        static final int THREADS = 8;
+
+        static String email(int thread) {
+            return "writer" + thread + "@owner.com";
+        }
+
+        public static void main(String[] args) throws Exception {
+
+            JournaledLoyaltyCardOperator operator = new JournaledLoyaltyCardOperator(Paths.get(args[0]), 64, 1);
+
+            for (int t = 0; t < THREADS; t++) {
+                operator.registerOwner(Factory.getInstance().makeLoyaltyCardOwner(email(t), "writer" + t));
+            }
+
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+
+                new Thread(() -> {
+                    for (int i = 1; ; i++) {
+                        try {
+                            operator.processMoneyPurchase(email(thread), 100);
+                        } catch (OwnerNotRegisteredException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        synchronized (System.out) {
+                            System.out.println(thread + " " + i);
+                            System.out.flush();
+                        }
+                    }
+                }).start();
+            }
+        }
+    }
+
     /**
      * This ensures that a NullPointerException is thrown when creating a LoyaltyCardOwner with null attributes.
      */
@@ -790,4 +1457,1636 @@ public class Tests extends AbstractFactoryClient {
         loyaltyCard.usePoints(20);
     }
 
+    /**
+     * This is a stress test which has many threads register owners and make money purchases on one shared operator at
+     * the same time, and checks that no registration, point or use is lost.
+     */
+    @Test
+    public void concurrentMoneyPurchasesLoseNoUpdates() {
+
+        int threads = 8;
+        int owners = 50;
+        int purchasesPerThread = 20000;
+
+        try {
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Callable<Void>> registrations = new ArrayList<>();
+
+            for (int i = 0; i < owners; i++) {
+                ILoyaltyCardOwner owner = factory.makeLoyaltyCardOwner("owner" + i + "@owner.com", "owner" + i);
+
+                registrations.add(() -> {
+                    loyaltyCardOperator.registerOwner(owner);
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(registrations)) {
+                future.get();
+            }
+
+            assertEquals(owners, loyaltyCardOperator.getNumberOfCustomers());
+
+            List<Callable<Void>> purchases = new ArrayList<>();
+
+            for (int t = 0; t < threads; t++) {
+                purchases.add(() -> {
+                    for (int i = 0; i < purchasesPerThread; i++) {
+                        loyaltyCardOperator.processMoneyPurchase("owner" + (i % owners) + "@owner.com", 100);
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(purchases)) {
+                future.get();
+            }
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+
+            assertEquals(threads * purchasesPerThread, loyaltyCardOperator.getTotalNumberOfPoints());
+            assertEquals(threads * purchasesPerThread / owners, loyaltyCardOperator.getNumberOfUses("owner0@owner.com"));
+            assertEquals(threads * purchasesPerThread / owners, loyaltyCardOperator.getNumberOfPoints("owner0@owner.com"));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This is a stress test which has many threads spend points from the same card at the same time, and checks that
+     * the card is never overdrawn and that exactly as many purchases succeed as there were points on the card.
+     */
+    @Test
+    public void concurrentPointsPurchasesNeverOverdraw() {
+
+        int threads = 8;
+        int attemptsPerThread = 5000;
+        int points = 10000;
+
+        try {
+
+            loyaltyCardOperator.registerOwner(loyaltyCardOwner);
+            loyaltyCardOperator.processMoneyPurchase(loyaltyCardOwner.getEmail(), points * 100);
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Callable<Integer>> purchases = new ArrayList<>();
+
+            for (int t = 0; t < threads; t++) {
+                purchases.add(() -> {
+                    int successes = 0;
+
+                    for (int i = 0; i < attemptsPerThread; i++) {
+                        try {
+                            loyaltyCardOperator.processPointsPurchase(loyaltyCardOwner.getEmail(), 1);
+                            successes++;
+                        } catch (InsufficientPointsException e) {
+                            assertTrue(loyaltyCardOperator.getNumberOfPoints(loyaltyCardOwner.getEmail()) >= 0);
+                        }
+                    }
+                    return successes;
+                });
+            }
+
+            int successes = 0;
+
+            for (Future<Integer> future : executor.invokeAll(purchases)) {
+                successes += future.get();
+            }
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+
+            assertEquals(points, successes);
+            assertEquals(0, loyaltyCardOperator.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+            assertEquals(points + 1, loyaltyCardOperator.getNumberOfUses(loyaltyCardOwner.getEmail()));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that an operator made by the factory with metrics switched on counts its calls and their failures by
+     * type of exception, and publishes them through JMX until it is closed.
+     */
+    @Test
+    public void instrumentedOperatorCountsCallsAndFailures() {
+
+        System.setProperty(Factory.METRICS_PROPERTY, "true");
+
+        try {
+
+            ILoyaltyCardOperator operator = factory.makeLoyaltyCardOperator();
+            assertTrue(operator instanceof InstrumentedLoyaltyCardOperator);
+            InstrumentedLoyaltyCardOperator instrumented = (InstrumentedLoyaltyCardOperator) operator;
+
+            operator.registerOwner(loyaltyCardOwner);
+            operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 1200);
+            operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 300);
+
+            try {
+                operator.processPointsPurchase(loyaltyCardOwner.getEmail(), 100);
+                fail("Expected InsufficientPointsException");
+            } catch (InsufficientPointsException e) {
+                assertEquals(15, operator.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+            }
+            try {
+                operator.processMoneyPurchase("nobody@owner.com", 100);
+                fail("Expected OwnerNotRegisteredException");
+            } catch (OwnerNotRegisteredException e) {
+                assertEquals(1, operator.getNumberOfCustomers());
+            }
+
+            OperatorMetrics metrics = instrumented.getMetrics();
+
+            assertEquals(1, metrics.getCount(InstrumentedLoyaltyCardOperator.Operation.REGISTER));
+            assertEquals(3, metrics.getCount(InstrumentedLoyaltyCardOperator.Operation.MONEY_PURCHASE));
+            assertEquals(1, metrics.getCount(InstrumentedLoyaltyCardOperator.Operation.POINTS_PURCHASE));
+            assertEquals(0, metrics.getCount(InstrumentedLoyaltyCardOperator.Operation.UNREGISTER));
+            assertEquals(1L, metrics.getFailures(InstrumentedLoyaltyCardOperator.Operation.MONEY_PURCHASE)
+                    .get("OwnerNotRegisteredException"));
+            assertEquals(1L, metrics.getFailures(InstrumentedLoyaltyCardOperator.Operation.POINTS_PURCHASE)
+                    .get("InsufficientPointsException"));
+            assertTrue(metrics.getLatencyAtPercentile(InstrumentedLoyaltyCardOperator.Operation.MONEY_PURCHASE, 50)
+                    <= metrics.getMaxLatency(InstrumentedLoyaltyCardOperator.Operation.MONEY_PURCHASE));
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Set<ObjectName> names = server.queryNames(
+                    new ObjectName("impl:type=LoyaltyCardOperator,operation=moneyPurchase,*"), null);
+
+            assertEquals(1, names.size());
+            assertEquals(3L, server.getAttribute(names.iterator().next(), "Count"));
+
+            instrumented.close();
+
+            assertTrue(server.queryNames(new ObjectName("impl:type=LoyaltyCardOperator,*"), null).isEmpty());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        } finally {
+            System.clearProperty(Factory.METRICS_PROPERTY);
+        }
+    }
+
+    /**
+     * This tests that a client of a server gets the same results and exceptions as calling the server's operator
+     * directly, including when several threads pipeline their requests over the one connection.
+     */
+    @Test
+    public void remoteOperatorMatchesServedOperator() {
+
+        try (LoyaltyCardServer server = new LoyaltyCardServer(loyaltyCardOperator, 0)) {
+
+            System.setProperty(Factory.SERVER_PROPERTY, "localhost:" + server.getPort());
+            ILoyaltyCardOperator client = factory.makeLoyaltyCardOperator();
+            System.clearProperty(Factory.SERVER_PROPERTY);
+
+            assertTrue(client instanceof RemoteLoyaltyCardOperator);
+            assertThrows(OwnerNotRegisteredException.class, client::getMostUsed);
+
+            client.registerOwner(loyaltyCardOwner);
+            assertThrows(OwnerAlreadyRegisteredException.class, () -> client.registerOwner(loyaltyCardOwner));
+            assertThrows(OwnerNotRegisteredException.class, () -> client.processMoneyPurchase("nobody@owner.com", 100));
+            assertThrows(InsufficientPointsException.class,
+                    () -> client.processPointsPurchase(loyaltyCardOwner.getEmail(), 100));
+
+            int threads = 8;
+            int purchasesPerThread = 1000;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Callable<Void>> purchases = new ArrayList<>();
+
+            for (int t = 0; t < threads; t++) {
+                purchases.add(() -> {
+                    for (int i = 0; i < purchasesPerThread; i++) {
+                        client.processMoneyPurchase(loyaltyCardOwner.getEmail(), 100);
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(purchases)) {
+                future.get();
+            }
+            executor.shutdown();
+
+            assertEquals(threads * purchasesPerThread, client.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+            assertEquals(threads * purchasesPerThread, loyaltyCardOperator.getNumberOfUses(loyaltyCardOwner.getEmail()));
+            assertEquals(threads * purchasesPerThread, client.getTotalNumberOfPoints());
+            assertEquals(1, client.getNumberOfCustomers());
+            assertEquals(loyaltyCardOwner.getEmail(), client.getMostUsed().getEmail());
+            assertEquals(loyaltyCardOwner.getName(), client.getMostUsed().getName());
+
+            client.unregisterOwner(loyaltyCardOwner);
+            assertEquals(0, loyaltyCardOperator.getNumberOfCustomers());
+
+            // Emails and names longer than writeUTF allows go over the wire, and come back from getMostUsed().
+            ILoyaltyCardOwner longOwner = factory.makeLoyaltyCardOwner("e".repeat(70000) + "@owner.com",
+                    "n".repeat(70000));
+
+            client.registerOwner(longOwner);
+            client.processMoneyPurchase(longOwner.getEmail(), 300);
+            assertEquals(3, client.getNumberOfPoints(longOwner.getEmail()));
+            assertEquals(longOwner.getName(), client.getMostUsed().getName());
+            assertNull(server.getLastFailure());
+
+            ((RemoteLoyaltyCardOperator) client).close();
+            assertThrows(UncheckedIOException.class, client::getNumberOfCustomers);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that the factory rejects a server which is not given as host:port with a clear message, instead of
+     * failing inside the client.
+     */
+    @Test
+    public void factoryRejectsMalformedServer() {
+
+        try {
+            for (String server : new String[] {"localhost", ":9000", "localhost:", "localhost:port", "localhost:70000"}) {
+
+                System.setProperty(Factory.SERVER_PROPERTY, server);
+
+                IllegalArgumentException failure = assertThrows(IllegalArgumentException.class,
+                        factory::makeLoyaltyCardOperator);
+
+                assertTrue(failure.getMessage().contains(Factory.SERVER_PROPERTY), failure.getMessage());
+            }
+        } finally {
+            System.clearProperty(Factory.SERVER_PROPERTY);
+        }
+    }
+
+    /**
+     * This tests that a sharded operator made by the factory behaves like the default operator, with owners spread
+     * across its shards: the most used card is found across every shard, with ties going to the first registered, and
+     * purchases made from many threads at once are all counted.
+     */
+    @Test
+    public void shardedOperatorMergesShards() {
+
+        System.setProperty(Factory.SHARDS_PROPERTY, "4");
+        ILoyaltyCardOperator sharded = factory.makeLoyaltyCardOperator();
+        System.clearProperty(Factory.SHARDS_PROPERTY);
+
+        try {
+
+            assertTrue(sharded instanceof ShardedLoyaltyCardOperator);
+            assertThrows(OwnerNotRegisteredException.class, sharded::getMostUsed);
+
+            int owners = 64;
+
+            for (int i = 0; i < owners; i++) {
+                sharded.registerOwner(factory.makeLoyaltyCardOwner("owner" + i + "@owner.com", "Owner " + i));
+            }
+            assertThrows(OwnerAlreadyRegisteredException.class,
+                    () -> sharded.registerOwner(factory.makeLoyaltyCardOwner("owner0@owner.com", "Owner 0")));
+            assertThrows(OwnerNotRegisteredException.class, () -> sharded.processMoneyPurchase("nobody@owner.com", 100));
+            assertThrows(InsufficientPointsException.class, () -> sharded.processPointsPurchase("owner1@owner.com", 1));
+            assertEquals(owners, sharded.getNumberOfCustomers());
+            assertNull(sharded.getMostUsed());
+
+            // Every owner but the first is used once, so the tie goes to the second registered, whichever shard it is in.
+            for (int i = owners - 1; i > 0; i--) {
+                sharded.processMoneyPurchase("owner" + i + "@owner.com", 100);
+            }
+            assertEquals("owner1@owner.com", sharded.getMostUsed().getEmail());
+
+            int threads = 8;
+            int purchasesPerThread = 1000;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Callable<Void>> purchases = new ArrayList<>();
+
+            for (int t = 0; t < threads; t++) {
+                purchases.add(() -> {
+                    for (int i = 0; i < purchasesPerThread; i++) {
+                        sharded.processMoneyPurchase("owner" + i % owners + "@owner.com", 200);
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(purchases)) {
+                future.get();
+            }
+            executor.shutdown();
+
+            assertEquals(owners - 1 + 2 * threads * purchasesPerThread, sharded.getTotalNumberOfPoints());
+            assertEquals(threads * (purchasesPerThread / owners + 1) + 1, sharded.getNumberOfUses("owner1@owner.com"));
+            assertEquals("owner1@owner.com", sharded.getMostUsed().getEmail());
+
+            sharded.processPointsPurchase("owner1@owner.com", 3);
+            assertEquals(2 * threads * (purchasesPerThread / owners + 1) + 1 - 3,
+                    sharded.getNumberOfPoints("owner1@owner.com"));
+
+            sharded.unregisterOwner(factory.makeLoyaltyCardOwner("owner1@owner.com", "Owner 1"));
+            assertThrows(OwnerNotRegisteredException.class,
+                    () -> sharded.unregisterOwner(factory.makeLoyaltyCardOwner("owner1@owner.com", "Owner 1")));
+            assertEquals(owners - 1, sharded.getNumberOfCustomers());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        } finally {
+            ((ShardedLoyaltyCardOperator) sharded).close();
+        }
+    }
+
+    /**
+     * This tests that the asynchronous calls of a sharded operator run in order for each owner, that their futures
+     * fail with the exceptions the calls would have thrown, and that calls are rejected rather than queued without
+     * limit when a shard falls behind.
+     */
+    @Test
+    public void shardedOperatorAsyncCallsKeepOrderAndPushBack() {
+
+        ShardedLoyaltyCardOperator ordered = new ShardedLoyaltyCardOperator(2, 1 << 16);
+        ShardedLoyaltyCardOperator bounded = new ShardedLoyaltyCardOperator(1, 1);
+
+        try {
+
+            ordered.registerOwnerAsync(loyaltyCardOwner).get();
+
+            ExecutionException failure = assertThrows(ExecutionException.class,
+                    () -> ordered.registerOwnerAsync(loyaltyCardOwner).get());
+            assertTrue(failure.getCause() instanceof OwnerAlreadyRegisteredException);
+            failure = assertThrows(ExecutionException.class,
+                    () -> ordered.processMoneyPurchaseAsync("nobody@owner.com", 100).get());
+            assertTrue(failure.getCause() instanceof OwnerNotRegisteredException);
+
+            // Each points purchase only succeeds if the money purchase made just before it has already run.
+            int pairs = 10000;
+            List<CompletableFuture<Void>> purchases = new ArrayList<>();
+
+            for (int i = 0; i < pairs; i++) {
+                purchases.add(ordered.processMoneyPurchaseAsync(loyaltyCardOwner.getEmail(), 100));
+                purchases.add(ordered.processPointsPurchaseAsync(loyaltyCardOwner.getEmail(), 1));
+            }
+            CompletableFuture.allOf(purchases.toArray(new CompletableFuture<?>[0])).get();
+
+            assertEquals(0, ordered.getNumberOfPointsAsync(loyaltyCardOwner.getEmail()).get());
+            assertEquals(2 * pairs, ordered.getNumberOfUsesAsync(loyaltyCardOwner.getEmail()).get());
+            assertEquals(1, ordered.getNumberOfCustomersAsync().get());
+            assertEquals(loyaltyCardOwner.getEmail(), ordered.getMostUsedAsync().get().getEmail());
+
+            bounded.registerOwner(loyaltyCardOwner);
+
+            int accepted = 0;
+            int rejected = 0;
+            List<CompletableFuture<Void>> calls = new ArrayList<>();
+
+            for (int i = 0; i < 100000; i++) {
+                calls.add(bounded.processMoneyPurchaseAsync(loyaltyCardOwner.getEmail(), 100));
+            }
+            for (CompletableFuture<Void> call : calls) {
+                try {
+                    call.get();
+                    accepted++;
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof RejectedExecutionException);
+                    rejected++;
+                }
+            }
+
+            assertTrue(rejected > 0);
+            assertEquals(accepted, bounded.getNumberOfUses(loyaltyCardOwner.getEmail()));
+
+            bounded.close();
+            failure = assertThrows(ExecutionException.class,
+                    () -> bounded.processMoneyPurchaseAsync(loyaltyCardOwner.getEmail(), 100).get());
+            assertTrue(failure.getCause() instanceof RejectedExecutionException);
+            assertThrows(RejectedExecutionException.class,
+                    () -> bounded.processMoneyPurchase(loyaltyCardOwner.getEmail(), 100));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        } finally {
+            ordered.close();
+            bounded.close();
+        }
+    }
+
+    /**
+     * This tests that importing owners in bulk registers them in order, across more than one chunk, and reports the
+     * rows whose owners were already registered, whether before the import or earlier in it, and the rows which could
+     * not be read, both from an iterator and from a file.
+     */
+    @Test
+    public void bulkImportReportsDuplicateAndInvalidRows() {
+
+        LoyaltyCardOperator operator = new LoyaltyCardOperator(100000);
+        List<ILoyaltyCardOwner> owners = new ArrayList<>();
+        int unique = 70000;
+
+        try {
+
+            operator.registerOwner(factory.makeLoyaltyCardOwner("owner5@owner.com", "Owner 5"));
+            operator.processMoneyPurchase("owner5@owner.com", 300);
+            operator.registerOwner(factory.makeLoyaltyCardOwner("owner6@owner.com", "Owner 6"));
+            operator.processMoneyPurchase("owner6@owner.com", 300);
+            operator.unregisterOwner(factory.makeLoyaltyCardOwner("owner6@owner.com", "Owner 6"));
+
+            for (int i = 0; i < unique; i++) {
+                owners.add(factory.makeLoyaltyCardOwner("owner" + i + "@owner.com", "Owner " + i));
+            }
+            owners.add(null);
+            owners.add(factory.makeLoyaltyCardOwner("owner3@owner.com", "Owner 3"));
+
+            ImportReport report = operator.registerOwners(owners.iterator());
+
+            assertEquals(unique + 2, report.getRows());
+            assertEquals(unique - 1, report.getRegistered());
+            assertArrayEquals(new long[] {5, unique + 1}, report.getDuplicateRows());
+            assertArrayEquals(new long[] {unique}, report.getInvalidRows());
+            assertEquals(unique, operator.getNumberOfCustomers());
+            assertEquals(3, operator.getNumberOfPoints("owner5@owner.com"));
+            assertEquals(0, operator.getNumberOfPoints("owner6@owner.com"));
+            assertEquals(3, operator.getTotalNumberOfPoints());
+
+            // Cards imported later lose ties to those imported earlier, and all of them to those registered before.
+            operator.processMoneyPurchase("owner" + (unique - 1) + "@owner.com", 100);
+            operator.processMoneyPurchase("owner7@owner.com", 100);
+            assertEquals("owner5@owner.com", operator.getMostUsed().getEmail());
+            operator.processMoneyPurchase("owner7@owner.com", 100);
+            assertEquals("owner7@owner.com", operator.getMostUsed().getEmail());
+
+            Path csv = Files.createTempFile("owners", ".csv");
+
+            try {
+                Files.write(csv, List.of("new1@owner.com,New, One", "no comma", ",No Email", "owner1@owner.com,Owner 1",
+                        "new2@owner.com,", "new1@owner.com,New One"));
+                report = operator.registerOwners(csv);
+            } finally {
+                Files.delete(csv);
+            }
+
+            assertEquals(6, report.getRows());
+            assertEquals(2, report.getRegistered());
+            assertArrayEquals(new long[] {3, 5}, report.getDuplicateRows());
+            assertArrayEquals(new long[] {1, 2}, report.getInvalidRows());
+            assertEquals(unique + 2, operator.getNumberOfCustomers());
+            assertEquals(0, operator.getNumberOfPoints("new2@owner.com"));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that importing owners in bulk into an operator which keeps its cards in a ledger issues their cards in
+     * the ledger, so they are all there when it is reopened, and that a row whose card cannot be issued is reported as
+     * invalid without stopping the rows after it, in its chunk or the next, from being registered.
+     */
+    @Test
+    public void bulkImportIntoLedgerReportsRowsWhoseCardCannotBeIssued() {
+
+        List<ILoyaltyCardOwner> owners = new ArrayList<>();
+        int unique = 70000;
+
+        try {
+
+            Path file = Files.createTempFile("cards", ".ledger");
+            Files.delete(file);
+
+            try {
+
+                LoyaltyCardOperator operator = new LoyaltyCardOperator(MappedCardLedger.open(file));
+
+                operator.registerOwner(factory.makeLoyaltyCardOwner("owner5@owner.com", "Owner 5"));
+                operator.processMoneyPurchase("owner5@owner.com", 300);
+
+                for (int i = 0; i < unique; i++) {
+                    owners.add(factory.makeLoyaltyCardOwner("owner" + i + "@owner.com", "Owner " + i));
+                }
+                owners.add(10, new ILoyaltyCardOwner() {
+
+                    @Override
+                    public String getEmail() {
+                        return "nameless@owner.com";
+                    }
+
+                    @Override
+                    public String getName() {
+                        return null;
+                    }
+                });
+                owners.add(null);
+                owners.add(factory.makeLoyaltyCardOwner("x".repeat(300) + "@owner.com", "Long"));
+
+                ImportReport report = operator.registerOwners(owners.iterator());
+
+                assertEquals(unique + 3, report.getRows());
+                assertEquals(unique, report.getRegistered());
+                assertArrayEquals(new long[] {5}, report.getDuplicateRows());
+                assertArrayEquals(new long[] {10, unique + 1}, report.getInvalidRows());
+                assertEquals(unique + 1, operator.getNumberOfCustomers());
+                operator.close();
+
+                LoyaltyCardOperator reopened = new LoyaltyCardOperator(MappedCardLedger.open(file));
+
+                assertEquals(unique + 1, reopened.getNumberOfCustomers());
+                assertEquals(3, reopened.getNumberOfPoints("owner5@owner.com"));
+                assertEquals(0, reopened.getNumberOfPoints("owner11@owner.com"));
+                assertEquals(0, reopened.getNumberOfPoints("owner" + (unique - 1) + "@owner.com"));
+                assertEquals(0, reopened.getNumberOfPoints("x".repeat(300) + "@owner.com"));
+                assertThrows(OwnerNotRegisteredException.class, () -> reopened.getNumberOfPoints("nameless@owner.com"));
+                reopened.close();
+
+            } finally {
+                Files.deleteIfExists(file);
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that exporting the cards writes every registered owner once, in both formats, with fields quoted and
+     * encoded as they need to be, and that an export made while purchases go on is a view of one point in time: one
+     * thread uses two cards in turn, so an export can never see the second used more than the first.
+     */
+    @Test
+    public void exportWritesConsistentViewOfRegisteredCards() {
+
+        LoyaltyCardOperator operator = new LoyaltyCardOperator();
+        ILoyaltyCardOwner quoted = factory.makeLoyaltyCardOwner("quoted@owner.com", "Smith, \"Jo\"");
+        ILoyaltyCardOwner accented = factory.makeLoyaltyCardOwner("accented@owner.com", "Zo\u00EB \uD83D\uDE00");
+
+        try {
+
+            operator.registerOwner(quoted);
+            operator.registerOwner(accented);
+            operator.registerOwner(loyaltyCardOwner);
+            operator.processMoneyPurchase(quoted.getEmail(), 1234);
+            operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 500);
+            operator.unregisterOwner(loyaltyCardOwner);
+
+            ByteArrayOutputStream csv = new ByteArrayOutputStream();
+
+            assertEquals(2, operator.exportCards(Channels.newChannel(csv), ExportFormat.CSV));
+            List<String> lines = List.of(new String(csv.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+            assertEquals("email,name,points,uses", lines.get(0));
+            assertEquals(Set.of("quoted@owner.com,\"Smith, \"\"Jo\"\"\",12,1", "accented@owner.com,Zo\u00EB \uD83D\uDE00,0,0"),
+                    Set.copyOf(lines.subList(1, lines.size())));
+
+            ByteArrayOutputStream binary = new ByteArrayOutputStream();
+
+            assertEquals(2, operator.exportCards(Channels.newChannel(binary), ExportFormat.BINARY));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(binary.toByteArray()));
+            Set<String> records = new HashSet<>();
+
+            for (int i = 0; i < 2; i++) {
+                byte[] email = new byte[in.readInt()];
+                in.readFully(email);
+                byte[] name = new byte[in.readInt()];
+                in.readFully(name);
+                records.add(new String(email, StandardCharsets.UTF_8) + "/" + new String(name, StandardCharsets.UTF_8)
+                        + "/" + in.readInt() + "/" + in.readInt());
+            }
+            assertEquals(-1, in.read());
+            assertEquals(Set.of("quoted@owner.com/Smith, \"Jo\"/12/1", "accented@owner.com/Zo\u00EB \uD83D\uDE00/0/0"),
+                    records);
+
+            // Names longer than an unsigned short can count are exported whole.
+            LoyaltyCardOperator longNames = new LoyaltyCardOperator();
+
+            longNames.registerOwner(factory.makeLoyaltyCardOwner("long@owner.com", "n".repeat(70000)));
+            binary.reset();
+            assertEquals(1, longNames.exportCards(Channels.newChannel(binary), ExportFormat.BINARY));
+            assertEquals(4 + 14 + 4 + 70000 + 4 + 4, binary.size());
+            in = new DataInputStream(new ByteArrayInputStream(binary.toByteArray()));
+            in.skipBytes(4 + 14);
+            assertEquals(70000, in.readInt());
+
+            for (int i = 0; i < 20000; i++) {
+                operator.registerOwner(factory.makeLoyaltyCardOwner("member" + i + "@owner.com", "Member " + i));
+            }
+
+            AtomicBoolean exporting = new AtomicBoolean(true);
+            Thread purchases = new Thread(() -> {
+                try {
+                    while (exporting.get()) {
+                        operator.processMoneyPurchase(quoted.getEmail(), 100);
+                        operator.processMoneyPurchase(accented.getEmail(), 100);
+                    }
+                } catch (OwnerNotRegisteredException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            purchases.start();
+
+            try {
+                for (int export = 0; export < 20; export++) {
+
+                    csv.reset();
+                    operator.exportCards(Channels.newChannel(csv), ExportFormat.CSV);
+
+                    int quotedUses = -1;
+                    int accentedUses = -1;
+
+                    for (String line : new String(csv.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+                        if (line.startsWith(quoted.getEmail())) {
+                            quotedUses = Integer.parseInt(line.substring(line.lastIndexOf(',') + 1));
+                        } else if (line.startsWith(accented.getEmail())) {
+                            accentedUses = Integer.parseInt(line.substring(line.lastIndexOf(',') + 1));
+                        }
+                    }
+
+                    assertTrue(quotedUses - 1 == accentedUses || quotedUses - 1 == accentedUses + 1,
+                            quotedUses + " and " + accentedUses);
+                }
+            } finally {
+                exporting.set(false);
+                purchases.join();
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that a snapshot keeps answering as the operator would have when it was taken, whatever is done to the
+     * cards afterwards, that snapshots taken at different times each keep their own view, and that a closed snapshot
+     * cannot be read.
+     */
+    @Test
+    public void snapshotsKeepTheirViewWhileCardsChange() {
+
+        LoyaltyCardOperator operator = new LoyaltyCardOperator();
+        ILoyaltyCardOwner other = factory.makeLoyaltyCardOwner("other@owner.com", "Other");
+
+        try {
+
+            operator.registerOwner(loyaltyCardOwner);
+            operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 500);
+
+            CardSnapshot first = operator.snapshot();
+
+            operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 300);
+            operator.registerOwner(other);
+            operator.processMoneyPurchase(other.getEmail(), 100);
+            operator.processMoneyPurchase(other.getEmail(), 100);
+
+            CardSnapshot second = operator.snapshot();
+
+            operator.processPointsPurchase(loyaltyCardOwner.getEmail(), 8);
+            operator.unregisterOwner(other);
+
+            assertTrue(second.getVersion() > first.getVersion());
+
+            assertEquals(1, first.getNumberOfCustomers());
+            assertEquals(5, first.getTotalNumberOfPoints());
+            assertEquals(5, first.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+            assertEquals(1, first.getNumberOfUses(loyaltyCardOwner.getEmail()));
+            assertEquals(loyaltyCardOwner.getEmail(), first.getMostUsed().getEmail());
+            assertThrows(OwnerNotRegisteredException.class, () -> first.getNumberOfPoints(other.getEmail()));
+
+            assertEquals(2, second.getNumberOfCustomers());
+            assertEquals(10, second.getTotalNumberOfPoints());
+            assertEquals(8, second.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+            assertEquals(2, second.getNumberOfUses(other.getEmail()));
+            assertEquals(loyaltyCardOwner.getEmail(), second.getMostUsed().getEmail());
+
+            first.close();
+            assertThrows(IllegalStateException.class, first::getTotalNumberOfPoints);
+
+            try (CardSnapshot third = operator.snapshot()) {
+                assertEquals(1, third.getNumberOfCustomers());
+                assertEquals(0, third.getTotalNumberOfPoints());
+                assertEquals(0, third.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+                assertEquals(3, third.getNumberOfUses(loyaltyCardOwner.getEmail()));
+                assertThrows(OwnerNotRegisteredException.class, () -> third.getNumberOfPoints(other.getEmail()));
+            }
+
+            // The card removed while the second snapshot was open is still in it, but not in the operator.
+            assertEquals(2, second.getNumberOfPoints(other.getEmail()));
+            assertThrows(OwnerNotRegisteredException.class, () -> operator.getNumberOfPoints(other.getEmail()));
+
+            assertEquals(8, second.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+            second.close();
+
+            CardSnapshot empty = new LoyaltyCardOperator().snapshot();
+            assertThrows(OwnerNotRegisteredException.class, empty::getMostUsed);
+            empty.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that purchases are never held up by reports: while a report keeps a snapshot open, purchases made from
+     * another thread must all finish before the report is allowed to close it, and the report must still see the
+     * totals as they were when it was taken.
+     */
+    @Test
+    public void snapshotReportsDoNotHoldUpPurchases() {
+
+        LoyaltyCardOperator operator = new LoyaltyCardOperator();
+        int owners = 10000;
+        String[] emails = new String[owners];
+        ExecutorService purchaser = Executors.newSingleThreadExecutor();
+
+        try {
+
+            for (int i = 0; i < owners; i++) {
+                emails[i] = "member" + i + "@owner.com";
+                operator.registerOwner(factory.makeLoyaltyCardOwner(emails[i], "Member " + i));
+            }
+
+            for (int round = 1; round <= 4; round++) {
+                try (CardSnapshot snapshot = operator.snapshot()) {
+
+                    long total = snapshot.getTotalNumberOfPoints();
+
+                    // If a purchase waited for the snapshot to be closed, this would time out.
+                    purchaser.submit(() -> {
+                        for (String email : emails) {
+                            operator.processMoneyPurchase(email, 100);
+                        }
+                        return null;
+                    }).get(30, TimeUnit.SECONDS);
+
+                    assertEquals(round * owners, operator.getTotalNumberOfPoints());
+                    assertEquals(total, snapshot.getTotalNumberOfPoints());
+
+                    long sum = 0;
+
+                    for (String email : emails) {
+                        sum += snapshot.getNumberOfPoints(email);
+                    }
+                    assertEquals(total, sum);
+                    assertEquals(round - 1, snapshot.getNumberOfUses(emails[0]));
+                }
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        } finally {
+            purchaser.shutdown();
+        }
+    }
+
+    /**
+     * This tests that owners which are not made by the factory are indexed by their email just like those which are,
+     * so that either kind can be looked up, registered again or unregistered through the other.
+     */
+    @Test
+    public void ownersFromElsewhereAreMatchedByEmailLikeFactoryOwners() {
+
+        ILoyaltyCardOwner foreignOwner = new ILoyaltyCardOwner() {
+            @Override
+            public String getEmail() {
+                return loyaltyCardOwner.getEmail();
+            }
+
+            @Override
+            public String getName() {
+                return loyaltyCardOwner.getName();
+            }
+        };
+
+        try {
+
+            loyaltyCardOperator.registerOwner(foreignOwner);
+            assertThrows(OwnerAlreadyRegisteredException.class, () -> loyaltyCardOperator.registerOwner(loyaltyCardOwner));
+
+            loyaltyCardOperator.processMoneyPurchase(new String(loyaltyCardOwner.getEmail().toCharArray()), 500);
+            assertEquals(5, loyaltyCardOperator.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+            assertThrows(OwnerNotRegisteredException.class,
+                    () -> loyaltyCardOperator.getNumberOfPoints(loyaltyCardOwner.getEmail().toUpperCase()));
+
+            loyaltyCardOperator.unregisterOwner(loyaltyCardOwner);
+            assertEquals(0, loyaltyCardOperator.getNumberOfCustomers());
+            assertThrows(OwnerNotRegisteredException.class, () -> loyaltyCardOperator.unregisterOwner(foreignOwner));
+
+            loyaltyCardOperator.registerOwner(loyaltyCardOwner);
+            assertEquals(1, loyaltyCardOperator.getNumberOfCustomers());
+            assertEquals(0, loyaltyCardOperator.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that unregistering an owner removes their card from every kind of operator, so that after many owners
+     * have registered, used their cards and unregistered again, the customers, the total number of points and the most
+     * used card only reflect the owners still registered, and that a ledger reuses the records of removed cards.
+     */
+    @Test
+    public void removedCardsDoNotOutliveTheirOwners() {
+
+        List<ILoyaltyCardOperator> operators = List.of(new LoyaltyCardOperator(), new PrimitiveLoyaltyCardOperator(),
+                new ShardedLoyaltyCardOperator(4));
+        int residents = 100;
+        int churn = 20000;
+
+        try {
+
+            for (ILoyaltyCardOperator operator : operators) {
+
+                for (int i = 0; i < residents; i++) {
+                    operator.registerOwner(factory.makeLoyaltyCardOwner("resident" + i + "@owner.com", "Resident"));
+                    operator.processMoneyPurchase("resident" + i + "@owner.com", 100 * (i % 3 + 1));
+                }
+
+                for (int i = 0; i < churn; i++) {
+
+                    ILoyaltyCardOwner owner = factory.makeLoyaltyCardOwner("churn" + i % 500 + "@owner.com", "Churn");
+
+                    operator.registerOwner(owner);
+                    assertEquals(0, operator.getNumberOfPoints(owner.getEmail()));
+                    operator.processMoneyPurchase(owner.getEmail(), 900);
+                    operator.processPointsPurchase(owner.getEmail(), 4);
+                    operator.processMoneyPurchase(owner.getEmail(), 100);
+                    assertEquals(owner.getEmail(), operator.getMostUsed().getEmail());
+                    operator.unregisterOwner(owner);
+
+                    assertThrows(OwnerNotRegisteredException.class, () -> operator.getNumberOfPoints(owner.getEmail()));
+                    assertThrows(OwnerNotRegisteredException.class,
+                            () -> operator.processMoneyPurchase(owner.getEmail(), 100));
+                }
+
+                assertEquals(residents, operator.getNumberOfCustomers());
+                assertEquals(199, operator.getTotalNumberOfPoints());
+                assertEquals("resident0@owner.com", operator.getMostUsed().getEmail());
+            }
+
+            Path file = Files.createTempFile("cards", ".ledger");
+            Files.delete(file);
+
+            try {
+
+                LoyaltyCardOperator operator = new LoyaltyCardOperator(MappedCardLedger.open(file));
+
+                for (int i = 0; i < churn; i++) {
+
+                    ILoyaltyCardOwner owner = factory.makeLoyaltyCardOwner("churn" + i + "@owner.com", "Churn");
+
+                    operator.registerOwner(owner);
+                    operator.processMoneyPurchase(owner.getEmail(), 500);
+
+                    if (i % 2 == 0) {
+                        operator.unregisterOwner(owner);
+                    }
+                }
+                operator.close();
+
+                // Every freed card record and lot record was reused, so the half of the owners still registered, with
+                // a card record and a lot record each, fit in the first two segments.
+                assertEquals(4096 + 2 * (1 << 14) * 256, Files.size(file));
+
+                LoyaltyCardOperator reopened = new LoyaltyCardOperator(MappedCardLedger.open(file));
+
+                assertEquals(churn / 2, reopened.getNumberOfCustomers());
+                assertEquals(5 * churn / 2, reopened.getTotalNumberOfPoints());
+                assertThrows(OwnerNotRegisteredException.class, () -> reopened.getNumberOfPoints("churn0@owner.com"));
+                assertEquals(5, reopened.getNumberOfPoints("churn1@owner.com"));
+                reopened.close();
+
+            } finally {
+                Files.deleteIfExists(file);
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        } finally {
+            ((ShardedLoyaltyCardOperator) operators.get(2)).close();
+        }
+    }
+
+    /**
+     * This tests that the cards in a ledger keep the order they were registered in when it is reopened, rather than
+     * taking that of their records, so that the most used card is the same before and after for both kinds of operator
+     * which keep their cards in a ledger.
+     */
+    @Test
+    public void reopenedLedgerKeepsRegistrationOrder() {
+
+        ILoyaltyCardOwner a = factory.makeLoyaltyCardOwner("a@owner.com", "A");
+        ILoyaltyCardOwner b = factory.makeLoyaltyCardOwner("b@owner.com", "B");
+        ILoyaltyCardOwner c = factory.makeLoyaltyCardOwner("c@owner.com", "C");
+        ILoyaltyCardOwner d = factory.makeLoyaltyCardOwner("d@owner.com", "D");
+
+        try {
+
+            for (boolean tiered : new boolean[] {false, true}) {
+
+                Path file = Files.createTempFile("cards", ".ledger");
+                Files.delete(file);
+
+                try {
+
+                    ILoyaltyCardOperator operator = tiered
+                            ? new TieredLoyaltyCardOperator(MappedCardLedger.open(file), 10)
+                            : new LoyaltyCardOperator(MappedCardLedger.open(file));
+
+                    // The card of d, registered last, reuses the record of a, the first.
+                    operator.registerOwner(a);
+                    operator.registerOwner(b);
+                    operator.registerOwner(c);
+                    operator.unregisterOwner(a);
+                    operator.registerOwner(d);
+                    operator.processMoneyPurchase(d.getEmail(), 100);
+                    operator.processMoneyPurchase(b.getEmail(), 100);
+
+                    assertEquals(b.getEmail(), operator.getMostUsed().getEmail());
+                    ((Closeable) operator).close();
+
+                    operator = tiered
+                            ? new TieredLoyaltyCardOperator(MappedCardLedger.open(file), 10)
+                            : new LoyaltyCardOperator(MappedCardLedger.open(file));
+
+                    assertEquals(b.getEmail(), operator.getMostUsed().getEmail());
+
+                    // A card registered after reopening loses ties to every card registered before.
+                    operator.registerOwner(a);
+                    operator.processMoneyPurchase(a.getEmail(), 100);
+                    operator.processMoneyPurchase(a.getEmail(), 100);
+                    operator.processMoneyPurchase(d.getEmail(), 100);
+
+                    assertEquals(d.getEmail(), operator.getMostUsed().getEmail());
+                    ((Closeable) operator).close();
+
+                } finally {
+                    Files.deleteIfExists(file);
+                }
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that the uses of each card, and the points it earned, are counted over the last hour, day and 30 days,
+     * that each window stops counting a use once it has gone by, and that the cards most used or earning the most in a
+     * window are ranked with ties going to the owner registered first, leaving out removed and unused cards.
+     */
+    @Test
+    public void usageWindowsRollOverTime() {
+
+        AtomicLong now = new AtomicLong(Instant.parse("2026-01-01T00:05:00Z").toEpochMilli());
+        LoyaltyCardOperator operator = new LoyaltyCardOperator(clockAt(now));
+        ILoyaltyCardOwner a = factory.makeLoyaltyCardOwner("a@owner.com", "A");
+        ILoyaltyCardOwner b = factory.makeLoyaltyCardOwner("b@owner.com", "B");
+        ILoyaltyCardOwner c = factory.makeLoyaltyCardOwner("c@owner.com", "C");
+
+        try {
+
+            operator.registerOwner(a);
+            operator.registerOwner(b);
+            operator.registerOwner(c);
+
+            operator.processMoneyPurchase(a.getEmail(), 500);
+            operator.processMoneyPurchase(a.getEmail(), 500);
+            operator.processMoneyPurchase(b.getEmail(), 1300);
+            operator.processPointsPurchase(b.getEmail(), 3);
+
+            assertEquals(2, operator.getNumberOfUses(b.getEmail(), UsageWindow.LAST_HOUR));
+            assertEquals(13, operator.getPointsEarned(b.getEmail(), UsageWindow.LAST_HOUR));
+            assertEquals(0, operator.getNumberOfUses(c.getEmail(), UsageWindow.LAST_30_DAYS));
+            assertEquals(List.of(a, b), operator.getMostUsed(UsageWindow.LAST_HOUR, 3));
+            assertEquals(List.of(a), operator.getMostUsed(UsageWindow.LAST_HOUR, 1));
+            assertEquals(List.of(b, a), operator.getMostPointsEarned(UsageWindow.LAST_DAY, 3));
+
+            now.addAndGet(TimeUnit.HOURS.toMillis(1));
+            operator.processMoneyPurchase(b.getEmail(), 300);
+
+            assertEquals(0, operator.getNumberOfUses(a.getEmail(), UsageWindow.LAST_HOUR));
+            assertEquals(2, operator.getNumberOfUses(a.getEmail(), UsageWindow.LAST_DAY));
+            assertEquals(3, operator.getNumberOfUses(b.getEmail(), UsageWindow.LAST_DAY));
+            assertEquals(List.of(b), operator.getMostUsed(UsageWindow.LAST_HOUR, 3));
+            assertEquals(List.of(b, a), operator.getMostUsed(UsageWindow.LAST_DAY, 3));
+
+            now.addAndGet(TimeUnit.DAYS.toMillis(1));
+            operator.processMoneyPurchase(c.getEmail(), 100);
+
+            assertEquals(0, operator.getNumberOfUses(b.getEmail(), UsageWindow.LAST_DAY));
+            assertEquals(3, operator.getNumberOfUses(b.getEmail(), UsageWindow.LAST_30_DAYS));
+            assertEquals(16, operator.getPointsEarned(b.getEmail(), UsageWindow.LAST_30_DAYS));
+            assertEquals(List.of(c), operator.getMostUsed(UsageWindow.LAST_DAY, 3));
+            assertEquals(List.of(b, a, c), operator.getMostUsed(UsageWindow.LAST_30_DAYS, 3));
+
+            operator.unregisterOwner(b);
+
+            assertThrows(OwnerNotRegisteredException.class,
+                    () -> operator.getNumberOfUses(b.getEmail(), UsageWindow.LAST_30_DAYS));
+            assertEquals(List.of(a, c), operator.getMostUsed(UsageWindow.LAST_30_DAYS, 3));
+
+            operator.registerOwner(b);
+
+            assertEquals(0, operator.getNumberOfUses(b.getEmail(), UsageWindow.LAST_30_DAYS));
+            assertEquals(List.of(a, c), operator.getMostPointsEarned(UsageWindow.LAST_30_DAYS, 3));
+
+            now.addAndGet(TimeUnit.DAYS.toMillis(30));
+
+            assertEquals(0, operator.getNumberOfUses(a.getEmail(), UsageWindow.LAST_30_DAYS));
+            assertEquals(2, operator.getNumberOfUses(a.getEmail()));
+            assertEquals(List.of(), operator.getMostUsed(UsageWindow.LAST_30_DAYS, 3));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that a removed card is not kept alive by the lists of cards used on each day the usage windows are
+     * ranked from, so that its owner can be garbage collected as soon as it is unregistered, while the cards used on
+     * the same days are still ranked.
+     */
+    @Test
+    public void removedCardsLeaveTheDailyUsageLists() {
+
+        AtomicLong now = new AtomicLong(Instant.parse("2026-01-01T12:00:00Z").toEpochMilli());
+        LoyaltyCardOperator operator = new LoyaltyCardOperator(clockAt(now));
+        List<WeakReference<ILoyaltyCardOwner>> removed = new ArrayList<>();
+
+        try {
+
+            for (int i = 0; i < 100; i++) {
+
+                ILoyaltyCardOwner owner = factory.makeLoyaltyCardOwner("owner" + i + "@owner.com", "Owner " + i);
+
+                operator.registerOwner(owner);
+                operator.processMoneyPurchase(owner.getEmail(), 100 * (i + 1));
+
+                if (i % 10 == 0) {
+                    now.addAndGet(TimeUnit.DAYS.toMillis(1));
+                    operator.processMoneyPurchase(owner.getEmail(), 100);
+                    operator.unregisterOwner(owner);
+                    removed.add(new WeakReference<>(owner));
+                }
+            }
+
+            for (int i = 0; i < 10 && removed.stream().anyMatch(owner -> owner.get() != null); i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+
+            assertTrue(removed.stream().allMatch(owner -> owner.get() == null));
+            assertEquals(List.of("owner99@owner.com", "owner98@owner.com"), operator
+                    .getMostPointsEarned(UsageWindow.LAST_30_DAYS, 2).stream().map(ILoyaltyCardOwner::getEmail).toList());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that points expire at the end of the day 12 months after they were earned, that using points uses the
+     * oldest first, that expired points are taken out of the total and the rankings without counting as a use, and
+     * that a snapshot taken before points expired still has them.
+     */
+    @Test
+    public void pointsExpireOldestFirstAYearAfterTheyAreEarned() {
+
+        AtomicLong now = new AtomicLong(Instant.parse("2026-01-10T12:00:00Z").toEpochMilli());
+        LoyaltyCardOperator operator = new LoyaltyCardOperator(clockAt(now));
+        ILoyaltyCardOwner a = factory.makeLoyaltyCardOwner("a@owner.com", "A");
+        ILoyaltyCardOwner b = factory.makeLoyaltyCardOwner("b@owner.com", "B");
+
+        try {
+
+            operator.registerOwner(a);
+            operator.registerOwner(b);
+            operator.processMoneyPurchase(a.getEmail(), 1000);
+
+            now.addAndGet(TimeUnit.DAYS.toMillis(40));
+            operator.processMoneyPurchase(a.getEmail(), 500);
+            operator.processMoneyPurchase(b.getEmail(), 700);
+            operator.processPointsPurchase(a.getEmail(), 4);
+
+            // The 4 points used came out of the 10 earned first, leaving 6 of them.
+            now.set(Instant.parse("2027-01-10T23:59:59Z").toEpochMilli());
+
+            assertEquals(11, operator.getNumberOfPoints(a.getEmail()));
+
+            CardSnapshot snapshot = operator.snapshot();
+
+            now.set(Instant.parse("2027-01-11T00:00:00Z").toEpochMilli());
+
+            assertEquals(5, operator.getNumberOfPoints(a.getEmail()));
+            assertEquals(3, operator.getNumberOfUses(a.getEmail()));
+            assertEquals(12, operator.getTotalNumberOfPoints());
+            assertEquals(List.of(b, a), operator.getMostPoints(2));
+            assertEquals(11, snapshot.getNumberOfPoints(a.getEmail()));
+            assertEquals(18, snapshot.getTotalNumberOfPoints());
+            snapshot.close();
+
+            operator.processPointsPurchase(a.getEmail(), 5);
+            operator.processMoneyPurchase(b.getEmail(), 200);
+
+            now.set(Instant.parse("2027-02-21T00:00:00Z").toEpochMilli());
+
+            assertEquals(0, operator.getNumberOfPoints(a.getEmail()));
+            assertEquals(2, operator.getNumberOfPoints(b.getEmail()));
+            assertEquals(2, operator.getTotalNumberOfPoints());
+
+            operator.unregisterOwner(b);
+            now.set(Instant.parse("2028-03-01T00:00:00Z").toEpochMilli());
+
+            assertEquals(0, operator.getTotalNumberOfPoints());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that every operator expires points on the same day, oldest first, using the oldest first, and takes
+     * the points expired out of its total.
+     */
+    @Test
+    public void everyOperatorExpiresPointsAYearAfterTheyAreEarned() {
+
+        AtomicLong now = new AtomicLong(Instant.parse("2026-01-10T12:00:00Z").toEpochMilli());
+        Clock clock = clockAt(now);
+        ILoyaltyCardOwner a = factory.makeLoyaltyCardOwner("a@owner.com", "A");
+        ILoyaltyCardOwner b = factory.makeLoyaltyCardOwner("b@owner.com", "B");
+
+        try {
+
+            Path directory = Files.createTempDirectory("cards");
+
+            try {
+
+                List<ILoyaltyCardOperator> operators = List.of(new LoyaltyCardOperator(clock),
+                        new PrimitiveLoyaltyCardOperator(clock), new ShardedLoyaltyCardOperator(2, 16, clock),
+                        new TieredLoyaltyCardOperator(MappedCardLedger.open(directory.resolve("tiered.ledger")), 1,
+                                clock),
+                        new LoyaltyCardOperator(MappedCardLedger.open(directory.resolve("cards.ledger")), clock),
+                        new JournaledLoyaltyCardOperator(directory.resolve("cards.journal"), 16, 1, 0, clock));
+
+                for (ILoyaltyCardOperator operator : operators) {
+                    operator.registerOwner(a);
+                    operator.registerOwner(b);
+                    operator.processMoneyPurchase(a.getEmail(), 1000);
+                }
+
+                now.addAndGet(TimeUnit.DAYS.toMillis(40));
+
+                for (ILoyaltyCardOperator operator : operators) {
+                    operator.processMoneyPurchase(a.getEmail(), 500);
+                    operator.processMoneyPurchase(b.getEmail(), 700);
+                    operator.processPointsPurchase(a.getEmail(), 4);
+                }
+
+                // The 4 points used came out of the 10 earned first, leaving 6 of them to expire.
+                now.set(Instant.parse("2027-01-11T00:00:00Z").toEpochMilli());
+
+                for (ILoyaltyCardOperator operator : operators) {
+                    assertEquals(5, operator.getNumberOfPoints(a.getEmail()), operator.toString());
+                    assertEquals(7, operator.getNumberOfPoints(b.getEmail()), operator.toString());
+                    assertEquals(3, operator.getNumberOfUses(a.getEmail()), operator.toString());
+                    assertEquals(12, operator.getTotalNumberOfPoints(), operator.toString());
+                    assertThrows(InsufficientPointsException.class,
+                            () -> operator.processPointsPurchase(a.getEmail(), 6));
+                }
+
+                now.set(Instant.parse("2027-02-21T00:00:00Z").toEpochMilli());
+
+                for (ILoyaltyCardOperator operator : operators) {
+                    assertEquals(0, operator.getNumberOfPoints(a.getEmail()), operator.toString());
+                    assertEquals(0, operator.getNumberOfPoints(b.getEmail()), operator.toString());
+                    assertEquals(0, operator.getTotalNumberOfPoints(), operator.toString());
+                    assertEquals(3, operator.getNumberOfUses(a.getEmail()), operator.toString());
+
+                    if (operator instanceof Closeable) {
+                        ((Closeable) operator).close();
+                    }
+                }
+
+            } finally {
+                try (Stream<Path> files = Files.list(directory)) {
+                    for (Path path : files.toArray(Path[]::new)) {
+                        Files.delete(path);
+                    }
+                }
+                Files.delete(directory);
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that when points were earned survives a ledger being reopened, by either operator which keeps its
+     * cards in a ledger, and a journaled operator being restarted, both from its journal and from a snapshot image, so
+     * the points still expire a year after they were earned rather than after the restart.
+     */
+    @Test
+    public void whenPointsWereEarnedSurvivesARestart() {
+
+        AtomicLong now = new AtomicLong(Instant.parse("2026-01-10T12:00:00Z").toEpochMilli());
+        Clock clock = clockAt(now);
+        String email = loyaltyCardOwner.getEmail();
+
+        try {
+
+            Path directory = Files.createTempDirectory("cards");
+            Path ledger = directory.resolve("cards.ledger");
+            Path journal = directory.resolve("cards.journal");
+
+            try {
+
+                LoyaltyCardOperator operator = new LoyaltyCardOperator(MappedCardLedger.open(ledger), clock);
+                JournaledLoyaltyCardOperator journaled = new JournaledLoyaltyCardOperator(journal, 16, 1, 0, clock);
+
+                operator.registerOwner(loyaltyCardOwner);
+                journaled.registerOwner(loyaltyCardOwner);
+
+                // Enough lots to fill more than one lot record, of which the oldest 29 are then used up.
+                for (int day = 0; day < 40; day++) {
+                    operator.processMoneyPurchase(email, 100);
+                    journaled.processMoneyPurchase(email, 100);
+                    now.addAndGet(TimeUnit.DAYS.toMillis(1));
+                }
+                operator.processPointsPurchase(email, 29);
+                journaled.processPointsPurchase(email, 29);
+                operator.close();
+                journaled.close();
+
+                now.addAndGet(TimeUnit.DAYS.toMillis(200));
+
+                TieredLoyaltyCardOperator tiered = new TieredLoyaltyCardOperator(MappedCardLedger.open(ledger), 4,
+                        clock);
+
+                tiered.processMoneyPurchase(email, 500);
+                assertEquals(16, tiered.getNumberOfPoints(email));
+                tiered.close();
+
+                journaled = new JournaledLoyaltyCardOperator(journal, 16, 1, 0, clock);
+                journaled.processMoneyPurchase(email, 500);
+                assertEquals(16, journaled.getNumberOfPoints(email));
+                journaled.snapshot();
+                journaled.close();
+
+                // A year and a day after the 35th purchase, the 5 points earned since are all that are left.
+                now.set(Instant.parse("2027-02-14T00:00:00Z").toEpochMilli());
+
+                operator = new LoyaltyCardOperator(MappedCardLedger.open(ledger), clock);
+                assertEquals(5 + 5, operator.getNumberOfPoints(email));
+                assertEquals(10, operator.getTotalNumberOfPoints());
+                operator.close();
+
+                journaled = new JournaledLoyaltyCardOperator(journal, 16, 1, 0, clock);
+                assertEquals(5 + 5, journaled.getNumberOfPoints(email));
+                assertEquals(10, journaled.getTotalNumberOfPoints());
+                journaled.close();
+
+            } finally {
+                try (Stream<Path> files = Files.list(directory)) {
+                    for (Path path : files.toArray(Path[]::new)) {
+                        Files.delete(path);
+                    }
+                }
+                Files.delete(directory);
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that money purchases earn pence/100 points by default, and by the operator's earning rules once they
+     * are set: the rate of the tier the price reaches, then the multipliers of the purchase's category, of weekends
+     * and of the owner's promotions while they run, each rounding down. It also tests that rules which cannot be read
+     * name the line at fault.
+     */
+    @Test
+    public void earningRulesDecideThePointsMoneyPurchasesEarn() {
+
+        AtomicLong now = new AtomicLong(Instant.parse("2026-06-03T12:00:00Z").toEpochMilli());
+        LoyaltyCardOperator operator = new LoyaltyCardOperator(clockAt(now));
+        ILoyaltyCardOwner a = factory.makeLoyaltyCardOwner("a@owner.com", "A");
+        ILoyaltyCardOwner b = factory.makeLoyaltyCardOwner("b@owner.com", "B");
+
+        try {
+
+            operator.registerOwner(a);
+            operator.registerOwner(b);
+            operator.processMoneyPurchase(b.getEmail(), 250);
+
+            assertEquals(2, operator.getNumberOfPoints(b.getEmail()));
+            assertSame(EarningRules.STANDARD, operator.getEarningRules());
+
+            operator.setEarningRules(EarningRules.parse(String.join("\n",
+                    "# Nothing below a pound, and half as much again from 50 pounds",
+                    "tier 100 1",
+                    "tier 5000 1.5",
+                    "",
+                    "category fresh 2",
+                    "weekend 1.25",
+                    "promotion a@owner.com 3 2026-06-01 2026-06-30")));
+
+            operator.processMoneyPurchase(a.getEmail(), 99);
+
+            assertEquals(0, operator.getNumberOfPoints(a.getEmail()));
+            assertEquals(0, operator.getNumberOfUses(a.getEmail()));
+
+            operator.processMoneyPurchase(b.getEmail(), 1000);
+            operator.processMoneyPurchase(b.getEmail(), 6000);
+            operator.tryProcessMoneyPurchase(b.getEmail(), 1000, "fresh");
+            operator.tryProcessMoneyPurchase(b.getEmail(), 1000, "toys");
+
+            assertEquals(2 + 10 + 90 + 20 + 10, operator.getNumberOfPoints(b.getEmail()));
+
+            operator.processMoneyPurchase(a.getEmail(), 1000);
+
+            assertEquals(30, operator.getNumberOfPoints(a.getEmail()));
+
+            // On a Saturday, 10 points become 12 for the weekend, and then 36 for the promotion.
+            now.set(Instant.parse("2026-06-06T12:00:00Z").toEpochMilli());
+
+            PurchaseResult[] results = operator.processPurchases(List.of(
+                    PurchaseRecord.moneyPurchase(a.getEmail(), 1000),
+                    PurchaseRecord.moneyPurchase(b.getEmail(), 1000, "fresh"),
+                    PurchaseRecord.pointsPurchase(b.getEmail(), 100)));
+
+            assertArrayEquals(new PurchaseResult[] {PurchaseResult.OK, PurchaseResult.OK, PurchaseResult.OK}, results);
+            assertEquals(30 + 36, operator.getNumberOfPoints(a.getEmail()));
+            assertEquals(132 + 25 - 100, operator.getNumberOfPoints(b.getEmail()));
+
+            now.set(Instant.parse("2026-07-01T12:00:00Z").toEpochMilli());
+            operator.processMoneyPurchase(a.getEmail(), 1000);
+
+            assertEquals(66 + 10, operator.getNumberOfPoints(a.getEmail()));
+            assertEquals(66 + 10 + 57, operator.getTotalNumberOfPoints());
+
+            IllegalArgumentException failure = assertThrows(IllegalArgumentException.class,
+                    () -> EarningRules.parse("tier 0 1\nweekend double"));
+
+            assertTrue(failure.getMessage().startsWith("Line 2"));
+            assertThrows(IllegalArgumentException.class, () -> EarningRules.parse("bonus 2"));
+            assertThrows(NullPointerException.class, () -> operator.setEarningRules(null));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that every operator earns points by its earning rules, that the factory gives its operators the rules
+     * in the file the rules property names, and that a journaled operator keeps the points its purchases earned when
+     * it is reopened under other rules.
+     */
+    @Test
+    public void everyOperatorEarnsPointsByItsEarningRules() {
+
+        EarningRules doubled = EarningRules.parse("tier 0 2");
+
+        try {
+
+            Path rules = Files.createTempFile("cards", ".rules");
+            Path ledger = Files.createTempFile("cards", ".ledger");
+            Path journal = Files.createTempFile("cards", ".journal");
+
+            Files.delete(ledger);
+            Files.writeString(rules, "tier 0 2\n");
+            System.setProperty(Factory.RULES_PROPERTY, rules.toString());
+
+            try {
+
+                PrimitiveLoyaltyCardOperator primitive = new PrimitiveLoyaltyCardOperator();
+                ShardedLoyaltyCardOperator sharded = new ShardedLoyaltyCardOperator(2, 16);
+                TieredLoyaltyCardOperator tiered = new TieredLoyaltyCardOperator(MappedCardLedger.open(ledger), 4);
+
+                primitive.setEarningRules(doubled);
+                sharded.setEarningRules(doubled);
+                tiered.setEarningRules(doubled);
+
+                for (ILoyaltyCardOperator operator : List.of(primitive, sharded, tiered,
+                        factory.makeLoyaltyCardOperator())) {
+                    operator.registerOwner(loyaltyCardOwner);
+                    operator.processMoneyPurchase(loyaltyCardOwner.getEmail(), 1000);
+
+                    assertEquals(20, operator.getNumberOfPoints(loyaltyCardOwner.getEmail()), operator.toString());
+                }
+                sharded.close();
+                tiered.close();
+
+                JournaledLoyaltyCardOperator journaled = new JournaledLoyaltyCardOperator(journal, 16, 1);
+
+                journaled.setEarningRules(doubled);
+                journaled.registerOwner(loyaltyCardOwner);
+                journaled.processMoneyPurchase(loyaltyCardOwner.getEmail(), 1000);
+                journaled.close();
+
+                journaled = new JournaledLoyaltyCardOperator(journal, 16, 1);
+
+                assertSame(EarningRules.STANDARD, journaled.getEarningRules());
+                assertEquals(20, journaled.getNumberOfPoints(loyaltyCardOwner.getEmail()));
+                assertEquals(1, journaled.getNumberOfUses(loyaltyCardOwner.getEmail()));
+                journaled.close();
+
+            } finally {
+                System.clearProperty(Factory.RULES_PROPERTY);
+                Files.deleteIfExists(rules);
+                Files.deleteIfExists(ledger);
+                Files.deleteIfExists(journal);
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * This tests that an operator keeping only the cards used most often in memory behaves like one keeping every card
+     * of the same ledger in memory, also as owners leave and the most used card changes, that its cache stays within its capacity and keeps the hot cards through a scan over the cold ones,
+     * that it counts its hits, misses, evictions and loads, and that its cards are all still there when its ledger is
+     * reopened.
+     */
+    @Test
+    public void tieredOperatorKeepsOnlyHotCardsInMemory() {
+
+        int owners = 1000;
+        int hot = 10;
+        SplittableRandom random = new SplittableRandom(7);
+
+        try {
+
+            Path file = Files.createTempFile("cards", ".ledger");
+            Path referenceFile = Files.createTempFile("cards", ".ledger");
+            Files.delete(file);
+            Files.delete(referenceFile);
+
+            try {
+
+                TieredLoyaltyCardOperator operator = new TieredLoyaltyCardOperator(MappedCardLedger.open(file), 100);
+                LoyaltyCardOperator reference = new LoyaltyCardOperator(MappedCardLedger.open(referenceFile));
+
+                for (int i = 0; i < owners; i++) {
+                    operator.registerOwner(factory.makeLoyaltyCardOwner("member" + i + "@owner.com", "Member " + i));
+                    reference.registerOwner(factory.makeLoyaltyCardOwner("member" + i + "@owner.com", "Member " + i));
+                }
+
+                // Most purchases are made by a few members, and the rest by any of them.
+                for (int i = 0; i < 20000; i++) {
+
+                    String email = "member" + (random.nextInt(10) < 8 ? random.nextInt(hot) : random.nextInt(owners))
+                            + "@owner.com";
+                    int pence = random.nextInt(1000);
+
+                    if (random.nextInt(4) > 0) {
+                        reference.processMoneyPurchase(email, pence);
+                        operator.processMoneyPurchase(email, pence);
+                    } else {
+                        try {
+                            reference.processPointsPurchase(email, pence / 10);
+                            operator.processPointsPurchase(email, pence / 10);
+                        } catch (InsufficientPointsException e) {
+                            assertThrows(InsufficientPointsException.class,
+                                    () -> operator.processPointsPurchase(email, pence / 10));
+                        }
+                    }
+                    assertEquals(reference.getNumberOfPoints(email), operator.getNumberOfPoints(email));
+                    assertEquals(reference.getNumberOfUses(email), operator.getNumberOfUses(email));
+
+                    // Now and then the most used of the cold members leaves and joins again with a new card.
+                    if (i % 1000 == 999) {
+
+                        ILoyaltyCardOwner leaving = factory.makeLoyaltyCardOwner(
+                                "member" + (hot + random.nextInt(owners - hot)) + "@owner.com", "Member");
+
+                        reference.unregisterOwner(leaving);
+                        operator.unregisterOwner(leaving);
+                        assertEquals(reference.getMostUsed().getEmail(), operator.getMostUsed().getEmail());
+                        reference.registerOwner(leaving);
+                        operator.registerOwner(leaving);
+                    }
+                }
+
+                assertEquals(reference.getTotalNumberOfPoints(), operator.getTotalNumberOfPoints());
+                assertEquals(reference.getMostUsed().getEmail(), operator.getMostUsed().getEmail());
+
+                CacheMetrics metrics = operator.getCacheMetrics();
+
+                assertTrue(metrics.getSize() <= 100);
+                assertTrue(metrics.getHitRate() > 0.7);
+                assertTrue(metrics.getEvictions() > 0);
+                assertEquals(metrics.getMisses(), metrics.getLoads());
+                assertTrue(metrics.getMaxLoadLatency() > 0);
+
+                // A scan over every card, as a report would make, leaves the hot cards in the cache.
+                for (int i = 0; i < owners; i++) {
+                    operator.getNumberOfUses("member" + i + "@owner.com");
+                }
+
+                long misses = operator.getCacheMetrics().getMisses();
+
+                for (int i = 0; i < hot; i++) {
+                    operator.getNumberOfPoints("member" + i + "@owner.com");
+                }
+                assertEquals(misses, operator.getCacheMetrics().getMisses());
+
+                // Removing the most used card, which is in the cache, makes the next most used card the most used.
+                ILoyaltyCardOwner mostUsed = operator.getMostUsed();
+
+                operator.unregisterOwner(mostUsed);
+                reference.unregisterOwner(mostUsed);
+
+                assertThrows(OwnerNotRegisteredException.class, () -> operator.getNumberOfPoints(mostUsed.getEmail()));
+                assertEquals(reference.getMostUsed().getEmail(), operator.getMostUsed().getEmail());
+
+                operator.registerOwner(mostUsed);
+
+                assertEquals(0, operator.getNumberOfPoints(mostUsed.getEmail()));
+                assertThrows(OwnerAlreadyRegisteredException.class, () -> operator.registerOwner(mostUsed));
+
+                String expectedMostUsed = operator.getMostUsed().getEmail();
+                int total = operator.getTotalNumberOfPoints();
+                operator.close();
+
+                System.setProperty(Factory.LEDGER_PROPERTY, file.toString());
+                System.setProperty(Factory.LEDGER_CACHE_PROPERTY, "10");
+
+                ILoyaltyCardOperator made = factory.makeLoyaltyCardOperator();
+
+                assertInstanceOf(TieredLoyaltyCardOperator.class, made);
+
+                TieredLoyaltyCardOperator reopened = (TieredLoyaltyCardOperator) made;
+
+
+                assertEquals(owners, reopened.getNumberOfCustomers());
+                assertEquals(total, reopened.getTotalNumberOfPoints());
+                assertEquals(expectedMostUsed, reopened.getMostUsed().getEmail());
+                assertEquals(0, reopened.getCacheMetrics().getSize());
+
+                for (int i = 0; i < owners; i++) {
+
+                    String email = "member" + i + "@owner.com";
+
+                    if (!email.equals(mostUsed.getEmail())) {
+                        assertEquals(reference.getNumberOfPoints(email), reopened.getNumberOfPoints(email));
+                    }
+                }
+                assertEquals(10, reopened.getCacheMetrics().getSize());
+                reopened.close();
+                reference.close();
+
+            } finally {
+                System.clearProperty(Factory.LEDGER_PROPERTY);
+                System.clearProperty(Factory.LEDGER_CACHE_PROPERTY);
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(referenceFile);
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    /**
+     * Returns a clock which reads its time from a number of milliseconds since the epoch, so a test can move it on.
+     * @param now the time
+     * @return the clock
+     */
+    private static Clock clockAt(AtomicLong now) {
+
+        return new Clock() {
+
+            @Override
+            public ZoneId getZone() {
+                return ZoneOffset.UTC;
+            }
+
+            @Override
+            public Clock withZone(ZoneId zone) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Instant instant() {
+                return Instant.ofEpochMilli(now.get());
+            }
+        };
+    }
+
 }
@@ -0,0 +1,719 @@
+package impl;
+
+import common.AbstractFactoryClient;
+import common.InsufficientPointsException;
+import common.OwnerAlreadyRegisteredException;
+import common.OwnerNotRegisteredException;
+import interfaces.ILoyaltyCardOperator;
+import interfaces.ILoyaltyCardOwner;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * This class represents a loyalty card operator which keeps every card in a {@link MappedCardLedger} and only the
+ * cards used most often in memory, for when only a small share of many members shop in any week.
+ *
+ * The cards in memory are held by a {@link CardCache} of a fixed number of cards, which evicts the cards used least
+ * often lately when it is full. A card which is not in the cache is loaded from its record in the ledger when it is
+ * used, and put in the cache. Cards read and update their points and uses in the ledger directly, so a card's record
+ * is always up to date and evicting the card writes nothing back. Besides the cache, the operator only keeps the hash
+ * of each card's email, the order it was registered in, when its points next expire and its place in the ranking of
+ * cards by use, by the slot of its record, and an open-addressing table of slots by hash: 32 to 72 bytes of heap for
+ * each card. Finding a card which is not in the cache therefore compares the email with those in the records whose
+ * hash matches.
+ *
+ * The operator behaves like a {@link LoyaltyCardOperator} over the same ledger: money purchases earn points by the same
+ * {@link EarningRules}, getMostUsed() returns the first registered of the most used cards, which a
+ * {@link SlotRanking} keeps up to date as cards are used and removed, and it is safe to share between threads, with a
+ * lock striped by slot serialising each card's updates. The order the cards were registered
+ * in is that of the numbers the ledger issued them as, so it is the same when the ledger is reopened.
+ *
+ * Points expire as they do for {@link LoyaltyCardOperator}, through the same {@link PointLots}, which the ledger keeps
+ * in the card's lot records, so when the points were earned survives the ledger being reopened. A card takes off its
+ * expired points whenever it is read or updated, and the total catches up a small batch of cards at a time on the
+ * calls made after the day changes, from a {@link SlotExpirySchedule}, which keeps 12 more bytes for each card rather
+ * than an object.
+ *
+ * The cache's hit rate, evictions and load latencies can be read with {@link #getCacheMetrics()}, or through JMX once
+ * {@link #registerMBean()} has been called.
+ *
+ */
+public class TieredLoyaltyCardOperator extends AbstractFactoryClient implements ILoyaltyCardOperator, Closeable {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int STRIPES = 256;
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final MappedCardLedger ledger;
+    private final CardCache<String, MappedCardLedger.Card> cache;
+    private final Function<String, MappedCardLedger.Card> loader = this::load;
+    private final ReentrantReadWriteLock structure = new ReentrantReadWriteLock();
+    private final Object[] stripes = new Object[STRIPES];
+    private final Clock clock;
+    private final SlotExpirySchedule expirySchedule;
+    private volatile EarningRules earningRules = EarningRules.STANDARD;
+
+    // The hash of each card's email and its registration, by the slot of its record, where a free record's is -1.
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private long[] registrations = new long[INITIAL_CAPACITY];
+    private int customers;
+
+    // The open-addressing table from email to slot + 1, where 0 marks an empty entry.
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+
+    private final LongAdder totalPoints = new LongAdder();
+    private final SlotRanking usesRanking = new SlotRanking(INITIAL_CAPACITY);
+
+    private ObjectName mbean;
+
+    /**
+     * Constructor for an operator which keeps its cards in a ledger. Every card already in the ledger is registered,
+     * and none of them are in the cache to begin with.
+     * @param ledger the ledger to keep the cards in
+     * @param cacheCapacity the most cards to keep in memory
+     * @throws NullPointerException if the ledger is null
+     * @throws IllegalArgumentException if the cache capacity is not positive
+     */
+    public TieredLoyaltyCardOperator(MappedCardLedger ledger, int cacheCapacity)
+            throws NullPointerException, IllegalArgumentException {
+        this(ledger, cacheCapacity, Clock.systemUTC());
+    }
+
+    /**
+     * Constructor for an operator which keeps its cards in a ledger, and tells the time, by which points earn and
+     * expire, by a clock. Every card already in the ledger is registered, with the points which have expired since it
+     * was last used taken off, and none of them are in the cache to begin with.
+     * @param ledger the ledger to keep the cards in
+     * @param cacheCapacity the most cards to keep in memory
+     * @param clock the clock
+     * @throws NullPointerException if the ledger is null
+     * @throws IllegalArgumentException if the cache capacity is not positive
+     */
+    public TieredLoyaltyCardOperator(MappedCardLedger ledger, int cacheCapacity, Clock clock)
+            throws NullPointerException, IllegalArgumentException {
+
+        if (ledger == null) {
+            throw new NullPointerException("ledger");
+        }
+
+        this.ledger = ledger;
+        this.cache = new CardCache<>(cacheCapacity);
+        this.clock = clock;
+
+        long today = EarningRules.day(clock.millis());
+
+        this.expirySchedule = new SlotExpirySchedule(today, INITIAL_CAPACITY);
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        Arrays.fill(registrations, -1);
+
+        int slots = ledger.getSlotCount();
+
+        for (int slot = 0; slot < slots; slot++) {
+
+            MappedCardLedger.Card card = ledger.load(slot);
+
+            if (card != null) {
+                add(slot, hash(card.getOwner().getEmail()), card.getRegistration());
+                totalPoints.add(card.getNumberOfPoints());
+                expireDueLots(card, today);
+
+                if (card.getLots().size() > 0) {
+                    expirySchedule.schedule(slot, card.getLots().getFirstExpiry());
+                }
+
+                if (card.getNumberOfUses() > 0) {
+                    recordUse(slot, card.getNumberOfUses());
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers the specified card owner.
+     * @param loyaltyCardOwner the owner to register
+     * @throws OwnerAlreadyRegisteredException if the owner's email is already registered
+     */
+    @Override
+    public void registerOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerAlreadyRegisteredException {
+
+        String email = loyaltyCardOwner.getEmail();
+        int hash = hash(email);
+
+        structure.writeLock().lock();
+        try {
+            if (find(email, hash) >= 0) {
+                throw new OwnerAlreadyRegisteredException();
+            }
+
+            MappedCardLedger.Card card = ledger.issue(loyaltyCardOwner);
+
+            add(card.getSlot(), hash, card.getRegistration());
+            cache.put(email, card);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Unregisters the specified loyalty card owner.
+     * @param loyaltyCardOwner the owner to unregister
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void unregisterOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerNotRegisteredException {
+
+        String email = loyaltyCardOwner.getEmail();
+        int hash = hash(email);
+
+        structure.writeLock().lock();
+        try {
+            int slot = find(email, hash);
+
+            if (slot < 0) {
+                throw new OwnerNotRegisteredException();
+            }
+            cache.remove(email);
+            remove(slot);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Processes a monetary purchase for the specified owner and price and adds the points it earns by the earning
+     * rules, pence/100 by default, to the owners loyalty card.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the purchase in pence
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public void processMoneyPurchase(String ownerEmail, int pence) throws OwnerNotRegisteredException {
+
+        long now = clock.millis();
+        int amount = earningRules.getPoints(ownerEmail, pence, null, EarningRules.day(now));
+
+        structure.readLock().lock();
+        try {
+            expirePoints();
+
+            MappedCardLedger.Card card = getCard(ownerEmail);
+            int slot = card.getSlot();
+
+            synchronized (stripes[slot & (STRIPES - 1)]) {
+                expireDueLots(card, EarningRules.day(now));
+
+                if (amount > 0) {
+                    PointLots lots = card.getLots();
+
+                    card.addPoints(amount);
+                    lots.add(PointLots.expiryDay(now), amount);
+
+                    if (!expirySchedule.isScheduled(slot)) {
+                        expirySchedule.schedule(slot, lots.getFirstExpiry());
+                    }
+                }
+            }
+            if (amount > 0) {
+                totalPoints.add(amount);
+                recordUse(slot, card.getNumberOfUses());
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the rules by which purchases paid for with money earn points.
+     * @return the rules, which are {@link EarningRules#STANDARD} unless others have been set
+     */
+    public EarningRules getEarningRules() {
+        return earningRules;
+    }
+
+    /**
+     * Replaces the rules by which purchases paid for with money earn points, e.g. with rules just read again from their
+     * file. Purchases being made at the same time earn points by either the old rules or the new ones.
+     * @param rules the rules
+     */
+    public void setEarningRules(EarningRules rules) throws NullPointerException {
+
+        if (rules == null) {
+            throw new NullPointerException();
+        }
+        earningRules = rules;
+    }
+
+    /**
+     * Processes a purchase of an item for the specified price in pence using points on the owner's loyalty card, once earned, each point on the card is worth 1 pence.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the item in pence
+     * @throws InsufficientPointsException if the card does not contain at least the same number of points as the price
+     * @throws OwnerNotRegisteredException if the given owner's email has not been registered
+     */
+    @Override
+    public void processPointsPurchase(String ownerEmail, int pence)
+            throws InsufficientPointsException, OwnerNotRegisteredException {
+
+        if (pence > 0) {
+            structure.readLock().lock();
+            try {
+                expirePoints();
+
+                MappedCardLedger.Card card = getCard(ownerEmail);
+
+                synchronized (stripes[card.getSlot() & (STRIPES - 1)]) {
+                    expireDueLots(card, EarningRules.day(clock.millis()));
+                    card.usePoints(pence);
+                    card.getLots().use(pence);
+                }
+                totalPoints.add(-pence);
+                recordUse(card.getSlot(), card.getNumberOfUses());
+            } finally {
+                structure.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of loyalty card customers.
+     *
+     * @return the number of loyalty card customers
+     */
+    @Override
+    public int getNumberOfCustomers() {
+
+        structure.readLock().lock();
+        try {
+            return customers;
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the total count of all points on all loyalty cards in the system.
+     *
+     * @return the total count of all points on all loyalty cards in the system
+     */
+    @Override
+    public int getTotalNumberOfPoints() {
+
+        structure.readLock().lock();
+        try {
+            expirePoints();
+        } finally {
+            structure.readLock().unlock();
+        }
+        return (int) totalPoints.sum();
+    }
+
+    /**
+     * Gets the number of points on the loyalty card for the specified owner.
+     *
+     * @param ownerEmail the loyalty card owner's email
+     * @return the number of points on the specified owner's loyalty card
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public int getNumberOfPoints(String ownerEmail) throws OwnerNotRegisteredException {
+
+        structure.readLock().lock();
+        try {
+            expirePoints();
+
+            MappedCardLedger.Card card = getCard(ownerEmail);
+
+            synchronized (stripes[card.getSlot() & (STRIPES - 1)]) {
+                expireDueLots(card, EarningRules.day(clock.millis()));
+                return card.getNumberOfPoints();
+            }
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the total number of times that the owner's loyalty card has been used (for money and points purchases).
+     *
+     * @param ownerEmail the loyalty card owner's email
+     * @return the total number of times that the owner's loyalty card has been used
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    @Override
+    public int getNumberOfUses(String ownerEmail) throws OwnerNotRegisteredException {
+
+        structure.readLock().lock();
+        try {
+            return getCard(ownerEmail).getNumberOfUses();
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the owner who has used their loyalty card the most. The behaviour is undefined if there is not a single most used card.
+     * If there are two cards that have been used the same amount, the first one in the list of registered cards will be returned.
+     *
+     * @return the owner who has used their loyalty card the most
+     * @throws OwnerNotRegisteredException if no owners have been registered
+     */
+    @Override
+    public ILoyaltyCardOwner getMostUsed() throws OwnerNotRegisteredException {
+
+        structure.readLock().lock();
+        try {
+            if (customers < 1) {
+                throw new OwnerNotRegisteredException();
+            }
+
+            int slot = usesRanking.top();
+
+            return slot < 0 ? null : ledger.load(slot).getOwner();
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the metrics of the cache of cards kept in memory.
+     * @return the metrics as they are now
+     */
+    public CacheMetrics getCacheMetrics() {
+        return cache.getMetrics();
+    }
+
+    /**
+     * Registers an MBean for the metrics of the cache with the platform MBean server, named
+     * impl:type=CardCache,id=(a number for this operator). It is unregistered when the operator is closed.
+     * @throws JMException if the MBean cannot be registered
+     */
+    public synchronized void registerMBean() throws JMException {
+
+        if (mbean != null) {
+            return;
+        }
+
+        ObjectName name = new ObjectName("impl:type=CardCache,id=" + INSTANCES.incrementAndGet());
+
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), name);
+        mbean = name;
+    }
+
+    /**
+     * Unregisters the MBean, if it was registered, and flushes the ledger to the storage device and closes it. The
+     * ledger is closed even if the MBean cannot be unregistered.
+     * @throws IOException if the ledger cannot be closed, or the MBean cannot be unregistered
+     */
+    @Override
+    public void close() throws IOException {
+
+        IOException failure = null;
+
+        synchronized (this) {
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+            if (mbean != null) {
+                try {
+                    server.unregisterMBean(mbean);
+                } catch (JMException e) {
+                    failure = new IOException("Cannot unregister " + mbean, e);
+                }
+                mbean = null;
+            }
+        }
+
+        try {
+            ledger.close();
+        } catch (IOException e) {
+            if (failure != null) {
+                e.addSuppressed(failure);
+            }
+            throw e;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Looks up the card issued for the specified owner, in the cache or else in the ledger. Must be called while
+     * holding the structure lock.
+     * @param email the loyalty card owner's email
+     * @return the card
+     * @throws OwnerNotRegisteredException if the given owner's email is not registered
+     */
+    private MappedCardLedger.Card getCard(String email) throws OwnerNotRegisteredException {
+
+        MappedCardLedger.Card card = cache.get(email, loader);
+
+        if (card == null) {
+            throw new OwnerNotRegisteredException();
+        }
+        return card;
+    }
+
+    /**
+     * Loads the card issued for an email from the ledger. Must be called while holding the structure lock.
+     * @param email the email
+     * @return the card, or null if the email is not registered
+     */
+    private MappedCardLedger.Card load(String email) {
+
+        int slot = find(email, hash(email));
+        return slot < 0 ? null : ledger.load(slot);
+    }
+
+    /**
+     * Probes the table for the record of the card issued for an email, comparing the email with those in the records
+     * whose hash matches. Must be called while holding the structure lock.
+     * @param email the email to look for
+     * @param hash the hash of the email
+     * @return the slot, or -1 if the email is not registered
+     */
+    private int find(String email, int hash) {
+
+        int mask = table.length - 1;
+
+        for (int entry = hash & mask; table[entry] != 0; entry = (entry + 1) & mask) {
+
+            int slot = table[entry] - 1;
+
+            if (hashes[slot] == hash && ledger.hasEmail(slot, email)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Indexes the card in a record of the ledger, growing the columns and the table if the slot is beyond them. Must
+     * be called while holding the structure lock exclusively.
+     * @param slot the slot of the card's record
+     * @param hash the hash of the card's email
+     * @param registration the number the ledger issued the card as
+     */
+    private void add(int slot, int hash, long registration) {
+
+        if (slot >= hashes.length) {
+            int capacity = Math.max(hashes.length * 2, Integer.highestOneBit(slot) * 2);
+            int old = hashes.length;
+
+            hashes = Arrays.copyOf(hashes, capacity);
+            registrations = Arrays.copyOf(registrations, capacity);
+            Arrays.fill(registrations, old, capacity, -1);
+            expirySchedule.grow(capacity);
+            usesRanking.grow(capacity);
+            rehash(capacity * 2);
+        }
+
+        hashes[slot] = hash;
+        registrations[slot] = registration;
+        insert(slot);
+        customers++;
+    }
+
+    /**
+     * Removes a card, taking its points out of the total and the card out of the ranking, and frees its record. Must
+     * be called while holding the structure lock exclusively.
+     * @param slot the slot of the card's record
+     */
+    private void remove(int slot) {
+
+        int mask = table.length - 1;
+        int hole = hashes[slot] & mask;
+
+        while (table[hole] != slot + 1) {
+            hole = (hole + 1) & mask;
+        }
+
+        // Shift back every slot after the hole in its run which would otherwise no longer be found from its home entry.
+        for (int entry = (hole + 1) & mask; table[entry] != 0; entry = (entry + 1) & mask) {
+
+            int home = hashes[table[entry] - 1] & mask;
+
+            if (((entry - home) & mask) >= ((entry - hole) & mask)) {
+                table[hole] = table[entry];
+                hole = entry;
+            }
+        }
+        table[hole] = 0;
+
+        totalPoints.add(-LoyaltyCard.points(ledger.getState(slot)));
+        expirySchedule.cancel(slot);
+        usesRanking.remove(slot);
+        ledger.free(slot);
+        registrations[slot] = -1;
+        customers--;
+    }
+
+    /**
+     * Rebuilds the table with a new capacity.
+     * @param capacity the new capacity, which must be a power of two
+     */
+    private void rehash(int capacity) {
+
+        table = new int[capacity];
+
+        for (int slot = 0; slot < registrations.length; slot++) {
+            if (registrations[slot] >= 0) {
+                insert(slot);
+            }
+        }
+    }
+
+    /**
+     * Inserts a slot into the table.
+     * @param slot the slot
+     */
+    private void insert(int slot) {
+
+        int mask = table.length - 1;
+        int entry = hashes[slot] & mask;
+
+        while (table[entry] != 0) {
+            entry = (entry + 1) & mask;
+        }
+        table[entry] = slot + 1;
+    }
+
+    /**
+     * Takes the points which have expired by a day off a card, without counting it as a use. Must be called while
+     * holding the structure lock and the card's stripe lock.
+     * @param card the card
+     * @param today the day, counted from the epoch
+     */
+    private void expireDueLots(MappedCardLedger.Card card, long today) {
+
+        PointLots lots = card.getLots();
+
+        if (lots.getFirstExpiry() <= today) {
+
+            int expired = lots.expire(today);
+
+            card.expirePoints(expired);
+            totalPoints.add(-expired);
+        }
+    }
+
+    /**
+     * Expires the points on the next batch of the cards whose points have fallen due by now, if there are any and no
+     * other thread is taking a batch, so the total catches up, and schedules them again for their oldest lots left.
+     * Must be called while holding the structure lock, and no stripe lock.
+     */
+    private void expirePoints() {
+
+        long today = EarningRules.day(clock.millis());
+
+        if (!expirySchedule.isDue(today)) {
+            return;
+        }
+
+        int[] batch = new int[SlotExpirySchedule.BATCH];
+        int count = expirySchedule.takeDue(today, batch);
+
+        for (int i = 0; i < count; i++) {
+
+            int slot = batch[i];
+
+            synchronized (stripes[slot & (STRIPES - 1)]) {
+
+                PointLots lots = ledger.getLots(slot);
+                int expired = lots.expire(today);
+
+                if (expired > 0) {
+                    ledger.expirePoints(slot, expired);
+                    totalPoints.add(-expired);
+                }
+                if (lots.size() > 0) {
+                    expirySchedule.schedule(slot, lots.getFirstExpiry());
+                }
+            }
+        }
+    }
+
+    /**
+     * Ranks a card by its uses after it has been used. Must be called while holding the structure lock.
+     * @param slot the slot of the card's record
+     * @param used the card's number of uses, read after the use
+     */
+    private void recordUse(int slot, int used) {
+        usesRanking.record(slot, registrations[slot], used);
+    }
+
+    /**
+     * Hashes an email, spreading the higher bits into the lower ones used to pick an entry.
+     * @param email the email to hash
+     * @return the hash
+     */
+    private static int hash(String email) {
+
+        int hash = email.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * The MBean for the metrics of the cache.
+     */
+    private final class Metrics implements CacheMetricsMXBean {
+
+        @Override
+        public long getHits() {
+            return cache.getMetrics().getHits();
+        }
+
+        @Override
+        public long getMisses() {
+            return cache.getMetrics().getMisses();
+        }
+
+        @Override
+        public double getHitRate() {
+            return cache.getMetrics().getHitRate();
+        }
+
+        @Override
+        public long getEvictions() {
+            return cache.getMetrics().getEvictions();
+        }
+
+        @Override
+        public int getSize() {
+            return cache.size();
+        }
+
+        @Override
+        public int getCapacity() {
+            return cache.getMetrics().getCapacity();
+        }
+
+        @Override
+        public double getLoadP50Micros() {
+            return cache.getMetrics().getLoadLatencyAtPercentile(50) / 1000.0;
+        }
+
+        @Override
+        public double getLoadP99Micros() {
+            return cache.getMetrics().getLoadLatencyAtPercentile(99) / 1000.0;
+        }
+
+        @Override
+        public double getLoadMaxMicros() {
+            return cache.getMetrics().getMaxLoadLatency() / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * This class represents an append-only binary journal of the transactions applied to a loyalty card operator, which
+ * makes them durable with group commit: many transactions are written and synced to the storage device together.
+ *
+ * Every record is framed as its length, its type, its payload and a CRC32 of the type and payload. Appending a record
+ * only copies it into an in-memory batch and returns its sequence number. A committer thread writes and syncs a batch
+ * as soon as it holds the maximum number of records, or once the oldest record in it has waited for the maximum delay,
+ * and callers wait for their sequence number with {@link #awaitDurable(long)} before acknowledging the transaction.
+ *
+ * A journal can be rotated at a point between two appends, e.g. one at which a snapshot of the operator is taken: the
+ * records appended before it end up in the rotated file, and those appended after it in the new one.
+ *
+ * When a journal is opened, the records in it are read back into a {@link Replayer}. A record which was torn by a crash,
+ * and anything after it, is cut off the end of the file.
+ *
+ */
+public final class TransactionJournal implements Closeable {
+
+    /**
+     * The record types. Purchases are journaled as the points they earned or used and when, so replaying them does not
+     * depend on the earning rules in force at the time; MONEY_PURCHASE and POINTS_PURCHASE, which only held the price,
+     * are no longer written, but are still replayed from older journals.
+     */
+    static final byte REGISTER = 1;
+    static final byte UNREGISTER = 2;
+    static final byte MONEY_PURCHASE = 3;
+    static final byte POINTS_PURCHASE = 4;
+    static final byte POINTS_EARNED = 5;
+    static final byte POINTS_USED = 6;
+
+    private static final int FRAME_BYTES = 8;
+
+    // The largest payload a record may have. Anything claiming to be longer is taken for the torn end of the journal.
+    private static final int MAX_PAYLOAD_BYTES = 1 << 20;
+
+    private final Path file;
+    private FileChannel channel;
+    private final int maxBatchRecords;
+    private final long maxDelayNanos;
+    private final Thread committer;
+
+    private ByteBuffer batch = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+    private final CRC32 crc = new CRC32();
+
+    private long appended;
+    private long durable;
+    private long batchStarted;
+    private Path rotation;
+    private int rotateAt;
+    private IOException failure;
+    private boolean closed;
+
+    /**
+     * Constructor for a journal over an open file channel, positioned at the end of the valid records.
+     * @param file the journal file
+     * @param channel the channel of the journal file
+     * @param maxBatchRecords the most records to write and sync together
+     * @param maxDelayNanos the longest a record waits for its batch to fill up before it is written anyway
+     */
+    private TransactionJournal(Path file, FileChannel channel, int maxBatchRecords, long maxDelayNanos) {
+
+        this.file = file;
+        this.channel = channel;
+        this.maxBatchRecords = maxBatchRecords;
+        this.maxDelayNanos = maxDelayNanos;
+        this.committer = new Thread(this::commitBatches, "transaction-journal-committer");
+        this.committer.setDaemon(true);
+    }
+
+    /**
+     * Opens a journal file, creating it if it does not exist yet, and replays the records in it.
+     * @param file the journal file
+     * @param maxBatchRecords the most records to write and sync together
+     * @param maxDelayMillis the longest a record waits for its batch to fill up before it is written anyway
+     * @param replayer what to replay the records into
+     * @return the journal, ready to append to
+     * @throws IOException if the file cannot be opened or read
+     */
+    public static TransactionJournal open(Path file, int maxBatchRecords, long maxDelayMillis, Replayer replayer)
+            throws IOException {
+
+        if (maxBatchRecords < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long end = read(channel, replayer);
+
+            channel.truncate(end);
+            channel.position(end);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        TransactionJournal journal = new TransactionJournal(file, channel, maxBatchRecords, maxDelayMillis * 1_000_000L);
+        journal.committer.start();
+        return journal;
+    }
+
+    /**
+     * Reads the records of a journal file which is no longer being appended to, such as one that has been rotated.
+     * @param file the journal file
+     * @param replayer what to replay the records into
+     * @throws IOException if the file cannot be read
+     */
+    static void replay(Path file, Replayer replayer) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            read(channel, replayer);
+        }
+    }
+
+    /**
+     * Appends the registration of an owner.
+     * @param email the owner's email
+     * @param name the owner's name
+     * @return the sequence number of the record
+     * @throws IOException if the journal has failed or been closed
+     * @throws IllegalArgumentException if the record would be too large to be read back
+     */
+    long appendRegister(String email, String name) throws IOException {
+        return append(REGISTER, email, name, 0, 0);
+    }
+
+    /**
+     * Appends the unregistration of an owner.
+     * @param email the owner's email
+     * @return the sequence number of the record
+     * @throws IOException if the journal has failed or been closed
+     * @throws IllegalArgumentException if the record would be too large to be read back
+     */
+    long appendUnregister(String email) throws IOException {
+        return append(UNREGISTER, email, null, 0, 0);
+    }
+
+    /**
+     * Appends the points a purchase earned or used.
+     * @param type POINTS_EARNED or POINTS_USED
+     * @param email the owner's email
+     * @param time the time of the purchase
+     * @param points the number of points earned or used
+     * @return the sequence number of the record
+     * @throws IOException if the journal has failed or been closed
+     * @throws IllegalArgumentException if the record would be too large to be read back
+     */
+    long appendPoints(byte type, String email, long time, int points) throws IOException {
+        return append(type, email, null, time, points);
+    }
+
+    /**
+     * Waits until a record, and so every record before it, has been synced to the storage device.
+     * @param sequence the sequence number of the record
+     * @throws IOException if the journal failed before the record was synced
+     */
+    synchronized void awaitDurable(long sequence) throws IOException {
+
+        boolean interrupted = false;
+
+        while (durable < sequence) {
+
+            if (failure != null) {
+                throw failure;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts rotating the journal, without waiting for it: the records appended so far are synced and the journal file
+     * is moved to a new name, and the records appended from now on go to a new, empty journal file. Appends carry on
+     * while the journal is rotated.
+     * @param target the new name for the current journal file
+     * @throws IOException if the journal has failed or been closed
+     */
+    synchronized void startRotation(Path target) throws IOException {
+
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Journal closed");
+        }
+
+        rotation = target;
+        rotateAt = batch.position();
+        notifyAll();
+    }
+
+    /**
+     * Waits until the journal file being rotated has been moved to its new name.
+     * @throws IOException if the journal failed before it was rotated
+     */
+    synchronized void awaitRotation() throws IOException {
+
+        boolean interrupted = false;
+
+        while (rotation != null && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Writes and syncs the records appended so far, and then stops the committer thread and closes the file.
+     * @throws IOException if the last batch cannot be written or the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+
+        boolean interrupted = false;
+
+        while (committer.isAlive()) {
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        channel.close();
+
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Copies a record into the current batch.
+     * @param type the record type
+     * @param email the owner's email
+     * @param name the owner's name, for registrations
+     * @param time the time of the purchase, for purchases
+     * @param points the number of points earned or used, for purchases
+     * @return the sequence number of the record
+     * @throws IOException if the journal has failed or been closed
+     * @throws IllegalArgumentException if the record would be too large to be read back, in which case nothing is
+     * appended
+     */
+    private synchronized long append(byte type, String email, String name, long time, int points)
+            throws IOException {
+
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Journal closed");
+        }
+
+        byte[] emailBytes = email.getBytes(StandardCharsets.UTF_8);
+        byte[] nameBytes = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+        int fields = type == REGISTER ? 4 + nameBytes.length : type == UNREGISTER ? 4 : 8 + 4;
+        int payload = 1 + 4 + emailBytes.length + fields;
+
+        if (payload > MAX_PAYLOAD_BYTES) {
+            throw new IllegalArgumentException("Record of " + payload + " bytes is too large to journal");
+        }
+        ensureCapacity(FRAME_BYTES + payload);
+
+        int start = batch.position();
+
+        batch.putInt(payload);
+        batch.put(type);
+        batch.putInt(emailBytes.length);
+        batch.put(emailBytes);
+
+        if (type == REGISTER) {
+            batch.putInt(nameBytes.length);
+            batch.put(nameBytes);
+        } else if (type == UNREGISTER) {
+            batch.putInt(0);
+        } else {
+            batch.putLong(time);
+            batch.putInt(points);
+        }
+
+        crc.reset();
+        crc.update(batch.array(), start + 4, payload);
+        batch.putInt((int) crc.getValue());
+
+        if (appended == durable) {
+            batchStarted = System.nanoTime();
+        }
+        appended++;
+        notifyAll();
+        return appended;
+    }
+
+    /**
+     * Grows the current batch buffer if a record of the given size does not fit in it.
+     * @param bytes the size of the record
+     */
+    private void ensureCapacity(int bytes) {
+
+        if (batch.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(batch.capacity() * 2, batch.position() + bytes));
+            batch.flip();
+            larger.put(batch);
+            batch = larger;
+        }
+    }
+
+    /**
+     * The body of the committer thread, which writes and syncs batches, and rotates the journal file when asked to,
+     * until the journal is closed.
+     */
+    private void commitBatches() {
+
+        while (true) {
+
+            long sequence;
+            Path target;
+            int cut;
+
+            synchronized (this) {
+                try {
+                    while (!closed && appended == durable && rotation == null) {
+                        wait();
+                    }
+                    while (!closed && rotation == null && appended - durable < maxBatchRecords) {
+
+                        long remaining = batchStarted + maxDelayNanos - System.nanoTime();
+
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        wait(remaining / 1_000_000L, (int) (remaining % 1_000_000L));
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+
+                if (appended == durable && rotation == null) {
+                    return;
+                }
+
+                // Swap the buffers, so that appends can carry on into a new batch while this one is written.
+                ByteBuffer full = batch;
+                batch = writing;
+                writing = full;
+                batch.clear();
+                sequence = appended;
+                target = rotation;
+                cut = rotateAt;
+                batchStarted = System.nanoTime();
+            }
+
+            try {
+                int end = writing.position();
+
+                // The records appended before the rotation started go to the rotated file, and the rest to the new one.
+                writing.flip();
+
+                if (target != null) {
+                    writing.limit(cut);
+                    write(writing);
+                    channel.close();
+                    Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    syncDirectory();
+                    writing.limit(end);
+                }
+                write(writing);
+                writing.clear();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                durable = sequence;
+
+                if (target != null) {
+                    rotation = null;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Syncs the directory holding the journal file, so that a rotation, which moves the file and creates a new one,
+     * survives a crash.
+     * @throws IOException if the directory cannot be synced
+     */
+    private void syncDirectory() throws IOException {
+
+        Path directory = file.toAbsolutePath().getParent();
+
+        try (FileChannel handle = FileChannel.open(directory, StandardOpenOption.READ)) {
+            handle.force(true);
+        }
+    }
+
+    /**
+     * Writes the rest of a buffer to the journal file and syncs it.
+     * @param buffer the buffer, in read mode
+     * @throws IOException if the file cannot be written or synced
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Reads the records from the start of a journal file into a replayer.
+     * @param channel the channel of the journal file
+     * @param replayer what to replay the records into
+     * @return the position just after the last complete and intact record
+     * @throws IOException if the file cannot be read
+     */
+    private static long read(FileChannel channel, Replayer replayer) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        CRC32 check = new CRC32();
+
+        buffer.limit(0);
+        long position = 0;
+
+        channel.position(0);
+
+        while (true) {
+
+            if (!fill(channel, buffer, 4)) {
+                return position;
+            }
+
+            int payload = buffer.getInt(buffer.position());
+
+            if (payload < 9 || payload > MAX_PAYLOAD_BYTES) {
+                return position;
+            }
+            if (buffer.capacity() < FRAME_BYTES + payload) {
+                ByteBuffer larger = ByteBuffer.allocate(FRAME_BYTES + payload);
+                larger.put(buffer);
+                larger.flip();
+                buffer = larger;
+            }
+            if (!fill(channel, buffer, FRAME_BYTES + payload)) {
+                return position;
+            }
+
+            int start = buffer.position();
+
+            check.reset();
+            check.update(buffer.array(), start + 4, payload);
+
+            if (buffer.getInt(start + 4 + payload) != (int) check.getValue()) {
+                return position;
+            }
+
+            buffer.position(start + 4);
+            byte type = buffer.get();
+            String email = string(buffer);
+
+            switch (type) {
+                case REGISTER:
+                    replayer.register(email, string(buffer));
+                    break;
+                case UNREGISTER:
+                    buffer.getInt();
+                    replayer.unregister(email);
+                    break;
+                case MONEY_PURCHASE:
+                    replayer.moneyPurchase(email, buffer.getInt());
+                    break;
+                case POINTS_PURCHASE:
+                    replayer.pointsPurchase(email, buffer.getInt());
+                    break;
+                case POINTS_EARNED:
+                    replayer.pointsEarned(email, buffer.getLong(), buffer.getInt());
+                    break;
+                case POINTS_USED:
+                    replayer.pointsUsed(email, buffer.getLong(), buffer.getInt());
+                    break;
+                default:
+                    return position;
+            }
+
+            buffer.position(start + FRAME_BYTES + payload);
+            position += FRAME_BYTES + payload;
+        }
+    }
+
+    /**
+     * Makes sure a buffer holds at least a number of unread bytes, reading more from a channel if needed.
+     * @param channel the channel to read from
+     * @param buffer the buffer, in read mode
+     * @param bytes the number of unread bytes needed
+     * @return false if the channel ended first
+     * @throws IOException if the channel cannot be read
+     */
+    private static boolean fill(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+
+        buffer.compact();
+
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                buffer.flip();
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string from a buffer.
+     * @param buffer the buffer
+     * @return the string
+     */
+    private static String string(ByteBuffer buffer) {
+
+        int length = buffer.getInt();
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Something the records of a journal can be replayed into.
+     */
+    public interface Replayer {
+
+        /**
+         * Replays the registration of an owner.
+         * @param email the owner's email
+         * @param name the owner's name
+         */
+        void register(String email, String name);
+
+        /**
+         * Replays the unregistration of an owner.
+         * @param email the owner's email
+         */
+        void unregister(String email);
+
+        /**
+         * Replays a money purchase from an older journal, which only held its price.
+         * @param email the owner's email
+         * @param pence the price of the purchase in pence
+         */
+        void moneyPurchase(String email, int pence);
+
+        /**
+         * Replays a points purchase from an older journal.
+         * @param email the owner's email
+         * @param pence the price of the item in pence
+         */
+        void pointsPurchase(String email, int pence);
+
+        /**
+         * Replays the points earned by a money purchase.
+         * @param email the owner's email
+         * @param time the time of the purchase
+         * @param points the number of points earned
+         */
+        void pointsEarned(String email, long time, int points);
+
+        /**
+         * Replays the points used by a points purchase.
+         * @param email the owner's email
+         * @param time the time of the purchase
+         * @param points the number of points used
+         */
+        void pointsUsed(String email, long time, int points);
+    }
+}
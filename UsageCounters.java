@@ -0,0 +1,162 @@
+package impl;
+
+import java.util.Arrays;
+
+/**
+ * This class counts the uses of one card, and the points it earned, over every {@link UsageWindow}, in only the buckets
+ * the card was used in, all kept in one int array, so a card costs memory for how much it has been used rather than
+ * for every bucket of every window.
+ *
+ * Each bucket is three ints: its start, in units of the shortest bucket of any window, and the uses and points in it,
+ * oldest bucket first. A use is added to the shortest bucket it falls in. Whenever a use is recorded, each bucket
+ * older than the start of a window is merged into the bucket of the next, longer window it falls in, and each bucket
+ * older than the longest window is dropped, so a bucket is always wholly inside or wholly outside each window it is
+ * counted for. A card used once holds one bucket, about 70 bytes in all, and a card used in every bucket of every
+ * window holds one for each, 60 buckets, about 780 bytes, which is the most the counters ever take.
+ *
+ * The counters are not safe to share between threads on their own; {@link CardIndex} only uses them while holding the
+ * lock on their card's entry.
+ *
+ */
+final class UsageCounters {
+
+    private static final UsageWindow[] WINDOWS = UsageWindow.values();
+
+    /**
+     * The length of the shortest bucket of any window, which every longer bucket is a whole number of.
+     */
+    private static final long UNIT = WINDOWS[0].getBucketMillis();
+
+    private static final int START = 0;
+    private static final int USES = 1;
+    private static final int POINTS = 2;
+    private static final int INTS = 3;
+
+    // The buckets the card was used in, oldest first, INTS ints each.
+    private int[] buckets = new int[INTS];
+    private int size;
+    private long last = Long.MIN_VALUE;
+    private volatile long lastDay = Long.MIN_VALUE;
+
+    /**
+     * Records a use of the card. A time before the last use recorded is counted as the time of that use.
+     * @param now the time of the use, in milliseconds since the epoch
+     * @param points the number of points earned by the use, or 0 if points were used
+     */
+    void record(long now, int points) {
+
+        now = Math.max(now, last);
+        merge(now);
+
+        int unit = (int) Math.floorDiv(now, UNIT);
+
+        if (size == 0 || buckets[(size - 1) * INTS + START] != unit) {
+            if (size * INTS == buckets.length) {
+                buckets = Arrays.copyOf(buckets, 2 * buckets.length);
+            }
+            buckets[size * INTS + START] = unit;
+            buckets[size * INTS + USES] = 0;
+            buckets[size * INTS + POINTS] = 0;
+            size++;
+        }
+        buckets[(size - 1) * INTS + USES]++;
+        buckets[(size - 1) * INTS + POINTS] += points;
+
+        last = now;
+        lastDay = Math.floorDiv(now, UsageWindow.LAST_30_DAYS.getBucketMillis());
+    }
+
+    /**
+     * Returns the number of times the card was used in a window.
+     * @param window the window
+     * @param now the time the window ends at, in milliseconds since the epoch, which is not before the last use
+     * @return the number of uses
+     */
+    int getUses(UsageWindow window, long now) {
+        return sum(window, now, USES);
+    }
+
+    /**
+     * Returns the number of points the card earned in a window.
+     * @param window the window
+     * @param now the time the window ends at, in milliseconds since the epoch, which is not before the last use
+     * @return the number of points earned
+     */
+    int getPointsEarned(UsageWindow window, long now) {
+        return sum(window, now, POINTS);
+    }
+
+    /**
+     * Returns the day, counted from the epoch in UTC, on which the card was last used. It can be read without holding
+     * the lock on the card's entry.
+     * @return the day of the last use, or Long.MIN_VALUE if the card has not been used
+     */
+    long getLastDay() {
+        return lastDay;
+    }
+
+    /**
+     * Adds up the uses or the points in the buckets which start in a window.
+     * @param window the window
+     * @param now the time the window ends at, in milliseconds since the epoch
+     * @param counter USES or POINTS
+     * @return the sum
+     */
+    private int sum(UsageWindow window, long now, int counter) {
+
+        long from = Math.floorDiv(window.getStart(now), UNIT);
+        long to = Math.floorDiv(now, UNIT);
+        int sum = 0;
+
+        for (int i = size - 1; i >= 0 && buckets[i * INTS + START] >= from; i--) {
+            if (buckets[i * INTS + START] <= to) {
+                sum += buckets[i * INTS + counter];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Merges each bucket which has fallen out of a window at a time into the bucket of the next window it falls in,
+     * and drops each bucket which has fallen out of every window, halving the array while it is less than a quarter
+     * full.
+     * @param now the time, in milliseconds since the epoch
+     */
+    private void merge(long now) {
+
+        int kept = 0;
+
+        for (int i = 0; i < size; i++) {
+
+            long start = buckets[i * INTS + START] * UNIT;
+            long length = 0;
+
+            for (UsageWindow window : WINDOWS) {
+                if (start >= window.getStart(now)) {
+                    length = window.getBucketMillis();
+                    break;
+                }
+            }
+            if (length == 0) {
+                continue;
+            }
+
+            int unit = (int) (Math.floorDiv(start, length) * length / UNIT);
+
+            if (kept > 0 && buckets[(kept - 1) * INTS + START] == unit) {
+                buckets[(kept - 1) * INTS + USES] += buckets[i * INTS + USES];
+                buckets[(kept - 1) * INTS + POINTS] += buckets[i * INTS + POINTS];
+            } else {
+                buckets[kept * INTS + START] = unit;
+                buckets[kept * INTS + USES] = buckets[i * INTS + USES];
+                buckets[kept * INTS + POINTS] = buckets[i * INTS + POINTS];
+                kept++;
+            }
+        }
+        size = kept;
+
+        if (buckets.length > INTS && 4 * size * INTS < buckets.length) {
+            buckets = Arrays.copyOf(buckets, buckets.length / 2);
+        }
+    }
+}
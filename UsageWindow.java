@@ -0,0 +1,68 @@
+package impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This enum represents the rolling windows of time over which {@link LoyaltyCardOperator} counts each card's uses and
+ * the points it earned, for queries such as the most used cards in the last day.
+ *
+ * Each window is made of a fixed number of buckets, aligned to UTC, and covers the bucket the current time falls in
+ * together with the whole buckets before it. A window is therefore accurate to one bucket: the last hour, for
+ * example, covers between 50 and 60 minutes, depending on how far into its current ten minutes it is.
+ *
+ */
+public enum UsageWindow {
+
+    /**
+     * The last hour, in six buckets of ten minutes.
+     */
+    LAST_HOUR(TimeUnit.MINUTES.toMillis(10), 6),
+
+    /**
+     * The last day, in 24 buckets of an hour.
+     */
+    LAST_DAY(TimeUnit.HOURS.toMillis(1), 24),
+
+    /**
+     * The last 30 days, in 30 buckets of a day.
+     */
+    LAST_30_DAYS(TimeUnit.DAYS.toMillis(1), 30);
+
+    private final long bucketMillis;
+    private final int buckets;
+
+    /**
+     * Constructor for a window.
+     * @param bucketMillis the length of each bucket in milliseconds
+     * @param buckets the number of buckets
+     */
+    UsageWindow(long bucketMillis, int buckets) {
+        this.bucketMillis = bucketMillis;
+        this.buckets = buckets;
+    }
+
+    /**
+     * Returns the length of each of the window's buckets.
+     * @return the length of a bucket in milliseconds
+     */
+    long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    /**
+     * Returns the number of buckets the window is made of.
+     * @return the number of buckets
+     */
+    int getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * Returns the start of the oldest bucket the window covers at a given time.
+     * @param now the time, in milliseconds since the epoch
+     * @return the start of the window, in milliseconds since the epoch
+     */
+    long getStart(long now) {
+        return (Math.floorDiv(now, bucketMillis) - buckets + 1) * bucketMillis;
+    }
+}
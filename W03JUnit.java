@@ -1,9 +1,227 @@
 package impl;
 
+import common.InsufficientPointsException;
+import common.OwnerAlreadyRegisteredException;
+import common.OwnerNotRegisteredException;
+import interfaces.ILoyaltyCardOperator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is a load generator for the operator made by the {@link Factory}. It registers a number of owners, and
+ * then has a number of threads make a mix of registrations, money purchases and points purchases for a while, after
+ * a warm-up whose results are thrown away. It prints the throughput and the latency percentiles of each kind of call.
+ *
+ * The settings are given as arguments of the form name=value:
+ * threads (the number of threads, by default the number of processors),
+ * owners (the number of owners registered before starting, 100000 by default),
+ * mix (the percentages of registrations, money purchases and points purchases, 5,70,25 by default),
+ * warmup and seconds (how long to warm up and to measure for, 2 and 10 seconds by default).
+ * The operator's own settings, such as its journal, are picked up from system properties by the factory.
+ *
+ */
 public class W03JUnit {
-    public static void main(String[] args) {
 
+    private static final String[] OPERATIONS = {"register", "money purchase", "points purchase"};
+    private static final int REGISTER = 0;
+    private static final int MONEY_PURCHASE = 1;
+    private static final int POINTS_PURCHASE = 2;
+
+    /**
+     * Runs the load generator.
+     * @param args the settings, as name=value
+     * @throws InterruptedException if interrupted while waiting for the threads
+     * @throws IOException if the operator cannot be closed
+     */
+    public static void main(String[] args) throws InterruptedException, IOException {
+
+        Map<String, String> settings = new HashMap<>();
+
+        for (String arg : args) {
+            String[] setting = arg.split("=", 2);
+
+            if (setting.length != 2) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+            settings.put(setting[0], setting[1]);
+        }
+
+        int threads = Integer.parseInt(settings.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int owners = Integer.parseInt(settings.getOrDefault("owners", "100000"));
+        long warmup = Long.parseLong(settings.getOrDefault("warmup", "2"));
+        long seconds = Long.parseLong(settings.getOrDefault("seconds", "10"));
+        String[] percentages = settings.getOrDefault("mix", "5,70,25").split(",");
+        int[] mix = new int[OPERATIONS.length];
+
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            mix[i] = (i > 0 ? mix[i - 1] : 0) + Integer.parseInt(percentages[i].trim());
+        }
+        if (mix[OPERATIONS.length - 1] != 100) {
+            throw new IllegalArgumentException("The mix must add up to 100");
+        }
+
+        ILoyaltyCardOperator operator = Factory.getInstance().makeLoyaltyCardOperator();
+        String[] emails = new String[owners];
+
+        try {
+            for (int i = 0; i < owners; i++) {
+                emails[i] = "member" + i + "@example.com";
+                operator.registerOwner(Factory.getInstance().makeLoyaltyCardOwner(emails[i], "Member " + i));
+                operator.processMoneyPurchase(emails[i], 1_000_000);
+            }
+        } catch (OwnerAlreadyRegisteredException | OwnerNotRegisteredException e) {
+            throw new IllegalStateException("Could not register the owners", e);
+        }
+
+        System.out.printf("operator: %s, threads: %d, owners: %,d, mix: %s%n", operator.getClass().getSimpleName(),
+                threads, owners, String.join("/", percentages));
+
+        run(operator, emails, mix, threads, warmup, "warmup");
+        Worker[] workers = run(operator, emails, mix, threads, seconds, "measure");
+
+        LatencyHistogram all = new LatencyHistogram();
+        long insufficient = 0;
+
+        System.out.printf("%-16s %12s %12s %10s %10s %10s %10s %10s%n", "operation", "count", "ops/s",
+                "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+
+        for (int op = 0; op < OPERATIONS.length; op++) {
+
+            LatencyHistogram latencies = new LatencyHistogram();
+
+            for (Worker worker : workers) {
+                latencies.add(worker.latencies[op]);
+            }
+            all.add(latencies);
+            print(OPERATIONS[op], latencies, seconds);
+        }
+        print("all", all, seconds);
+
+        for (Worker worker : workers) {
+            insufficient += worker.insufficientPoints;
+        }
+        System.out.printf("points purchases with insufficient points: %,d%n", insufficient);
+
+        if (operator instanceof Closeable) {
+            ((Closeable) operator).close();
+        }
+    }
+
+    /**
+     * Runs the threads for a while.
+     * @param operator the operator
+     * @param emails the emails of the owners registered before starting
+     * @param mix the cumulative percentages of each kind of call
+     * @param threads the number of threads
+     * @param seconds how long to run for
+     * @param phase the name of this run, for naming the threads
+     * @return the threads, with what they recorded
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static Worker[] run(ILoyaltyCardOperator operator, String[] emails, int[] mix, int threads, long seconds,
+                                String phase) throws InterruptedException {
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Worker[] workers = new Worker[threads];
+
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Worker(operator, emails, mix, deadline, phase + "-" + t);
+            workers[t].start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        for (Worker worker : workers) {
+            if (worker.failure != null) {
+                throw new IllegalStateException("Load generator thread failed", worker.failure);
+            }
+        }
+        return workers;
+    }
+
+    /**
+     * Prints the throughput and latency percentiles of one kind of call.
+     * @param operation the name of the kind of call
+     * @param latencies the latencies of the calls
+     * @param seconds how long the calls were made for
+     */
+    private static void print(String operation, LatencyHistogram latencies, long seconds) {
+
+        System.out.printf("%-16s %,12d %,12.0f %10.1f %10.1f %10.1f %10.1f %10.1f%n", operation,
+                latencies.getCount(), (double) latencies.getCount() / seconds,
+                latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(90) / 1000.0,
+                latencies.getValueAtPercentile(99) / 1000.0, latencies.getValueAtPercentile(99.9) / 1000.0,
+                latencies.getMax() / 1000.0);
+    }
+
+    /**
+     * A thread which makes calls to the operator until its deadline, and records how long each one took.
+     */
+    private static final class Worker extends Thread {
+
+        private final ILoyaltyCardOperator operator;
+        private final String[] emails;
+        private final int[] mix;
+        private final long deadline;
+        private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+        private long insufficientPoints;
+        private long registered;
+        private Exception failure;
+
+        private Worker(ILoyaltyCardOperator operator, String[] emails, int[] mix, long deadline, String name) {
+
+            super(name);
+            this.operator = operator;
+            this.emails = emails;
+            this.mix = mix;
+            this.deadline = deadline;
+
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                latencies[op] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            try {
+                while (System.nanoTime() < deadline) {
+
+                    int roll = random.nextInt(100);
+                    int op = roll < mix[REGISTER] ? REGISTER : roll < mix[MONEY_PURCHASE] ? MONEY_PURCHASE
+                            : POINTS_PURCHASE;
+                    String email = emails[random.nextInt(emails.length)];
+                    long start = System.nanoTime();
 
+                    switch (op) {
+                        case REGISTER:
+                            operator.registerOwner(Factory.getInstance().makeLoyaltyCardOwner(
+                                    getName() + "." + registered++ + "@example.com", "New member"));
+                            break;
+                        case MONEY_PURCHASE:
+                            operator.processMoneyPurchase(email, random.nextInt(100, 10_000));
+                            break;
+                        default:
+                            try {
+                                operator.processPointsPurchase(email, random.nextInt(1, 100));
+                            } catch (InsufficientPointsException e) {
+                                insufficientPoints++;
+                            }
+                    }
 
+                    latencies[op].record(System.nanoTime() - start);
+                }
+            } catch (OwnerAlreadyRegisteredException | OwnerNotRegisteredException | RuntimeException e) {
+                failure = e;
+            }
+        }
     }
 }
@@ -0,0 +1,21 @@
+package common;
+
+import impl.Factory;
+import interfaces.IFactory;
+
+/**
+ * This class represents a client of the factory, giving its subclasses access to the factory instance.
+ *
+ */
+public abstract class AbstractFactoryClient {
+
+    private static IFactory factory = Factory.getInstance();
+
+    /**
+     * Returns the factory instance.
+     * @return the factory
+     */
+    public static IFactory getFactory() {
+        return factory;
+    }
+}
@@ -0,0 +1,8 @@
+package common;
+
+/**
+ * This class represents the exception thrown when a card does not have enough points for a purchase.
+ *
+ */
+public class InsufficientPointsException extends Exception {
+}
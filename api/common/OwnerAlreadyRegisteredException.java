@@ -0,0 +1,8 @@
+package common;
+
+/**
+ * This class represents the exception thrown when an owner who is already registered is registered again.
+ *
+ */
+public class OwnerAlreadyRegisteredException extends Exception {
+}
@@ -0,0 +1,8 @@
+package common;
+
+/**
+ * This class represents the exception thrown when an owner who is not registered is looked up.
+ *
+ */
+public class OwnerNotRegisteredException extends Exception {
+}
@@ -0,0 +1,98 @@
+package common;
+
+/**
+ * This class represents a single purchase in a batch of purchases, either paid for with money or with points.
+ *
+ */
+public final class PurchaseRecord {
+
+    private final String ownerEmail;
+    private final int pence;
+    private final boolean pointsPurchase;
+    private final String category;
+
+    /**
+     * Constructor for creating a purchase record.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the purchase in pence
+     * @param pointsPurchase true if the purchase is paid for with points, false if it is paid for with money
+     * @param category the purchase's category, or null if it has none
+     */
+    private PurchaseRecord(String ownerEmail, int pence, boolean pointsPurchase, String category)
+            throws NullPointerException {
+
+        if (ownerEmail == null) {
+            throw new NullPointerException();
+        }
+        this.ownerEmail = ownerEmail;
+        this.pence = pence;
+        this.pointsPurchase = pointsPurchase;
+        this.category = category;
+    }
+
+    /**
+     * Creates a record of a purchase paid for with money, which earns the points the operator's earning rules give it,
+     * pence/100 by default.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the purchase in pence
+     * @return the purchase record
+     */
+    public static PurchaseRecord moneyPurchase(String ownerEmail, int pence) {
+        return new PurchaseRecord(ownerEmail, pence, false, null);
+    }
+
+    /**
+     * Creates a record of a purchase in a category paid for with money, which earns the points the operator's earning
+     * rules give it.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the purchase in pence
+     * @param category the purchase's category, or null if it has none
+     * @return the purchase record
+     */
+    public static PurchaseRecord moneyPurchase(String ownerEmail, int pence, String category) {
+        return new PurchaseRecord(ownerEmail, pence, false, category);
+    }
+
+    /**
+     * Creates a record of a purchase paid for with points, each of which is worth 1 pence.
+     * @param ownerEmail the loyalty card owner's email
+     * @param pence the price of the purchase in pence
+     * @return the purchase record
+     */
+    public static PurchaseRecord pointsPurchase(String ownerEmail, int pence) {
+        return new PurchaseRecord(ownerEmail, pence, true, null);
+    }
+
+    /**
+     * Returns the email of the owner who made the purchase.
+     * @return the loyalty card owner's email
+     */
+    public String getOwnerEmail() {
+        return ownerEmail;
+    }
+
+    /**
+     * Returns the price of the purchase.
+     * @return the price of the purchase in pence
+     */
+    public int getPence() {
+        return pence;
+    }
+
+    /**
+     * Returns whether the purchase is paid for with points.
+     * @return true if the purchase is paid for with points, false if it is paid for with money
+     */
+    public boolean isPointsPurchase() {
+        return pointsPurchase;
+    }
+
+    /**
+     * Returns the category of the purchase, which earning rules can give a multiplier.
+     * @return the category, or null if it has none
+     */
+    public String getCategory() {
+        return category;
+    }
+
+}
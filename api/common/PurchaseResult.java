@@ -0,0 +1,23 @@
+package common;
+
+/**
+ * This enum represents the outcome of processing a purchase, for callers which want a result instead of an exception.
+ *
+ */
+public enum PurchaseResult {
+
+    /**
+     * The purchase was processed.
+     */
+    OK,
+
+    /**
+     * The owner's email is not registered, so the purchase was not processed.
+     */
+    OWNER_NOT_REGISTERED,
+
+    /**
+     * The card does not contain at least the same number of points as the price, so the purchase was not processed.
+     */
+    INSUFFICIENT_POINTS
+}
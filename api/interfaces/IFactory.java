@@ -0,0 +1,29 @@
+package interfaces;
+
+/**
+ * Interface for the factory which makes owners, cards and operators.
+ *
+ */
+public interface IFactory {
+
+    /**
+     * Creates an owner.
+     * @param email the owner's email
+     * @param name the owner's name
+     * @return the owner
+     */
+    ILoyaltyCardOwner makeLoyaltyCardOwner(String email, String name);
+
+    /**
+     * Creates a card for an owner.
+     * @param loyaltyCardOwner the owner of the card
+     * @return the card
+     */
+    ILoyaltyCard makeLoyaltyCard(ILoyaltyCardOwner loyaltyCardOwner);
+
+    /**
+     * Creates an operator.
+     * @return the operator
+     */
+    ILoyaltyCardOperator makeLoyaltyCardOperator();
+}
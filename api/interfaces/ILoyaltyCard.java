@@ -0,0 +1,41 @@
+package interfaces;
+
+import common.InsufficientPointsException;
+
+/**
+ * Interface for a loyalty card.
+ *
+ */
+public interface ILoyaltyCard {
+
+    /**
+     * Returns the owner of the card.
+     * @return the owner
+     */
+    ILoyaltyCardOwner getOwner();
+
+    /**
+     * Returns the number of times the card has been used.
+     * @return the number of uses
+     */
+    int getNumberOfUses();
+
+    /**
+     * Returns the number of points on the card.
+     * @return the number of points
+     */
+    int getNumberOfPoints();
+
+    /**
+     * Adds points to the card.
+     * @param points the number of points to add
+     */
+    void addPoints(int points);
+
+    /**
+     * Uses points from the card.
+     * @param points the number of points to use
+     * @throws InsufficientPointsException if there are not enough points on the card
+     */
+    void usePoints(int points) throws InsufficientPointsException;
+}
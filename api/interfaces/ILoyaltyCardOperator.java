@@ -0,0 +1,115 @@
+package interfaces;
+
+import common.InsufficientPointsException;
+import common.OwnerAlreadyRegisteredException;
+import common.OwnerNotRegisteredException;
+import common.PurchaseRecord;
+import common.PurchaseResult;
+
+import java.util.List;
+
+/**
+ * Interface for a loyalty card operator, which registers owners and processes their purchases.
+ *
+ */
+public interface ILoyaltyCardOperator {
+
+    /**
+     * Registers an owner and issues them a card.
+     * @param loyaltyCardOwner the owner
+     * @throws OwnerAlreadyRegisteredException if the owner is already registered
+     */
+    void registerOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerAlreadyRegisteredException;
+
+    /**
+     * Unregisters an owner.
+     * @param loyaltyCardOwner the owner
+     * @throws OwnerNotRegisteredException if the owner is not registered
+     */
+    void unregisterOwner(ILoyaltyCardOwner loyaltyCardOwner) throws OwnerNotRegisteredException;
+
+    /**
+     * Processes a purchase paid for with money, which earns points.
+     * @param ownerEmail the owner's email
+     * @param pence the cost of the purchase in pence
+     * @throws OwnerNotRegisteredException if the owner is not registered
+     */
+    void processMoneyPurchase(String ownerEmail, int pence) throws OwnerNotRegisteredException;
+
+    /**
+     * Processes a purchase paid for with points.
+     * @param ownerEmail the owner's email
+     * @param pence the cost of the purchase in pence
+     * @throws InsufficientPointsException if there are not enough points on the owner's card
+     * @throws OwnerNotRegisteredException if the owner is not registered
+     */
+    void processPointsPurchase(String ownerEmail, int pence)
+            throws InsufficientPointsException, OwnerNotRegisteredException;
+
+    /**
+     * Processes a batch of money and points purchases without throwing an exception for the ones that fail, applying
+     * each owner's purchases in the order in which they appear in the batch. By default each purchase is processed in
+     * turn by processMoneyPurchase() or processPointsPurchase(), so a purchase's category is ignored; operators which
+     * can apply a batch more cheaply, or give categories a meaning, override this.
+     * @param purchases the purchases to process
+     * @return the result of each purchase, at the same position as the purchase in the batch
+     */
+    default PurchaseResult[] processPurchases(List<PurchaseRecord> purchases) {
+
+        PurchaseResult[] results = new PurchaseResult[purchases.size()];
+
+        for (int i = 0; i < results.length; i++) {
+
+            PurchaseRecord purchase = purchases.get(i);
+
+            try {
+                if (purchase.isPointsPurchase()) {
+                    processPointsPurchase(purchase.getOwnerEmail(), purchase.getPence());
+                } else {
+                    processMoneyPurchase(purchase.getOwnerEmail(), purchase.getPence());
+                }
+                results[i] = PurchaseResult.OK;
+            } catch (OwnerNotRegisteredException e) {
+                results[i] = PurchaseResult.OWNER_NOT_REGISTERED;
+            } catch (InsufficientPointsException e) {
+                results[i] = PurchaseResult.INSUFFICIENT_POINTS;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of registered owners.
+     * @return the number of customers
+     */
+    int getNumberOfCustomers();
+
+    /**
+     * Returns the total number of points on every card.
+     * @return the total number of points
+     */
+    int getTotalNumberOfPoints();
+
+    /**
+     * Returns the number of points on an owner's card.
+     * @param ownerEmail the owner's email
+     * @return the number of points
+     * @throws OwnerNotRegisteredException if the owner is not registered
+     */
+    int getNumberOfPoints(String ownerEmail) throws OwnerNotRegisteredException;
+
+    /**
+     * Returns the number of times an owner's card has been used.
+     * @param ownerEmail the owner's email
+     * @return the number of uses
+     * @throws OwnerNotRegisteredException if the owner is not registered
+     */
+    int getNumberOfUses(String ownerEmail) throws OwnerNotRegisteredException;
+
+    /**
+     * Returns the owner of the most used card.
+     * @return the owner
+     * @throws OwnerNotRegisteredException if there is no such owner
+     */
+    ILoyaltyCardOwner getMostUsed() throws OwnerNotRegisteredException;
+}
@@ -0,0 +1,20 @@
+package interfaces;
+
+/**
+ * Interface for a loyalty card owner.
+ *
+ */
+public interface ILoyaltyCardOwner {
+
+    /**
+     * Returns the owner's email, which identifies them.
+     * @return the owner's email
+     */
+    String getEmail();
+
+    /**
+     * Returns the owner's name.
+     * @return the owner's name
+     */
+    String getName();
+}